@@ -19,7 +19,6 @@ package org.apache.mahout.cf.taste.example.kddcup.track1.svd;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
@@ -28,6 +27,7 @@ import org.apache.mahout.cf.taste.impl.recommender.svd.Factorizer;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,8 +57,8 @@ public class ParallelArraysSGDFactorizer implements Factorizer {
   private final double learningRate;
   private final double preventOverfitting;
 
-  private final FastByIDMap<Integer> userIDMapping;
-  private final FastByIDMap<Integer> itemIDMapping;
+  private final OpenLongIntHashMap userIDMapping;
+  private final OpenLongIntHashMap itemIDMapping;
 
   private final double[][] userFeatures;
   private final double[][] itemFeatures;
@@ -107,7 +107,7 @@ public class ParallelArraysSGDFactorizer implements Factorizer {
     int numPrefs = factorizablePreferences.numPreferences();
 
     log.info("Mapping {} users...", numUsers);
-    userIDMapping = new FastByIDMap<Integer>(numUsers);
+    userIDMapping = new OpenLongIntHashMap(numUsers);
     int index = 0;
     LongPrimitiveIterator userIterator = factorizablePreferences.getUserIDs();
     while (userIterator.hasNext()) {
@@ -115,7 +115,7 @@ public class ParallelArraysSGDFactorizer implements Factorizer {
     }
 
     log.info("Mapping {} items", numItems);
-    itemIDMapping = new FastByIDMap<Integer>(numItems);
+    itemIDMapping = new OpenLongIntHashMap(numItems);
     index = 0;
     LongPrimitiveIterator itemIterator = factorizablePreferences.getItemIDs();
     while (itemIterator.hasNext()) {
@@ -116,6 +116,7 @@ public abstract class AbstractBooleanPrefJDBCDataModel extends AbstractJDBCDataM
       throw new TasteException(sqle);
     } finally {
       IOUtils.quietClose(null, stmt, conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
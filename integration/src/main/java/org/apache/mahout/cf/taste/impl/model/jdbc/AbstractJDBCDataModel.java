@@ -22,8 +22,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.sql.DataSource;
 
@@ -69,6 +77,13 @@ import com.google.common.base.Preconditions;
  * container, you can use packages like Jakarta's <a href="http://jakarta.apache.org/commons/dbcp/">DBCP</a>
  * to create a {@link DataSource} on top of your database whose {@link Connection}s are pooled.
  * </p>
+ *
+ * <p>
+ * Each read queries the database, unless {@link #useCaching(int, int, long)} is called to cache users' and
+ * items' preferences. Callers which need the preferences of many users or items at once should use
+ * {@link #getPreferencesFromUsers(long...)} or {@link #getPreferencesForItems(long...)}, which read them in
+ * a few queries rather than one each, as batch item similarities and the default candidate items strategy do.
+ * </p>
  */
 public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implements JDBCDataModel {
 
@@ -80,6 +95,11 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
   public static final String DEFAULT_PREFERENCE_COLUMN = "preference";
   public static final String DEFAULT_PREFERENCE_TIME_COLUMN = "timestamp";
 
+  /** Most IDs bound into the {@code IN} list of one query */
+  static final int MAX_IDS_PER_QUERY = 500;
+  /** Number of stripes of IDs whose invalidations are counted together; a power of two */
+  private static final int INVALIDATION_STRIPES = 256;
+
   private final DataSource dataSource;
   private final String preferenceTable;
   private final String userIDColumn;
@@ -103,6 +123,15 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
   private int cachedNumUsers;
   private int cachedNumItems;
   private final Cache<Long,Integer> itemPrefCounts;
+  private volatile Cache<Long,CachedPreferences> userPrefsCache;
+  private volatile Cache<Long,CachedPreferences> itemPrefsCache;
+  private volatile long cacheTimeToLiveMillis;
+  /**
+   * Invalidations of cached users' and items' preferences, counted by stripe of IDs, so that preferences read
+   * while one of theirs was invalidated are not left in the cache
+   */
+  private final AtomicLongArray userInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+  private final AtomicLongArray itemInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
   private float maxPreference;
   private float minPreference;
 
@@ -250,6 +279,28 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
     return setPreferenceSQL;
   }
 
+  /**
+   * <p>
+   * Caches the preferences of up to the given numbers of users and items once read, so that reading them again
+   * does not query the database. Changes made through {@link #setPreference(long, long, float)} and
+   * {@link #removePreference(long, long)} uncache the affected user and item at once; changes made to the table
+   * by other means are seen once cached preferences are older than the given time to live, or after
+   * {@link #refresh(Collection)}.
+   * </p>
+   *
+   * @param maxCachedUsers most users whose preferences are cached
+   * @param maxCachedItems most items whose preferences are cached
+   * @param timeToLiveMillis how long cached preferences are used before being read again
+   */
+  public void useCaching(int maxCachedUsers, int maxCachedItems, long timeToLiveMillis) {
+    Preconditions.checkArgument(maxCachedUsers > 0, "maxCachedUsers must be positive");
+    Preconditions.checkArgument(maxCachedItems > 0, "maxCachedItems must be positive");
+    Preconditions.checkArgument(timeToLiveMillis > 0L, "timeToLiveMillis must be positive");
+    this.cacheTimeToLiveMillis = timeToLiveMillis;
+    this.userPrefsCache = new Cache<Long,CachedPreferences>(new UserPrefsRetriever(), maxCachedUsers);
+    this.itemPrefsCache = new Cache<Long,CachedPreferences>(new ItemPrefsRetriever(), maxCachedItems);
+  }
+
   @Override
   public LongPrimitiveIterator getUserIDs() throws TasteException {
     log.debug("Retrieving all users...");
@@ -266,6 +317,15 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
    */
   @Override
   public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+    Cache<Long,CachedPreferences> cache = userPrefsCache;
+    if (cache == null) {
+      return doGetPreferencesFromUser(userID);
+    }
+    // A copy, since callers may sort or change the array
+    return getCachedPreferences(cache, userInvalidations, userID).clone();
+  }
+
+  private PreferenceArray doGetPreferencesFromUser(long userID) throws TasteException {
 
     log.debug("Retrieving user ID '{}'", userID);
 
@@ -395,12 +455,236 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
     }
   }
 
+  /**
+   * <p>
+   * Like {@link #exportWithPrefs()}, but splits the range of user IDs into the given number of partitions, and
+   * reads each in its own thread over its own {@link Connection}. Each user's preferences are read straight into
+   * the arrays of its {@link PreferenceArray}. This needs numeric user IDs, stored as they are returned by
+   * {@link #getLongColumn(ResultSet, int)}; where {@link #getUserIDRangeSQL()} returns {@code null}, this falls back
+   * to {@link #exportWithPrefs()}.
+   * </p>
+   *
+   * <p>
+   * Partitions cover equal ranges of user IDs, not equal numbers of users, so the speed-up depends on how evenly
+   * user IDs are spread.
+   * </p>
+   */
+  public FastByIDMap<PreferenceArray> exportWithPrefs(int numPartitions) throws TasteException {
+    if (numPartitions <= 1 || getUserIDRangeSQL() == null) {
+      return exportWithPrefs();
+    }
+    return exportInPartitions(numPartitions, true);
+  }
+
+  /**
+   * Like {@link #exportWithIDsOnly()}, but reads ranges of user IDs in parallel as
+   * {@link #exportWithPrefs(int)} does.
+   */
+  public FastByIDMap<FastIDSet> exportWithIDsOnly(int numPartitions) throws TasteException {
+    if (numPartitions <= 1 || getUserIDRangeSQL() == null) {
+      return exportWithIDsOnly();
+    }
+    return exportInPartitions(numPartitions, false);
+  }
+
+  private <V> FastByIDMap<V> exportInPartitions(int numPartitions, final boolean withPrefs) throws TasteException {
+    long[] range = getUserIDRange();
+    if (range == null) {
+      return new FastByIDMap<V>();
+    }
+    long minUserID = range[0];
+    long maxUserID = range[1];
+    long width = (maxUserID - minUserID) / numPartitions + 1;
+    if (maxUserID - minUserID < 0L) {
+      // The range overflows a long; don't partition
+      numPartitions = 1;
+      width = Long.MAX_VALUE;
+    }
+    log.info("Exporting users {} to {} in {} partitions", new Object[] {minUserID, maxUserID, numPartitions});
+
+    ExecutorService executor = Executors.newFixedThreadPool(numPartitions);
+    try {
+      List<Future<FastByIDMap<V>>> futures = Lists.newArrayListWithCapacity(numPartitions);
+      for (int i = 0; i < numPartitions; i++) {
+        final long fromUserID = minUserID + i * width;
+        final long toUserID = i == numPartitions - 1 ? maxUserID : fromUserID + width - 1;
+        futures.add(executor.submit(new Callable<FastByIDMap<V>>() {
+          @Override
+          public FastByIDMap<V> call() throws TasteException {
+            return exportPartition(fromUserID, toUserID, withPrefs);
+          }
+        }));
+      }
+      List<FastByIDMap<V>> partitions = Lists.newArrayListWithCapacity(numPartitions);
+      int numUsers = 0;
+      for (Future<FastByIDMap<V>> future : futures) {
+        FastByIDMap<V> partition = future.get();
+        partitions.add(partition);
+        numUsers += partition.size();
+      }
+      FastByIDMap<V> result = new FastByIDMap<V>(numUsers);
+      for (FastByIDMap<V> partition : partitions) {
+        for (Map.Entry<Long,V> entry : partition.entrySet()) {
+          result.put(entry.getKey(), entry.getValue());
+        }
+      }
+      return result;
+    } catch (InterruptedException ie) {
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      throw cause instanceof TasteException ? (TasteException) cause : new TasteException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @return smallest and largest user ID, or {@code null} if there are no preferences
+   */
+  private long[] getUserIDRange() throws TasteException {
+    String sql = getUserIDRangeSQL();
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+
+      log.debug("Executing SQL query: {}", sql);
+      rs = stmt.executeQuery();
+      rs.next();
+      long minUserID = rs.getLong(1);
+      if (rs.wasNull()) {
+        return null;
+      }
+      return new long[] {minUserID, rs.getLong(2)};
+    } catch (SQLException sqle) {
+      log.warn("Exception while retrieving range of user IDs", sqle);
+      throw new TasteException(sqle);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  private <V> FastByIDMap<V> exportPartition(long fromUserID, long toUserID, boolean withPrefs)
+    throws TasteException {
+    String sql = getPrefsForUserRangeSQL();
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+
+    FastByIDMap<V> result = new FastByIDMap<V>();
+
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+      stmt.setFetchSize(getFetchSize());
+      setLongParameter(stmt, 1, fromUserID);
+      setLongParameter(stmt, 2, toUserID);
+
+      log.debug("Executing SQL query: {}", sql);
+      rs = stmt.executeQuery();
+
+      boolean currentUserIDSet = false;
+      long currentUserID = 0L; // value isn't used
+      // The current user's item IDs and values, copied into a PreferenceArray or FastIDSet of the exact size
+      long[] itemIDs = new long[16];
+      float[] values = new float[16];
+      int size = 0;
+      while (rs.next()) {
+        long nextUserID = getLongColumn(rs, 1);
+        if (currentUserIDSet && currentUserID != nextUserID && size > 0) {
+          result.put(currentUserID, this.<V>toUserValue(currentUserID, itemIDs, values, size, withPrefs));
+          size = 0;
+        }
+        if (size == itemIDs.length) {
+          itemIDs = Arrays.copyOf(itemIDs, 2 * size);
+          values = Arrays.copyOf(values, 2 * size);
+        }
+        if (withPrefs) {
+          Preference pref = buildPreference(rs);
+          itemIDs[size] = pref.getItemID();
+          values[size] = pref.getValue();
+        } else {
+          itemIDs[size] = getLongColumn(rs, 2);
+        }
+        size++;
+        currentUserID = nextUserID;
+        currentUserIDSet = true;
+      }
+      if (size > 0) {
+        result.put(currentUserID, this.<V>toUserValue(currentUserID, itemIDs, values, size, withPrefs));
+      }
+
+      return result;
+
+    } catch (SQLException sqle) {
+      log.warn("Exception while exporting data", sqle);
+      throw new TasteException(sqle);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private <V> V toUserValue(long userID, long[] itemIDs, float[] values, int size, boolean withPrefs) {
+    if (withPrefs) {
+      PreferenceArray prefs = new GenericUserPreferenceArray(size);
+      prefs.setUserID(0, userID);
+      for (int i = 0; i < size; i++) {
+        prefs.setItemID(i, itemIDs[i]);
+        prefs.setValue(i, values[i]);
+      }
+      return (V) prefs;
+    }
+    FastIDSet ids = new FastIDSet(size);
+    for (int i = 0; i < size; i++) {
+      ids.add(itemIDs[i]);
+    }
+    return (V) ids;
+  }
+
+  /**
+   * Subclasses may wish to override this to return {@code null} if user IDs are not numeric, or their queries do
+   * not read the preference table and columns named in the constructor.
+   *
+   * @return query for the smallest and largest user ID, or {@code null} if exports can't be partitioned by user ID
+   */
+  protected String getUserIDRangeSQL() {
+    return "SELECT MIN(" + userIDColumn + "), MAX(" + userIDColumn + ") FROM " + preferenceTable;
+  }
+
+  /**
+   * @return query for the preferences of users with IDs in a range, both ends included, ordered by user ID
+   */
+  protected String getPrefsForUserRangeSQL() {
+    StringBuilder sql = new StringBuilder(100);
+    sql.append("SELECT ").append(userIDColumn).append(", ").append(itemIDColumn);
+    if (hasPreferenceValues()) {
+      sql.append(", ").append(preferenceColumn);
+    }
+    sql.append(" FROM ").append(preferenceTable).append(" WHERE ").append(userIDColumn).append(" >= ? AND ")
+        .append(userIDColumn).append(" <= ? ORDER BY ").append(userIDColumn).append(", ").append(itemIDColumn);
+    return sql.toString();
+  }
+
   /**
    * @throws NoSuchUserException
    *           if there is no such user
    */
   @Override
   public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+    Cache<Long,CachedPreferences> cache = userPrefsCache;
+    if (cache != null) {
+      PreferenceArray prefs = getCachedPreferences(cache, userInvalidations, userID);
+      FastIDSet result = new FastIDSet(prefs.length());
+      for (int i = 0; i < prefs.length(); i++) {
+        result.add(prefs.getItemID(i));
+      }
+      return result;
+    }
 
     log.debug("Retrieving items for user ID '{}'", userID);
 
@@ -511,6 +795,14 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
 
   @Override
   public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+    Cache<Long,CachedPreferences> cache = itemPrefsCache;
+    if (cache == null) {
+      return buildItemPreferenceArray(itemID);
+    }
+    return getCachedPreferences(cache, itemInvalidations, itemID).clone();
+  }
+
+  private PreferenceArray buildItemPreferenceArray(long itemID) throws TasteException {
     List<Preference> list = doGetPreferencesForItem(itemID);
     if (list.isEmpty()) {
       throw new NoSuchItemException(itemID);
@@ -518,6 +810,216 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
     return new GenericItemPreferenceArray(list);
   }
 
+  private static PreferenceArray getCachedPreferences(Cache<Long,CachedPreferences> cache,
+                                                     AtomicLongArray invalidations,
+                                                     long id) throws TasteException {
+    long invalidationsBefore = invalidations.get(stripe(id));
+    CachedPreferences cached = cache.get(id);
+    if (cached.isExpired(System.currentTimeMillis())) {
+      cache.remove(id);
+      cached = cache.get(id);
+    }
+    uncacheIfInvalidated(cache, invalidations, id, invalidationsBefore);
+    return cached.getPreferences();
+  }
+
+  /**
+   * Uncaches preferences which may have been read before, and cached after, an invalidation of them. Since
+   * {@link #invalidateCachedPreferences(long, long)} counts an invalidation before it uncaches, either it uncaches
+   * what was just cached or this sees the count change.
+   */
+  private static void uncacheIfInvalidated(Cache<Long,CachedPreferences> cache,
+                                           AtomicLongArray invalidations,
+                                           long id,
+                                           long invalidationsBefore) {
+    if (invalidations.get(stripe(id)) != invalidationsBefore) {
+      cache.remove(id);
+    }
+  }
+
+  private static int stripe(long id) {
+    return (int) (id ^ (id >>> 32)) & (INVALIDATION_STRIPES - 1);
+  }
+
+  /**
+   * @return preferences of each of the given users who has any, read in queries of up to
+   *  {@value #MAX_IDS_PER_QUERY} users each, or from the cache if {@link #useCaching(int, int, long)} was called
+   */
+  @Override
+  public FastByIDMap<PreferenceArray> getPreferencesFromUsers(long... userIDs) throws TasteException {
+    return getPreferencesForIDs(userIDs, true);
+  }
+
+  /**
+   * @return preferences for each of the given items which has any, read in queries of up to
+   *  {@value #MAX_IDS_PER_QUERY} items each, or from the cache if {@link #useCaching(int, int, long)} was called
+   */
+  @Override
+  public FastByIDMap<PreferenceArray> getPreferencesForItems(long... itemIDs) throws TasteException {
+    return getPreferencesForIDs(itemIDs, false);
+  }
+
+  private FastByIDMap<PreferenceArray> getPreferencesForIDs(long[] ids, boolean byUser) throws TasteException {
+    FastByIDMap<PreferenceArray> result = new FastByIDMap<PreferenceArray>(ids.length);
+    Cache<Long,CachedPreferences> cache = byUser ? userPrefsCache : itemPrefsCache;
+    long now = System.currentTimeMillis();
+    FastIDSet toRead = new FastIDSet(ids.length);
+    for (long id : ids) {
+      CachedPreferences cached = cache == null ? null : cache.getIfPresent(id);
+      if (cached == null || cached.isExpired(now)) {
+        toRead.add(id);
+      } else {
+        result.put(id, cached.getPreferences().clone());
+      }
+    }
+    if (toRead.isEmpty()) {
+      return result;
+    }
+
+    long[] idsToRead = toRead.toArray();
+    AtomicLongArray invalidations = byUser ? userInvalidations : itemInvalidations;
+    long[] invalidationsBefore = new long[idsToRead.length];
+    for (int i = 0; i < idsToRead.length; i++) {
+      invalidationsBefore[i] = invalidations.get(stripe(idsToRead[i]));
+    }
+    if (getPrefsForIDsSQL(byUser, 1) == null) {
+      // No query for many IDs; read one by one
+      for (long id : idsToRead) {
+        try {
+          result.put(id, byUser ? getPreferencesFromUser(id) : getPreferencesForItem(id));
+        } catch (NoSuchUserException nsue) {
+          // not included
+        } catch (NoSuchItemException nsie) {
+          // not included
+        }
+      }
+      return result;
+    }
+
+    for (int from = 0; from < idsToRead.length; from += MAX_IDS_PER_QUERY) {
+      int to = Math.min(idsToRead.length, from + MAX_IDS_PER_QUERY);
+      FastByIDMap<PreferenceArray> read = doGetPreferencesForIDs(idsToRead, from, to, byUser);
+      for (int i = from; i < to; i++) {
+        long id = idsToRead[i];
+        PreferenceArray prefs = read.get(id);
+        if (prefs == null) {
+          continue;
+        }
+        if (cache == null) {
+          result.put(id, prefs);
+        } else {
+          cache.put(id, new CachedPreferences(prefs, expiration(cacheTimeToLiveMillis)));
+          uncacheIfInvalidated(cache, invalidations, id, invalidationsBefore[i]);
+          result.put(id, prefs.clone());
+        }
+      }
+    }
+    return result;
+  }
+
+  private FastByIDMap<PreferenceArray> doGetPreferencesForIDs(long[] ids, int from, int to, boolean byUser)
+    throws TasteException {
+    String sql = getPrefsForIDsSQL(byUser, to - from);
+    log.debug("Retrieving preferences for {} {}", to - from, byUser ? "users" : "items");
+    Connection conn = null;
+    PreparedStatement stmt = null;
+    ResultSet rs = null;
+    try {
+      conn = dataSource.getConnection();
+      stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      stmt.setFetchDirection(ResultSet.FETCH_FORWARD);
+      stmt.setFetchSize(getFetchSize());
+      for (int i = from; i < to; i++) {
+        setLongParameter(stmt, i - from + 1, ids[i]);
+      }
+
+      log.debug("Executing SQL query: {}", sql);
+      rs = stmt.executeQuery();
+
+      FastByIDMap<PreferenceArray> result = new FastByIDMap<PreferenceArray>(to - from);
+      int idColumn = byUser ? 1 : 2;
+      boolean currentIDSet = false;
+      long currentID = 0L; // value isn't used
+      List<Preference> currentPrefs = Lists.newArrayList();
+      while (rs.next()) {
+        long nextID = getLongColumn(rs, idColumn);
+        if (currentIDSet && currentID != nextID && !currentPrefs.isEmpty()) {
+          result.put(currentID, toPreferenceArray(currentPrefs, byUser));
+          currentPrefs.clear();
+        }
+        currentPrefs.add(buildPreference(rs));
+        currentID = nextID;
+        currentIDSet = true;
+      }
+      if (!currentPrefs.isEmpty()) {
+        result.put(currentID, toPreferenceArray(currentPrefs, byUser));
+      }
+      return result;
+
+    } catch (SQLException sqle) {
+      log.warn("Exception while retrieving preferences", sqle);
+      throw new TasteException(sqle);
+    } finally {
+      IOUtils.quietClose(rs, stmt, conn);
+    }
+  }
+
+  private static PreferenceArray toPreferenceArray(List<Preference> prefs, boolean byUser) {
+    return byUser ? new GenericUserPreferenceArray(prefs) : new GenericItemPreferenceArray(prefs);
+  }
+
+  /**
+   * Subclasses may wish to override this if their queries do not read the preference table and columns named in
+   * the constructor, and return {@code null}, in which case the preferences of many users or items are read
+   * one by one.
+   *
+   * @param byUser true to select the preferences of users, false those for items
+   * @param numIDs number of IDs to bind into the {@code IN} list
+   * @return query for the preferences of the given number of users or items, ordered by user or item ID
+   */
+  protected String getPrefsForIDsSQL(boolean byUser, int numIDs) {
+    String idColumn = byUser ? userIDColumn : itemIDColumn;
+    String otherIDColumn = byUser ? itemIDColumn : userIDColumn;
+    StringBuilder sql = new StringBuilder(100 + 3 * numIDs);
+    sql.append("SELECT ").append(userIDColumn).append(", ").append(itemIDColumn);
+    if (hasPreferenceValues()) {
+      sql.append(", ").append(preferenceColumn);
+    }
+    sql.append(" FROM ").append(preferenceTable).append(" WHERE ").append(idColumn).append(" IN (");
+    for (int i = 0; i < numIDs; i++) {
+      if (i > 0) {
+        sql.append(',');
+      }
+      sql.append('?');
+    }
+    sql.append(") ORDER BY ").append(idColumn).append(", ").append(otherIDColumn);
+    return sql.toString();
+  }
+
+  private static long expiration(long timeToLiveMillis) {
+    long now = System.currentTimeMillis();
+    return now + timeToLiveMillis < now ? Long.MAX_VALUE : now + timeToLiveMillis;
+  }
+
+  /**
+   * Uncaches what a change to the given user's preference for the given item makes stale. Subclasses which
+   * override {@link #setPreference(long, long, float)} or {@link #removePreference(long, long)} should call this
+   * once the change is made.
+   */
+  protected void invalidateCachedPreferences(long userID, long itemID) {
+    userInvalidations.incrementAndGet(stripe(userID));
+    itemInvalidations.incrementAndGet(stripe(itemID));
+    itemPrefCounts.remove(itemID);
+    Cache<Long,CachedPreferences> cache = userPrefsCache;
+    if (cache != null) {
+      cache.remove(userID);
+    }
+    cache = itemPrefsCache;
+    if (cache != null) {
+      cache.remove(itemID);
+    }
+  }
+
   protected List<Preference> doGetPreferencesForItem(long itemID) throws TasteException {
     log.debug("Retrieving preferences for item ID '{}'", itemID);
     Connection conn = null;
@@ -624,6 +1126,7 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
       throw new TasteException(sqle);
     } finally {
       IOUtils.quietClose(null, stmt, conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
@@ -649,6 +1152,7 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
       throw new TasteException(sqle);
     } finally {
       IOUtils.quietClose(null, stmt, conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
@@ -659,6 +1163,18 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
     minPreference = Float.NaN;
     maxPreference = Float.NaN;
     itemPrefCounts.clear();
+    for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+      userInvalidations.incrementAndGet(i);
+      itemInvalidations.incrementAndGet(i);
+    }
+    Cache<Long,CachedPreferences> cache = userPrefsCache;
+    if (cache != null) {
+      cache.clear();
+    }
+    cache = itemPrefsCache;
+    if (cache != null) {
+      cache.clear();
+    }
   }
 
   @Override
@@ -787,4 +1303,40 @@ public abstract class AbstractJDBCDataModel extends AbstractJDBCComponent implem
       return getNumThings("user preferring item", getNumPreferenceForItemSQL, key);
     }
   }
+
+  private final class UserPrefsRetriever implements Retriever<Long,CachedPreferences> {
+    @Override
+    public CachedPreferences get(Long userID) throws TasteException {
+      return new CachedPreferences(doGetPreferencesFromUser(userID), expiration(cacheTimeToLiveMillis));
+    }
+  }
+
+  private final class ItemPrefsRetriever implements Retriever<Long,CachedPreferences> {
+    @Override
+    public CachedPreferences get(Long itemID) throws TasteException {
+      return new CachedPreferences(buildItemPreferenceArray(itemID), expiration(cacheTimeToLiveMillis));
+    }
+  }
+
+  /**
+   * A user's or item's preferences, and when they should be read again.
+   */
+  private static final class CachedPreferences {
+
+    private final PreferenceArray preferences;
+    private final long expiration;
+
+    private CachedPreferences(PreferenceArray preferences, long expiration) {
+      this.preferences = preferences;
+      this.expiration = expiration;
+    }
+
+    PreferenceArray getPreferences() {
+      return preferences;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiration;
+    }
+  }
 }
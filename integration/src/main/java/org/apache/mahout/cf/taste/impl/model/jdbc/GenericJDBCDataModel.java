@@ -121,6 +121,24 @@ public final class GenericJDBCDataModel extends AbstractJDBCDataModel {
         .getResourceAsStream(resourcePath)));
   }
   
+  /**
+   * @return {@code null}, since the configured queries need not read the default preference table and columns,
+   *  so that the preferences of many users or items are read one by one
+   */
+  @Override
+  protected String getPrefsForIDsSQL(boolean byUser, int numIDs) {
+    return null;
+  }
+
+  /**
+   * @return {@code null}, since the configured queries need not read the default preference table and columns,
+   *  so that exports are not partitioned
+   */
+  @Override
+  protected String getUserIDRangeSQL() {
+    return null;
+  }
+
   private static Properties getPropertiesFromFile(File file) throws TasteException {
     try {
       return getPropertiesFromStream(new FileInputStream(file));
@@ -140,6 +140,7 @@ public class PostgreSQLBooleanPrefJDBCDataModel extends SQL92BooleanPrefJDBCData
       }
     } finally {
       IOUtils.quietClose(null, stmt, conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
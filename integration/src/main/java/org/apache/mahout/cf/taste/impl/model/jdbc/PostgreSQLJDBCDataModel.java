@@ -166,6 +166,7 @@ public class PostgreSQLJDBCDataModel extends SQL92JDBCDataModel {
       IOUtils.quietClose(null, stmt1, null);
       IOUtils.quietClose(null, stmt2, null);
       IOUtils.quietClose(null, null, conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
   
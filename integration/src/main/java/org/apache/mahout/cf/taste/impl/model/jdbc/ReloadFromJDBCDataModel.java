@@ -23,6 +23,7 @@ import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
@@ -31,29 +32,68 @@ import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Closeable;
 import java.util.Collection;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link DataModel} which loads, and can re-load, data from a JDBC-backed {@link JDBCDataModel} into memory, as a
  * {@link GenericDataModel} or {@link GenericBooleanPrefDataModel}. It is intended to provide the speed
  * advantage of in-memory representation but be able to update periodically to pull in new data from a database source.
+ * Data is read in parallel ranges of user IDs if the delegate is an {@link AbstractJDBCDataModel} and more than one
+ * export partition is requested, and may be reloaded in a background thread, in which case the data loaded before
+ * keeps being used until the new data is ready. {@link #close()} stops the background thread.
  */
-public final class ReloadFromJDBCDataModel implements DataModel {
+public final class ReloadFromJDBCDataModel extends AbstractDataModel implements Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(ReloadFromJDBCDataModel.class);
 
-  private DataModel delegateInMemory;
+  private volatile DataModel delegateInMemory;
   private final JDBCDataModel delegate;
+  private final int numExportPartitions;
+  private final ExecutorService reloadExecutor;
+  private final AtomicBoolean reloading;
   private final RefreshHelper refreshHelper;
 
   public ReloadFromJDBCDataModel(JDBCDataModel delegate) throws TasteException {
+    this(delegate, 1, false);
+  }
+
+  /**
+   * @param numExportPartitions number of ranges of user IDs to read in parallel, if the delegate is an
+   *  {@link AbstractJDBCDataModel}; see {@link AbstractJDBCDataModel#exportWithPrefs(int)}
+   * @param reloadInBackground if true, {@link #refresh(Collection)} starts reloading in a background thread and
+   *  returns at once. The initial load, in the constructor, is always done before returning.
+   */
+  public ReloadFromJDBCDataModel(JDBCDataModel delegate, int numExportPartitions, boolean reloadInBackground)
+    throws TasteException {
     this.delegate = Preconditions.checkNotNull(delegate);
+    Preconditions.checkArgument(numExportPartitions >= 1, "numExportPartitions must be at least 1");
+    this.numExportPartitions = numExportPartitions;
+    reloading = new AtomicBoolean();
+    reloadExecutor = reloadInBackground ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+      private final ThreadFactory delegate = Executors.defaultThreadFactory();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = delegate.newThread(r);
+        t.setDaemon(true);
+        return t;
+      }
+    }) : null;
     refreshHelper = new RefreshHelper(new Callable<Void>() {
       @Override
       public Void call() {
-        reload();
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        if (reloadExecutor == null) {
+          reload();
+        } else {
+          startReload();
+        }
+        return null;
       }
     });
     refreshHelper.addDependency(delegate);
@@ -68,14 +108,61 @@ public final class ReloadFromJDBCDataModel implements DataModel {
     refreshHelper.refresh(alreadyRefreshed);
   }
 
+  /**
+   * @return true while a reload started by {@link #refresh(Collection)} is running in the background
+   */
+  public boolean isReloading() {
+    return reloading.get();
+  }
+
+  private void startReload() {
+    if (!reloading.compareAndSet(false, true)) {
+      log.info("Already reloading JDBC delegate data");
+      return;
+    }
+    try {
+      reloadExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            reload();
+          } finally {
+            reloading.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      reloading.set(false);
+      log.info("Closed; not reloading JDBC delegate data");
+    }
+  }
+
+  /**
+   * Stops the thread which reloads in the background, if any, once a reload it is running finishes. Later calls to
+   * {@link #refresh(Collection)} do not reload. The data already loaded can still be used.
+   */
+  @Override
+  public void close() {
+    if (reloadExecutor != null) {
+      reloadExecutor.shutdown();
+    }
+  }
+
   private void reload() {
     try {
       // Load new in-memory representation,
       log.info("Loading new JDBC delegate data...");
-      DataModel newDelegateInMemory =
-          delegate.hasPreferenceValues()
-          ? new GenericDataModel(delegate.exportWithPrefs())
-          : new GenericBooleanPrefDataModel(delegate.exportWithIDsOnly());
+      DataModel newDelegateInMemory;
+      if (delegate instanceof AbstractJDBCDataModel && numExportPartitions > 1) {
+        AbstractJDBCDataModel partitionable = (AbstractJDBCDataModel) delegate;
+        newDelegateInMemory = delegate.hasPreferenceValues()
+            ? new GenericDataModel(partitionable.exportWithPrefs(numExportPartitions))
+            : new GenericBooleanPrefDataModel(partitionable.exportWithIDsOnly(numExportPartitions));
+      } else {
+        newDelegateInMemory = delegate.hasPreferenceValues()
+            ? new GenericDataModel(delegate.exportWithPrefs())
+            : new GenericBooleanPrefDataModel(delegate.exportWithIDsOnly());
+      }
       // and then swap to it.
       log.info("New data loaded.");
       delegateInMemory = newDelegateInMemory;
@@ -150,6 +237,16 @@ public final class ReloadFromJDBCDataModel implements DataModel {
     return delegateInMemory.getNumUsersWithPreferenceFor(itemID1, itemID2);
   }
 
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    return countUsersWithPreferenceFor(delegateInMemory, itemID1, itemID2s);
+  }
+
+  @Override
+  public boolean isInMemory() {
+    return true;
+  }
+
   @Override
   public void setPreference(long userID, long itemID, float value) throws TasteException {
     delegateInMemory.setPreference(userID, itemID, value);
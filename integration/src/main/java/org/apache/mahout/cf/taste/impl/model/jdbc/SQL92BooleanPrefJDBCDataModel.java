@@ -215,6 +215,7 @@ public class SQL92BooleanPrefJDBCDataModel extends AbstractBooleanPrefJDBCDataMo
       IOUtils.quietClose(stmt1);
       IOUtils.quietClose(stmt2);
       IOUtils.quietClose(conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
@@ -242,6 +242,7 @@ public class SQL92JDBCDataModel extends AbstractJDBCDataModel {
       IOUtils.quietClose(stmt2);
       IOUtils.quietClose(stmt3);
       IOUtils.quietClose(conn);
+      invalidateCachedPreferences(userID, itemID);
     }
   }
 
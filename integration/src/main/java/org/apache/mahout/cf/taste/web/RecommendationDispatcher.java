@@ -0,0 +1,342 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.web;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.Cache;
+import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.common.Retriever;
+import org.apache.mahout.cf.taste.impl.eval.LatencyHistogram;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * <p>
+ * Serves rendered recommendations from a bounded pool of worker threads, for {@link RecommenderServlet}.
+ * Responses are cached by user ID, number of recommendations and format, for up to a time to live, and until
+ * {@link #refresh(Collection)} or {@link #invalidate()}. The time to live bounds how stale a response can be when
+ * the recommender is refreshed or replaced other than through this dispatcher. Concurrent requests for the same
+ * response are coalesced, so that the recommender computes it once and all callers receive it.
+ * </p>
+ *
+ * <p>
+ * A caller waits for its response up to a timeout. When all workers are busy and the queue of waiting
+ * computations is full, or the timeout passes, {@link #getResponse(long, int, String)} fails at once with a
+ * {@link TasteException} whose cause is a {@link RejectedExecutionException} or {@link TimeoutException}, so that
+ * the caller can shed load rather than pile up threads. The latency of each format, and how many computations are
+ * queued, can be read as JSON from {@link #getMetricsJson()}.
+ * </p>
+ */
+public final class RecommendationDispatcher implements Refreshable {
+
+  private static final double[] PERCENTILES = {50.0, 95.0, 99.0, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99", "p999"};
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final Recommender recommender;
+  private final Renderer renderer;
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMillis;
+  private final long responseTimeToLiveMillis;
+  private final Cache<ResponseKey,CachedResponse> responses;
+  private final RefreshHelper refreshHelper;
+  private final ConcurrentMap<String,LatencyHistogram> latencies;
+  private final AtomicInteger maxQueueDepth;
+  private final AtomicLong numRejected;
+  private final AtomicLong numTimedOut;
+
+  /**
+   * @param renderer renders recommendations as the bytes of a response in a given format
+   * @param numThreads number of threads computing recommendations
+   * @param maxQueued most computations waiting for a thread before further ones are rejected
+   * @param maxCachedResponses most responses cached
+   * @param responseTimeToLiveMillis longest a response is served from the cache before it is computed again
+   * @param timeoutMillis longest a caller waits for its response
+   */
+  public RecommendationDispatcher(Recommender recommender,
+                                  Renderer renderer,
+                                  int numThreads,
+                                  int maxQueued,
+                                  int maxCachedResponses,
+                                  long responseTimeToLiveMillis,
+                                  long timeoutMillis) {
+    Preconditions.checkArgument(recommender != null, "recommender is null");
+    Preconditions.checkArgument(renderer != null, "renderer is null");
+    Preconditions.checkArgument(numThreads >= 1, "numThreads must be at least 1");
+    Preconditions.checkArgument(maxQueued >= 1, "maxQueued must be at least 1");
+    Preconditions.checkArgument(responseTimeToLiveMillis > 0L, "responseTimeToLiveMillis must be positive");
+    Preconditions.checkArgument(timeoutMillis > 0L, "timeoutMillis must be positive");
+    this.recommender = recommender;
+    this.renderer = renderer;
+    this.responseTimeToLiveMillis = responseTimeToLiveMillis;
+    this.timeoutMillis = timeoutMillis;
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(maxQueued));
+    responses = new Cache<ResponseKey,CachedResponse>(new ResponseRetriever(), maxCachedResponses);
+    refreshHelper = new RefreshHelper(new Callable<Void>() {
+      @Override
+      public Void call() {
+        invalidate();
+        return null;
+      }
+    });
+    refreshHelper.addDependency(recommender);
+    latencies = new ConcurrentHashMap<String,LatencyHistogram>();
+    maxQueueDepth = new AtomicInteger();
+    numRejected = new AtomicLong();
+    numTimedOut = new AtomicLong();
+  }
+
+  public Recommender getRecommender() {
+    return recommender;
+  }
+
+  /**
+   * @param format format in which to render recommendations, as understood by the {@link Renderer}. Latencies
+   *  are kept per format, so callers should only pass formats they know.
+   * @return recommendations for the user, rendered in the given format
+   * @throws TasteException if the recommendations can't be computed, or with a {@link RejectedExecutionException}
+   *  or {@link TimeoutException} cause if the dispatcher is too busy to compute them in time
+   */
+  public byte[] getResponse(long userID, int howMany, String format) throws TasteException {
+    long start = System.nanoTime();
+    try {
+      ResponseKey key = new ResponseKey(userID, howMany, format);
+      CachedResponse cached = responses.get(key);
+      if (cached.isExpired(System.currentTimeMillis())) {
+        responses.remove(key);
+        cached = responses.get(key);
+      }
+      return cached.getBytes();
+    } finally {
+      latencyOf(format).record(System.nanoTime() - start);
+    }
+  }
+
+  private LatencyHistogram latencyOf(String format) {
+    LatencyHistogram latency = latencies.get(format);
+    if (latency == null) {
+      latency = new LatencyHistogram();
+      LatencyHistogram existing = latencies.putIfAbsent(format, latency);
+      if (existing != null) {
+        latency = existing;
+      }
+    }
+    return latency;
+  }
+
+  /**
+   * @return number of computations waiting for a worker thread
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return JSON object giving the current and largest queue depth, counts of requests served from the cache,
+   *  rejected and timed out, and for each format, the number of requests and their latencies in milliseconds
+   */
+  public String getMetricsJson() {
+    try {
+      return OBJECT_MAPPER.writeValueAsString(getMetrics());
+    } catch (IOException ioe) {
+      throw new IllegalStateException(ioe);
+    }
+  }
+
+  /**
+   * @return the metrics of {@link #getMetricsJson()}, by name, with latencies rounded to three decimal places
+   */
+  Map<String,Object> getMetrics() {
+    Map<String,Object> metrics = Maps.newLinkedHashMap();
+    metrics.put("queueDepth", getQueueDepth());
+    metrics.put("maxQueueDepth", maxQueueDepth.get());
+    metrics.put("activeThreads", executor.getActiveCount());
+    metrics.put("cacheHits", responses.getHitCount());
+    metrics.put("cacheMisses", responses.getMissCount());
+    metrics.put("rejected", numRejected.get());
+    metrics.put("timedOut", numTimedOut.get());
+    Map<String,Object> latencyMillis = Maps.newLinkedHashMap();
+    for (Map.Entry<String,LatencyHistogram> entry : latencies.entrySet()) {
+      LatencyHistogram latency = entry.getValue();
+      Map<String,Object> formatLatency = Maps.newLinkedHashMap();
+      formatLatency.put("count", latency.getCount());
+      formatLatency.put("mean", round(latency.getMean() / 1000.0));
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        formatLatency.put(PERCENTILE_NAMES[i], round(latency.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+      }
+      formatLatency.put("max", round(latency.getMax() / 1000.0));
+      latencyMillis.put(entry.getKey(), formatLatency);
+    }
+    metrics.put("latencyMillis", latencyMillis);
+    return metrics;
+  }
+
+  private static double round(double value) {
+    return Math.rint(value * 1000.0) / 1000.0;
+  }
+
+  /**
+   * Refreshes the recommender and then uncaches all responses.
+   */
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    refreshHelper.refresh(alreadyRefreshed);
+  }
+
+  /**
+   * Uncaches all responses, for instance when the recommender has been refreshed or replaced other than through
+   * {@link #refresh(Collection)}.
+   */
+  public void invalidate() {
+    responses.clear();
+  }
+
+  /**
+   * Stops the worker threads.
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    return "RecommendationDispatcher[recommender:" + recommender + ']';
+  }
+
+  /**
+   * Renders recommendations as the bytes of a response.
+   */
+  public interface Renderer {
+    byte[] render(long userID, String format, List<RecommendedItem> items) throws IOException;
+  }
+
+  private final class ResponseRetriever implements Retriever<ResponseKey,CachedResponse> {
+    @Override
+    public CachedResponse get(final ResponseKey key) throws TasteException {
+      Future<byte[]> future;
+      try {
+        future = executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws TasteException, IOException {
+            List<RecommendedItem> items = recommender.recommend(key.userID, key.howMany);
+            return renderer.render(key.userID, key.format, items);
+          }
+        });
+      } catch (RejectedExecutionException ree) {
+        numRejected.incrementAndGet();
+        throw new TasteException(ree);
+      }
+      int queueDepth = executor.getQueue().size();
+      int max = maxQueueDepth.get();
+      while (queueDepth > max && !maxQueueDepth.compareAndSet(max, queueDepth)) {
+        max = maxQueueDepth.get();
+      }
+      try {
+        byte[] bytes = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        long now = System.currentTimeMillis();
+        return new CachedResponse(bytes,
+            now + responseTimeToLiveMillis < now ? Long.MAX_VALUE : now + responseTimeToLiveMillis);
+      } catch (TimeoutException te) {
+        numTimedOut.incrementAndGet();
+        future.cancel(true);
+        throw new TasteException(te);
+      } catch (InterruptedException ie) {
+        future.cancel(true);
+        throw new TasteException(ie);
+      } catch (ExecutionException ee) {
+        Throwable cause = ee.getCause();
+        if (cause instanceof TasteException) {
+          throw (TasteException) cause;
+        }
+        throw new TasteException(cause);
+      }
+    }
+  }
+
+  /**
+   * A rendered response, and when it should be computed again.
+   */
+  private static final class CachedResponse {
+
+    private final byte[] bytes;
+    private final long expiration;
+
+    private CachedResponse(byte[] bytes, long expiration) {
+      this.bytes = bytes;
+      this.expiration = expiration;
+    }
+
+    byte[] getBytes() {
+      return bytes;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiration;
+    }
+  }
+
+  private static final class ResponseKey {
+
+    private final long userID;
+    private final int howMany;
+    private final String format;
+
+    private ResponseKey(long userID, int howMany, String format) {
+      this.userID = userID;
+      this.howMany = howMany;
+      this.format = format;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ResponseKey)) {
+        return false;
+      }
+      ResponseKey other = (ResponseKey) o;
+      return userID == other.userID && howMany == other.howMany && format.equals(other.format);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * ((int) (userID >> 32) ^ (int) userID) + howMany) + format.hashCode();
+    }
+  }
+
+}
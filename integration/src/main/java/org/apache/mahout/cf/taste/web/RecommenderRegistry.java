@@ -0,0 +1,495 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.web;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.JDBCDataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Holds any number of named {@link Recommender}s, for instance one per catalog, so that one webapp can serve
+ * many models. Where {@link RecommenderSingleton} builds one recommender at startup, this registry builds each
+ * recommender on background threads, both when it is registered and each time it is {@link #rebuild(String)
+ * rebuilt}, for instance after retraining.
+ * </p>
+ *
+ * <p>
+ * {@link #getRecommender(String)} returns a {@link Recommender} which stays the same for the life of the name,
+ * and delegates to the most recently built one. A rebuilt recommender is first warmed up, by computing
+ * recommendations for the users most recently served, so that its caches are full before it replaces the
+ * previous one in a single step. Requests are served by the previous recommender until then.
+ * </p>
+ *
+ * <p>
+ * The heap each recommender takes is estimated by {@link #estimateRecommenderBytes(Recommender)}. If a limit is
+ * set with {@link #setMaxTotalBytes(long)}, a recommender is not built when the one it replaces already takes
+ * more than remains, and is not swapped in if it would take the total over the limit. Note that both recommenders
+ * are on the heap while one is rebuilt. A replaced or removed recommender which is {@link Closeable} is closed.
+ * </p>
+ *
+ * <p>
+ * A {@link Listener} is told when a name's recommender is swapped or removed, so that it can uncache anything
+ * computed from the previous one, as {@link RecommenderServlet} does with its responses.
+ * </p>
+ */
+public final class RecommenderRegistry implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(RecommenderRegistry.class);
+
+  /** rough heap taken by one user in an in-memory {@link DataModel}: map entry, ID and preference array */
+  private static final long BYTES_PER_USER = 72L;
+  /** rough heap taken by one preference: item ID and value */
+  private static final long BYTES_PER_PREFERENCE = 12L;
+  /** rough heap taken by one item ID */
+  private static final long BYTES_PER_ITEM = 16L;
+
+  private final ConcurrentMap<String,Tenant> tenants;
+  private final ExecutorService buildExecutor;
+  private final int numWarmUpUsers;
+  private final int warmUpHowMany;
+  private final Object accountingLock;
+  private final List<Listener> listeners;
+  private volatile long maxTotalBytes;
+
+  /**
+   * @param numBuildThreads number of recommenders which may be built at once
+   * @param numWarmUpUsers number of most recently served users of each name for which a rebuilt recommender
+   *  computes recommendations before it is swapped in
+   * @param warmUpHowMany number of recommendations computed for each of those users
+   */
+  public RecommenderRegistry(int numBuildThreads, int numWarmUpUsers, int warmUpHowMany) {
+    Preconditions.checkArgument(numBuildThreads >= 1, "numBuildThreads must be at least 1");
+    Preconditions.checkArgument(numWarmUpUsers >= 0, "numWarmUpUsers must be non-negative");
+    Preconditions.checkArgument(warmUpHowMany >= 1, "warmUpHowMany must be at least 1");
+    this.numWarmUpUsers = numWarmUpUsers;
+    this.warmUpHowMany = warmUpHowMany;
+    tenants = Maps.newConcurrentMap();
+    buildExecutor = Executors.newFixedThreadPool(numBuildThreads, new ThreadFactory() {
+      private final ThreadFactory delegate = Executors.defaultThreadFactory();
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = delegate.newThread(r);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    accountingLock = new Object();
+    listeners = new CopyOnWriteArrayList<Listener>();
+    maxTotalBytes = Long.MAX_VALUE;
+  }
+
+  public void addListener(Listener listener) {
+    Preconditions.checkArgument(listener != null, "listener is null");
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * @param maxTotalBytes most heap, as estimated by {@link #estimateRecommenderBytes(Recommender)}, which all
+   *  recommenders together may take
+   */
+  public void setMaxTotalBytes(long maxTotalBytes) {
+    Preconditions.checkArgument(maxTotalBytes > 0L, "maxTotalBytes must be positive");
+    this.maxTotalBytes = maxTotalBytes;
+  }
+
+  /**
+   * Registers a name and starts building its recommender.
+   *
+   * @return completes when the recommender has been built and swapped in, and fails with its
+   *  {@link TasteException} or {@link IOException} otherwise
+   * @throws IllegalStateException if the name is already registered
+   */
+  public Future<?> register(String name, TenantBuilder builder) {
+    Preconditions.checkArgument(name != null, "name is null");
+    Preconditions.checkArgument(builder != null, "builder is null");
+    Tenant tenant = new Tenant(name, builder);
+    if (tenants.putIfAbsent(name, tenant) != null) {
+      throw new IllegalStateException("Already registered: " + name);
+    }
+    return tenant.rebuild();
+  }
+
+  /**
+   * Starts building a new recommender for the name, which replaces the current one when built. If a build is
+   * already under way, no other is started.
+   *
+   * @return completes as for {@link #register(String, TenantBuilder)}
+   * @throws IllegalArgumentException if the name is not registered
+   */
+  public Future<?> rebuild(String name) {
+    return getTenant(name).rebuild();
+  }
+
+  /**
+   * @return a {@link Recommender} delegating to the most recently built recommender for the name. Until the
+   *  first one is built, it throws {@link TasteException}.
+   * @throws IllegalArgumentException if the name is not registered
+   */
+  public Recommender getRecommender(String name) {
+    return getTenant(name);
+  }
+
+  /**
+   * @return true once a recommender for the name has been built and swapped in
+   */
+  public boolean isAvailable(String name) {
+    return getTenant(name).delegate != null;
+  }
+
+  /**
+   * Unregisters a name. Its recommender is no longer accounted for, and fails requests from then on. It is
+   * closed if it is {@link Closeable}.
+   */
+  public void remove(String name) {
+    Tenant tenant = tenants.remove(name);
+    if (tenant != null) {
+      Recommender removed;
+      synchronized (accountingLock) {
+        removed = tenant.delegate;
+        tenant.delegate = null;
+        tenant.estimatedBytes = 0L;
+      }
+      for (Listener listener : listeners) {
+        listener.recommenderRemoved(name);
+      }
+      release(removed);
+    }
+  }
+
+  public Collection<String> getNames() {
+    return Lists.newArrayList(tenants.keySet());
+  }
+
+  /**
+   * @return estimated heap taken by the name's current recommender, or 0 if none is built yet
+   */
+  public long getEstimatedBytes(String name) {
+    return getTenant(name).estimatedBytes;
+  }
+
+  /**
+   * @return estimated heap taken by all current recommenders
+   */
+  public long getTotalEstimatedBytes() {
+    synchronized (accountingLock) {
+      long total = 0L;
+      for (Tenant tenant : tenants.values()) {
+        total += tenant.estimatedBytes;
+      }
+      return total;
+    }
+  }
+
+  /**
+   * @return bytes which the tenant's recommender may take without the total going over the limit. The caller
+   *  holds {@code accountingLock}.
+   */
+  private long remainingBytes(Tenant tenant) {
+    long otherBytes = 0L;
+    for (Tenant other : tenants.values()) {
+      if (other != tenant) {
+        otherBytes += other.estimatedBytes;
+      }
+    }
+    return maxTotalBytes - otherBytes;
+  }
+
+  /**
+   * Closes a recommender which is no longer served, if it is {@link Closeable}. A request still running on it
+   * may fail.
+   */
+  private static void release(Recommender recommender) {
+    if (recommender instanceof Closeable) {
+      try {
+        ((Closeable) recommender).close();
+      } catch (IOException ioe) {
+        log.warn("Unable to close replaced recommender", ioe);
+      }
+    }
+  }
+
+  private Tenant getTenant(String name) {
+    Tenant tenant = tenants.get(name);
+    if (tenant == null) {
+      throw new IllegalArgumentException("Not registered: " + name);
+    }
+    return tenant;
+  }
+
+  /**
+   * Stops building recommenders. Built recommenders keep serving.
+   */
+  @Override
+  public void close() {
+    buildExecutor.shutdownNow();
+  }
+
+  /**
+   * @return a rough estimate of the heap a data model holding all its preferences in memory takes, from its
+   *  number of users, items and preferences. Preferences are counted with
+   *  {@link DataModel#getNumUsersWithPreferenceFor(long...)}, one item at a time, which needs no
+   *  {@link org.apache.mahout.cf.taste.model.PreferenceArray} to be built. A {@link JDBCDataModel} keeps its
+   *  preferences in the database, so only its users and items are counted, rather than querying once per item.
+   */
+  public static long estimateBytes(DataModel dataModel) throws TasteException {
+    if (dataModel == null) {
+      return 0L;
+    }
+    long numPreferences = 0L;
+    if (!(dataModel instanceof JDBCDataModel)) {
+      LongPrimitiveIterator it = dataModel.getItemIDs();
+      while (it.hasNext()) {
+        numPreferences += dataModel.getNumUsersWithPreferenceFor(it.nextLong());
+      }
+    }
+    return BYTES_PER_USER * dataModel.getNumUsers()
+        + BYTES_PER_ITEM * dataModel.getNumItems()
+        + BYTES_PER_PREFERENCE * numPreferences;
+  }
+
+  /**
+   * @return a rough estimate of the heap a recommender takes: its data model, as estimated by
+   *  {@link #estimateBytes(DataModel)}, plus, for an {@link SVDRecommender}, its factorization and related
+   *  structures. Other recommenders' own structures, such as similarity caches, are not counted.
+   */
+  public static long estimateRecommenderBytes(Recommender recommender) throws TasteException {
+    long bytes = estimateBytes(recommender.getDataModel());
+    if (recommender instanceof SVDRecommender) {
+      bytes += ((SVDRecommender) recommender).estimateBytes();
+    }
+    return bytes;
+  }
+
+  @Override
+  public String toString() {
+    return "RecommenderRegistry[names:" + tenants.keySet() + ']';
+  }
+
+  /**
+   * Builds the recommender for a name, as {@link RecommenderWrapper#buildRecommender()} does for a webapp.
+   */
+  public interface TenantBuilder {
+    Recommender buildRecommender() throws IOException, TasteException;
+  }
+
+  /**
+   * Told when the recommender behind a name changes. It is called on the thread which made the change, and
+   * should return quickly.
+   */
+  public interface Listener {
+
+    /**
+     * The name's recommender was replaced by a newly built one.
+     */
+    void recommenderSwapped(String name);
+
+    /**
+     * The name was unregistered.
+     */
+    void recommenderRemoved(String name);
+  }
+
+  private final class Tenant implements Recommender {
+
+    private final String name;
+    private final TenantBuilder builder;
+    private volatile Recommender delegate;
+    private volatile long estimatedBytes;
+    private Future<?> pendingBuild;
+    /** most recently served user IDs, as a ring */
+    private final AtomicLongArray recentUserIDs;
+    private final AtomicLong numServed;
+
+    private Tenant(String name, TenantBuilder builder) {
+      this.name = name;
+      this.builder = builder;
+      recentUserIDs = new AtomicLongArray(numWarmUpUsers);
+      numServed = new AtomicLong();
+    }
+
+    synchronized Future<?> rebuild() {
+      if (pendingBuild == null || pendingBuild.isDone()) {
+        pendingBuild = buildExecutor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException, TasteException {
+            build();
+            return null;
+          }
+        });
+      }
+      return pendingBuild;
+    }
+
+    private void build() throws IOException, TasteException {
+      synchronized (accountingLock) {
+        // A rebuilt recommender is expected to take about as much as the one it replaces
+        long remaining = remainingBytes(this);
+        if (remaining <= 0L || estimatedBytes > remaining) {
+          throw new TasteException("Not building recommender for " + name + ": about " + estimatedBytes
+              + " bytes are needed, but only " + Math.max(0L, remaining) + " remain");
+        }
+      }
+      log.info("Building recommender for {}...", name);
+      long start = System.currentTimeMillis();
+      Recommender built = builder.buildRecommender();
+      long bytes = estimateRecommenderBytes(built);
+      int numWarmedUp = warmUp(built);
+      Recommender replaced;
+      synchronized (accountingLock) {
+        if (tenants.get(name) != this) {
+          log.info("{} was removed while building its recommender", name);
+          release(built);
+          return;
+        }
+        long remaining = remainingBytes(this);
+        if (bytes > remaining) {
+          release(built);
+          throw new TasteException("Recommender for " + name + " would take about " + bytes + " bytes, but only "
+              + remaining + " remain");
+        }
+        replaced = delegate;
+        delegate = built;
+        estimatedBytes = bytes;
+      }
+      for (Listener listener : listeners) {
+        listener.recommenderSwapped(name);
+      }
+      release(replaced);
+      log.info("Swapped in recommender for {}, of about {} bytes, warmed up with {} users, in {}ms",
+          name, bytes, numWarmedUp, System.currentTimeMillis() - start);
+    }
+
+    private int warmUp(Recommender built) throws TasteException {
+      int numRecent = (int) Math.min(numServed.get(), recentUserIDs.length());
+      FastIDSet userIDs = new FastIDSet(numRecent);
+      for (int i = 0; i < numRecent; i++) {
+        userIDs.add(recentUserIDs.get(i));
+      }
+      int numWarmedUp = 0;
+      LongPrimitiveIterator it = userIDs.iterator();
+      while (it.hasNext()) {
+        try {
+          built.recommend(it.nextLong(), warmUpHowMany);
+          numWarmedUp++;
+        } catch (NoSuchUserException nsue) {
+          // the user is gone from the new data, so needs no warming up
+        }
+      }
+      return numWarmedUp;
+    }
+
+    private Recommender getDelegate() throws TasteException {
+      Recommender current = delegate;
+      if (current == null) {
+        throw new TasteException("No recommender is available yet for " + name);
+      }
+      return current;
+    }
+
+    private void served(long userID) {
+      int length = recentUserIDs.length();
+      if (length > 0) {
+        recentUserIDs.set((int) (numServed.getAndIncrement() % length), userID);
+      }
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
+      List<RecommendedItem> recommended = getDelegate().recommend(userID, howMany);
+      served(userID);
+      return recommended;
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+      List<RecommendedItem> recommended = getDelegate().recommend(userID, howMany, rescorer);
+      served(userID);
+      return recommended;
+    }
+
+    @Override
+    public float estimatePreference(long userID, long itemID) throws TasteException {
+      return getDelegate().estimatePreference(userID, itemID);
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) throws TasteException {
+      getDelegate().setPreference(userID, itemID, value);
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) throws TasteException {
+      getDelegate().removePreference(userID, itemID);
+    }
+
+    /**
+     * @return data model of the current recommender, or {@code null} if none is built yet
+     */
+    @Override
+    public DataModel getDataModel() {
+      Recommender current = delegate;
+      return current == null ? null : current.getDataModel();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+      Recommender current = delegate;
+      if (current != null) {
+        current.refresh(alreadyRefreshed);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "RecommenderRegistry.Tenant[name:" + name + ",recommender:" + delegate + ']';
+    }
+  }
+
+}
@@ -17,12 +17,14 @@
 
 package org.apache.mahout.cf.taste.web;
 
+import com.google.common.collect.Maps;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.codehaus.jackson.map.ObjectMapper;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -31,7 +33,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 /**
  * <p>A servlet which returns recommendations, as its name implies. The servlet accepts GET and POST
@@ -42,6 +50,8 @@ import java.util.List;
  * <li><em>howMany</em>: the number of recommendations to produce</li>
  * <li><em>debug</em>: (optional) output a lot of information that is useful in debugging.
  * Defaults to false, of course.</li>
+ * <li><em>tenant</em>: the name of the recommender to use, required by a servlet constructed with
+ * {@link #RecommenderServlet(RecommenderRegistry)}</li>
  * </ul>
  *
  * <p>The response is text, and contains a list of the IDs of recommended items, in descending
@@ -54,30 +64,208 @@ import java.util.List;
  * <p>This servlet requires one {@code init-param} in {@code web.xml}: it must find
  * a parameter named "recommender-class" which is the name of a class that implements
  * {@link Recommender} and has a no-arg constructor. The servlet will instantiate and use
- * this {@link Recommender} to produce recommendations.</p>
+ * this {@link Recommender} to produce recommendations. Alternatively, a servlet container embedded in an
+ * application may be given a servlet constructed with {@link #RecommenderServlet(Recommender)}, or with
+ * {@link #RecommenderServlet(RecommenderRegistry)} to serve each of the registry's recommenders by name.</p>
+ *
+ * <p>If the {@code init-param} "async-threads" is set, recommendations are computed by that many worker
+ * threads of a {@link RecommendationDispatcher} rather than by the container's threads, and responses
+ * are cached until the recommender is refreshed. The optional {@code init-param}s "async-max-queued",
+ * "async-timeout-ms", "response-cache-size" and "response-ttl-ms" bound the number of computations waiting for
+ * a worker, how long a request waits, how many responses are cached and for how long. A request which can't be
+ * served in time is answered with status 503. Debug responses are always computed on the container's thread.
+ * Latency and queue depth are returned as JSON when the parameter <em>metrics</em> is true. Each tenant of a
+ * registry gets its own dispatcher, whose responses are uncached when its recommender is swapped, and metrics
+ * are returned for the requested tenant, or for all of them by name.</p>
+ *
+ * <p>If the {@code init-param} "allow-refresh" is true, a POST request with the parameter <em>refresh</em> set
+ * to true refreshes the recommender, uncaches all responses, and is answered with status 204. Refreshing can
+ * rebuild the whole model, so it is off by default, and is refused with status 403 when not allowed; a GET
+ * request never refreshes.</p>
  */
 public final class RecommenderServlet extends HttpServlet {
 
   private static final int NUM_TOP_PREFERENCES = 20;
   private static final int DEFAULT_HOW_MANY = 20;
+  private static final int DEFAULT_MAX_QUEUED = 100;
+  private static final long DEFAULT_TIMEOUT_MILLIS = 10000L;
+  private static final int DEFAULT_RESPONSE_CACHE_SIZE = 10000;
+  private static final long DEFAULT_RESPONSE_TTL_MILLIS = 60000L;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   private Recommender recommender;
+  private RecommendationDispatcher dispatcher;
+  private RecommenderRegistry registry;
+  private final ConcurrentMap<String,RecommendationDispatcher> tenantDispatchers = Maps.newConcurrentMap();
+  private RecommenderRegistry.Listener registryListener;
+  private int numAsyncThreads;
+  private boolean allowRefresh;
+  private int maxQueued;
+  private int maxCachedResponses;
+  private long responseTimeToLiveMillis;
+  private long timeoutMillis;
+
+  public RecommenderServlet() {
+  }
+
+  /**
+   * @param recommender the {@link Recommender} to use, rather than one named by an {@code init-param}
+   */
+  public RecommenderServlet(Recommender recommender) {
+    this.recommender = recommender;
+  }
+
+  /**
+   * @param registry serves the recommender named by each request's <em>tenant</em> parameter
+   */
+  public RecommenderServlet(RecommenderRegistry registry) {
+    this.registry = registry;
+  }
 
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
-    String recommenderClassName = config.getInitParameter("recommender-class");
-    if (recommenderClassName == null) {
-      throw new ServletException("Servlet init-param \"recommender-class\" is not defined");
+    if (recommender == null && registry == null) {
+      String recommenderClassName = config.getInitParameter("recommender-class");
+      if (recommenderClassName == null) {
+        throw new ServletException("Servlet init-param \"recommender-class\" is not defined");
+      }
+      RecommenderSingleton.initializeIfNeeded(recommenderClassName);
+      recommender = RecommenderSingleton.getInstance().getRecommender();
+    }
+    allowRefresh = Boolean.parseBoolean(config.getInitParameter("allow-refresh"));
+    String asyncThreads = config.getInitParameter("async-threads");
+    if (asyncThreads != null) {
+      numAsyncThreads = Integer.parseInt(asyncThreads);
+      maxQueued = getIntParameter(config, "async-max-queued", DEFAULT_MAX_QUEUED);
+      maxCachedResponses = getIntParameter(config, "response-cache-size", DEFAULT_RESPONSE_CACHE_SIZE);
+      responseTimeToLiveMillis = getLongParameter(config, "response-ttl-ms", DEFAULT_RESPONSE_TTL_MILLIS);
+      timeoutMillis = getLongParameter(config, "async-timeout-ms", DEFAULT_TIMEOUT_MILLIS);
+      if (registry == null) {
+        dispatcher = newDispatcher(recommender);
+      } else {
+        registryListener = new RecommenderRegistry.Listener() {
+          @Override
+          public void recommenderSwapped(String name) {
+            RecommendationDispatcher tenantDispatcher = tenantDispatchers.get(name);
+            if (tenantDispatcher != null) {
+              tenantDispatcher.invalidate();
+            }
+          }
+          @Override
+          public void recommenderRemoved(String name) {
+            RecommendationDispatcher tenantDispatcher = tenantDispatchers.remove(name);
+            if (tenantDispatcher != null) {
+              tenantDispatcher.close();
+            }
+          }
+        };
+        registry.addListener(registryListener);
+      }
+    }
+  }
+
+  private RecommendationDispatcher newDispatcher(Recommender recommender) {
+    return new RecommendationDispatcher(recommender,
+                                        new FormatRenderer(),
+                                        numAsyncThreads,
+                                        maxQueued,
+                                        maxCachedResponses,
+                                        responseTimeToLiveMillis,
+                                        timeoutMillis);
+  }
+
+  private static int getIntParameter(ServletConfig config, String name, int defaultValue) {
+    String value = config.getInitParameter(name);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  private static long getLongParameter(ServletConfig config, String name, long defaultValue) {
+    String value = config.getInitParameter(name);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  /**
+   * @return the dispatcher serving requests, or {@code null} if they are served on the container's threads or
+   *  by tenant
+   */
+  public RecommendationDispatcher getDispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * @return the dispatcher serving the tenant's requests, or {@code null} if none has been served yet or they
+   *  are served on the container's threads
+   */
+  public RecommendationDispatcher getDispatcher(String tenant) {
+    return tenantDispatchers.get(tenant);
+  }
+
+  @Override
+  public void destroy() {
+    if (dispatcher != null) {
+      dispatcher.close();
+    }
+    if (registryListener != null) {
+      registry.removeListener(registryListener);
     }
-    RecommenderSingleton.initializeIfNeeded(recommenderClassName);
-    recommender = RecommenderSingleton.getInstance().getRecommender();
+    for (RecommendationDispatcher tenantDispatcher : tenantDispatchers.values()) {
+      tenantDispatcher.close();
+    }
+    tenantDispatchers.clear();
+    super.destroy();
+  }
+
+  private Recommender recommenderFor(String tenant) throws ServletException {
+    if (registry == null) {
+      return recommender;
+    }
+    if (tenant == null) {
+      throw new ServletException("tenant was not specified");
+    }
+    try {
+      return registry.getRecommender(tenant);
+    } catch (IllegalArgumentException iae) {
+      throw new ServletException(iae);
+    }
+  }
+
+  private RecommendationDispatcher dispatcherFor(String tenant, Recommender tenantRecommender) {
+    if (registry == null || numAsyncThreads == 0) {
+      return dispatcher;
+    }
+    RecommendationDispatcher tenantDispatcher = tenantDispatchers.get(tenant);
+    while (tenantDispatcher == null || tenantDispatcher.getRecommender() != tenantRecommender) {
+      // None yet, or one left over from a tenant of the same name which was removed
+      RecommendationDispatcher created = newDispatcher(tenantRecommender);
+      boolean installed = tenantDispatcher == null
+          ? tenantDispatchers.putIfAbsent(tenant, created) == null
+          : tenantDispatchers.replace(tenant, tenantDispatcher, created);
+      if (installed) {
+        if (tenantDispatcher != null) {
+          tenantDispatcher.close();
+        }
+        return created;
+      }
+      created.close();
+      tenantDispatcher = tenantDispatchers.get(tenant);
+    }
+    return tenantDispatcher;
   }
 
   @Override
   public void doGet(HttpServletRequest request,
                     HttpServletResponse response) throws ServletException {
 
+    String tenant = request.getParameter("tenant");
+    if (Boolean.parseBoolean(request.getParameter("metrics"))) {
+      writeMetrics(response, tenant);
+      return;
+    }
+    Recommender requested = recommenderFor(tenant);
+    RecommendationDispatcher requestedDispatcher = dispatcherFor(tenant, requested);
+
     String userIDString = request.getParameter("userID");
     if (userIDString == null) {
       throw new ServletException("userID was not specified");
@@ -91,10 +279,15 @@ public final class RecommenderServlet extends HttpServlet {
       format = "text";
     }
 
+    if (requestedDispatcher != null && !debug && contentTypeOf(format) != null) {
+      writeDispatched(response, requestedDispatcher, userID, howMany, format);
+      return;
+    }
+
     try {
-      List<RecommendedItem> items = recommender.recommend(userID, howMany);
+      List<RecommendedItem> items = requested.recommend(userID, howMany);
       if ("text".equals(format)) {
-        writePlainText(response, userID, debug, items);
+        writePlainText(response, requested, userID, debug, items);
       } else if ("xml".equals(format)) {
         writeXML(response, items);
       } else if ("json".equals(format)) {
@@ -110,11 +303,78 @@ public final class RecommenderServlet extends HttpServlet {
 
   }
 
+  private static void writeDispatched(HttpServletResponse response,
+                                      RecommendationDispatcher dispatcher,
+                                      long userID,
+                                      int howMany,
+                                      String format) throws ServletException {
+    try {
+      byte[] bytes = dispatcher.getResponse(userID, howMany, format);
+      response.setContentType(contentTypeOf(format));
+      response.setCharacterEncoding("UTF-8");
+      response.setHeader("Cache-Control", "no-cache");
+      response.setContentLength(bytes.length);
+      response.getOutputStream().write(bytes);
+    } catch (TasteException te) {
+      Throwable cause = te.getCause();
+      if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException) {
+        try {
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too busy to recommend in time");
+        } catch (IOException ioe) {
+          throw new ServletException(ioe);
+        }
+      } else {
+        throw new ServletException(te);
+      }
+    } catch (IOException ioe) {
+      throw new ServletException(ioe);
+    }
+  }
+
+  private void writeMetrics(HttpServletResponse response, String tenant) throws ServletException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    try {
+      PrintWriter writer = response.getWriter();
+      if (registry == null) {
+        writer.println(dispatcher == null ? "{}" : dispatcher.getMetricsJson());
+      } else if (tenant != null) {
+        RecommendationDispatcher tenantDispatcher = tenantDispatchers.get(tenant);
+        writer.println(tenantDispatcher == null ? "{}" : tenantDispatcher.getMetricsJson());
+      } else {
+        Map<String,Object> metrics = Maps.newLinkedHashMap();
+        for (Map.Entry<String,RecommendationDispatcher> entry : tenantDispatchers.entrySet()) {
+          metrics.put(entry.getKey(), entry.getValue().getMetrics());
+        }
+        writer.println(OBJECT_MAPPER.writeValueAsString(metrics));
+      }
+    } catch (IOException ioe) {
+      throw new ServletException(ioe);
+    }
+  }
+
+  private static String contentTypeOf(String format) {
+    if ("text".equals(format)) {
+      return "text/plain";
+    }
+    if ("xml".equals(format)) {
+      return "application/xml";
+    }
+    if ("json".equals(format)) {
+      return "application/json";
+    }
+    return null;
+  }
+
   private static void writeXML(HttpServletResponse response, Iterable<RecommendedItem> items) throws IOException {
     response.setContentType("application/xml");
     response.setCharacterEncoding("UTF-8");
     response.setHeader("Cache-Control", "no-cache");
-    PrintWriter writer = response.getWriter();
+    writeXML(response.getWriter(), items);
+  }
+
+  private static void writeXML(PrintWriter writer, Iterable<RecommendedItem> items) {
     writer.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?><recommendedItems>");
     for (RecommendedItem recommendedItem : items) {
       writer.print("<item><value>");
@@ -130,7 +390,10 @@ public final class RecommenderServlet extends HttpServlet {
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
     response.setHeader("Cache-Control", "no-cache");
-    PrintWriter writer = response.getWriter();
+    writeJSON(response.getWriter(), items);
+  }
+
+  private static void writeJSON(PrintWriter writer, Iterable<RecommendedItem> items) {
     writer.print("{\"recommendedItems\":{\"item\":[");
     boolean first = true;
     for (RecommendedItem recommendedItem : items) {
@@ -148,16 +411,17 @@ public final class RecommenderServlet extends HttpServlet {
     writer.println("]}}");
   }
 
-  private void writePlainText(HttpServletResponse response,
-                              long userID,
-                              boolean debug,
-                              Iterable<RecommendedItem> items) throws IOException, TasteException {
+  private static void writePlainText(HttpServletResponse response,
+                                     Recommender recommender,
+                                     long userID,
+                                     boolean debug,
+                                     Iterable<RecommendedItem> items) throws IOException, TasteException {
     response.setContentType("text/plain");
     response.setCharacterEncoding("UTF-8");
     response.setHeader("Cache-Control", "no-cache");
     PrintWriter writer = response.getWriter();
     if (debug) {
-      writeDebugRecommendations(userID, items, writer);
+      writeDebugRecommendations(recommender, userID, items, writer);
     } else {
       writeRecommendations(items, writer);
     }
@@ -171,8 +435,10 @@ public final class RecommenderServlet extends HttpServlet {
     }
   }
 
-  private void writeDebugRecommendations(long userID, Iterable<RecommendedItem> items, PrintWriter writer)
-    throws TasteException {
+  private static void writeDebugRecommendations(Recommender recommender,
+                                                long userID,
+                                                Iterable<RecommendedItem> items,
+                                                PrintWriter writer) throws TasteException {
     DataModel dataModel = recommender.getDataModel();
     writer.print("User:");
     writer.println(userID);
@@ -206,12 +472,50 @@ public final class RecommenderServlet extends HttpServlet {
   @Override
   public void doPost(HttpServletRequest request,
                      HttpServletResponse response) throws ServletException {
-    doGet(request, response);
+    if (!Boolean.parseBoolean(request.getParameter("refresh"))) {
+      doGet(request, response);
+      return;
+    }
+    if (!allowRefresh) {
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    String tenant = request.getParameter("tenant");
+    Recommender requested = recommenderFor(tenant);
+    RecommendationDispatcher requestedDispatcher = dispatcherFor(tenant, requested);
+    if (requestedDispatcher == null) {
+      requested.refresh(null);
+    } else {
+      requestedDispatcher.refresh(null);
+    }
+    response.setStatus(HttpServletResponse.SC_NO_CONTENT);
   }
 
   @Override
   public String toString() {
-    return "RecommenderServlet[recommender:" + recommender + ']';
+    return registry == null
+        ? "RecommenderServlet[recommender:" + recommender + ']'
+        : "RecommenderServlet[registry:" + registry + ']';
+  }
+
+  /**
+   * Renders the formats this servlet serves, for {@link RecommendationDispatcher}.
+   */
+  private static final class FormatRenderer implements RecommendationDispatcher.Renderer {
+    @Override
+    public byte[] render(long userID, String format, List<RecommendedItem> items) {
+      StringWriter out = new StringWriter();
+      PrintWriter writer = new PrintWriter(out);
+      if ("xml".equals(format)) {
+        writeXML(writer, items);
+      } else if ("json".equals(format)) {
+        writeJSON(writer, items);
+      } else {
+        writeRecommendations(items, writer);
+      }
+      writer.flush();
+      return out.toString().getBytes(UTF8);
+    }
   }
 
 }
@@ -22,7 +22,8 @@ import org.apache.mahout.common.ClassUtils;
 
 /**
  * <p>A singleton which holds an instance of a {@link Recommender}. This is used to share
- * a {@link Recommender} between {@link RecommenderServlet} and {@code RecommenderService.jws}.</p>
+ * a {@link Recommender} between {@link RecommenderServlet} and {@code RecommenderService.jws}. To serve several
+ * recommenders, or rebuild one without restarting, see {@link RecommenderRegistry}.</p>
  */
 public final class RecommenderSingleton {
 
@@ -0,0 +1,403 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.PreferredItemsNeighborhoodCandidateItemsStrategy;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the preference caches, {@code IN}-list reads and partitioned exports of {@link AbstractJDBCDataModel},
+ * against a table held in memory behind a mocked {@link DataSource}.
+ */
+public final class AbstractJDBCDataModelTest extends TasteTestCase {
+
+  private static final long ONE_HOUR = 60L * 60L * 1000L;
+
+  /** rows of user ID, item ID and preference value */
+  private List<long[]> table;
+  /** queries and updates executed, in order */
+  private List<String> statements;
+  private AbstractJDBCDataModel dataModel;
+  /** user and item of a preference to remove while the next query runs, after it has read the table */
+  private long[] removeDuringNextQuery;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    table = Lists.newArrayList();
+    for (long userID = 1; userID <= 3; userID++) {
+      for (long itemID = 10; itemID <= 12; itemID++) {
+        table.add(new long[] {userID, itemID, userID + itemID});
+      }
+    }
+    statements = Collections.synchronizedList(Lists.<String>newArrayList());
+    DataSource dataSource = EasyMock.createMock(DataSource.class);
+    EasyMock.expect(dataSource.getConnection()).andAnswer(new IAnswer<Connection>() {
+      @Override
+      public Connection answer() throws SQLException {
+        return connection();
+      }
+    }).anyTimes();
+    EasyMock.replay(dataSource);
+    dataModel = new SQL92JDBCDataModel(dataSource);
+  }
+
+  @Test
+  public void testCaching() throws Exception {
+    dataModel.useCaching(10, 10, ONE_HOUR);
+    PreferenceArray prefs = dataModel.getPreferencesFromUser(1L);
+    assertEquals(3, prefs.length());
+    prefs.setValue(0, -1.0f);
+    assertEquals(11.0f, dataModel.getPreferencesFromUser(1L).getValue(0), EPSILON);
+    assertEquals(3, dataModel.getItemIDsFromUser(1L).size());
+    assertEquals(3, dataModel.getPreferencesForItem(10L).length());
+    assertEquals(3, dataModel.getPreferencesForItem(10L).length());
+    assertEquals(2, statements.size());
+  }
+
+  @Test
+  public void testWithoutCaching() throws Exception {
+    dataModel.getPreferencesFromUser(1L);
+    dataModel.getPreferencesFromUser(1L);
+    assertEquals(2, statements.size());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    dataModel.useCaching(10, 10, 1L);
+    assertEquals(3, dataModel.getPreferencesFromUser(1L).length());
+    table.add(new long[] {1L, 13L, 14L});
+    Thread.sleep(5L);
+    assertEquals(4, dataModel.getPreferencesFromUser(1L).length());
+    assertEquals(2, statements.size());
+  }
+
+  @Test
+  public void testInvalidation() throws Exception {
+    dataModel.useCaching(10, 10, ONE_HOUR);
+    assertEquals(3, dataModel.getPreferencesFromUser(1L).length());
+    assertEquals(3, dataModel.getPreferencesForItem(10L).length());
+    assertEquals(3, dataModel.getPreferencesForItem(11L).length());
+    dataModel.removePreference(1L, 10L);
+    assertEquals(2, dataModel.getPreferencesFromUser(1L).length());
+    assertEquals(2, dataModel.getPreferencesForItem(10L).length());
+    assertEquals(3, dataModel.getPreferencesForItem(11L).length());
+    // three reads, the removal, and a read again of the user and item it changed
+    assertEquals(6, statements.size());
+
+    dataModel.refresh(null);
+    dataModel.getPreferencesForItem(11L);
+    assertEquals(7, statements.size());
+  }
+
+  @Test
+  public void testBatchedReads() throws Exception {
+    table.clear();
+    long[] userIDs = new long[1201];
+    for (int i = 0; i < userIDs.length; i++) {
+      userIDs[i] = i;
+      if (i < 1200) {
+        table.add(new long[] {i, i % 7, 1L});
+        table.add(new long[] {i, 7 + i % 5, 2L});
+      }
+    }
+    dataModel.useCaching(2000, 10, ONE_HOUR);
+    dataModel.getPreferencesFromUser(5L);
+    statements.clear();
+
+    // user 5 is cached, and user 1200 has no preferences
+    FastByIDMap<PreferenceArray> prefs = dataModel.getPreferencesFromUsers(userIDs);
+    assertEquals(1200, prefs.size());
+    assertEquals(2, prefs.get(1199L).length());
+    assertEquals(1199L, prefs.get(1199L).getUserID(0));
+    assertNull(prefs.get(1200L));
+    assertEquals(3, statements.size());
+    int numBound = 0;
+    for (String statement : statements) {
+      int numIDs = statement.length() - statement.replace("?", "").length();
+      assertTrue(numIDs <= AbstractJDBCDataModel.MAX_IDS_PER_QUERY);
+      numBound += numIDs;
+    }
+    assertEquals(1200, numBound);
+
+    // all but user 1200 are cached now
+    dataModel.getPreferencesFromUsers(userIDs);
+    assertEquals(4, statements.size());
+
+    FastByIDMap<PreferenceArray> itemPrefs = dataModel.getPreferencesForItems(0L, 7L, 100L);
+    assertEquals(2, itemPrefs.size());
+    assertEquals(1200 / 5, itemPrefs.get(7L).length());
+    assertEquals(5, statements.size());
+  }
+
+  @Test
+  public void testBatchedReadsForSimilaritiesAndCandidates() throws Exception {
+    table.add(new long[] {4L, 10L, 1L});
+    table.add(new long[] {4L, 13L, 2L});
+    PearsonCorrelationSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
+    double[] expected = {similarity.itemSimilarity(10L, 11L), similarity.itemSimilarity(10L, 12L), Double.NaN};
+    statements.clear();
+
+    // item 99 has no preferences
+    assertArrayEquals(expected, similarity.itemSimilarities(10L, new long[] {11L, 12L, 99L}), EPSILON);
+    assertEquals(2, statements.size());
+
+    statements.clear();
+    FastIDSet candidates = new PreferredItemsNeighborhoodCandidateItemsStrategy()
+        .getCandidateItems(4L, dataModel.getPreferencesFromUser(4L), dataModel);
+    assertEquals(new FastIDSet(new long[] {11L, 12L}), candidates);
+    // the user's preferences, those for the user's items, and those of the users preferring them
+    assertEquals(3, statements.size());
+  }
+
+  @Test
+  public void testNoStaleCachingAfterConcurrentRemoval() throws Exception {
+    dataModel.useCaching(10, 10, ONE_HOUR);
+
+    removeDuringNextQuery = new long[] {1L, 10L};
+    FastByIDMap<PreferenceArray> prefs = dataModel.getPreferencesFromUsers(1L, 2L);
+    // read before the removal
+    assertEquals(3, prefs.get(1L).length());
+    int numStatements = statements.size();
+    assertEquals(2, dataModel.getPreferencesFromUser(1L).length());
+    assertEquals(3, dataModel.getPreferencesFromUser(2L).length());
+    assertEquals(numStatements + 1, statements.size());
+
+    removeDuringNextQuery = new long[] {3L, 11L};
+    assertEquals(3, dataModel.getPreferencesFromUser(3L).length());
+    assertEquals(2, dataModel.getPreferencesFromUser(3L).length());
+  }
+
+  @Test
+  public void testExportInPartitions() throws Exception {
+    table.clear();
+    // IDs spread unevenly, some negative
+    for (long userID : new long[] {-1000L, -3L, 0L, 1L, 2L, 500L, 501L, 99999L}) {
+      for (long itemID = 0; itemID < 1 + (userID & 3); itemID++) {
+        table.add(new long[] {userID, itemID, userID + itemID});
+      }
+    }
+    FastByIDMap<PreferenceArray> users = dataModel.exportWithPrefs(4);
+    assertEquals(8, users.size());
+    for (long[] row : table) {
+      PreferenceArray prefs = users.get(row[0]);
+      assertEquals(1 + (row[0] & 3), prefs.length());
+      assertEquals(row[0], prefs.getUserID((int) row[1]));
+      assertEquals(row[1], prefs.getItemID((int) row[1]));
+      assertEquals(row[2], prefs.getValue((int) row[1]), EPSILON);
+    }
+    // the range of user IDs, then one query per partition
+    assertEquals(5, statements.size());
+
+    FastByIDMap<FastIDSet> itemIDs = dataModel.exportWithIDsOnly(3);
+    assertEquals(8, itemIDs.size());
+    assertEquals(4, itemIDs.get(99999L).size());
+    assertTrue(itemIDs.get(-1000L).contains(0L));
+
+    table.clear();
+    assertEquals(0, dataModel.exportWithPrefs(4).size());
+  }
+
+  private Connection connection() throws SQLException {
+    Connection connection = EasyMock.createNiceMock(Connection.class);
+    IAnswer<PreparedStatement> prepare = new IAnswer<PreparedStatement>() {
+      @Override
+      public PreparedStatement answer() throws SQLException {
+        return statement((String) EasyMock.getCurrentArguments()[0]);
+      }
+    };
+    EasyMock.expect(connection.prepareStatement(EasyMock.anyObject(String.class), EasyMock.anyInt(),
+        EasyMock.anyInt())).andAnswer(prepare).anyTimes();
+    EasyMock.expect(connection.prepareStatement(EasyMock.anyObject(String.class))).andAnswer(prepare).anyTimes();
+    EasyMock.replay(connection);
+    return connection;
+  }
+
+  private PreparedStatement statement(final String sql) throws SQLException {
+    final List<Long> parameters = Lists.newArrayList();
+    PreparedStatement statement = EasyMock.createNiceMock(PreparedStatement.class);
+    statement.setLong(EasyMock.anyInt(), EasyMock.anyLong());
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        parameters.add((Long) EasyMock.getCurrentArguments()[1]);
+        return null;
+      }
+    }).anyTimes();
+    EasyMock.expect(statement.executeQuery()).andAnswer(new IAnswer<ResultSet>() {
+      @Override
+      public ResultSet answer() throws Exception {
+        statements.add(sql);
+        if (sql.startsWith("SELECT MIN(")) {
+          return userIDRange();
+        }
+        if (sql.startsWith("SELECT COUNT(DISTINCT ")) {
+          return distinctCount(sql.startsWith("SELECT COUNT(DISTINCT user_id)") ? 0 : 1);
+        }
+        List<long[]> rows = select(sql, parameters);
+        if (removeDuringNextQuery != null) {
+          long[] toRemove = removeDuringNextQuery;
+          removeDuringNextQuery = null;
+          dataModel.removePreference(toRemove[0], toRemove[1]);
+        }
+        return resultSet(rows);
+      }
+    }).anyTimes();
+    EasyMock.expect(statement.executeUpdate()).andAnswer(new IAnswer<Integer>() {
+      @Override
+      public Integer answer() {
+        statements.add(sql);
+        assertTrue(sql.startsWith("DELETE"));
+        Iterator<long[]> rows = table.iterator();
+        while (rows.hasNext()) {
+          long[] row = rows.next();
+          if (row[0] == parameters.get(0) && row[1] == parameters.get(1)) {
+            rows.remove();
+          }
+        }
+        return 1;
+      }
+    }).anyTimes();
+    EasyMock.replay(statement);
+    return statement;
+  }
+
+  private List<long[]> select(String sql, List<Long> parameters) {
+    final int idColumn;
+    boolean inList;
+    if (sql.contains("WHERE user_id IN (")) {
+      idColumn = 0;
+      inList = true;
+    } else if (sql.contains("WHERE item_id IN (")) {
+      idColumn = 1;
+      inList = true;
+    } else if (sql.contains("WHERE user_id >= ? AND user_id <= ? ORDER BY")) {
+      List<long[]> rows = Lists.newArrayList();
+      for (long[] row : table) {
+        if (row[0] >= parameters.get(0) && row[0] <= parameters.get(1)) {
+          rows.add(row);
+        }
+      }
+      return rows;
+    } else if (sql.contains("WHERE user_id=? ORDER BY")) {
+      idColumn = 0;
+      inList = false;
+    } else if (sql.contains("WHERE item_id=? ORDER BY")) {
+      idColumn = 1;
+      inList = false;
+    } else {
+      throw new IllegalArgumentException("Unexpected query: " + sql);
+    }
+    assertEquals(inList ? sql.length() - sql.replace("?", "").length() : 1, parameters.size());
+    List<long[]> rows = Lists.newArrayList();
+    for (long[] row : table) {
+      if (parameters.contains(row[idColumn])) {
+        rows.add(row);
+      }
+    }
+    Collections.sort(rows, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] one, long[] two) {
+        int otherColumn = 1 - idColumn;
+        if (one[idColumn] != two[idColumn]) {
+          return one[idColumn] < two[idColumn] ? -1 : 1;
+        }
+        return one[otherColumn] < two[otherColumn] ? -1 : one[otherColumn] > two[otherColumn] ? 1 : 0;
+      }
+    });
+    return rows;
+  }
+
+  private ResultSet userIDRange() throws SQLException {
+    long minUserID = Long.MAX_VALUE;
+    long maxUserID = Long.MIN_VALUE;
+    for (long[] row : table) {
+      minUserID = Math.min(minUserID, row[0]);
+      maxUserID = Math.max(maxUserID, row[0]);
+    }
+    ResultSet resultSet = EasyMock.createNiceMock(ResultSet.class);
+    EasyMock.expect(resultSet.next()).andReturn(true);
+    EasyMock.expect(resultSet.getLong(1)).andReturn(table.isEmpty() ? 0L : minUserID);
+    EasyMock.expect(resultSet.getLong(2)).andReturn(table.isEmpty() ? 0L : maxUserID);
+    EasyMock.expect(resultSet.wasNull()).andReturn(table.isEmpty());
+    EasyMock.replay(resultSet);
+    return resultSet;
+  }
+
+  private ResultSet distinctCount(int column) throws SQLException {
+    FastIDSet ids = new FastIDSet();
+    for (long[] row : table) {
+      ids.add(row[column]);
+    }
+    ResultSet resultSet = EasyMock.createNiceMock(ResultSet.class);
+    EasyMock.expect(resultSet.next()).andReturn(true);
+    EasyMock.expect(resultSet.getInt(1)).andReturn(ids.size());
+    EasyMock.replay(resultSet);
+    return resultSet;
+  }
+
+  private static ResultSet resultSet(final List<long[]> rows) throws SQLException {
+    final int[] position = {-1};
+    ResultSet resultSet = EasyMock.createNiceMock(ResultSet.class);
+    EasyMock.expect(resultSet.next()).andAnswer(new IAnswer<Boolean>() {
+      @Override
+      public Boolean answer() {
+        return ++position[0] < rows.size();
+      }
+    }).anyTimes();
+    for (int column = 1; column <= 2; column++) {
+      final int index = column - 1;
+      EasyMock.expect(resultSet.getLong(column)).andAnswer(new IAnswer<Long>() {
+        @Override
+        public Long answer() {
+          return rows.get(position[0])[index];
+        }
+      }).anyTimes();
+    }
+    EasyMock.expect(resultSet.getFloat(3)).andAnswer(new IAnswer<Float>() {
+      @Override
+      public Float answer() {
+        return (float) rows.get(position[0])[2];
+      }
+    }).anyTimes();
+    EasyMock.replay(resultSet);
+    return resultSet;
+  }
+
+}
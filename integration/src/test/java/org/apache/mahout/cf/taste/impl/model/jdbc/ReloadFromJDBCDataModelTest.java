@@ -0,0 +1,115 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.jdbc;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.JDBCDataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+/**
+ * Tests {@link ReloadFromJDBCDataModel} over a stub {@link JDBCDataModel} which exports one more user each time,
+ * and which can be held up to see a reload in the background.
+ */
+public final class ReloadFromJDBCDataModelTest extends TasteTestCase {
+
+  private final AtomicInteger numExports = new AtomicInteger();
+  private volatile CountDownLatch exportStarted = new CountDownLatch(0);
+  private volatile CountDownLatch finishExport = new CountDownLatch(0);
+
+  @Test
+  public void testReload() throws Exception {
+    ReloadFromJDBCDataModel dataModel = new ReloadFromJDBCDataModel(stubDelegate());
+    assertEquals(1, dataModel.getNumUsers());
+    dataModel.refresh(null);
+    assertFalse(dataModel.isReloading());
+    assertEquals(2, dataModel.getNumUsers());
+    dataModel.close();
+  }
+
+  @Test
+  public void testReloadInBackground() throws Exception {
+    ReloadFromJDBCDataModel dataModel = new ReloadFromJDBCDataModel(stubDelegate(), 1, true);
+    assertEquals(1, dataModel.getNumUsers());
+
+    exportStarted = new CountDownLatch(1);
+    finishExport = new CountDownLatch(1);
+    dataModel.refresh(null);
+    assertTrue(exportStarted.await(10, TimeUnit.SECONDS));
+    assertTrue(dataModel.isReloading());
+    // the data loaded before is used until the reload is done
+    assertEquals(1, dataModel.getNumUsers());
+    // and a second refresh does not start another reload
+    dataModel.refresh(null);
+    assertEquals(2, numExports.get());
+
+    finishExport.countDown();
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (dataModel.isReloading() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertFalse(dataModel.isReloading());
+    assertEquals(2, dataModel.getNumUsers());
+
+    dataModel.close();
+    dataModel.refresh(null);
+    assertFalse(dataModel.isReloading());
+    assertEquals(2, numExports.get());
+    assertEquals(2, dataModel.getNumUsers());
+  }
+
+  private JDBCDataModel stubDelegate() throws TasteException {
+    JDBCDataModel delegate = EasyMock.createNiceMock(JDBCDataModel.class);
+    // calls from the test must not wait for an export held up in the background
+    EasyMock.makeThreadSafe(delegate, false);
+    EasyMock.expect(delegate.hasPreferenceValues()).andReturn(true).anyTimes();
+    EasyMock.expect(delegate.exportWithPrefs()).andAnswer(new IAnswer<FastByIDMap<PreferenceArray>>() {
+      @Override
+      public FastByIDMap<PreferenceArray> answer() throws InterruptedException {
+        int numUsers = numExports.incrementAndGet();
+        exportStarted.countDown();
+        assertTrue(finishExport.await(10, TimeUnit.SECONDS));
+        FastByIDMap<PreferenceArray> users = new FastByIDMap<PreferenceArray>();
+        for (long userID = 1; userID <= numUsers; userID++) {
+          PreferenceArray prefs = new GenericUserPreferenceArray(1);
+          prefs.setUserID(0, userID);
+          prefs.setItemID(0, 10L);
+          prefs.setValue(0, 1.0f);
+          users.put(userID, prefs);
+        }
+        return users;
+      }
+    }).anyTimes();
+    delegate.refresh(EasyMock.<Collection<Refreshable>>anyObject());
+    EasyMock.expectLastCall().anyTimes();
+    EasyMock.replay(delegate);
+    return delegate;
+  }
+
+}
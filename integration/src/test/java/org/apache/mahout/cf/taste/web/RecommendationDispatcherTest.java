@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.web;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.junit.Test;
+
+public final class RecommendationDispatcherTest extends TasteTestCase {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final long ONE_HOUR = 60L * 60L * 1000L;
+
+  private static final RecommendationDispatcher.Renderer RENDERER = new RecommendationDispatcher.Renderer() {
+    @Override
+    public byte[] render(long userID, String format, List<RecommendedItem> items) {
+      return (format + ':' + userID + ':' + items.size()).getBytes(UTF8);
+    }
+  };
+
+  @Test
+  public void testCoalescingAndCaching() throws Exception {
+    BlockingRecommender recommender = new BlockingRecommender();
+    final RecommendationDispatcher dispatcher = new RecommendationDispatcher(recommender, RENDERER, 2, 10, 100,
+        ONE_HOUR, 10000L);
+    try {
+      final List<String> responses = Collections.synchronizedList(Lists.<String>newArrayList());
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      List<Thread> threads = Lists.newArrayList();
+      for (int i = 0; i < 5; i++) {
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              responses.add(new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        thread.start();
+        threads.add(thread);
+      }
+      recommender.started.await();
+      // Let the other requests arrive while the first is being computed
+      Thread.sleep(100L);
+      recommender.release.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertNull(failure.get());
+      assertEquals(5, responses.size());
+      for (String response : responses) {
+        assertEquals("text:1:3", response);
+      }
+      assertEquals(1, recommender.calls.get());
+
+      assertEquals("text:1:3", new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+      assertEquals(1, recommender.calls.get());
+      assertEquals("json:1:3", new String(dispatcher.getResponse(1L, 3, "json"), UTF8));
+      assertEquals(2, recommender.calls.get());
+
+      dispatcher.refresh(null);
+      assertEquals(1, recommender.refreshes.get());
+      dispatcher.getResponse(1L, 3, "text");
+      assertEquals(3, recommender.calls.get());
+
+      String metrics = dispatcher.getMetricsJson();
+      assertTrue(metrics.contains("\"text\":{\"count\":7"));
+      assertTrue(metrics.contains("\"json\":{\"count\":1"));
+    } finally {
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  public void testRejection() throws Exception {
+    BlockingRecommender recommender = new BlockingRecommender();
+    final RecommendationDispatcher dispatcher = new RecommendationDispatcher(recommender, RENDERER, 1, 1, 100,
+        ONE_HOUR, 10000L);
+    try {
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      List<Thread> threads = Lists.newArrayList();
+      for (long userID = 1L; userID <= 2L; userID++) {
+        final long theUserID = userID;
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              dispatcher.getResponse(theUserID, 3, "text");
+            } catch (Throwable t) {
+              failure.set(t);
+            }
+          }
+        };
+        thread.start();
+        threads.add(thread);
+        if (userID == 1L) {
+          // The first request occupies the only worker
+          recommender.started.await();
+        }
+      }
+      // ... and the second fills the queue
+      while (dispatcher.getQueueDepth() < 1) {
+        Thread.sleep(10L);
+      }
+      try {
+        dispatcher.getResponse(3L, 3, "text");
+        fail();
+      } catch (TasteException te) {
+        assertTrue(te.getCause() instanceof RejectedExecutionException);
+      }
+      recommender.release.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertNull(failure.get());
+      String metrics = dispatcher.getMetricsJson();
+      assertTrue(metrics.contains("\"rejected\":1"));
+      assertTrue(metrics.contains("\"maxQueueDepth\":1"));
+    } finally {
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  public void testTimeout() throws Exception {
+    BlockingRecommender recommender = new BlockingRecommender();
+    RecommendationDispatcher dispatcher = new RecommendationDispatcher(recommender, RENDERER, 1, 1, 100,
+        ONE_HOUR, 100L);
+    try {
+      dispatcher.getResponse(1L, 3, "text");
+      fail();
+    } catch (TasteException te) {
+      assertTrue(te.getCause() instanceof TimeoutException);
+      assertTrue(dispatcher.getMetricsJson().contains("\"timedOut\":1"));
+    } finally {
+      dispatcher.close();
+    }
+  }
+
+  @Test
+  public void testFreshResponseAfterRefresh() throws Exception {
+    BlockingRecommender recommender = new BlockingRecommender();
+    recommender.release.countDown();
+    RecommendationDispatcher dispatcher = new RecommendationDispatcher(recommender, RENDERER, 1, 10, 100,
+        500L, 10000L);
+    try {
+      assertEquals("text:1:3", new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+      // Refreshed behind the dispatcher's back, the cached response lives until it expires
+      recommender.refresh(null);
+      Thread.sleep(600L);
+      assertEquals("text:1:4", new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+      assertEquals(2, recommender.calls.get());
+
+      recommender.refresh(null);
+      dispatcher.invalidate();
+      assertEquals("text:1:5", new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+
+      dispatcher.refresh(null);
+      assertEquals("text:1:6", new String(dispatcher.getResponse(1L, 3, "text"), UTF8));
+      assertEquals(4, recommender.calls.get());
+    } finally {
+      dispatcher.close();
+    }
+  }
+
+  /**
+   * Recommends one item per requested recommendation, and one more per refresh, blocking until released.
+   */
+  private static final class BlockingRecommender implements Recommender {
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger refreshes = new AtomicInteger();
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
+      calls.incrementAndGet();
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException ie) {
+        throw new TasteException(ie);
+      }
+      List<RecommendedItem> items = Lists.newArrayList();
+      for (int i = 0; i < howMany + refreshes.get(); i++) {
+        items.add(new GenericRecommendedItem(i, 1.0f));
+      }
+      return items;
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+      return recommend(userID, howMany);
+    }
+
+    @Override
+    public float estimatePreference(long userID, long itemID) {
+      return Float.NaN;
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public DataModel getDataModel() {
+      return null;
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+      refreshes.incrementAndGet();
+    }
+  }
+
+}
@@ -0,0 +1,337 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.web;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.recommender.ItemAverageRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.svd.ALSWRFactorizer;
+import org.apache.mahout.cf.taste.impl.recommender.svd.SVDRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.JDBCDataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+public final class RecommenderRegistryTest extends TasteTestCase {
+
+  @Test
+  public void testRegisterAndRebuild() throws Exception {
+    final DataModel dataModel = getDataModel();
+    final List<WarmUpRecordingRecommender> built =
+        Collections.synchronizedList(Lists.<WarmUpRecordingRecommender>newArrayList());
+    RecommenderRegistry registry = new RecommenderRegistry(1, 10, 5);
+    try {
+      registry.register("books", new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          WarmUpRecordingRecommender recommender = new WarmUpRecordingRecommender(dataModel);
+          built.add(recommender);
+          return recommender;
+        }
+      }).get();
+      assertTrue(registry.isAvailable("books"));
+      assertEquals(RecommenderRegistry.estimateBytes(dataModel), registry.getEstimatedBytes("books"));
+      assertEquals(registry.getEstimatedBytes("books"), registry.getTotalEstimatedBytes());
+
+      Recommender recommender = registry.getRecommender("books");
+      assertSame(dataModel, recommender.getDataModel());
+      recommender.recommend(1L, 1);
+      recommender.recommend(3L, 1);
+      assertEquals(1, built.size());
+
+      registry.rebuild("books").get();
+      assertEquals(2, built.size());
+      // The new recommender was warmed up with the users served, before serving
+      FastIDSet expected = new FastIDSet();
+      expected.add(1L);
+      expected.add(3L);
+      assertEquals(expected, built.get(1).userIDs);
+      recommender.recommend(2L, 1);
+      assertTrue(built.get(1).userIDs.contains(2L));
+      assertFalse(built.get(0).userIDs.contains(2L));
+      assertSame(recommender, registry.getRecommender("books"));
+      // The replaced recommender is closed once swapped out
+      assertTrue(built.get(0).closed);
+      assertFalse(built.get(1).closed);
+
+      registry.remove("books");
+      assertTrue(built.get(1).closed);
+      assertTrue(registry.getNames().isEmpty());
+      assertEquals(0L, registry.getTotalEstimatedBytes());
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testNotYetBuilt() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    RecommenderRegistry registry = new RecommenderRegistry(1, 10, 5);
+    try {
+      Future<?> build = registry.register("music", new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          try {
+            release.await();
+          } catch (InterruptedException ie) {
+            throw new TasteException(ie);
+          }
+          return new ItemAverageRecommender(getDataModel());
+        }
+      });
+      assertFalse(registry.isAvailable("music"));
+      try {
+        registry.getRecommender("music").recommend(1L, 1);
+        fail();
+      } catch (TasteException te) {
+        // expected
+      }
+      // A rebuild requested while building joins the build under way
+      assertSame(build, registry.rebuild("music"));
+      release.countDown();
+      build.get();
+      assertEquals(1, registry.getRecommender("music").recommend(1L, 1).size());
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testMemoryLimit() throws Exception {
+    final DataModel dataModel = getDataModel();
+    RecommenderRegistry.TenantBuilder builder = new RecommenderRegistry.TenantBuilder() {
+      @Override
+      public Recommender buildRecommender() throws TasteException {
+        return new ItemAverageRecommender(dataModel);
+      }
+    };
+    RecommenderRegistry registry = new RecommenderRegistry(2, 10, 5);
+    try {
+      long bytes = RecommenderRegistry.estimateBytes(dataModel);
+      assertTrue(bytes > 0L);
+      registry.setMaxTotalBytes(bytes + bytes / 2);
+      registry.register("books", builder).get();
+      try {
+        registry.register("music", builder).get();
+        fail();
+      } catch (ExecutionException ee) {
+        assertTrue(ee.getCause() instanceof TasteException);
+      }
+      assertTrue(registry.isAvailable("books"));
+      assertFalse(registry.isAvailable("music"));
+      assertEquals(bytes, registry.getTotalEstimatedBytes());
+      // Rebuilding only replaces what is already accounted for
+      registry.rebuild("books").get();
+      assertEquals(bytes, registry.getTotalEstimatedBytes());
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testNoBuildWithoutRoom() throws Exception {
+    final DataModel dataModel = getDataModel();
+    final AtomicInteger numBuilt = new AtomicInteger();
+    RecommenderRegistry.TenantBuilder builder = new RecommenderRegistry.TenantBuilder() {
+      @Override
+      public Recommender buildRecommender() throws TasteException {
+        numBuilt.incrementAndGet();
+        return new ItemAverageRecommender(dataModel);
+      }
+    };
+    RecommenderRegistry registry = new RecommenderRegistry(2, 10, 5);
+    try {
+      registry.register("books", builder).get();
+      registry.setMaxTotalBytes(RecommenderRegistry.estimateBytes(dataModel));
+      // Nothing remains for another recommender, so it is not even built
+      try {
+        registry.register("music", builder).get();
+        fail();
+      } catch (ExecutionException ee) {
+        assertTrue(ee.getCause() instanceof TasteException);
+      }
+      assertEquals(1, numBuilt.get());
+      // ... while one taking no more than the one it replaces still is
+      registry.rebuild("books").get();
+      assertEquals(2, numBuilt.get());
+      // ... unless the limit was lowered below what the current one takes
+      registry.setMaxTotalBytes(1L);
+      try {
+        registry.rebuild("books").get();
+        fail();
+      } catch (ExecutionException ee) {
+        assertTrue(ee.getCause() instanceof TasteException);
+      }
+      assertEquals(2, numBuilt.get());
+      assertTrue(registry.isAvailable("books"));
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testEstimateBytesOfSVDRecommender() throws Exception {
+    DataModel dataModel = getDataModel();
+    SVDRecommender recommender = new SVDRecommender(dataModel, new ALSWRFactorizer(dataModel, 3, 0.065, 2));
+    assertTrue(recommender.estimateBytes() > 0L);
+    assertEquals(RecommenderRegistry.estimateBytes(dataModel) + recommender.estimateBytes(),
+        RecommenderRegistry.estimateRecommenderBytes(recommender));
+    assertEquals(RecommenderRegistry.estimateBytes(dataModel),
+        RecommenderRegistry.estimateRecommenderBytes(new ItemAverageRecommender(dataModel)));
+  }
+
+  @Test
+  public void testListener() throws Exception {
+    final List<String> events = Collections.synchronizedList(Lists.<String>newArrayList());
+    RecommenderRegistry registry = new RecommenderRegistry(1, 10, 5);
+    try {
+      registry.addListener(new RecommenderRegistry.Listener() {
+        @Override
+        public void recommenderSwapped(String name) {
+          events.add("swapped:" + name);
+        }
+        @Override
+        public void recommenderRemoved(String name) {
+          events.add("removed:" + name);
+        }
+      });
+      RecommenderRegistry.TenantBuilder builder = new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          return new ItemAverageRecommender(getDataModel());
+        }
+      };
+      registry.register("books", builder).get();
+      registry.rebuild("books").get();
+      registry.remove("books");
+      assertEquals(Lists.newArrayList("swapped:books", "swapped:books", "removed:books"), events);
+    } finally {
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testEstimateBytes() throws Exception {
+    // 4 users, 3 items and 11 preferences
+    assertEquals(72L * 4 + 16L * 3 + 12L * 11, RecommenderRegistry.estimateBytes(getDataModel()));
+    // 4 users, 4 items and 8 preferences
+    assertEquals(72L * 4 + 16L * 4 + 12L * 8, RecommenderRegistry.estimateBytes(getBooleanDataModel()));
+    assertEquals(0L, RecommenderRegistry.estimateBytes(null));
+  }
+
+  @Test
+  public void testEstimateBytesWithoutQueryingPreferences() throws Exception {
+    // Only counts are read from a database, rather than each user's or item's preferences
+    JDBCDataModel dataModel = EasyMock.createMock(JDBCDataModel.class);
+    EasyMock.expect(dataModel.getNumUsers()).andReturn(1000);
+    EasyMock.expect(dataModel.getNumItems()).andReturn(100);
+    EasyMock.replay(dataModel);
+    assertEquals(72L * 1000 + 16L * 100, RecommenderRegistry.estimateBytes(dataModel));
+    EasyMock.verify(dataModel);
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testRegisterTwice() throws Exception {
+    RecommenderRegistry registry = new RecommenderRegistry(1, 10, 5);
+    try {
+      RecommenderRegistry.TenantBuilder builder = new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          return new ItemAverageRecommender(getDataModel());
+        }
+      };
+      registry.register("books", builder);
+      registry.register("books", builder);
+    } finally {
+      registry.close();
+    }
+  }
+
+  /**
+   * Records the users for whom recommendations are computed, and whether it was closed.
+   */
+  private static final class WarmUpRecordingRecommender implements Recommender, Closeable {
+
+    private final Recommender delegate;
+    private final FastIDSet userIDs = new FastIDSet();
+    private volatile boolean closed;
+
+    private WarmUpRecordingRecommender(DataModel dataModel) throws TasteException {
+      delegate = new ItemAverageRecommender(dataModel);
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
+      return recommend(userID, howMany, null);
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+      synchronized (userIDs) {
+        userIDs.add(userID);
+      }
+      return delegate.recommend(userID, howMany, rescorer);
+    }
+
+    @Override
+    public float estimatePreference(long userID, long itemID) throws TasteException {
+      return delegate.estimatePreference(userID, itemID);
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) throws TasteException {
+      delegate.setPreference(userID, itemID, value);
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) throws TasteException {
+      delegate.removePreference(userID, itemID);
+    }
+
+    @Override
+    public DataModel getDataModel() {
+      return delegate.getDataModel();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+      delegate.refresh(alreadyRefreshed);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+}
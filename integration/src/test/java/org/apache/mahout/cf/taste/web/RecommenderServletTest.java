@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.apache.mahout.cf.taste.web;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.Test;
+
+public final class RecommenderServletTest extends TasteTestCase {
+
+  @Test
+  public void testTenants() throws Exception {
+    final AtomicInteger numBuilt = new AtomicInteger();
+    RecommenderRegistry registry = new RecommenderRegistry(1, 10, 5);
+    RecommenderServlet servlet = new RecommenderServlet(registry);
+    try {
+      registry.register("books", new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          // Each build recommends a different item
+          return recommending(100L + numBuilt.incrementAndGet());
+        }
+      }).get();
+      registry.register("music", new RecommenderRegistry.TenantBuilder() {
+        @Override
+        public Recommender buildRecommender() throws TasteException {
+          return recommending(200L);
+        }
+      }).get();
+      servlet.init(config("async-threads", "1"));
+
+      assertEquals("1.0\t101\n", get(servlet, "tenant", "books", "userID", "1"));
+      assertEquals("1.0\t200\n", get(servlet, "tenant", "music", "userID", "1"));
+      assertNotSame(servlet.getDispatcher("books"), servlet.getDispatcher("music"));
+
+      // A rebuilt recommender is served at once, not a response cached from the previous one
+      registry.rebuild("books").get();
+      assertEquals("1.0\t102\n", get(servlet, "tenant", "books", "userID", "1"));
+
+      String metrics = get(servlet, "metrics", "true");
+      assertTrue(metrics.startsWith("{\"books\":{") || metrics.startsWith("{\"music\":{"));
+      assertTrue(metrics.contains("\"music\":{"));
+
+      registry.remove("music");
+      assertNull(servlet.getDispatcher("music"));
+      try {
+        get(servlet, "tenant", "music", "userID", "1");
+        fail();
+      } catch (ServletException se) {
+        assertTrue(se.getCause() instanceof IllegalArgumentException);
+      }
+      try {
+        get(servlet, "userID", "1");
+        fail();
+      } catch (ServletException se) {
+        // expected: no tenant
+      }
+    } finally {
+      servlet.destroy();
+      registry.close();
+    }
+  }
+
+  @Test
+  public void testRefreshOnlyByAllowedPost() throws Exception {
+    final AtomicInteger numRefreshed = new AtomicInteger();
+    Recommender recommender = EasyMock.createNiceMock(Recommender.class);
+    recommender.refresh(null);
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        numRefreshed.incrementAndGet();
+        return null;
+      }
+    }).anyTimes();
+    EasyMock.replay(recommender);
+
+    RecommenderServlet servlet = new RecommenderServlet(recommender);
+    servlet.init(config());
+    try {
+      get(servlet, "refresh", "true");
+      fail();
+    } catch (ServletException se) {
+      // expected: a GET only asks for recommendations, and this one names no user
+    }
+    assertEquals(HttpServletResponse.SC_FORBIDDEN, post(servlet, "refresh", "true"));
+    assertEquals(0, numRefreshed.get());
+
+    RecommenderServlet allowed = new RecommenderServlet(recommender);
+    allowed.init(config("allow-refresh", "true"));
+    assertEquals(HttpServletResponse.SC_NO_CONTENT, post(allowed, "refresh", "true"));
+    assertEquals(1, numRefreshed.get());
+  }
+
+  private static Recommender recommending(long itemID) throws TasteException {
+    List<RecommendedItem> items = Collections.<RecommendedItem>singletonList(new GenericRecommendedItem(itemID, 1.0f));
+    Recommender recommender = EasyMock.createNiceMock(Recommender.class);
+    EasyMock.expect(recommender.recommend(EasyMock.anyLong(), EasyMock.anyInt())).andStubReturn(items);
+    EasyMock.replay(recommender);
+    return recommender;
+  }
+
+  private static ServletConfig config(String... namesAndValues) {
+    ServletConfig config = EasyMock.createNiceMock(ServletConfig.class);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      EasyMock.expect(config.getInitParameter(namesAndValues[i])).andStubReturn(namesAndValues[i + 1]);
+    }
+    EasyMock.replay(config);
+    return config;
+  }
+
+  /**
+   * @return the status set in response to a POST request with the given parameters, or 0 if none was
+   */
+  private static int post(RecommenderServlet servlet, String... namesAndValues) throws Exception {
+    HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      EasyMock.expect(request.getParameter(namesAndValues[i])).andStubReturn(namesAndValues[i + 1]);
+    }
+    final int[] status = new int[1];
+    HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+    response.setStatus(EasyMock.anyInt());
+    EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+      @Override
+      public Object answer() {
+        status[0] = (Integer) EasyMock.getCurrentArguments()[0];
+        return null;
+      }
+    }).anyTimes();
+    EasyMock.replay(request, response);
+    servlet.doPost(request, response);
+    return status[0];
+  }
+
+  /**
+   * @return the body of the response to a request with the given parameters
+   */
+  private static String get(RecommenderServlet servlet, String... namesAndValues) throws Exception {
+    HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      EasyMock.expect(request.getParameter(namesAndValues[i])).andStubReturn(namesAndValues[i + 1]);
+    }
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StringWriter chars = new StringWriter();
+    PrintWriter writer = new PrintWriter(chars);
+    HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+    EasyMock.expect(response.getOutputStream()).andStubReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        bytes.write(b);
+      }
+    });
+    EasyMock.expect(response.getWriter()).andStubReturn(writer);
+    EasyMock.replay(request, response);
+    servlet.doGet(request, response);
+    writer.flush();
+    return bytes.size() > 0 ? bytes.toString("UTF-8") : chars.toString().trim();
+  }
+
+}
@@ -25,15 +25,12 @@ import org.apache.mahout.cf.taste.hadoop.TasteHadoopUtils;
 import org.apache.mahout.cf.taste.hadoop.TopItemsQueue;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
-import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.VarLongWritable;
 import org.apache.mahout.math.Vector;
 import org.apache.mahout.math.Vector.Element;
-import org.apache.mahout.math.function.Functions;
 import org.apache.mahout.math.map.OpenIntLongHashMap;
 
 import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -69,8 +66,6 @@ public final class AggregateAndRecommendReducer extends
 
   private final RecommendedItemsWritable recommendedItems = new RecommendedItemsWritable();
 
-  private static final float BOOLEAN_PREF_VALUE = 1.0f;
-
   @Override
   protected void setup(Context context) throws IOException {
     Configuration conf = context.getConfiguration();
@@ -87,81 +82,14 @@ public final class AggregateAndRecommendReducer extends
   protected void reduce(VarLongWritable userID,
                         Iterable<PrefAndSimilarityColumnWritable> values,
                         Context context) throws IOException, InterruptedException {
-    if (booleanData) {
-      reduceBooleanData(userID, values, context);
-    } else {
-      reduceNonBooleanData(userID, values, context);
-    }
-  }
-
-  private void reduceBooleanData(VarLongWritable userID,
-                                 Iterable<PrefAndSimilarityColumnWritable> values,
-                                 Context context) throws IOException, InterruptedException {
-    /* having boolean data, each estimated preference can only be 1,
-     * however we can't use this to rank the recommended items,
-     * so we use the sum of similarities for that. */
-    Iterator<PrefAndSimilarityColumnWritable> columns = values.iterator();
-    Vector predictions = columns.next().getSimilarityColumn();
-    while (columns.hasNext()) {
-      predictions.assign(columns.next().getSimilarityColumn(), Functions.PLUS);
-    }
-    writeRecommendedItems(userID, predictions, context);
-  }
-
-  private void reduceNonBooleanData(VarLongWritable userID,
-                                    Iterable<PrefAndSimilarityColumnWritable> values,
-                                    Context context) throws IOException, InterruptedException {
-    /* each entry here is the sum in the numerator of the prediction formula */
-    Vector numerators = null;
-    /* each entry here is the sum in the denominator of the prediction formula */
-    Vector denominators = null;
-    /* each entry here is the number of similar items used in the prediction formula */
-    Vector numberOfSimilarItemsUsed = new RandomAccessSparseVector(Integer.MAX_VALUE, 100);
-
+    PredictionAccumulator predictions = new PredictionAccumulator(booleanData);
     for (PrefAndSimilarityColumnWritable prefAndSimilarityColumn : values) {
-      Vector simColumn = prefAndSimilarityColumn.getSimilarityColumn();
-      float prefValue = prefAndSimilarityColumn.getPrefValue();
-      /* count the number of items used for each prediction */
-      for (Element e : simColumn.nonZeroes()) {
-        int itemIDIndex = e.index();
-        numberOfSimilarItemsUsed.setQuick(itemIDIndex, numberOfSimilarItemsUsed.getQuick(itemIDIndex) + 1);
-      }
-
-      if (denominators == null) {
-        denominators = simColumn.clone();
-      } else {
-        denominators.assign(simColumn, Functions.PLUS_ABS);
-      }
-
-      if (numerators == null) {
-        numerators = simColumn.clone();
-        if (prefValue != BOOLEAN_PREF_VALUE) {
-          numerators.assign(Functions.MULT, prefValue);
-        }
-      } else {
-        if (prefValue != BOOLEAN_PREF_VALUE) {
-          simColumn.assign(Functions.MULT, prefValue);
-        }
-        numerators.assign(simColumn, Functions.PLUS);
-      }
-
+      predictions.add(prefAndSimilarityColumn.getPrefValue(), prefAndSimilarityColumn.getSimilarityColumn());
     }
-
-    if (numerators == null) {
-      return;
-    }
-
-    Vector recommendationVector = new RandomAccessSparseVector(Integer.MAX_VALUE, 100);
-    for (Element element : numerators.nonZeroes()) {
-      int itemIDIndex = element.index();
-      /* preference estimations must be based on at least 2 datapoints */
-      if (numberOfSimilarItemsUsed.getQuick(itemIDIndex) > 1) {
-        /* compute normalized prediction */
-        double prediction = element.get() / denominators.getQuick(itemIDIndex);
-        recommendationVector.setQuick(itemIDIndex, prediction);
-      }
+    Vector recommendationVector = predictions.getPredictions();
+    if (recommendationVector != null) {
+      writeRecommendedItems(userID, recommendationVector, context);
     }
-    writeRecommendedItems(userID, recommendationVector, context);
   }
 
   /**
@@ -169,11 +97,29 @@ public final class AggregateAndRecommendReducer extends
    */
   private void writeRecommendedItems(VarLongWritable userID, Vector recommendationVector, Context context)
     throws IOException, InterruptedException {
+    List<RecommendedItem> topItems = topItems(userID.get(), recommendationVector, recommendationsPerUser,
+        indexItemIDMap, idReader, itemsToRecommendFor);
+    if (!topItems.isEmpty()) {
+      recommendedItems.set(topItems);
+      context.write(userID, recommendedItems);
+    }
+  }
+
+  /**
+   * @return the top entries in recommendationVector, mapped to the real itemIDs, excluding those the ID files
+   *  read by idReader leave out
+   */
+  static List<RecommendedItem> topItems(long userID,
+                                        Vector recommendationVector,
+                                        int recommendationsPerUser,
+                                        OpenIntLongHashMap indexItemIDMap,
+                                        IDReader idReader,
+                                        FastIDSet itemsToRecommendFor) {
     TopItemsQueue topKItems = new TopItemsQueue(recommendationsPerUser);
     FastIDSet itemsForUser = null;
 
     if (idReader != null && idReader.isUserItemFilterSpecified()) {
-      itemsForUser = idReader.getItemsToRecommendForUser(userID.get());
+      itemsForUser = idReader.getItemsToRecommendForUser(userID);
     }
 
     for (Element element : recommendationVector.nonZeroes()) {
@@ -199,15 +145,11 @@ public final class AggregateAndRecommendReducer extends
       }
     }
 
-    List<RecommendedItem> topItems = topKItems.getTopItems();
-    if (!topItems.isEmpty()) {
-      recommendedItems.set(topItems);
-      context.write(userID, recommendedItems);
-    }
+    return topKItems.getTopItems();
   }
 
-  private boolean shouldIncludeItemIntoRecommendations(long itemID, FastIDSet allItemsToRecommendFor,
-                                                       FastIDSet itemsForUser) {
+  private static boolean shouldIncludeItemIntoRecommendations(long itemID, FastIDSet allItemsToRecommendFor,
+                                                              FastIDSet itemsForUser) {
     if (allItemsToRecommendFor == null && itemsForUser == null) {
       return true;
     } else if (itemsForUser != null) {
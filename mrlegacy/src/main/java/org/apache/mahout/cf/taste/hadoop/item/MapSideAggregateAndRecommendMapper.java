@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.hadoop.item;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.mahout.cf.taste.hadoop.RecommendedItemsWritable;
+import org.apache.mahout.cf.taste.hadoop.TasteHadoopUtils;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.iterator.FileLineIterable;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileIterable;
+import org.apache.mahout.math.VarLongWritable;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.VectorWritable;
+import org.apache.mahout.math.map.OpenIntLongHashMap;
+import org.apache.mahout.math.map.OpenIntObjectHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Computes the recommendations for each user straight from the user's vector, joining it in memory with the
+ * similarity matrix, which is read from the distributed cache in {@link #setup(Context)}. This does the work of
+ * {@link UserVectorSplitterMapper}, {@link ToVectorAndPrefReducer}, {@link PartialMultiplyMapper} and
+ * {@link AggregateAndRecommendReducer} in a single map-only job, so that neither the similarity matrix nor the
+ * partial products are shuffled, at the cost of holding the whole similarity matrix in each mapper.</p>
+ *
+ * <p>Items to exclude per user are read from the file configured as {@link #FILTER_FILE}, and applied as
+ * {@link ItemFilterAsVectorAndPrefsReducer} does.</p>
+ */
+public final class MapSideAggregateAndRecommendMapper
+    extends Mapper<VarLongWritable,VectorWritable,VarLongWritable,RecommendedItemsWritable> {
+
+  private static final Logger log = LoggerFactory.getLogger(MapSideAggregateAndRecommendMapper.class);
+
+  static final String FILTER_FILE = "filterFile";
+
+  private static final Pattern SEPARATOR = Pattern.compile("[\t,]");
+
+  private boolean booleanData;
+  private int recommendationsPerUser;
+  private int maxPrefsPerUserConsidered;
+  private IDReader idReader;
+  private FastIDSet usersToRecommendFor;
+  private FastIDSet itemsToRecommendFor;
+  private OpenIntLongHashMap indexItemIDMap;
+  private OpenIntObjectHashMap<Vector> similarityMatrixRows;
+  private FastByIDMap<FastIDSet> itemsToFilterOut;
+
+  private final RecommendedItemsWritable recommendedItems = new RecommendedItemsWritable();
+
+  @Override
+  protected void setup(Context context) throws IOException {
+    Configuration conf = context.getConfiguration();
+    recommendationsPerUser = conf.getInt(AggregateAndRecommendReducer.NUM_RECOMMENDATIONS,
+        AggregateAndRecommendReducer.DEFAULT_NUM_RECOMMENDATIONS);
+    booleanData = conf.getBoolean(RecommenderJob.BOOLEAN_DATA, false);
+    maxPrefsPerUserConsidered = conf.getInt(UserVectorSplitterMapper.MAX_PREFS_PER_USER_CONSIDERED,
+        UserVectorSplitterMapper.DEFAULT_MAX_PREFS_PER_USER_CONSIDERED);
+    indexItemIDMap = TasteHadoopUtils.readIDIndexMap(conf.get(AggregateAndRecommendReducer.ITEMID_INDEX_PATH), conf);
+
+    idReader = new IDReader(conf);
+    idReader.readIDs();
+    usersToRecommendFor = idReader.getUserIds();
+    itemsToRecommendFor = idReader.getItemIds();
+
+    similarityMatrixRows = new OpenIntObjectHashMap<Vector>();
+    for (Path cachedFile : HadoopUtil.getCachedFiles(conf)) {
+      for (Pair<IntWritable,VectorWritable> record
+          : new SequenceFileIterable<IntWritable,VectorWritable>(cachedFile, false, conf)) {
+        int itemIDIndex = record.getFirst().get();
+        Vector similarityMatrixRow = record.getSecond().get();
+        /* remove self similarity, which also excludes the items a user already has from the recommendations */
+        similarityMatrixRow.set(itemIDIndex, Double.NaN);
+        similarityMatrixRows.put(itemIDIndex, similarityMatrixRow);
+      }
+    }
+    log.info("Read {} rows of the similarity matrix", similarityMatrixRows.size());
+
+    String filterFile = conf.get(FILTER_FILE);
+    if (filterFile != null) {
+      itemsToFilterOut = readItemsToFilterOut(new Path(filterFile), conf);
+    }
+  }
+
+  private static FastByIDMap<FastIDSet> readItemsToFilterOut(Path filterFile, Configuration conf)
+    throws IOException {
+    FastByIDMap<FastIDSet> itemsToFilterOut = new FastByIDMap<FastIDSet>();
+    InputStream in = HadoopUtil.openStream(filterFile, conf);
+    try {
+      for (String line : new FileLineIterable(in)) {
+        String[] tokens = SEPARATOR.split(line);
+        long userID = Long.parseLong(tokens[0]);
+        long itemID = Long.parseLong(tokens[1]);
+        FastIDSet itemIDs = itemsToFilterOut.get(userID);
+        if (itemIDs == null) {
+          itemIDs = new FastIDSet();
+          itemsToFilterOut.put(userID, itemIDs);
+        }
+        itemIDs.add(itemID);
+      }
+    } finally {
+      Closeables.close(in, true);
+    }
+    return itemsToFilterOut;
+  }
+
+  @Override
+  protected void map(VarLongWritable userID,
+                     VectorWritable value,
+                     Context context) throws IOException, InterruptedException {
+    if (usersToRecommendFor != null && !usersToRecommendFor.contains(userID.get())) {
+      return;
+    }
+    Vector userVector =
+        UserVectorSplitterMapper.maybePruneUserVector(value.get(), maxPrefsPerUserConsidered);
+
+    PredictionAccumulator predictions = new PredictionAccumulator(booleanData);
+    for (Element e : userVector.nonZeroes()) {
+      float prefValue = (float) e.get();
+      if (!Float.isNaN(prefValue)) {
+        Vector similarityMatrixColumn = similarityMatrixRows.get(e.index());
+        if (similarityMatrixColumn != null) {
+          predictions.add(prefValue, similarityMatrixColumn);
+        }
+      }
+    }
+    Vector recommendationVector = predictions.getPredictions();
+    if (recommendationVector == null) {
+      return;
+    }
+
+    if (itemsToFilterOut != null) {
+      FastIDSet itemIDs = itemsToFilterOut.get(userID.get());
+      if (itemIDs != null) {
+        LongPrimitiveIterator it = itemIDs.iterator();
+        while (it.hasNext()) {
+          recommendationVector.setQuick(TasteHadoopUtils.idToIndex(it.nextLong()), Double.NaN);
+        }
+      }
+    }
+
+    List<RecommendedItem> topItems = AggregateAndRecommendReducer.topItems(userID.get(), recommendationVector,
+        recommendationsPerUser, indexItemIDMap, idReader, itemsToRecommendFor);
+    if (!topItems.isEmpty()) {
+      recommendedItems.set(topItems);
+      context.write(userID, recommendedItems);
+    }
+  }
+
+}
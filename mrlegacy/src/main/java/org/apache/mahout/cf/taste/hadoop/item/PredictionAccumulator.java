@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.hadoop.item;
+
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.Vector.Element;
+import org.apache.mahout.math.function.Functions;
+
+/**
+ * <p>Accumulates the similarity columns of the items a user has preferences for, weighted by those preferences,
+ * into the user's predicted preferences as described in {@link AggregateAndRecommendReducer}. The columns
+ * added are not modified, so they may be shared, as the broadcast similarity matrix of
+ * {@link MapSideAggregateAndRecommendMapper} is.</p>
+ */
+final class PredictionAccumulator {
+
+  private static final float BOOLEAN_PREF_VALUE = 1.0f;
+
+  private final boolean booleanData;
+  /* with boolean data, the sum of similarities; otherwise each entry is the sum in the numerator of the
+   * prediction formula */
+  private Vector numerators;
+  /* each entry here is the sum in the denominator of the prediction formula */
+  private Vector denominators;
+  /* each entry here is the number of similar items used in the prediction formula */
+  private Vector numberOfSimilarItemsUsed;
+
+  PredictionAccumulator(boolean booleanData) {
+    this.booleanData = booleanData;
+  }
+
+  void add(float prefValue, Vector similarityColumn) {
+    if (booleanData) {
+      /* having boolean data, each estimated preference can only be 1,
+       * however we can't use this to rank the recommended items,
+       * so we use the sum of similarities for that. */
+      if (numerators == null) {
+        numerators = similarityColumn.clone();
+      } else {
+        numerators.assign(similarityColumn, Functions.PLUS);
+      }
+      return;
+    }
+
+    if (numberOfSimilarItemsUsed == null) {
+      numberOfSimilarItemsUsed = new RandomAccessSparseVector(Integer.MAX_VALUE, 100);
+    }
+    /* count the number of items used for each prediction */
+    for (Element e : similarityColumn.nonZeroes()) {
+      int itemIDIndex = e.index();
+      numberOfSimilarItemsUsed.setQuick(itemIDIndex, numberOfSimilarItemsUsed.getQuick(itemIDIndex) + 1);
+    }
+
+    if (denominators == null) {
+      denominators = similarityColumn.clone();
+    } else {
+      denominators.assign(similarityColumn, Functions.PLUS_ABS);
+    }
+
+    if (numerators == null) {
+      numerators = similarityColumn.clone();
+      if (prefValue != BOOLEAN_PREF_VALUE) {
+        numerators.assign(Functions.MULT, prefValue);
+      }
+    } else if (prefValue != BOOLEAN_PREF_VALUE) {
+      numerators.assign(similarityColumn, Functions.plusMult(prefValue));
+    } else {
+      numerators.assign(similarityColumn, Functions.PLUS);
+    }
+  }
+
+  /**
+   * @return predicted preferences by item index, or {@code null} if nothing was added
+   */
+  Vector getPredictions() {
+    if (booleanData || numerators == null) {
+      return numerators;
+    }
+    Vector recommendationVector = new RandomAccessSparseVector(Integer.MAX_VALUE, 100);
+    for (Element element : numerators.nonZeroes()) {
+      int itemIDIndex = element.index();
+      /* preference estimations must be based on at least 2 datapoints */
+      if (numberOfSimilarItemsUsed.getQuick(itemIDIndex) > 1) {
+        /* compute normalized prediction */
+        double prediction = element.get() / denominators.getQuick(itemIDIndex);
+        recommendationVector.setQuick(itemIDIndex, prediction);
+      }
+    }
+    return recommendationVector;
+  }
+
+}
@@ -18,6 +18,8 @@
 package org.apache.mahout.cf.taste.hadoop.item;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.DoubleWritable;
 import org.apache.hadoop.mapreduce.Job;
@@ -35,11 +37,14 @@ import org.apache.mahout.cf.taste.hadoop.preparation.PreparePreferenceMatrixJob;
 import org.apache.mahout.cf.taste.hadoop.similarity.item.ItemSimilarityJob;
 import org.apache.mahout.common.AbstractJob;
 import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.iterator.sequencefile.PathFilters;
 import org.apache.mahout.common.iterator.sequencefile.PathType;
 import org.apache.mahout.math.VarIntWritable;
 import org.apache.mahout.math.VarLongWritable;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.RowSimilarityJob;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
@@ -83,6 +88,10 @@ import java.util.regex.Pattern;
  *   the item similarity computation phase,
  * users with more preferences will be sampled down (1000)</li>
  * <li>--threshold (double): discard item pairs with a similarity value below this</li>
+ * <li>--maxBroadcastSimilarityMB (integer): if the similarity matrix is estimated to take at most this many
+ *   megabytes of each mapper's heap, broadcast it to the mappers, which join it with the user vectors and compute
+ *   the recommendations without a shuffle. The heap is estimated as {@value #SIMILARITY_MATRIX_HEAP_FACTOR} times
+ *   the size of the matrix' files. The output files are then named {@code part-m-*}. (0, never)</li>
  * </ol>
  * <p/>
  * <p>General command line options are documented in {@link AbstractJob}.</p>
@@ -92,6 +101,8 @@ import java.util.regex.Pattern;
  */
 public final class RecommenderJob extends AbstractJob {
 
+  private static final Logger log = LoggerFactory.getLogger(RecommenderJob.class);
+
   public static final String BOOLEAN_DATA = "booleanData";
   public static final String DEFAULT_PREPARE_PATH = "preparePreferenceMatrix";
 
@@ -99,6 +110,15 @@ public final class RecommenderJob extends AbstractJob {
   private static final int DEFAULT_MAX_PREFS = 500;
   private static final int DEFAULT_MIN_PREFS_PER_USER = 1;
 
+  /**
+   * Heap a similarity matrix takes in {@link MapSideAggregateAndRecommendMapper}, relative to its files. A
+   * similarity is written as a varint index and a double, about 10 bytes, but is held in the
+   * {@link org.apache.mahout.math.map.OpenIntDoubleHashMap} of a
+   * {@link org.apache.mahout.math.RandomAccessSparseVector}, whose int and double keys and values and state byte
+   * take 13 bytes per slot, at between two and five slots per entry, before the objects per row.
+   */
+  static final int SIMILARITY_MATRIX_HEAP_FACTOR = 5;
+
   @Override
   public int run(String[] args) throws Exception {
 
@@ -130,6 +150,9 @@ public final class RecommenderJob extends AbstractJob {
     addOption("outputPathForSimilarityMatrix", "opfsm", "write the item similarity matrix to this path (optional)",
         false);
     addOption("randomSeed", null, "use this seed for sampling", false);
+    addOption("maxBroadcastSimilarityMB", "mbs", "compute the recommendations in the mappers, with the similarity "
+        + "matrix broadcast to them, if it is estimated to take at most this many megabytes of their heap, at "
+        + SIMILARITY_MATRIX_HEAP_FACTOR + " times the size of its files (default: 0, never)", "0");
     addFlag("sequencefileOutput", null, "write the output into a SequenceFile instead of a text file");
 
     Map<String, List<String>> parsedArgs = parseArguments(args);
@@ -153,6 +176,7 @@ public final class RecommenderJob extends AbstractJob {
         ? Double.parseDouble(getOption("threshold")) : RowSimilarityJob.NO_THRESHOLD;
     long randomSeed = hasOption("randomSeed")
         ? Long.parseLong(getOption("randomSeed")) : RowSimilarityJob.NO_FIXED_RANDOM_SEED;
+    long maxBroadcastSimilarityBytes = Long.parseLong(getOption("maxBroadcastSimilarityMB")) << 20;
 
 
     Path prepPath = getTempPath(DEFAULT_PREPARE_PATH);
@@ -217,8 +241,25 @@ public final class RecommenderJob extends AbstractJob {
       }
     }
 
+    FileStatus[] similarityMatrixFiles = null;
+    boolean broadcastSimilarityMatrix = false;
+    if (maxBroadcastSimilarityBytes > 0) {
+      similarityMatrixFiles = HadoopUtil.getFileStatus(similarityMatrixPath, PathType.LIST,
+          PathFilters.partFilter(), null, getConf());
+      long similarityMatrixBytes = 0;
+      for (FileStatus similarityMatrixFile : similarityMatrixFiles) {
+        similarityMatrixBytes += similarityMatrixFile.getLen();
+      }
+      long similarityMatrixHeapBytes = similarityMatrixBytes * SIMILARITY_MATRIX_HEAP_FACTOR;
+      broadcastSimilarityMatrix =
+          similarityMatrixFiles.length > 0 && similarityMatrixHeapBytes <= maxBroadcastSimilarityBytes;
+      log.info("Similarity matrix takes {} bytes on disk and about {} on the heap, {}", similarityMatrixBytes,
+          similarityMatrixHeapBytes, broadcastSimilarityMatrix ? "broadcasting it" : "joining it in a reducer");
+    }
+
     //start the multiplication of the co-occurrence matrix by the user vectors
-    if (shouldRunNextPhase(parsedArgs, currentPhase)) {
+    //unless it happens map-side in the last phase
+    if (shouldRunNextPhase(parsedArgs, currentPhase) && !broadcastSimilarityMatrix) {
       Job partialMultiply = new Job(getConf(), "partialMultiply");
       Configuration partialMultiplyConf = partialMultiply.getConfiguration();
 
@@ -252,7 +293,44 @@ public final class RecommenderJob extends AbstractJob {
       }
     }
 
-    if (shouldRunNextPhase(parsedArgs, currentPhase)) {
+    boolean runLastPhase = shouldRunNextPhase(parsedArgs, currentPhase);
+
+    if (runLastPhase && broadcastSimilarityMatrix) {
+      Class<? extends OutputFormat> outputFormat = parsedArgs.containsKey("--sequencefileOutput")
+          ? SequenceFileOutputFormat.class : TextOutputFormat.class;
+
+      //join each user vector with the similarity matrix in memory and extract the recommendations
+      Job mapSideAggregateAndRecommend = prepareJob(new Path(prepPath, PreparePreferenceMatrixJob.USER_VECTORS),
+          outputPath, SequenceFileInputFormat.class, MapSideAggregateAndRecommendMapper.class,
+          VarLongWritable.class, RecommendedItemsWritable.class, outputFormat);
+      Configuration mapSideConf = mapSideAggregateAndRecommend.getConfiguration();
+      for (FileStatus similarityMatrixFile : similarityMatrixFiles) {
+        DistributedCache.addCacheFile(similarityMatrixFile.getPath().toUri(), mapSideConf);
+      }
+      if (usersFile != null) {
+        mapSideConf.set(UserVectorSplitterMapper.USERS_FILE, usersFile);
+      }
+      if (itemsFile != null) {
+        mapSideConf.set(AggregateAndRecommendReducer.ITEMS_FILE, itemsFile);
+      }
+      if (userItemFile != null) {
+        mapSideConf.set(IDReader.USER_ITEM_FILE, userItemFile);
+      }
+      if (filterFile != null) {
+        mapSideConf.set(MapSideAggregateAndRecommendMapper.FILTER_FILE, filterFile);
+      }
+      mapSideConf.setInt(UserVectorSplitterMapper.MAX_PREFS_PER_USER_CONSIDERED, maxPrefsPerUser);
+      mapSideConf.set(AggregateAndRecommendReducer.ITEMID_INDEX_PATH,
+          new Path(prepPath, PreparePreferenceMatrixJob.ITEMID_INDEX).toString());
+      mapSideConf.setInt(AggregateAndRecommendReducer.NUM_RECOMMENDATIONS, numRecommendations);
+      mapSideConf.setBoolean(BOOLEAN_DATA, booleanData);
+      boolean succeeded = mapSideAggregateAndRecommend.waitForCompletion(true);
+      if (!succeeded) {
+        return -1;
+      }
+    }
+
+    if (runLastPhase && !broadcastSimilarityMatrix) {
       //filter out any users we don't care about
       /* convert the user/item pairs to filter if a filterfile has been specified */
       if (filterFile != null) {
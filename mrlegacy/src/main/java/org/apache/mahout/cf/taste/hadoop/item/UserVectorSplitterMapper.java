@@ -65,7 +65,7 @@ public final class UserVectorSplitterMapper extends
     if (usersToRecommendFor != null && !usersToRecommendFor.contains(userID)) {
       return;
     }
-    Vector userVector = maybePruneUserVector(value.get());
+    Vector userVector = maybePruneUserVector(value.get(), maxPrefsPerUserConsidered);
 
     for (Element e : userVector.nonZeroes()) {
       itemIndexWritable.set(e.index());
@@ -74,12 +74,15 @@ public final class UserVectorSplitterMapper extends
     }
   }
 
-  private Vector maybePruneUserVector(Vector userVector) {
+  /**
+   * Blanks out all but the given number of largest preferences, by absolute value, of a user vector.
+   */
+  static Vector maybePruneUserVector(Vector userVector, int maxPrefsPerUserConsidered) {
     if (userVector.getNumNondefaultElements() <= maxPrefsPerUserConsidered) {
       return userVector;
     }
 
-    float smallestLargeValue = findSmallestLargeValue(userVector);
+    float smallestLargeValue = findSmallestLargeValue(userVector, maxPrefsPerUserConsidered);
 
     // "Blank out" small-sized prefs to reduce the amount of partial products
     // generated later. They're not zeroed, but NaN-ed, so they come through
@@ -94,7 +97,7 @@ public final class UserVectorSplitterMapper extends
     return userVector;
   }
 
-  private float findSmallestLargeValue(Vector userVector) {
+  private static float findSmallestLargeValue(Vector userVector, int maxPrefsPerUserConsidered) {
 
     PriorityQueue<Float> topPrefValues = new PriorityQueue<Float>(maxPrefsPerUserConsidered) {
       @Override
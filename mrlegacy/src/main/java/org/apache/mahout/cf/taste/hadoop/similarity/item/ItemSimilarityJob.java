@@ -23,6 +23,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 
@@ -74,6 +75,9 @@ import org.apache.mahout.math.map.OpenIntLongHashMap;
  * <li>--minPrefsPerUser (integer): ignore users with less preferences than this (1)</li>
  * <li>--booleanData (boolean): Treat input data as having no pref values (false)</li>
  * <li>--threshold (double): discard item pairs with a similarity value below this</li>
+ * <li>--inMemory: compute the similarities in this JVM rather than with MapReduce jobs</li>
+ * <li>--numThreads (integer): number of threads to compute the similarities with in memory (number of
+ *  processors)</li>
  * </ol>
  *
  * <p>General command line options are documented in {@link AbstractJob}.</p>
@@ -111,6 +115,9 @@ public final class ItemSimilarityJob extends AbstractJob {
     addOption("booleanData", "b", "Treat input as without pref values", String.valueOf(Boolean.FALSE));
     addOption("threshold", "tr", "discard item pairs with a similarity value below this", false);
     addOption("randomSeed", null, "use this seed for sampling", false);
+    addFlag("inMemory", null, "compute the similarities in this JVM rather than with MapReduce jobs");
+    addOption("numThreads", null, "number of threads to compute the similarities with in memory (default: number of "
+        + "processors)", String.valueOf(Runtime.getRuntime().availableProcessors()));
 
     Map<String,List<String>> parsedArgs = parseArguments(args);
     if (parsedArgs == null) {
@@ -146,7 +153,7 @@ public final class ItemSimilarityJob extends AbstractJob {
     if (shouldRunNextPhase(parsedArgs, currentPhase)) {
       int numberOfUsers = HadoopUtil.readInt(new Path(prepPath, PreparePreferenceMatrixJob.NUM_USERS), getConf());
 
-      ToolRunner.run(getConf(), new RowSimilarityJob(), new String[] {
+      List<String> rowSimilarityArgs = Lists.newArrayList(
         "--input", new Path(prepPath, PreparePreferenceMatrixJob.RATING_MATRIX).toString(),
         "--output", similarityMatrixPath.toString(),
         "--numberOfColumns", String.valueOf(numberOfUsers),
@@ -157,8 +164,15 @@ public final class ItemSimilarityJob extends AbstractJob {
         "--excludeSelfSimilarity", String.valueOf(Boolean.TRUE),
         "--threshold", String.valueOf(threshold),
         "--randomSeed", String.valueOf(randomSeed),
-        "--tempDir", getTempPath().toString(),
-      });
+        "--tempDir", getTempPath().toString());
+      if (hasOption("inMemory")) {
+        rowSimilarityArgs.add("--inMemory");
+        rowSimilarityArgs.add("--numThreads");
+        rowSimilarityArgs.add(getOption("numThreads"));
+      }
+
+      ToolRunner.run(getConf(), new RowSimilarityJob(),
+          rowSimilarityArgs.toArray(new String[rowSimilarityArgs.size()]));
     }
 
     if (shouldRunNextPhase(parsedArgs, currentPhase)) {
@@ -1,178 +1,428 @@
-/**
- * Licensed to the Apache Software Foundation (ASF) under one or more
- * contributor license agreements.  See the NOTICE file distributed with
- * this work for additional information regarding copyright ownership.
- * The ASF licenses this file to You under the Apache License, Version 2.0
- * (the "License"); you may not use this file except in compliance with
- * the License.  You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package org.apache.mahout.cf.taste.impl.common;
-
-import com.google.common.base.Preconditions;
-import org.apache.mahout.cf.taste.common.TasteException;
-
-import java.util.Iterator;
-
-/**
- * <p>
- * An efficient Map-like class which caches values for keys. Values are not "put" into a {@link Cache};
- * instead the caller supplies the instance with an implementation of {@link Retriever} which can load the
- * value for a given key.
- * </p>
- *
- * <p>
- * The cache does not support {@code null} keys.
- * </p>
- *
- * <p>
- * Thanks to Amila Jayasooriya for helping evaluate performance of the rewrite of this class, as part of a
- * Google Summer of Code 2007 project.
- * </p>
- */
-public final class Cache<K,V> implements Retriever<K,V> {
-
-  private static final Object NULL = new Object();
-  
-  private final FastMap<K,V> cache;
-  private final Retriever<? super K,? extends V> retriever;
-  
-  /**
-   * <p>
-   * Creates a new cache based on the given {@link Retriever}.
-   * </p>
-   * 
-   * @param retriever
-   *          object which can retrieve values for keys
-   */
-  public Cache(Retriever<? super K,? extends V> retriever) {
-    this(retriever, FastMap.NO_MAX_SIZE);
-  }
-  
-  /**
-   * <p>
-   * Creates a new cache based on the given {@link Retriever} and with given maximum size.
-   * </p>
-   * 
-   * @param retriever
-   *          object which can retrieve values for keys
-   * @param maxEntries
-   *          maximum number of entries the cache will store before evicting some
-   */
-  public Cache(Retriever<? super K,? extends V> retriever, int maxEntries) {
-    Preconditions.checkArgument(retriever != null, "retriever is null");
-    Preconditions.checkArgument(maxEntries >= 1, "maxEntries must be at least 1");
-    cache = new FastMap<K, V>(11, maxEntries);
-    this.retriever = retriever;
-  }
-  
-  /**
-   * <p>
-   * Returns cached value for a key. If it does not exist, it is loaded using a {@link Retriever}.
-   * </p>
-   * 
-   * @param key
-   *          cache key
-   * @return value for that key
-   * @throws TasteException
-   *           if an exception occurs while retrieving a new cached value
-   */
-  @Override
-  public V get(K key) throws TasteException {
-    V value;
-    synchronized (cache) {
-      value = cache.get(key);
-    }
-    if (value == null) {
-      return getAndCacheValue(key);
-    }
-    return value == NULL ? null : value;
-  }
-  
-  /**
-   * <p>
-   * Uncaches any existing value for a given key.
-   * </p>
-   * 
-   * @param key
-   *          cache key
-   */
-  public void remove(K key) {
-    synchronized (cache) {
-      cache.remove(key);
-    }
-  }
-
-  /**
-   * Clears all cache entries whose key matches the given predicate.
-   */
-  public void removeKeysMatching(MatchPredicate<K> predicate) {
-    synchronized (cache) {
-      Iterator<K> it = cache.keySet().iterator();
-      while (it.hasNext()) {
-        K key = it.next();
-        if (predicate.matches(key)) {
-          it.remove();
-        }
-      }
-    }
-  }
-
-  /**
-   * Clears all cache entries whose value matches the given predicate.
-   */
-  public void removeValueMatching(MatchPredicate<V> predicate) {
-    synchronized (cache) {
-      Iterator<V> it = cache.values().iterator();
-      while (it.hasNext()) {
-        V value = it.next();
-        if (predicate.matches(value)) {
-          it.remove();
-        }
-      }
-    }
-  }
-  
-  /**
-   * <p>
-   * Clears the cache.
-   * </p>
-   */
-  public void clear() {
-    synchronized (cache) {
-      cache.clear();
-    }
-  }
-  
-  private V getAndCacheValue(K key) throws TasteException {
-    V value = retriever.get(key);
-    if (value == null) {
-      value = (V) NULL;
-    }
-    synchronized (cache) {
-      cache.put(key, value);
-    }
-    return value;
-  }
-  
-  @Override
-  public String toString() {
-    return "Cache[retriever:" + retriever + ']';
-  }
-
-  /**
-   * Used by {#link #removeKeysMatching(Object)} to decide things that are matching.
-   */
-  public interface MatchPredicate<T> {
-    boolean matches(T thing);
-  }
-  
-}
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.common;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * <p>
+ * An efficient Map-like class which caches values for keys. Values are not "put" into a {@link Cache};
+ * instead the caller supplies the instance with an implementation of {@link Retriever} which can load the
+ * value for a given key.
+ * </p>
+ *
+ * <p>
+ * The cache does not support {@code null} keys.
+ * </p>
+ *
+ * <p>
+ * Entries are spread over a number of independently locked segments, so that threads looking up different
+ * keys rarely contend. When a maximum size is given, each segment holds its share of the entries and evicts
+ * its least recently used entry to make room for a new one. Concurrent misses on the same key are
+ * coalesced: the {@link Retriever} is called once and every caller receives its result. A {@link Retriever}
+ * which itself asks for the key it is retrieving is called again directly, rather than waiting on itself;
+ * that nested result is not cached. Hits, misses and
+ * evictions are counted and can be read with {@link #getHitCount()}, {@link #getMissCount()} and
+ * {@link #getEvictionCount()}.
+ * </p>
+ *
+ * <p>
+ * Thanks to Amila Jayasooriya for helping evaluate performance of the rewrite of this class, as part of a
+ * Google Summer of Code 2007 project.
+ * </p>
+ */
+public final class Cache<K,V> implements Retriever<K,V> {
+
+  private static final Object NULL = new Object();
+
+  /** Segments are not made smaller than this, so that LRU order stays meaningful in a small cache. */
+  private static final int MIN_SEGMENT_SIZE = 16;
+  private static final int MAX_SEGMENTS = 64;
+
+  private final Segment<K>[] segments;
+  private final int segmentMask;
+  private final Retriever<? super K,? extends V> retriever;
+  
+  /**
+   * <p>
+   * Creates a new cache based on the given {@link Retriever}.
+   * </p>
+   * 
+   * @param retriever
+   *          object which can retrieve values for keys
+   */
+  public Cache(Retriever<? super K,? extends V> retriever) {
+    this(retriever, FastMap.NO_MAX_SIZE);
+  }
+  
+  /**
+   * <p>
+   * Creates a new cache based on the given {@link Retriever} and with given maximum size.
+   * </p>
+   * 
+   * @param retriever
+   *          object which can retrieve values for keys
+   * @param maxEntries
+   *          maximum number of entries the cache will store before evicting some
+   */
+  public Cache(Retriever<? super K,? extends V> retriever, int maxEntries) {
+    Preconditions.checkArgument(retriever != null, "retriever is null");
+    Preconditions.checkArgument(maxEntries >= 1, "maxEntries must be at least 1");
+    this.retriever = retriever;
+    int targetSegments = Math.min(MAX_SEGMENTS, 4 * Runtime.getRuntime().availableProcessors());
+    int numSegments = 1;
+    while (numSegments < targetSegments && (long) numSegments * 2 * MIN_SEGMENT_SIZE <= maxEntries) {
+      numSegments <<= 1;
+    }
+    segmentMask = numSegments - 1;
+    segments = new Segment[numSegments];
+    int maxSegmentEntries = maxEntries == FastMap.NO_MAX_SIZE
+        ? FastMap.NO_MAX_SIZE
+        : (maxEntries + numSegments - 1) / numSegments;
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment<K>(maxSegmentEntries);
+    }
+  }
+  
+  /**
+   * <p>
+   * Returns cached value for a key. If it does not exist, it is loaded using a {@link Retriever}.
+   * </p>
+   * 
+   * @param key
+   *          cache key
+   * @return value for that key
+   * @throws TasteException
+   *           if an exception occurs while retrieving a new cached value
+   */
+  @Override
+  public V get(K key) throws TasteException {
+    Segment<K> segment = segmentFor(key);
+    Load load;
+    boolean loadHere = false;
+    synchronized (segment) {
+      Object value = segment.entries.get(key);
+      if (value != null) {
+        segment.hits++;
+        return value == NULL ? null : (V) value;
+      }
+      segment.misses++;
+      load = segment.loading.get(key);
+      if (load == null) {
+        load = new Load(new Loader(key), Thread.currentThread());
+        segment.loading.put(key, load);
+        loadHere = true;
+      }
+    }
+    if (!loadHere && load.loader == Thread.currentThread()) {
+      // The retriever is asking for the key it is loading; waiting for the load would never return
+      return retriever.get(key);
+    }
+    if (loadHere) {
+      load.run();
+      synchronized (segment) {
+        // Only cache the result if the key was not removed or cleared while it was being loaded
+        if (segment.loading.get(key) == load) {
+          segment.loading.remove(key);
+          try {
+            segment.entries.put(key, load.get());
+          } catch (ExecutionException ee) {
+            // don't cache failures; rethrown below
+          } catch (InterruptedException ie) {
+            // can't happen, the load has already run
+          }
+        }
+      }
+    }
+    return getResult(load);
+  }
+
+  private V getResult(FutureTask<Object> load) throws TasteException {
+    Object value;
+    try {
+      value = load.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof TasteException) {
+        throw (TasteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new TasteException(cause);
+    }
+    return value == NULL ? null : (V) value;
+  }
+  
+  /**
+   * <p>
+   * Returns the cached value for a key, without loading it if there is none.
+   * </p>
+   *
+   * @param key
+   *          cache key
+   * @return value for that key, or {@code null} if it is not cached (or is cached as {@code null})
+   */
+  public V getIfPresent(K key) {
+    Segment<K> segment = segmentFor(key);
+    synchronized (segment) {
+      Object value = segment.entries.get(key);
+      if (value == null) {
+        segment.misses++;
+        return null;
+      }
+      segment.hits++;
+      return value == NULL ? null : (V) value;
+    }
+  }
+
+  /**
+   * <p>
+   * Caches a value for a key which was retrieved by other means than the {@link Retriever}, for example
+   * together with the values of many other keys. A retrieval of the key already in progress is not cached.
+   * </p>
+   *
+   * @param key
+   *          cache key
+   * @param value
+   *          value for that key
+   */
+  public void put(K key, V value) {
+    Segment<K> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.loading.remove(key);
+      segment.entries.put(key, value == null ? NULL : value);
+    }
+  }
+
+  /**
+   * <p>
+   * Uncaches any existing value for a given key.
+   * </p>
+   * 
+   * @param key
+   *          cache key
+   */
+  public void remove(K key) {
+    Segment<K> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.entries.remove(key);
+      segment.loading.remove(key);
+    }
+  }
+
+  /**
+   * Clears all cache entries whose key matches the given predicate.
+   */
+  public void removeKeysMatching(MatchPredicate<K> predicate) {
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        Iterator<K> it = segment.entries.keySet().iterator();
+        while (it.hasNext()) {
+          K key = it.next();
+          if (predicate.matches(key)) {
+            it.remove();
+          }
+        }
+        it = segment.loading.keySet().iterator();
+        while (it.hasNext()) {
+          if (predicate.matches(it.next())) {
+            it.remove();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Clears all cache entries whose value matches the given predicate.
+   */
+  public void removeValueMatching(MatchPredicate<V> predicate) {
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        Iterator<Object> it = segment.entries.values().iterator();
+        while (it.hasNext()) {
+          Object value = it.next();
+          if (predicate.matches(value == NULL ? null : (V) value)) {
+            it.remove();
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * <p>
+   * Clears the cache.
+   * </p>
+   */
+  public void clear() {
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        segment.entries.clear();
+        segment.loading.clear();
+      }
+    }
+  }
+
+  /**
+   * @return number of entries currently cached
+   */
+  public int size() {
+    int size = 0;
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        size += segment.entries.size();
+      }
+    }
+    return size;
+  }
+
+  /**
+   * @return number of calls to {@link #get(Object)} answered from the cache
+   */
+  public long getHitCount() {
+    long count = 0L;
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        count += segment.hits;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return number of calls to {@link #get(Object)} not answered from the cache. This includes calls which
+   *  waited for a value already being retrieved by another thread.
+   */
+  public long getMissCount() {
+    long count = 0L;
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        count += segment.misses;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return number of entries evicted to make room for new ones
+   */
+  public long getEvictionCount() {
+    long count = 0L;
+    for (Segment<K> segment : segments) {
+      synchronized (segment) {
+        count += segment.evictions;
+      }
+    }
+    return count;
+  }
+
+  private Segment<K> segmentFor(Object key) {
+    // Spread the hash so that keys with poor low-order bits still use all segments
+    int h = key.hashCode();
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & segmentMask];
+  }
+  
+  @Override
+  public String toString() {
+    return "Cache[retriever:" + retriever + ']';
+  }
+
+  /**
+   * Used by {#link #removeKeysMatching(Object)} to decide things that are matching.
+   */
+  public interface MatchPredicate<T> {
+    boolean matches(T thing);
+  }
+
+  /**
+   * One independently locked part of the cache. All fields are guarded by the segment's own monitor.
+   */
+  private static final class Segment<K> {
+
+    private final Map<K,Object> entries;
+    private final Map<K,Load> loading;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private Segment(final int maxEntries) {
+      entries = new LinkedHashMap<K,Object>(11, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K,Object> eldest) {
+          if (size() > maxEntries) {
+            evictions++;
+            return true;
+          }
+          return false;
+        }
+      };
+      loading = new HashMap<K,Load>();
+    }
+
+  }
+
+  /**
+   * A retrieval in progress, remembering the thread which runs it.
+   */
+  private static final class Load extends FutureTask<Object> {
+
+    private final Thread loader;
+
+    private Load(Callable<Object> callable, Thread loader) {
+      super(callable);
+      this.loader = loader;
+    }
+
+  }
+
+  private final class Loader implements Callable<Object> {
+
+    private final K key;
+
+    private Loader(K key) {
+      this.key = key;
+    }
+
+    @Override
+    public Object call() throws TasteException {
+      V value = retriever.get(key);
+      return value == null ? NULL : value;
+    }
+
+  }
+  
+}
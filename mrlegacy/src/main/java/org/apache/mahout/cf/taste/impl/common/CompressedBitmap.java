@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.common;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * An immutable set of non-negative {@code int}s, meant for counting how many elements two sets have in common.
+ * In the manner of a "roaring" bitmap, the range of values is split into blocks of 65536. Each block which holds
+ * any values stores them either as a sorted array of their low 16 bits, if there are few, or as a bitmap of 1024
+ * {@code long}s, if there are many, whichever is smaller. Intersections are then counted block by block, by
+ * merging arrays, testing bits or, for two bitmaps, by {@link Long#bitCount(long)} of their {@code AND}.
+ * </p>
+ *
+ * <p>
+ * To count the intersections of one set with many, {@link #toDenseBitmap(int)} expands it once into a plain bitmap
+ * which {@link #intersectionSize(long[])} then reads directly.
+ * </p>
+ */
+public final class CompressedBitmap {
+
+  private static final int BLOCK_SHIFT = 16;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int LONGS_PER_BLOCK = BLOCK_SIZE >>> 6;
+  /** blocks with more values than this are stored as bitmaps, which then take no more space than arrays */
+  private static final int MAX_ARRAY_SIZE = BLOCK_SIZE >>> 4;
+
+  /** high bits of each non-empty block, ascending */
+  private final int[] blockKeys;
+  /** low bits of each block's values, ascending, or null where the block is a bitmap */
+  private final char[][] arrays;
+  /** each block's bitmap, or null where the block is an array */
+  private final long[][] bitmaps;
+  private final int cardinality;
+
+  /**
+   * @param values distinct non-negative values, in ascending order
+   */
+  public CompressedBitmap(int[] values) {
+    this(values, values.length);
+  }
+
+  /**
+   * @param values distinct non-negative values, in ascending order, of which the first {@code size} are used
+   */
+  public CompressedBitmap(int[] values, int size) {
+    int numBlocks = 0;
+    for (int i = 0; i < size; i++) {
+      int value = values[i];
+      Preconditions.checkArgument(value >= 0, "Negative value: %s", value);
+      Preconditions.checkArgument(i == 0 || value > values[i - 1], "Values not distinct and ascending");
+      if (i == 0 || (value >>> BLOCK_SHIFT) != (values[i - 1] >>> BLOCK_SHIFT)) {
+        numBlocks++;
+      }
+    }
+    blockKeys = new int[numBlocks];
+    arrays = new char[numBlocks][];
+    bitmaps = new long[numBlocks][];
+    int start = 0;
+    for (int block = 0; block < numBlocks; block++) {
+      int key = values[start] >>> BLOCK_SHIFT;
+      int end = start + 1;
+      while (end < size && (values[end] >>> BLOCK_SHIFT) == key) {
+        end++;
+      }
+      blockKeys[block] = key;
+      int blockSize = end - start;
+      if (blockSize > MAX_ARRAY_SIZE) {
+        long[] bitmap = new long[LONGS_PER_BLOCK];
+        for (int i = start; i < end; i++) {
+          int low = values[i] & (BLOCK_SIZE - 1);
+          bitmap[low >>> 6] |= 1L << (low & 0x3F);
+        }
+        bitmaps[block] = bitmap;
+      } else {
+        char[] array = new char[blockSize];
+        for (int i = start; i < end; i++) {
+          array[i - start] = (char) values[i];
+        }
+        arrays[block] = array;
+      }
+      start = end;
+    }
+    cardinality = size;
+  }
+
+  public int cardinality() {
+    return cardinality;
+  }
+
+  public boolean contains(int value) {
+    if (value < 0) {
+      return false;
+    }
+    int block = Arrays.binarySearch(blockKeys, value >>> BLOCK_SHIFT);
+    if (block < 0) {
+      return false;
+    }
+    int low = value & (BLOCK_SIZE - 1);
+    if (bitmaps[block] != null) {
+      return (bitmaps[block][low >>> 6] & 1L << (low & 0x3F)) != 0L;
+    }
+    return Arrays.binarySearch(arrays[block], (char) low) >= 0;
+  }
+
+  /**
+   * @return number of values in both this and the other set
+   */
+  public int intersectionSize(CompressedBitmap other) {
+    int[] otherKeys = other.blockKeys;
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < blockKeys.length && j < otherKeys.length) {
+      int key = blockKeys[i];
+      int otherKey = otherKeys[j];
+      if (key < otherKey) {
+        i++;
+      } else if (key > otherKey) {
+        j++;
+      } else {
+        count += blockIntersectionSize(arrays[i], bitmaps[i], other.arrays[j], other.bitmaps[j]);
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  private static int blockIntersectionSize(char[] array, long[] bitmap, char[] otherArray, long[] otherBitmap) {
+    if (bitmap != null && otherBitmap != null) {
+      int count = 0;
+      for (int k = 0; k < LONGS_PER_BLOCK; k++) {
+        count += Long.bitCount(bitmap[k] & otherBitmap[k]);
+      }
+      return count;
+    }
+    if (bitmap != null) {
+      return countSet(otherArray, bitmap, 0);
+    }
+    if (otherBitmap != null) {
+      return countSet(array, otherBitmap, 0);
+    }
+    int count = 0;
+    int a = 0;
+    int b = 0;
+    while (a < array.length && b < otherArray.length) {
+      char x = array[a];
+      char y = otherArray[b];
+      if (x < y) {
+        a++;
+      } else if (x > y) {
+        b++;
+      } else {
+        count++;
+        a++;
+        b++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return number of the given low bits set in the bitmap, starting at the given long
+   */
+  private static int countSet(char[] lows, long[] bitmap, int offset) {
+    int count = 0;
+    for (char low : lows) {
+      if ((bitmap[offset + (low >>> 6)] & 1L << (low & 0x3F)) != 0L) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param numValues one more than the largest value which may be in the set
+   * @return this set as a plain bitmap of {@code numValues} bits, for {@link #intersectionSize(long[])}
+   */
+  public long[] toDenseBitmap(int numValues) {
+    int numBlocks = (int) (((long) numValues + BLOCK_SIZE - 1) >>> BLOCK_SHIFT);
+    long[] dense = new long[numBlocks * LONGS_PER_BLOCK];
+    for (int block = 0; block < blockKeys.length; block++) {
+      int offset = blockKeys[block] * LONGS_PER_BLOCK;
+      Preconditions.checkArgument(offset < dense.length, "numValues is too small");
+      if (bitmaps[block] != null) {
+        System.arraycopy(bitmaps[block], 0, dense, offset, LONGS_PER_BLOCK);
+      } else {
+        for (char low : arrays[block]) {
+          dense[offset + (low >>> 6)] |= 1L << (low & 0x3F);
+        }
+      }
+    }
+    return dense;
+  }
+
+  /**
+   * @param dense a set as returned by {@link #toDenseBitmap(int)}
+   * @return number of values in both this and the given set
+   */
+  public int intersectionSize(long[] dense) {
+    int count = 0;
+    for (int block = 0; block < blockKeys.length; block++) {
+      int offset = blockKeys[block] * LONGS_PER_BLOCK;
+      if (offset >= dense.length) {
+        break;
+      }
+      long[] bitmap = bitmaps[block];
+      if (bitmap != null) {
+        for (int k = 0; k < LONGS_PER_BLOCK; k++) {
+          count += Long.bitCount(bitmap[k] & dense[offset + k]);
+        }
+      } else {
+        count += countSet(arrays[block], dense, offset);
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return "CompressedBitmap[cardinality:" + cardinality + ",blocks:" + blockKeys.length + ']';
+  }
+
+}
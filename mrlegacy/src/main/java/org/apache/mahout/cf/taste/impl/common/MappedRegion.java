@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.common;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A read-only view of a region of a file, mapped into memory outside the Java heap. A single
+ * {@link MappedByteBuffer} cannot address more than 2GB, so the region is mapped as a series of chunks
+ * and accessed by {@code long} index.
+ * </p>
+ *
+ * <p>
+ * All accessors take an element index, not a byte offset: {@link #getLong(long)} reads the index-th
+ * 8-byte value, {@link #getInt(long)} the index-th 4-byte value, and so on. A region should therefore hold
+ * values of a single type, starting at its first byte. Values are read big-endian, as written by
+ * {@link java.io.DataOutputStream}.
+ * </p>
+ */
+public final class MappedRegion {
+
+  /** Chunks are 1GB, which is a multiple of every element size, so no value straddles two chunks. */
+  private static final int CHUNK_SHIFT = 30;
+  private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1L;
+
+  private final MappedByteBuffer[] chunks;
+  private final long length;
+
+  /**
+   * @param channel channel to map from; it may be closed once this object is constructed
+   * @param position byte offset in the file at which the region starts
+   * @param length length of the region in bytes
+   */
+  public MappedRegion(FileChannel channel, long position, long length) throws IOException {
+    Preconditions.checkArgument(position >= 0L, "position must be non-negative");
+    Preconditions.checkArgument(length >= 0L, "length must be non-negative");
+    this.length = length;
+    int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+    chunks = new MappedByteBuffer[numChunks];
+    for (int i = 0; i < numChunks; i++) {
+      long start = (long) i << CHUNK_SHIFT;
+      long chunkLength = Math.min(length - start, 1L << CHUNK_SHIFT);
+      chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, chunkLength);
+    }
+  }
+
+  /**
+   * @return length of this region in bytes
+   */
+  public long length() {
+    return length;
+  }
+
+  public long getLong(long index) {
+    long offset = index << 3;
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getLong((int) (offset & CHUNK_MASK));
+  }
+
+  public double getDouble(long index) {
+    long offset = index << 3;
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getDouble((int) (offset & CHUNK_MASK));
+  }
+
+  public int getInt(long index) {
+    long offset = index << 2;
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getInt((int) (offset & CHUNK_MASK));
+  }
+
+  public float getFloat(long index) {
+    long offset = index << 2;
+    return chunks[(int) (offset >>> CHUNK_SHIFT)].getFloat((int) (offset & CHUNK_MASK));
+  }
+
+  /**
+   * Binary search over {@code long} values in this region, which must be sorted ascending between the
+   * given indices.
+   *
+   * @return index of key if found, or {@code -(insertion point) - 1} otherwise, in the manner of
+   *  {@link java.util.Arrays#binarySearch(long[], long)}
+   */
+  public long binarySearchLong(long fromIndex, long toIndex, long key) {
+    long low = fromIndex;
+    long high = toIndex - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      long midVal = getLong(mid);
+      if (midVal < key) {
+        low = mid + 1;
+      } else if (midVal > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Like {@link #binarySearchLong(long, long, long)}, over {@code int} values.
+   */
+  public long binarySearchInt(long fromIndex, long toIndex, int key) {
+    long low = fromIndex;
+    long high = toIndex - 1;
+    while (low <= high) {
+      long mid = (low + high) >>> 1;
+      int midVal = getInt(mid);
+      if (midVal < key) {
+        low = mid + 1;
+      } else if (midVal > key) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(low + 1);
+  }
+
+  /**
+   * Asks the operating system to page in the whole region.
+   */
+  public void load() {
+    for (MappedByteBuffer chunk : chunks) {
+      chunk.load();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedRegion[length:" + length + ']';
+  }
+
+}
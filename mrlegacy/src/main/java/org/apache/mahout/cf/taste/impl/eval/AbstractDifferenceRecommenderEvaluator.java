@@ -129,6 +129,124 @@ public abstract class AbstractDifferenceRecommenderEvaluator implements Recommen
     return result;
   }
   
+  /**
+   * <p>
+   * Evaluates by k-fold cross-validation. In one pass over the data, each preference of the sampled users is
+   * assigned at random to one of {@code numFolds} folds. For each fold, a training {@link DataModel} of the other
+   * folds' preferences and a {@link Recommender} on it are built once, and shared by all the threads which estimate
+   * the fold's preferences. Every sampled preference is so held out exactly once, and the result is computed over
+   * the estimates of all folds together. The preferences of a user with none left in a fold's training model
+   * cannot be estimated, and are counted among those the recommender could not estimate.
+   * </p>
+   *
+   * @param numFolds number of folds, at least 2; each fold holds out about {@code 1/numFolds} of the preferences
+   * @param evaluationPercentage percentage of users whose preferences are used, as in {@link #evaluate}
+   * @return a "score" representing how well the {@link Recommender}'s estimated preferences match real values
+   */
+  public double crossValidate(RecommenderBuilder recommenderBuilder,
+                              DataModelBuilder dataModelBuilder,
+                              DataModel dataModel,
+                              int numFolds,
+                              double evaluationPercentage) throws TasteException {
+    Preconditions.checkNotNull(recommenderBuilder);
+    Preconditions.checkNotNull(dataModel);
+    Preconditions.checkArgument(numFolds >= 2 && numFolds <= Byte.MAX_VALUE,
+      "Invalid numFolds: " + numFolds + ". Must be: 2 <= numFolds <= " + Byte.MAX_VALUE);
+    Preconditions.checkArgument(evaluationPercentage >= 0.0 && evaluationPercentage <= 1.0,
+      "Invalid evaluationPercentage: " + evaluationPercentage + ". Must be: 0.0 <= evaluationPercentage <= 1.0");
+
+    log.info("Beginning {}-fold cross-validation of {}", numFolds, dataModel);
+
+    int numUsers = dataModel.getNumUsers();
+    FastByIDMap<PreferenceArray> sampledPrefs = new FastByIDMap<PreferenceArray>(
+        1 + (int) (evaluationPercentage * numUsers));
+    FastByIDMap<byte[]> prefFolds = new FastByIDMap<byte[]>(1 + (int) (evaluationPercentage * numUsers));
+    LongPrimitiveIterator it = dataModel.getUserIDs();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      if (random.nextDouble() < evaluationPercentage) {
+        PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+        byte[] folds = new byte[prefs.length()];
+        for (int i = 0; i < folds.length; i++) {
+          folds[i] = (byte) random.nextInt(numFolds);
+        }
+        sampledPrefs.put(userID, prefs);
+        prefFolds.put(userID, folds);
+      }
+    }
+
+    reset();
+    AtomicInteger noEstimateCounter = new AtomicInteger();
+    RunningAverageAndStdDev timing = new FullRunningAverageAndStdDev();
+    for (int fold = 0; fold < numFolds; fold++) {
+      FastByIDMap<PreferenceArray> trainingPrefs = new FastByIDMap<PreferenceArray>(sampledPrefs.size());
+      FastByIDMap<PreferenceArray> testPrefs = new FastByIDMap<PreferenceArray>(sampledPrefs.size());
+      for (Map.Entry<Long,PreferenceArray> entry : sampledPrefs.entrySet()) {
+        long userID = entry.getKey();
+        splitOneUsersPrefs(fold, trainingPrefs, testPrefs, userID, entry.getValue(), prefFolds.get(userID));
+      }
+
+      DataModel trainingModel = dataModelBuilder == null ? new GenericDataModel(trainingPrefs)
+          : dataModelBuilder.buildDataModel(trainingPrefs);
+      Recommender recommender = recommenderBuilder.buildRecommender(trainingModel);
+
+      Collection<Callable<Void>> estimateCallables = Lists.newArrayList();
+      for (Map.Entry<Long,PreferenceArray> entry : testPrefs.entrySet()) {
+        estimateCallables.add(
+            new PreferenceEstimateCallable(recommender, entry.getKey(), entry.getValue(), noEstimateCounter));
+      }
+      log.info("Beginning evaluation of fold {} of {} with {} users", fold + 1, numFolds, estimateCallables.size());
+      execute(estimateCallables, noEstimateCounter, timing);
+    }
+
+    double result = computeFinalEvaluation();
+    log.info("Evaluation result: {}", result);
+    return result;
+  }
+
+  private static void splitOneUsersPrefs(int testFold,
+                                         FastByIDMap<PreferenceArray> trainingPrefs,
+                                         FastByIDMap<PreferenceArray> testPrefs,
+                                         long userID,
+                                         PreferenceArray prefs,
+                                         byte[] folds) {
+    int numTestPrefs = 0;
+    for (byte fold : folds) {
+      if (fold == testFold) {
+        numTestPrefs++;
+      }
+    }
+    int numTrainingPrefs = folds.length - numTestPrefs;
+    PreferenceArray oneUserTrainingPrefs =
+        numTrainingPrefs == 0 ? null : new GenericUserPreferenceArray(numTrainingPrefs);
+    if (oneUserTrainingPrefs != null) {
+      oneUserTrainingPrefs.setUserID(0, userID);
+    }
+    PreferenceArray oneUserTestPrefs = numTestPrefs == 0 ? null : new GenericUserPreferenceArray(numTestPrefs);
+    if (oneUserTestPrefs != null) {
+      oneUserTestPrefs.setUserID(0, userID);
+    }
+    int training = 0;
+    int test = 0;
+    for (int i = 0; i < folds.length; i++) {
+      if (folds[i] == testFold) {
+        oneUserTestPrefs.setItemID(test, prefs.getItemID(i));
+        oneUserTestPrefs.setValue(test, prefs.getValue(i));
+        test++;
+      } else {
+        oneUserTrainingPrefs.setItemID(training, prefs.getItemID(i));
+        oneUserTrainingPrefs.setValue(training, prefs.getValue(i));
+        training++;
+      }
+    }
+    if (oneUserTrainingPrefs != null) {
+      trainingPrefs.put(userID, oneUserTrainingPrefs);
+    }
+    if (oneUserTestPrefs != null) {
+      testPrefs.put(userID, oneUserTestPrefs);
+    }
+  }
+
   private void splitOneUsersPrefs(double trainingPercentage,
                                   FastByIDMap<PreferenceArray> trainingPrefs,
                                   FastByIDMap<PreferenceArray> testPrefs,
@@ -19,6 +19,11 @@ package org.apache.mahout.cf.taste.impl.eval;
 
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
@@ -45,6 +50,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 /**
  * <p>
@@ -96,13 +102,7 @@ public final class GenericRecommenderIRStatsEvaluator implements RecommenderIRSt
     Preconditions.checkArgument(evaluationPercentage > 0.0 && evaluationPercentage <= 1.0,
         "Invalid evaluationPercentage: " + evaluationPercentage + ". Must be: 0.0 < evaluationPercentage <= 1.0");
 
-    int numItems = dataModel.getNumItems();
-    RunningAverage precision = new FullRunningAverage();
-    RunningAverage recall = new FullRunningAverage();
-    RunningAverage fallOut = new FullRunningAverage();
-    RunningAverage nDCG = new FullRunningAverage();
-    int numUsersRecommendedFor = 0;
-    int numUsersWithRecommendations = 0;
+    IRStatisticsAccumulator accumulator = new IRStatisticsAccumulator(dataModel.getNumItems());
 
     LongPrimitiveIterator it = dataModel.getUserIDs();
     while (it.hasNext()) {
@@ -149,8 +149,216 @@ public final class GenericRecommenderIRStatsEvaluator implements RecommenderIRSt
 
       Recommender recommender = recommenderBuilder.buildRecommender(trainingModel);
 
-      int intersectionSize = 0;
       List<RecommendedItem> recommendedItems = recommender.recommend(userID, at, rescorer);
+      IRStatistics stats = accumulator.addUser(recommendedItems, relevantItemIDs, size);
+
+      long end = System.currentTimeMillis();
+
+      log.info("Evaluated with user {} in {}ms", userID, end - start);
+      logStatistics(stats);
+    }
+
+    return accumulator.getStatistics();
+  }
+
+  /**
+   * <p>
+   * Like {@link #evaluate(RecommenderBuilder, DataModelBuilder, DataModel, IDRescorer, int, double, double)}, but
+   * rather than building a training {@link DataModel} and {@link Recommender} for every evaluated user, assigns the
+   * evaluated users at random to {@code numFolds} folds and builds one of each per fold, without the relevant items
+   * of all the fold's users. Threads then share the fold's recommender to evaluate its users in parallel chunks.
+   * This is k-fold cross-validation over users: it builds {@code numFolds} recommenders rather than one per user.
+   * </p>
+   *
+   * <p>
+   * Results differ somewhat from those of the per-user evaluation, since a user is also evaluated without the
+   * relevant items of the other users in its fold. The more folds, the smaller the difference.
+   * </p>
+   *
+   * @param numFolds number of folds; with 1, all evaluated users are held out of a single training model
+   */
+  public IRStatistics crossValidate(RecommenderBuilder recommenderBuilder,
+                                    DataModelBuilder dataModelBuilder,
+                                    DataModel dataModel,
+                                    IDRescorer rescorer,
+                                    int at,
+                                    double relevanceThreshold,
+                                    double evaluationPercentage,
+                                    int numFolds) throws TasteException {
+
+    Preconditions.checkArgument(recommenderBuilder != null, "recommenderBuilder is null");
+    Preconditions.checkArgument(dataModel != null, "dataModel is null");
+    Preconditions.checkArgument(at >= 1, "at must be at least 1");
+    Preconditions.checkArgument(evaluationPercentage > 0.0 && evaluationPercentage <= 1.0,
+        "Invalid evaluationPercentage: " + evaluationPercentage + ". Must be: 0.0 < evaluationPercentage <= 1.0");
+    Preconditions.checkArgument(numFolds >= 1, "numFolds must be at least 1");
+
+    // One pass to choose each fold's users and their relevant items
+    List<FastByIDMap<FastIDSet>> folds = Lists.newArrayListWithCapacity(numFolds);
+    for (int fold = 0; fold < numFolds; fold++) {
+      folds.add(new FastByIDMap<FastIDSet>());
+    }
+    LongPrimitiveIterator it = dataModel.getUserIDs();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      if (random.nextDouble() >= evaluationPercentage) {
+        continue;
+      }
+      PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+      double theRelevanceThreshold = Double.isNaN(relevanceThreshold) ? computeThreshold(prefs) : relevanceThreshold;
+      FastIDSet relevantItemIDs = dataSplitter.getRelevantItemsIDs(userID, at, theRelevanceThreshold, dataModel);
+      if (!relevantItemIDs.isEmpty()) {
+        folds.get(random.nextInt(numFolds)).put(userID, relevantItemIDs);
+      }
+    }
+
+    IRStatisticsAccumulator accumulator = new IRStatisticsAccumulator(dataModel.getNumItems());
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int fold = 0; fold < numFolds; fold++) {
+        FastByIDMap<FastIDSet> foldUsers = folds.get(fold);
+        if (foldUsers.isEmpty()) {
+          continue;
+        }
+        long start = System.currentTimeMillis();
+
+        // Users outside the fold train on all their preferences
+        FastByIDMap<PreferenceArray> trainingUsers = new FastByIDMap<PreferenceArray>(dataModel.getNumUsers());
+        LongPrimitiveIterator it2 = dataModel.getUserIDs();
+        while (it2.hasNext()) {
+          long otherUserID = it2.nextLong();
+          FastIDSet relevantItemIDs = foldUsers.get(otherUserID);
+          if (relevantItemIDs == null) {
+            trainingUsers.put(otherUserID, dataModel.getPreferencesFromUser(otherUserID));
+          } else {
+            dataSplitter.processOtherUser(otherUserID, relevantItemIDs, trainingUsers, otherUserID, dataModel);
+          }
+        }
+
+        DataModel trainingModel = dataModelBuilder == null ? new GenericDataModel(trainingUsers)
+            : dataModelBuilder.buildDataModel(trainingUsers);
+        Recommender recommender = recommenderBuilder.buildRecommender(trainingModel);
+
+        evaluateFold(executor, 4 * numThreads, foldUsers, trainingModel, recommender, rescorer, at, accumulator);
+
+        long end = System.currentTimeMillis();
+        log.info("Evaluated fold {} of {} with {} users in {}ms", fold + 1, numFolds, foldUsers.size(), end - start);
+        logStatistics(accumulator.getStatistics());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return accumulator.getStatistics();
+  }
+
+  private static void evaluateFold(ExecutorService executor,
+                                   int numChunks,
+                                   final FastByIDMap<FastIDSet> foldUsers,
+                                   final DataModel trainingModel,
+                                   final Recommender recommender,
+                                   final IDRescorer rescorer,
+                                   final int at,
+                                   final IRStatisticsAccumulator accumulator) throws TasteException {
+    final long[] userIDs = new long[foldUsers.size()];
+    LongPrimitiveIterator it = foldUsers.keySetIterator();
+    for (int i = 0; i < userIDs.length; i++) {
+      userIDs[i] = it.nextLong();
+    }
+    int chunkSize = Math.max(1, (userIDs.length + numChunks - 1) / numChunks);
+    List<Future<Void>> futures = Lists.newArrayList();
+    for (int chunkStart = 0; chunkStart < userIDs.length; chunkStart += chunkSize) {
+      final int from = chunkStart;
+      final int to = Math.min(userIDs.length, chunkStart + chunkSize);
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws TasteException {
+          for (int i = from; i < to; i++) {
+            long userID = userIDs[i];
+            FastIDSet relevantItemIDs = foldUsers.get(userID);
+            int size;
+            try {
+              size = relevantItemIDs.size() + trainingModel.getItemIDsFromUser(userID).size();
+            } catch (NoSuchUserException nsee) {
+              continue; // All the user's prefs were relevant items
+            }
+            if (size < 2 * at) {
+              continue;
+            }
+            accumulator.addUser(recommender.recommend(userID, at, rescorer), relevantItemIDs, size);
+          }
+          return null;
+        }
+      }));
+    }
+    try {
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException ie) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      cancelAll(futures);
+      throw new TasteException(ee.getCause());
+    }
+  }
+
+  private static void cancelAll(Iterable<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private static void logStatistics(IRStatistics stats) {
+    log.info("Precision/recall/fall-out/nDCG/reach: {} / {} / {} / {} / {}",
+             stats.getPrecision(), stats.getRecall(), stats.getFallOut(), stats.getNormalizedDiscountedCumulativeGain(),
+             stats.getReach());
+  }
+
+  private static double computeThreshold(PreferenceArray prefs) {
+    if (prefs.length() < 2) {
+      // Not enough data points -- return a threshold that allows everything
+      return Double.NEGATIVE_INFINITY;
+    }
+    RunningAverageAndStdDev stdDev = new FullRunningAverageAndStdDev();
+    int size = prefs.length();
+    for (int i = 0; i < size; i++) {
+      stdDev.addDatum(prefs.getValue(i));
+    }
+    return stdDev.getAverage() + stdDev.getStandardDeviation();
+  }
+
+  private static double log2(double value) {
+    return Math.log(value) / LOG2;
+  }
+
+  /**
+   * Running averages of each statistic over the users evaluated so far, safe to update from several threads.
+   */
+  private static final class IRStatisticsAccumulator {
+
+    private final int numItems;
+    private final RunningAverage precision = new FullRunningAverage();
+    private final RunningAverage recall = new FullRunningAverage();
+    private final RunningAverage fallOut = new FullRunningAverage();
+    private final RunningAverage nDCG = new FullRunningAverage();
+    private int numUsersRecommendedFor;
+    private int numUsersWithRecommendations;
+
+    private IRStatisticsAccumulator(int numItems) {
+      this.numItems = numItems;
+    }
+
+    /**
+     * @param size number of the user's preferences, relevant items included
+     * @return statistics including this user
+     */
+    synchronized IRStatistics addUser(List<RecommendedItem> recommendedItems, FastIDSet relevantItemIDs, int size) {
+      int numRelevantItems = relevantItemIDs.size();
+      int intersectionSize = 0;
       for (RecommendedItem recommendedItem : recommendedItems) {
         if (relevantItemIDs.contains(recommendedItem.getItemID())) {
           intersectionSize++;
@@ -201,37 +409,18 @@ public final class GenericRecommenderIRStatsEvaluator implements RecommenderIRSt
         numUsersWithRecommendations++;
       }
 
-      long end = System.currentTimeMillis();
-
-      log.info("Evaluated with user {} in {}ms", userID, end - start);
-      log.info("Precision/recall/fall-out/nDCG/reach: {} / {} / {} / {} / {}",
-               precision.getAverage(), recall.getAverage(), fallOut.getAverage(), nDCG.getAverage(),
-               (double) numUsersWithRecommendations / (double) numUsersRecommendedFor);
+      return getStatistics();
     }
 
-    return new IRStatisticsImpl(
-        precision.getAverage(),
-        recall.getAverage(),
-        fallOut.getAverage(),
-        nDCG.getAverage(),
-        (double) numUsersWithRecommendations / (double) numUsersRecommendedFor);
-  }
-
-  private static double computeThreshold(PreferenceArray prefs) {
-    if (prefs.length() < 2) {
-      // Not enough data points -- return a threshold that allows everything
-      return Double.NEGATIVE_INFINITY;
+    synchronized IRStatistics getStatistics() {
+      return new IRStatisticsImpl(
+          precision.getAverage(),
+          recall.getAverage(),
+          fallOut.getAverage(),
+          nDCG.getAverage(),
+          (double) numUsersWithRecommendations / (double) numUsersRecommendedFor);
     }
-    RunningAverageAndStdDev stdDev = new FullRunningAverageAndStdDev();
-    int size = prefs.length();
-    for (int i = 0; i < size; i++) {
-      stdDev.addDatum(prefs.getValue(i));
-    }
-    return stdDev.getAverage() + stdDev.getStandardDeviation();
-  }
 
-  private static double log2(double value) {
-    return Math.log(value) / LOG2;
   }
 
 }
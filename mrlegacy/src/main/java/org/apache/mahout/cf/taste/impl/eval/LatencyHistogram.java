@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A thread-safe histogram of latencies, in microseconds, from which percentiles can be read. Values below 64 are
+ * counted exactly. Above that, each power of two is split into 32 buckets, so a percentile is reported to within
+ * about 3% of the true value. Latencies of up to about 25 days can be recorded; longer ones are counted as that.
+ * </p>
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int EXACT_LIMIT = SUB_BUCKETS << 1;
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1L;
+  private static final int NUM_BUCKETS = indexOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * @param nanos a latency in nanoseconds
+   */
+  public void record(long nanos) {
+    long micros = Math.min(MAX_VALUE, Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    counts.incrementAndGet(indexOf(micros));
+    count.incrementAndGet();
+    sum.addAndGet(micros);
+    long currentMax;
+    while (micros > (currentMax = max.get()) && !max.compareAndSet(currentMax, micros)) {
+      // retry
+    }
+  }
+
+  /**
+   * @return number of latencies recorded
+   */
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * @return mean latency in microseconds, or 0 if none was recorded
+   */
+  public double getMean() {
+    long n = count.get();
+    return n == 0L ? 0.0 : (double) sum.get() / n;
+  }
+
+  /**
+   * @return largest latency recorded, in microseconds
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @param percentile a percentile in [0,100], such as 99.9
+   * @return the latency, in microseconds, which at least this percentage of recorded latencies does not exceed,
+   *  or 0 if none was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    Preconditions.checkArgument(percentile >= 0.0 && percentile <= 100.0, "percentile must be in [0,100]");
+    long n = count.get();
+    if (n == 0L) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0L;
+    for (int index = 0; index < NUM_BUCKETS; index++) {
+      seen += counts.get(index);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(index), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  static int indexOf(long value) {
+    if (value < EXACT_LIMIT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return SUB_BUCKETS * shift + (int) (value >>> shift);
+  }
+
+  static long highestValueOf(int index) {
+    if (index < EXACT_LIMIT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = (index % SUB_BUCKETS) + SUB_BUCKETS;
+    return ((subBucket + 1L) << shift) - 1L;
+  }
+
+  @Override
+  public String toString() {
+    return "LatencyHistogram[count:" + getCount() + ", p50:" + getValueAtPercentile(50.0) + "us, p99:"
+        + getValueAtPercentile(99.0) + "us, max:" + getMax() + "us]";
+  }
+
+}
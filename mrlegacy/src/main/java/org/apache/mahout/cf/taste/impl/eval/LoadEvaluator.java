@@ -31,7 +31,8 @@ import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 
 /**
- * Simple helper class for running load on a Recommender.
+ * Simple helper class for running load on a Recommender. See {@link LoadRunner} for a configurable load test
+ * with latency percentiles.
  */
 public final class LoadEvaluator {
   
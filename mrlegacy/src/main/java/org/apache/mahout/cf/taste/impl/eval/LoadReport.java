@@ -0,0 +1,224 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * <p>
+ * Results of a {@link LoadRunner} run. Latencies are in milliseconds. Response time is measured from when a request
+ * was scheduled to start, so that it includes any time spent waiting for a busy thread at a fixed request rate;
+ * service time is measured from when the recommender was actually called.
+ * </p>
+ *
+ * <p>
+ * {@link #toJson()} gives the same figures in a form that scripts comparing recommender configurations can read.
+ * </p>
+ */
+public final class LoadReport {
+
+  private static final double[] PERCENTILES = {50.0, 95.0, 99.0, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p95", "p99", "p999"};
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final String recommender;
+  private final int numThreads;
+  private final double targetRequestsPerSecond;
+  private final long elapsedMillis;
+  private final long numRequests;
+  private final long numErrors;
+  private final long numEmptyResults;
+  private final LatencyHistogram responseTimes;
+  private final LatencyHistogram serviceTimes;
+  private final long gcCount;
+  private final long gcMillis;
+  private final long allocatedBytes;
+
+  LoadReport(String recommender,
+             int numThreads,
+             double targetRequestsPerSecond,
+             long elapsedMillis,
+             long numRequests,
+             long numErrors,
+             long numEmptyResults,
+             LatencyHistogram responseTimes,
+             LatencyHistogram serviceTimes,
+             long gcCount,
+             long gcMillis,
+             long allocatedBytes) {
+    this.recommender = recommender;
+    this.numThreads = numThreads;
+    this.targetRequestsPerSecond = targetRequestsPerSecond;
+    this.elapsedMillis = elapsedMillis;
+    this.numRequests = numRequests;
+    this.numErrors = numErrors;
+    this.numEmptyResults = numEmptyResults;
+    this.responseTimes = responseTimes;
+    this.serviceTimes = serviceTimes;
+    this.gcCount = gcCount;
+    this.gcMillis = gcMillis;
+    this.allocatedBytes = allocatedBytes;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * @return requests per second aimed for, or 0 if requests were made as fast as possible
+   */
+  public double getTargetRequestsPerSecond() {
+    return targetRequestsPerSecond;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  /**
+   * @return number of requests completed, including those which failed
+   */
+  public long getNumRequests() {
+    return numRequests;
+  }
+
+  public long getNumErrors() {
+    return numErrors;
+  }
+
+  /**
+   * @return number of requests which returned no recommendations
+   */
+  public long getNumEmptyResults() {
+    return numEmptyResults;
+  }
+
+  public double getRequestsPerSecond() {
+    return elapsedMillis == 0L ? 0.0 : 1000.0 * numRequests / elapsedMillis;
+  }
+
+  /**
+   * @param percentile a percentile in [0,100], such as 99.9
+   */
+  public double getResponseTimeMillis(double percentile) {
+    return responseTimes.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  /**
+   * @param percentile a percentile in [0,100], such as 99.9
+   */
+  public double getServiceTimeMillis(double percentile) {
+    return serviceTimes.getValueAtPercentile(percentile) / 1000.0;
+  }
+
+  public LatencyHistogram getResponseTimes() {
+    return responseTimes;
+  }
+
+  public LatencyHistogram getServiceTimes() {
+    return serviceTimes;
+  }
+
+  /**
+   * @return number of garbage collections during the run
+   */
+  public long getGcCount() {
+    return gcCount;
+  }
+
+  /**
+   * @return time spent in garbage collection during the run, as reported by the JVM
+   */
+  public long getGcMillis() {
+    return gcMillis;
+  }
+
+  /**
+   * @return bytes allocated by the threads making requests, or -1 if the JVM does not report it
+   */
+  public long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * @return megabytes allocated per second by the threads making requests, or -1 if not known
+   */
+  public double getAllocationRateMBPerSecond() {
+    if (allocatedBytes < 0L) {
+      return -1.0;
+    }
+    return elapsedMillis == 0L ? 0.0 : allocatedBytes / 1048576.0 / (elapsedMillis / 1000.0);
+  }
+
+  /**
+   * @return this report as a single JSON object, with latencies and rates rounded to three decimal places
+   */
+  public String toJson() {
+    Map<String,Object> json = Maps.newLinkedHashMap();
+    json.put("recommender", recommender);
+    json.put("threads", numThreads);
+    json.put("targetRequestsPerSecond", round(targetRequestsPerSecond));
+    json.put("requestsPerSecond", round(getRequestsPerSecond()));
+    json.put("elapsedMillis", elapsedMillis);
+    json.put("requests", numRequests);
+    json.put("errors", numErrors);
+    json.put("emptyResults", numEmptyResults);
+    json.put("responseTimeMillis", latencies(responseTimes));
+    json.put("serviceTimeMillis", latencies(serviceTimes));
+    json.put("gcCount", gcCount);
+    json.put("gcMillis", gcMillis);
+    json.put("allocatedBytes", allocatedBytes);
+    json.put("allocationRateMBPerSecond", round(getAllocationRateMBPerSecond()));
+    try {
+      return OBJECT_MAPPER.writeValueAsString(json);
+    } catch (IOException ioe) {
+      throw new IllegalStateException(ioe);
+    }
+  }
+
+  private static Map<String,Double> latencies(LatencyHistogram histogram) {
+    Map<String,Double> latencies = Maps.newLinkedHashMap();
+    latencies.put("mean", round(histogram.getMean() / 1000.0));
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      latencies.put(PERCENTILE_NAMES[i], round(histogram.getValueAtPercentile(PERCENTILES[i]) / 1000.0));
+    }
+    latencies.put("max", round(histogram.getMax() / 1000.0));
+    return latencies;
+  }
+
+  private static double round(double value) {
+    return Math.rint(value * 1000.0) / 1000.0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.ENGLISH,
+        "%d requests in %dms on %d threads (%.1f/s), %d errors, %d empty; response time ms p50 %.3f, p95 %.3f,"
+        + " p99 %.3f, p999 %.3f, max %.3f; %d GCs taking %dms; %.1fMB/s allocated",
+        numRequests, elapsedMillis, numThreads, getRequestsPerSecond(), numErrors, numEmptyResults,
+        getResponseTimeMillis(50.0), getResponseTimeMillis(95.0), getResponseTimeMillis(99.0),
+        getResponseTimeMillis(99.9), responseTimes.getMax() / 1000.0, gcCount, gcMillis,
+        getAllocationRateMBPerSecond());
+  }
+
+}
@@ -0,0 +1,335 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.SamplingLongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Runs load against a {@link Recommender} and reports latency percentiles, throughput, garbage collection and
+ * allocation, for comparing recommender configurations. Unlike {@link LoadEvaluator}, which times one pass over a
+ * sample of users, this runs a warm-up phase that is not measured, then a measured phase of a given length or
+ * number of requests, on a given number of threads.
+ * </p>
+ *
+ * <p>
+ * By default each thread makes requests one after another, as fast as the recommender answers. With
+ * {@link #setRequestsPerSecond(double)}, requests are instead scheduled at a fixed rate, and a request's response
+ * time counts from when it was scheduled, so that a recommender which falls behind is not flattered by the
+ * requests it delayed.
+ * </p>
+ *
+ * <p>
+ * Requests cycle through a sample of up to {@link #setMaxUsers(int)} users of the recommender's
+ * {@link DataModel}.
+ * </p>
+ */
+public final class LoadRunner {
+
+  private static final Logger log = LoggerFactory.getLogger(LoadRunner.class);
+
+  private final Recommender recommender;
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+  private double requestsPerSecond;
+  private long warmUpMillis = 10000L;
+  private long durationMillis = 60000L;
+  private long maxRequests = Long.MAX_VALUE;
+  private int howMany = 10;
+  private int maxUsers = 1000;
+
+  public LoadRunner(Recommender recommender) {
+    this.recommender = Preconditions.checkNotNull(recommender);
+  }
+
+  public void setNumThreads(int numThreads) {
+    Preconditions.checkArgument(numThreads >= 1, "numThreads must be at least 1");
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * @param requestsPerSecond total rate at which to schedule requests over all threads, or 0 to make requests as
+   *  fast as possible
+   */
+  public void setRequestsPerSecond(double requestsPerSecond) {
+    Preconditions.checkArgument(requestsPerSecond >= 0.0, "requestsPerSecond must not be negative");
+    this.requestsPerSecond = requestsPerSecond;
+  }
+
+  /**
+   * @param warmUp how long to run before measuring, to let the JVM compile code and caches fill; may be 0
+   */
+  public void setWarmUp(long warmUp, TimeUnit unit) {
+    Preconditions.checkArgument(warmUp >= 0L, "warmUp must not be negative");
+    this.warmUpMillis = unit.toMillis(warmUp);
+  }
+
+  /**
+   * @param duration how long to measure for, unless {@link #setMaxRequests(long)} requests complete first
+   */
+  public void setDuration(long duration, TimeUnit unit) {
+    Preconditions.checkArgument(duration > 0L, "duration must be positive");
+    this.durationMillis = unit.toMillis(duration);
+  }
+
+  /**
+   * @param maxRequests maximum number of requests in each of the warm-up and measured phases
+   */
+  public void setMaxRequests(long maxRequests) {
+    Preconditions.checkArgument(maxRequests >= 1L, "maxRequests must be at least 1");
+    this.maxRequests = maxRequests;
+  }
+
+  /**
+   * @param howMany number of items to recommend per request
+   */
+  public void setHowMany(int howMany) {
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+    this.howMany = howMany;
+  }
+
+  /**
+   * @param maxUsers about how many users to sample from the data model to make requests for
+   */
+  public void setMaxUsers(int maxUsers) {
+    Preconditions.checkArgument(maxUsers >= 1, "maxUsers must be at least 1");
+    this.maxUsers = maxUsers;
+  }
+
+  public LoadReport run() throws TasteException {
+    long[] userIDs = sampleUserIDs();
+    if (warmUpMillis > 0L) {
+      log.info("Warming up for {}ms on {} threads", warmUpMillis, numThreads);
+      runPhase(userIDs, warmUpMillis, new LatencyHistogram(), new LatencyHistogram());
+    }
+
+    log.info("Measuring for {}ms on {} threads", durationMillis, numThreads);
+    LatencyHistogram responseTimes = new LatencyHistogram();
+    LatencyHistogram serviceTimes = new LatencyHistogram();
+    long[] gcBefore = gcCountAndMillis();
+    long start = System.nanoTime();
+    Phase phase = runPhase(userIDs, durationMillis, responseTimes, serviceTimes);
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    long[] gcAfter = gcCountAndMillis();
+
+    LoadReport report = new LoadReport(recommender.toString(), numThreads, requestsPerSecond, elapsedMillis,
+        responseTimes.getCount(), phase.numErrors.get(), phase.numEmptyResults.get(), responseTimes, serviceTimes,
+        gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1], phase.allocatedBytes.get());
+    log.info("{}", report);
+    return report;
+  }
+
+  private long[] sampleUserIDs() throws TasteException {
+    DataModel dataModel = recommender.getDataModel();
+    int numUsers = dataModel.getNumUsers();
+    Preconditions.checkState(numUsers > 0, "No users in the data model");
+    LongPrimitiveIterator userSampler = SamplingLongPrimitiveIterator.maybeWrapIterator(dataModel.getUserIDs(),
+        Math.min(1.0, (double) maxUsers / numUsers));
+    long[] userIDs = new long[Math.min(maxUsers, numUsers)];
+    int count = 0;
+    while (userSampler.hasNext() && count < userIDs.length) {
+      userIDs[count++] = userSampler.nextLong();
+    }
+    if (count == 0) {
+      userIDs[count++] = dataModel.getUserIDs().nextLong();
+    }
+    long[] sampled = new long[count];
+    System.arraycopy(userIDs, 0, sampled, 0, count);
+    return sampled;
+  }
+
+  private Phase runPhase(long[] userIDs, long phaseMillis, LatencyHistogram responseTimes,
+                         LatencyHistogram serviceTimes) throws TasteException {
+    Phase phase = new Phase(userIDs, phaseMillis, responseTimes, serviceTimes);
+    Thread[] threads = new Thread[numThreads];
+    for (int i = 0; i < numThreads; i++) {
+      threads[i] = new Thread(phase, "LoadRunner-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    try {
+      phase.done.await();
+    } catch (InterruptedException ie) {
+      phase.failure.compareAndSet(null, ie);
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    }
+    Throwable failure = phase.failure.get();
+    if (failure != null) {
+      throw failure instanceof TasteException ? (TasteException) failure : new TasteException(failure);
+    }
+    return phase;
+  }
+
+  /**
+   * @return total number of collections and milliseconds spent collecting, over all collectors
+   */
+  private static long[] gcCountAndMillis() {
+    long count = 0L;
+    long millis = 0L;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0L, collector.getCollectionCount());
+      millis += Math.max(0L, collector.getCollectionTime());
+    }
+    return new long[] {count, millis};
+  }
+
+  /**
+   * One warm-up or measured phase; each thread runs it until the phase's time or requests run out.
+   */
+  private final class Phase implements Runnable {
+
+    private final long[] userIDs;
+    private final LatencyHistogram responseTimes;
+    private final LatencyHistogram serviceTimes;
+    private final long start;
+    private final long end;
+    private final long intervalNanos;
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong numEmptyResults = new AtomicLong();
+    private final AtomicLong allocatedBytes;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final CountDownLatch done = new CountDownLatch(numThreads);
+
+    private Phase(long[] userIDs, long phaseMillis, LatencyHistogram responseTimes, LatencyHistogram serviceTimes) {
+      this.userIDs = userIDs;
+      this.responseTimes = responseTimes;
+      this.serviceTimes = serviceTimes;
+      this.start = System.nanoTime();
+      this.end = start + TimeUnit.MILLISECONDS.toNanos(phaseMillis);
+      this.intervalNanos = requestsPerSecond > 0.0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0L;
+      this.allocatedBytes = new AtomicLong(AllocationCounter.isSupported() ? 0L : -1L);
+    }
+
+    @Override
+    public void run() {
+      long allocatedAtStart = AllocationCounter.currentThreadAllocatedBytes();
+      try {
+        while (failure.get() == null) {
+          long request = nextRequest.getAndIncrement();
+          if (request >= maxRequests) {
+            break;
+          }
+          long scheduled = intervalNanos > 0L ? start + request * intervalNanos : System.nanoTime();
+          if (scheduled - end >= 0L) {
+            break;
+          }
+          long wait;
+          while ((wait = scheduled - System.nanoTime()) > 0L) {
+            LockSupport.parkNanos(wait);
+            if (Thread.interrupted()) {
+              return;
+            }
+          }
+          long callStart = System.nanoTime();
+          if (callStart - end >= 0L) {
+            break;
+          }
+          try {
+            List<RecommendedItem> recommended = recommender.recommend(userIDs[(int) (request % userIDs.length)],
+                howMany);
+            if (recommended.isEmpty()) {
+              numEmptyResults.incrementAndGet();
+            }
+          } catch (TasteException te) {
+            numErrors.incrementAndGet();
+          }
+          long callEnd = System.nanoTime();
+          serviceTimes.record(callEnd - callStart);
+          responseTimes.record(callEnd - (intervalNanos > 0L ? scheduled : callStart));
+        }
+      } catch (RuntimeException re) {
+        failure.compareAndSet(null, re);
+      } finally {
+        long allocatedAtEnd = AllocationCounter.currentThreadAllocatedBytes();
+        if (allocatedAtStart >= 0L && allocatedAtEnd >= 0L) {
+          allocatedBytes.addAndGet(allocatedAtEnd - allocatedAtStart);
+        }
+        done.countDown();
+      }
+    }
+  }
+
+  /**
+   * Reads the bytes allocated by the current thread where the JVM reports it, through
+   * {@code com.sun.management.ThreadMXBean}, which is looked up reflectively as not every JVM has it.
+   */
+  private static final class AllocationCounter {
+
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+    private static final Method GET_THREAD_ALLOCATED_BYTES = findMethod();
+
+    private AllocationCounter() {
+    }
+
+    private static Method findMethod() {
+      try {
+        Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+        if (!beanClass.isInstance(THREAD_BEAN)) {
+          return null;
+        }
+        Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+        return (Long) method.invoke(THREAD_BEAN, Thread.currentThread().getId()) >= 0L ? method : null;
+      } catch (Exception e) {
+        log.debug("Allocated bytes per thread are not available", e);
+        return null;
+      }
+    }
+
+    static boolean isSupported() {
+      return GET_THREAD_ALLOCATED_BYTES != null;
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, or -1 if not available
+     */
+    static long currentThreadAllocatedBytes() {
+      if (GET_THREAD_ALLOCATED_BYTES == null) {
+        return -1L;
+      }
+      try {
+        return (Long) GET_THREAD_ALLOCATED_BYTES.invoke(THREAD_BEAN, Thread.currentThread().getId());
+      } catch (Exception e) {
+        return -1L;
+      }
+    }
+  }
+
+}
@@ -17,6 +17,7 @@
 
 package org.apache.mahout.cf.taste.impl.model;
 
+import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.model.DataModel;
 
 /**
@@ -50,4 +51,54 @@ public abstract class AbstractDataModel implements DataModel {
     this.minPreference = minPreference;
   }
 
+  /**
+   * @return true if this model holds its preferences in memory, so that reading the preferences of many users or
+   *  items costs little. Computations which would read every co-rater's preferences, such as batch item
+   *  similarities, only do so for such models. This implementation returns false.
+   */
+  public boolean isInMemory() {
+    return false;
+  }
+
+  /**
+   * @return {@link #isInMemory()} of the given model if it is an {@link AbstractDataModel}, and otherwise false
+   */
+  public static boolean isInMemory(DataModel dataModel) {
+    return dataModel instanceof AbstractDataModel && ((AbstractDataModel) dataModel).isInMemory();
+  }
+
+  /**
+   * Like {@link #getNumUsersWithPreferenceFor(long, long)}, for one item and each of many others. This
+   * implementation counts each pair in turn. Implementations which can count many pairs at once override it, and
+   * so do those which wrap another {@link DataModel}, by way of
+   * {@link #countUsersWithPreferenceFor(DataModel, long, long[])}.
+   *
+   * @return number of users with a preference for both itemID1 and the item at the same position in itemID2s
+   * @throws TasteException if an error occurs while accessing the data
+   */
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    return countPairs(this, itemID1, itemID2s);
+  }
+
+  /**
+   * @return {@link #getNumUsersWithPreferenceFor(long, long[])} of the given model if it is an
+   *  {@link AbstractDataModel}, and otherwise the pairwise counts
+   * @throws TasteException if an error occurs while accessing the data
+   */
+  public static int[] countUsersWithPreferenceFor(DataModel dataModel, long itemID1, long[] itemID2s)
+    throws TasteException {
+    if (dataModel instanceof AbstractDataModel) {
+      return ((AbstractDataModel) dataModel).getNumUsersWithPreferenceFor(itemID1, itemID2s);
+    }
+    return countPairs(dataModel, itemID1, itemID2s);
+  }
+
+  private static int[] countPairs(DataModel dataModel, long itemID1, long[] itemID2s) throws TasteException {
+    int[] result = new int[itemID2s.length];
+    for (int i = 0; i < itemID2s.length; i++) {
+      result[i] = dataModel.getNumUsersWithPreferenceFor(itemID1, itemID2s[i]);
+    }
+    return result;
+  }
+
 }
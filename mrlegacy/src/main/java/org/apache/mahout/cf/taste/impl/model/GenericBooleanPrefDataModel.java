@@ -25,6 +25,7 @@ import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.CompressedBitmap;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
@@ -47,6 +48,8 @@ public final class GenericBooleanPrefDataModel extends AbstractDataModel {
   private final long[] itemIDs;
   private final FastByIDMap<FastIDSet> preferenceForItems;
   private final FastByIDMap<FastByIDMap<Long>> timestamps;
+  /** each item's users, by their index in userIDs; built for all items on first use, and not serialized */
+  private transient volatile FastByIDMap<CompressedBitmap> itemUserBitmaps;
   
   /**
    * <p>
@@ -259,25 +262,87 @@ public final class GenericBooleanPrefDataModel extends AbstractDataModel {
     return userIDs.length;
   }
   
+  @Override
+  public boolean isInMemory() {
+    return true;
+  }
+
   @Override
   public int getNumUsersWithPreferenceFor(long itemID) {
     FastIDSet userIDs1 = preferenceForItems.get(itemID);
     return userIDs1 == null ? 0 : userIDs1.size();
   }
 
+  /**
+   * Counts users in common from a {@link CompressedBitmap} of each item's users. The bitmaps are built for every
+   * item on the first count, and read without locking from then on.
+   */
   @Override
   public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
-    FastIDSet userIDs1 = preferenceForItems.get(itemID1);
-    if (userIDs1 == null) {
+    FastByIDMap<CompressedBitmap> bitmaps = getItemUserBitmaps();
+    CompressedBitmap userIndices1 = bitmaps.get(itemID1);
+    if (userIndices1 == null) {
       return 0;
     }
-    FastIDSet userIDs2 = preferenceForItems.get(itemID2);
-    if (userIDs2 == null) {
+    CompressedBitmap userIndices2 = bitmaps.get(itemID2);
+    if (userIndices2 == null) {
       return 0;
     }
-    return userIDs1.size() < userIDs2.size()
-        ? userIDs2.intersectionSize(userIDs1)
-        : userIDs1.intersectionSize(userIDs2);
+    return userIndices1.intersectionSize(userIndices2);
+  }
+
+  /**
+   * When there are enough other items, the first item's users are expanded into a plain bitmap once, so each
+   * other item costs one pass over its own users. Otherwise each pair is intersected as compressed bitmaps.
+   */
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) {
+    int[] result = new int[itemID2s.length];
+    FastByIDMap<CompressedBitmap> bitmaps = getItemUserBitmaps();
+    CompressedBitmap userIndices1 = bitmaps.get(itemID1);
+    if (userIndices1 == null) {
+      return result;
+    }
+    // The plain bitmap has a bit for every user; it pays off once the pairwise intersections would read the first
+    // item's users about as many times
+    long[] dense = (long) itemID2s.length * userIndices1.cardinality() >= userIDs.length
+        ? userIndices1.toDenseBitmap(userIDs.length)
+        : null;
+    for (int i = 0; i < itemID2s.length; i++) {
+      CompressedBitmap userIndices2 = bitmaps.get(itemID2s[i]);
+      if (userIndices2 != null) {
+        result[i] = dense == null ? userIndices1.intersectionSize(userIndices2) : userIndices2.intersectionSize(dense);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the indices in userIDs of the users who prefer each item
+   */
+  private FastByIDMap<CompressedBitmap> getItemUserBitmaps() {
+    FastByIDMap<CompressedBitmap> bitmaps = itemUserBitmaps;
+    if (bitmaps == null) {
+      synchronized (this) {
+        bitmaps = itemUserBitmaps;
+        if (bitmaps == null) {
+          bitmaps = new FastByIDMap<CompressedBitmap>(preferenceForItems.size());
+          for (Map.Entry<Long,FastIDSet> entry : preferenceForItems.entrySet()) {
+            FastIDSet itemUserIDs = entry.getValue();
+            int[] userIndices = new int[itemUserIDs.size()];
+            int size = 0;
+            LongPrimitiveIterator it = itemUserIDs.iterator();
+            while (it.hasNext()) {
+              userIndices[size++] = Arrays.binarySearch(userIDs, it.nextLong());
+            }
+            Arrays.sort(userIndices);
+            bitmaps.put(entry.getKey(), new CompressedBitmap(userIndices, size));
+          }
+          itemUserBitmaps = bitmaps;
+        }
+      }
+    }
+    return bitmaps;
   }
   
   @Override
@@ -274,6 +274,11 @@ public final class GenericDataModel extends AbstractDataModel {
     return userIDs.length;
   }
 
+  @Override
+  public boolean isInMemory() {
+    return true;
+  }
+
   @Override
   public int getNumUsersWithPreferenceFor(long itemID) {
     PreferenceArray prefs1 = preferenceForItems.get(itemID);
@@ -334,6 +334,21 @@ public final class PlusAnonymousConcurrentUserDataModel extends PlusAnonymousUse
     return getDelegate().getNumUsersWithPreferenceFor(itemID1, itemID2) + countAnonymousUsersWithPreferenceFor;
   }
 
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    int[] result = countUsersWithPreferenceFor(getDelegate(), itemID1, itemID2s);
+    for (FastIDSet singleUserItemIDs : prefItemIDs.values()) {
+      if (singleUserItemIDs.contains(itemID1)) {
+        for (int i = 0; i < itemID2s.length; i++) {
+          if (singleUserItemIDs.contains(itemID2s[i])) {
+            result[i]++;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
   @Override
   public void setPreference(long userID, long itemID, float value) throws TasteException {
     if (isAnonymousUser(userID)) {
@@ -78,7 +78,7 @@ import org.slf4j.LoggerFactory;
  *
  * </p>
  */
-public class PlusAnonymousUserDataModel implements DataModel {
+public class PlusAnonymousUserDataModel extends AbstractDataModel {
 
   public static final long TEMP_USER_ID = Long.MIN_VALUE;
   
@@ -274,6 +274,24 @@ public class PlusAnonymousUserDataModel implements DataModel {
     }
     return delegate.getNumUsersWithPreferenceFor(itemID1, itemID2) + (found1 && found2 ? 1 : 0);
   }
+
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    int[] result = countUsersWithPreferenceFor(delegate, itemID1, itemID2s);
+    if (tempPrefs != null && prefItemIDs.contains(itemID1)) {
+      for (int i = 0; i < itemID2s.length; i++) {
+        if (prefItemIDs.contains(itemID2s[i])) {
+          result[i]++;
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isInMemory() {
+    return isInMemory(delegate);
+  }
   
   @Override
   public void setPreference(long userID, long itemID, float value) throws TasteException {
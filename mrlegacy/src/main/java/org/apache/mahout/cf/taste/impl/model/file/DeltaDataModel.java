@@ -0,0 +1,508 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.BooleanItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.BooleanPreference;
+import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+
+/**
+ * <p>
+ * An immutable {@link DataModel} presenting a base model with a set of changed users applied on top of it. It is
+ * what {@link FileDataModel} builds when applying update files incrementally: only the preferences of users
+ * named in the update files, and of the items those users touch, are rebuilt, and the base model is never
+ * modified, so a reader holding either the old or the new model always sees a complete, consistent model.
+ * </p>
+ *
+ * <p>
+ * Applying further changes to a {@link DeltaDataModel} produces a new one over the same base, whose overrides are
+ * a copy of the old ones plus the new changes; the chain of models never grows longer than one. Once the
+ * overrides reach a quarter of the users and items, {@link #shouldCompact()} is true, and {@link #compact()}
+ * folds them into a new in-memory base, so that memory does not grow with every update.
+ * </p>
+ *
+ * <p>
+ * Like {@link org.apache.mahout.cf.taste.impl.model.GenericDataModel}, it can't be changed through
+ * {@link #setPreference(long, long, float)} or {@link #removePreference(long, long)}, which throw
+ * {@link UnsupportedOperationException}; changes arrive only as update files.
+ * </p>
+ */
+final class DeltaDataModel extends AbstractDataModel {
+
+  /** fraction of the users and items which may be overridden before the overrides should be compacted */
+  private static final double MAX_OVERRIDDEN_FRACTION = 0.25;
+
+  private final DataModel base;
+  /** Replaced preferences by user; an empty array means the user no longer exists. */
+  private final FastByIDMap<PreferenceArray> userOverrides;
+  /** Replaced preferences by item; an empty array means the item no longer exists. */
+  private final FastByIDMap<PreferenceArray> itemOverrides;
+  private final FastByIDMap<FastByIDMap<Long>> timestampOverrides;
+  /** All user IDs, sorted, or null if they are the same as the base's. */
+  private final long[] userIDs;
+  /** All item IDs, sorted, or null if they are the same as the base's. */
+  private final long[] itemIDs;
+
+  private DeltaDataModel(DataModel base,
+                         FastByIDMap<PreferenceArray> userOverrides,
+                         FastByIDMap<PreferenceArray> itemOverrides,
+                         FastByIDMap<FastByIDMap<Long>> timestampOverrides,
+                         long[] userIDs,
+                         long[] itemIDs,
+                         float minPreference,
+                         float maxPreference) {
+    this.base = base;
+    this.userOverrides = userOverrides;
+    this.itemOverrides = itemOverrides;
+    this.timestampOverrides = timestampOverrides;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    setMinPreference(minPreference);
+    setMaxPreference(maxPreference);
+  }
+
+  /**
+   * @param current model to apply changes to; it is not modified
+   * @param changedUsers IDs of all users whose preferences may have changed
+   * @param newUserPrefs complete new preferences of changed users; a changed user with no entry, or an empty
+   *  one, is removed
+   * @param newTimestamps complete new preference timestamps of changed users
+   * @return a new model with the changes applied
+   */
+  static DataModel apply(DataModel current,
+                         FastIDSet changedUsers,
+                         FastByIDMap<PreferenceArray> newUserPrefs,
+                         FastByIDMap<FastByIDMap<Long>> newTimestamps) throws TasteException {
+
+    DataModel base;
+    FastByIDMap<PreferenceArray> userOverrides;
+    FastByIDMap<PreferenceArray> itemOverrides;
+    FastByIDMap<FastByIDMap<Long>> timestampOverrides;
+    if (current instanceof DeltaDataModel) {
+      DeltaDataModel delta = (DeltaDataModel) current;
+      base = delta.base;
+      userOverrides = delta.userOverrides.clone();
+      itemOverrides = delta.itemOverrides.clone();
+      timestampOverrides = delta.timestampOverrides.clone();
+    } else {
+      base = current;
+      userOverrides = new FastByIDMap<PreferenceArray>();
+      itemOverrides = new FastByIDMap<PreferenceArray>();
+      timestampOverrides = new FastByIDMap<FastByIDMap<Long>>();
+    }
+    boolean hasPrefValues = base.hasPreferenceValues();
+    float minPreference = current.getMinPreference();
+    float maxPreference = current.getMaxPreference();
+
+    FastIDSet addedUsers = new FastIDSet();
+    FastIDSet removedUsers = new FastIDSet();
+    FastIDSet changedItems = new FastIDSet();
+    FastByIDMap<List<Preference>> addedPrefsByItem = new FastByIDMap<List<Preference>>();
+
+    LongPrimitiveIterator it = changedUsers.iterator();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+
+      PreferenceArray oldPrefs = null;
+      try {
+        oldPrefs = current.getPreferencesFromUser(userID);
+        for (int i = 0; i < oldPrefs.length(); i++) {
+          changedItems.add(oldPrefs.getItemID(i));
+        }
+      } catch (NoSuchUserException nsue) {
+        // new user, or one that never existed
+      }
+
+      PreferenceArray newPrefs = newUserPrefs.get(userID);
+      if (newPrefs == null || newPrefs.length() == 0) {
+        userOverrides.put(userID,
+                          hasPrefValues ? new GenericUserPreferenceArray(0) : new BooleanUserPreferenceArray(0));
+        timestampOverrides.remove(userID);
+        if (oldPrefs != null) {
+          removedUsers.add(userID);
+        }
+        continue;
+      }
+
+      newPrefs.sortByItem();
+      userOverrides.put(userID, newPrefs);
+      FastByIDMap<Long> userTimestamps = newTimestamps.get(userID);
+      timestampOverrides.put(userID, userTimestamps == null ? new FastByIDMap<Long>() : userTimestamps);
+      if (oldPrefs == null) {
+        addedUsers.add(userID);
+      }
+
+      for (int i = 0; i < newPrefs.length(); i++) {
+        long itemID = newPrefs.getItemID(i);
+        changedItems.add(itemID);
+        List<Preference> addedPrefs = addedPrefsByItem.get(itemID);
+        if (addedPrefs == null) {
+          addedPrefs = Lists.newArrayListWithCapacity(2);
+          addedPrefsByItem.put(itemID, addedPrefs);
+        }
+        if (hasPrefValues) {
+          float value = newPrefs.getValue(i);
+          addedPrefs.add(new GenericPreference(userID, itemID, value));
+          minPreference = Float.isNaN(minPreference) ? value : Math.min(minPreference, value);
+          maxPreference = Float.isNaN(maxPreference) ? value : Math.max(maxPreference, value);
+        } else {
+          addedPrefs.add(new BooleanPreference(userID, itemID));
+        }
+      }
+    }
+
+    FastIDSet addedItems = new FastIDSet();
+    FastIDSet removedItems = new FastIDSet();
+    it = changedItems.iterator();
+    while (it.hasNext()) {
+      long itemID = it.nextLong();
+
+      List<Preference> prefs = Lists.newArrayList();
+      boolean existed;
+      try {
+        PreferenceArray oldPrefs = current.getPreferencesForItem(itemID);
+        existed = oldPrefs.length() > 0;
+        for (int i = 0; i < oldPrefs.length(); i++) {
+          if (!changedUsers.contains(oldPrefs.getUserID(i))) {
+            prefs.add(oldPrefs.get(i));
+          }
+        }
+      } catch (NoSuchItemException nsie) {
+        existed = false;
+      }
+      List<Preference> addedPrefs = addedPrefsByItem.get(itemID);
+      if (addedPrefs != null) {
+        prefs.addAll(addedPrefs);
+      }
+
+      PreferenceArray newPrefs = hasPrefValues
+          ? new GenericItemPreferenceArray(prefs)
+          : new BooleanItemPreferenceArray(prefs, false);
+      newPrefs.sortByUser();
+      itemOverrides.put(itemID, newPrefs);
+      if (existed && prefs.isEmpty()) {
+        removedItems.add(itemID);
+      } else if (!existed && !prefs.isEmpty()) {
+        addedItems.add(itemID);
+      }
+    }
+
+    long[] newUserIDs = current instanceof DeltaDataModel ? ((DeltaDataModel) current).userIDs : null;
+    if (!addedUsers.isEmpty() || !removedUsers.isEmpty()) {
+      newUserIDs = updateIDs(current.getUserIDs(), current.getNumUsers(), addedUsers, removedUsers);
+    }
+    long[] newItemIDs = current instanceof DeltaDataModel ? ((DeltaDataModel) current).itemIDs : null;
+    if (!addedItems.isEmpty() || !removedItems.isEmpty()) {
+      newItemIDs = updateIDs(current.getItemIDs(), current.getNumItems(), addedItems, removedItems);
+    }
+
+    return new DeltaDataModel(base,
+                              userOverrides,
+                              itemOverrides,
+                              timestampOverrides,
+                              newUserIDs,
+                              newItemIDs,
+                              minPreference,
+                              maxPreference);
+  }
+
+  private static long[] updateIDs(LongPrimitiveIterator oldIDs, int numOldIDs, FastIDSet added, FastIDSet removed) {
+    long[] ids = new long[numOldIDs - removed.size() + added.size()];
+    int i = 0;
+    while (oldIDs.hasNext()) {
+      long id = oldIDs.nextLong();
+      if (!removed.contains(id)) {
+        ids[i++] = id;
+      }
+    }
+    LongPrimitiveIterator addedIDs = added.iterator();
+    while (addedIDs.hasNext()) {
+      ids[i++] = addedIDs.nextLong();
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /**
+   * @return true once the overrides are numerous enough that they should be folded into a new base
+   */
+  boolean shouldCompact() throws TasteException {
+    return userOverrides.size() + itemOverrides.size() > MAX_OVERRIDDEN_FRACTION * (getNumUsers() + getNumItems());
+  }
+
+  /**
+   * @return a new in-memory model holding the same preferences and timestamps, with no overrides
+   */
+  DataModel compact() throws TasteException {
+    FastByIDMap<FastByIDMap<Long>> timestamps = new FastByIDMap<FastByIDMap<Long>>(getNumUsers());
+    boolean hasPrefValues = hasPreferenceValues();
+    FastByIDMap<PreferenceArray> userData = hasPrefValues ? new FastByIDMap<PreferenceArray>(getNumUsers()) : null;
+    FastByIDMap<FastIDSet> userItemIDs = hasPrefValues ? null : new FastByIDMap<FastIDSet>(getNumUsers());
+    LongPrimitiveIterator it = getUserIDs();
+    while (it.hasNext()) {
+      long userID = it.nextLong();
+      PreferenceArray prefs = getPreferencesFromUser(userID);
+      FastByIDMap<Long> userTimestamps = new FastByIDMap<Long>();
+      try {
+        for (int i = 0; i < prefs.length(); i++) {
+          Long timestamp = getPreferenceTime(userID, prefs.getItemID(i));
+          if (timestamp != null) {
+            userTimestamps.put(prefs.getItemID(i), timestamp);
+          }
+        }
+      } catch (NoSuchUserException nsue) {
+        // no timestamps known for this user
+      }
+      if (!userTimestamps.isEmpty()) {
+        timestamps.put(userID, userTimestamps);
+      }
+      if (hasPrefValues) {
+        userData.put(userID, prefs);
+      } else {
+        FastIDSet itemIDs = new FastIDSet(prefs.length());
+        for (int i = 0; i < prefs.length(); i++) {
+          itemIDs.add(prefs.getItemID(i));
+        }
+        userItemIDs.put(userID, itemIDs);
+      }
+    }
+    return hasPrefValues
+        ? new GenericDataModel(userData, timestamps)
+        : new GenericBooleanPrefDataModel(userItemIDs, timestamps);
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDs() throws TasteException {
+    return userIDs == null ? base.getUserIDs() : new LongPrimitiveArrayIterator(userIDs);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesFromUser(long userID) throws TasteException {
+    PreferenceArray prefs = userOverrides.get(userID);
+    if (prefs == null) {
+      return base.getPreferencesFromUser(userID);
+    }
+    if (prefs.length() == 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return prefs;
+  }
+
+  @Override
+  public FastIDSet getItemIDsFromUser(long userID) throws TasteException {
+    PreferenceArray prefs = userOverrides.get(userID);
+    if (prefs == null) {
+      return base.getItemIDsFromUser(userID);
+    }
+    if (prefs.length() == 0) {
+      throw new NoSuchUserException(userID);
+    }
+    FastIDSet result = new FastIDSet(prefs.length());
+    for (int i = 0; i < prefs.length(); i++) {
+      result.add(prefs.getItemID(i));
+    }
+    return result;
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDs() throws TasteException {
+    return itemIDs == null ? base.getItemIDs() : new LongPrimitiveArrayIterator(itemIDs);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+    PreferenceArray prefs = itemOverrides.get(itemID);
+    if (prefs == null) {
+      return base.getPreferencesForItem(itemID);
+    }
+    if (prefs.length() == 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return prefs;
+  }
+
+  @Override
+  public Float getPreferenceValue(long userID, long itemID) throws TasteException {
+    PreferenceArray prefs = userOverrides.get(userID);
+    if (prefs == null) {
+      return base.getPreferenceValue(userID, itemID);
+    }
+    if (prefs.length() == 0) {
+      throw new NoSuchUserException(userID);
+    }
+    for (int i = 0; i < prefs.length(); i++) {
+      if (prefs.getItemID(i) == itemID) {
+        return prefs.getValue(i);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Long getPreferenceTime(long userID, long itemID) throws TasteException {
+    PreferenceArray prefs = userOverrides.get(userID);
+    if (prefs == null) {
+      return base.getPreferenceTime(userID, itemID);
+    }
+    if (prefs.length() == 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return timestampOverrides.get(userID).get(itemID);
+  }
+
+  @Override
+  public int getNumItems() throws TasteException {
+    return itemIDs == null ? base.getNumItems() : itemIDs.length;
+  }
+
+  @Override
+  public int getNumUsers() throws TasteException {
+    return userIDs == null ? base.getNumUsers() : userIDs.length;
+  }
+
+  @Override
+  public boolean isInMemory() {
+    return isInMemory(base);
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID) throws TasteException {
+    PreferenceArray prefs = itemOverrides.get(itemID);
+    return prefs == null ? base.getNumUsersWithPreferenceFor(itemID) : prefs.length();
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) throws TasteException {
+    if (!itemOverrides.containsKey(itemID1) && !itemOverrides.containsKey(itemID2)) {
+      return base.getNumUsersWithPreferenceFor(itemID1, itemID2);
+    }
+    PreferenceArray prefs1;
+    PreferenceArray prefs2;
+    try {
+      prefs1 = getPreferencesForItem(itemID1);
+      prefs2 = getPreferencesForItem(itemID2);
+    } catch (NoSuchItemException nsie) {
+      return 0;
+    }
+    int size1 = prefs1.length();
+    int size2 = prefs2.length();
+    int count = 0;
+    int i = 0;
+    int j = 0;
+    while (i < size1 && j < size2) {
+      long userID1 = prefs1.getUserID(i);
+      long userID2 = prefs2.getUserID(j);
+      if (userID1 < userID2) {
+        i++;
+      } else if (userID1 > userID2) {
+        j++;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Counts pairs of items which are not overridden in the base model all at once, and the others one by one.
+   */
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    if (itemOverrides.containsKey(itemID1)) {
+      return super.getNumUsersWithPreferenceFor(itemID1, itemID2s);
+    }
+    int numNotOverridden = 0;
+    for (long itemID2 : itemID2s) {
+      if (!itemOverrides.containsKey(itemID2)) {
+        numNotOverridden++;
+      }
+    }
+    long[] notOverridden = new long[numNotOverridden];
+    int n = 0;
+    for (long itemID2 : itemID2s) {
+      if (!itemOverrides.containsKey(itemID2)) {
+        notOverridden[n++] = itemID2;
+      }
+    }
+    int[] baseCounts = countUsersWithPreferenceFor(base, itemID1, notOverridden);
+    int[] result = new int[itemID2s.length];
+    n = 0;
+    for (int i = 0; i < itemID2s.length; i++) {
+      result[i] = itemOverrides.containsKey(itemID2s[i])
+          ? getNumUsersWithPreferenceFor(itemID1, itemID2s[i])
+          : baseCounts[n++];
+    }
+    return result;
+  }
+
+  /**
+   * @throws UnsupportedOperationException always; this model only changes through update files
+   */
+  @Override
+  public void setPreference(long userID, long itemID, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @throws UnsupportedOperationException always; this model only changes through update files
+   */
+  @Override
+  public void removePreference(long userID, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    // Does nothing
+  }
+
+  @Override
+  public boolean hasPreferenceValues() {
+    return base.hasPreferenceValues();
+  }
+
+  @Override
+  public String toString() {
+    return "DeltaDataModel[base:" + base + ",changedUsers:" + userOverrides.size() + ']';
+  }
+
+}
@@ -28,12 +28,14 @@ import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
 import org.apache.mahout.cf.taste.impl.model.GenericBooleanPrefDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericPreference;
@@ -102,6 +104,16 @@ import com.google.common.io.Closeables;
  * </p>
  *
  * <p>
+ * By default, new update files are applied by rebuilding the whole in-memory model. If
+ * {@code incrementalUpdates} is set at construction, only the users named in new update files, and the items
+ * they touch, are rebuilt, into a copy-on-write overlay over the existing model which is then swapped in
+ * atomically. Readers never block on, or see, a partially applied update. This mode reads the user and item ID
+ * from the first two fields of each update line in order to find the affected users, so subclasses which
+ * override {@link #processLine(String, FastByIDMap, FastByIDMap, boolean)} to read some other layout should not
+ * use it. A full reload still happens when the main data file changes.
+ * </p>
+ *
+ * <p>
  * Note that it's all-or-nothing -- all of the items in the file must express no preference, or the all must.
  * These cannot be mixed. Put another way there will always be the same number of delimiters on every line of
  * the file!
@@ -131,10 +143,11 @@ public class FileDataModel extends AbstractDataModel {
   private final char delimiter;
   private final Splitter delimiterPattern;
   private final boolean hasPrefValues;
-  private DataModel delegate;
+  private volatile DataModel delegate;
   private final ReentrantLock reloadLock;
   private final boolean transpose;
   private final long minReloadIntervalMS;
+  private final boolean incrementalUpdates;
 
   /**
    * @param dataFile
@@ -176,6 +189,19 @@ public class FileDataModel extends AbstractDataModel {
    */
   public FileDataModel(File dataFile, boolean transpose, long minReloadIntervalMS, String delimiterRegex)
     throws IOException {
+    this(dataFile, transpose, minReloadIntervalMS, delimiterRegex, false);
+  }
+
+  /**
+   * @param incrementalUpdates if true, apply new update files to the existing model copy-on-write rather than
+   *  rebuilding the whole model
+   * @throws IOException
+   */
+  public FileDataModel(File dataFile,
+                       boolean transpose,
+                       long minReloadIntervalMS,
+                       String delimiterRegex,
+                       boolean incrementalUpdates) throws IOException {
 
     this.dataFile = Preconditions.checkNotNull(dataFile.getAbsoluteFile());
     if (!dataFile.exists() || dataFile.isDirectory()) {
@@ -217,6 +243,7 @@ public class FileDataModel extends AbstractDataModel {
     this.reloadLock = new ReentrantLock();
     this.transpose = transpose;
     this.minReloadIntervalMS = minReloadIntervalMS;
+    this.incrementalUpdates = incrementalUpdates;
 
     reload();
   }
@@ -264,6 +291,11 @@ public class FileDataModel extends AbstractDataModel {
 
         return new GenericDataModel(GenericDataModel.toDataMap(data, true), timestamps);
 
+      } else if (incrementalUpdates) {
+
+        return applyUpdateFilesAndCompact(
+            findUpdateFilesAfter(Math.max(oldLastUpdateFileModifieid, newLastModified)));
+
       } else {
 
         FastByIDMap<PreferenceArray> rawData = ((GenericDataModel) delegate).getRawUserData();
@@ -290,6 +322,11 @@ public class FileDataModel extends AbstractDataModel {
 
         return new GenericBooleanPrefDataModel(data, timestamps);
 
+      } else if (incrementalUpdates) {
+
+        return applyUpdateFilesAndCompact(
+            findUpdateFilesAfter(Math.max(oldLastUpdateFileModifieid, newLastModified)));
+
       } else {
 
         FastByIDMap<FastIDSet> rawData = ((GenericBooleanPrefDataModel) delegate).getRawUserData();
@@ -305,6 +342,127 @@ public class FileDataModel extends AbstractDataModel {
     }
   }
 
+  /**
+   * Applies the given update files as {@link #applyUpdateFiles(Iterable)} does, and folds the overrides into a new
+   * in-memory model once there are enough of them, see {@link DeltaDataModel#shouldCompact()}.
+   */
+  private DataModel applyUpdateFilesAndCompact(Iterable<File> updateFiles) throws IOException {
+    try {
+      DataModel updated = applyUpdateFiles(updateFiles);
+      if (updated instanceof DeltaDataModel && ((DeltaDataModel) updated).shouldCompact()) {
+        log.info("Compacting updates into a new model");
+        updated = ((DeltaDataModel) updated).compact();
+      }
+      return updated;
+    } catch (TasteException te) {
+      throw new IOException(te);
+    }
+  }
+
+  /**
+   * Applies the given update files to copies of the current preferences of just the users they mention, and
+   * returns a new model over the current one; the current model is not modified.
+   */
+  private DataModel applyUpdateFiles(Iterable<File> updateFiles) throws IOException, TasteException {
+    DataModel current = delegate;
+
+    FastIDSet changedUsers = new FastIDSet();
+    for (File updateFile : updateFiles) {
+      FileLineIterator iterator = new FileLineIterator(updateFile, false);
+      try {
+        while (iterator.hasNext()) {
+          String line = iterator.next();
+          if (!line.isEmpty() && line.charAt(0) != COMMENT_CHAR) {
+            Iterator<String> tokens = delimiterPattern.split(line).iterator();
+            long userID = readUserIDFromString(tokens.next());
+            long itemID = readItemIDFromString(tokens.next());
+            changedUsers.add(transpose ? itemID : userID);
+          }
+        }
+      } finally {
+        Closeables.close(iterator, true);
+      }
+    }
+    if (changedUsers.isEmpty()) {
+      return current;
+    }
+    log.info("Applying updates to {} users", changedUsers.size());
+
+    FastByIDMap<FastByIDMap<Long>> timestamps = new FastByIDMap<FastByIDMap<Long>>(changedUsers.size());
+    FastByIDMap<PreferenceArray> newUserPrefs = new FastByIDMap<PreferenceArray>(changedUsers.size());
+    LongPrimitiveIterator it = changedUsers.iterator();
+
+    if (hasPrefValues) {
+
+      while (it.hasNext()) {
+        long userID = it.nextLong();
+        try {
+          PreferenceArray prefs = current.getPreferencesFromUser(userID);
+          newUserPrefs.put(userID, prefs.clone());
+          copyTimestamps(current, userID, prefs, timestamps);
+        } catch (NoSuchUserException nsue) {
+          // new user
+        }
+      }
+      for (File updateFile : updateFiles) {
+        processFile(new FileLineIterator(updateFile, false), newUserPrefs, timestamps, true);
+      }
+
+    } else {
+
+      FastByIDMap<FastIDSet> newUserItemIDs = new FastByIDMap<FastIDSet>(changedUsers.size());
+      while (it.hasNext()) {
+        long userID = it.nextLong();
+        try {
+          newUserItemIDs.put(userID, current.getItemIDsFromUser(userID).clone());
+          copyTimestamps(current, userID, current.getPreferencesFromUser(userID), timestamps);
+        } catch (NoSuchUserException nsue) {
+          // new user
+        }
+      }
+      for (File updateFile : updateFiles) {
+        processFileWithoutID(new FileLineIterator(updateFile, false), newUserItemIDs, timestamps);
+      }
+      for (Map.Entry<Long,FastIDSet> entry : newUserItemIDs.entrySet()) {
+        long userID = entry.getKey();
+        FastIDSet itemIDs = entry.getValue();
+        PreferenceArray prefs = new BooleanUserPreferenceArray(itemIDs.size());
+        int i = 0;
+        LongPrimitiveIterator itemIDsIterator = itemIDs.iterator();
+        while (itemIDsIterator.hasNext()) {
+          prefs.setUserID(i, userID);
+          prefs.setItemID(i, itemIDsIterator.nextLong());
+          i++;
+        }
+        newUserPrefs.put(userID, prefs);
+      }
+
+    }
+
+    return DeltaDataModel.apply(current, changedUsers, newUserPrefs, timestamps);
+  }
+
+  private static void copyTimestamps(DataModel current,
+                                     long userID,
+                                     PreferenceArray prefs,
+                                     FastByIDMap<FastByIDMap<Long>> timestamps) {
+    FastByIDMap<Long> itemTimestamps = new FastByIDMap<Long>();
+    for (int i = 0; i < prefs.length(); i++) {
+      long itemID = prefs.getItemID(i);
+      Long timestamp;
+      try {
+        timestamp = current.getPreferenceTime(userID, itemID);
+      } catch (TasteException te) {
+        // no timestamps known for this user
+        break;
+      }
+      if (timestamp != null) {
+        itemTimestamps.put(itemID, timestamp);
+      }
+    }
+    timestamps.put(userID, itemTimestamps);
+  }
+
   /**
    * Finds update delta files in the same directory as the data file. This finds any file whose name starts
    * the same way as the data file (up to first period) but isn't the data file itself. For example, if the
@@ -700,6 +858,11 @@ public class FileDataModel extends AbstractDataModel {
     return delegate.getNumUsers();
   }
 
+  @Override
+  public boolean isInMemory() {
+    return isInMemory(delegate);
+  }
+
   @Override
   public int getNumUsersWithPreferenceFor(long itemID) throws TasteException {
     return delegate.getNumUsersWithPreferenceFor(itemID);
@@ -710,6 +873,11 @@ public class FileDataModel extends AbstractDataModel {
     return delegate.getNumUsersWithPreferenceFor(itemID1, itemID2);
   }
 
+  @Override
+  public int[] getNumUsersWithPreferenceFor(long itemID1, long[] itemID2s) throws TasteException {
+    return countUsersWithPreferenceFor(delegate, itemID1, itemID2s);
+  }
+
   /**
    * Note that this method only updates the in-memory preference data that this {@link FileDataModel}
    * maintains; it does not modify any data on disk. Therefore any updates from this method are only
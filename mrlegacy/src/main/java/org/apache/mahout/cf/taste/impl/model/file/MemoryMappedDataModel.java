@@ -0,0 +1,489 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.MappedRegion;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.BooleanItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.BooleanUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A {@link DataModel} backed by a binary file which is memory-mapped rather than read onto the heap. The file
+ * stores preferences twice, once in compressed sparse row layout (by user) and once in compressed sparse
+ * column layout (by item), so both {@link #getPreferencesFromUser(long)} and
+ * {@link #getPreferencesForItem(long)} are a binary search plus a sequential read. Startup only needs to map
+ * the file, and several JVMs on the same machine reading the same file share the operating system's page
+ * cache.
+ * </p>
+ *
+ * <p>
+ * Files are created by {@link MemoryMappedDataModelWriter}, either from the delimited format read by
+ * {@link FileDataModel} or from any other {@link DataModel}. The layout, all values big-endian and each
+ * section starting on an 8-byte boundary, is:
+ * </p>
+ *
+ * <ul>
+ *   <li>header: magic number, version, flags, number of users, number of items, number of preferences,
+ *   minimum and maximum preference value, padded to {@value #HEADER_SIZE} bytes</li>
+ *   <li>sorted user IDs ({@code long}), then per-user offsets into the next two sections ({@code long},
+ *   one more than the number of users), then item indices ({@code int}), then preference values
+ *   ({@code float}, only if the data has preference values)</li>
+ *   <li>the same four sections by item: sorted item IDs, per-item offsets, user indices, preference values</li>
+ * </ul>
+ *
+ * <p>
+ * Within a user's row item indices are ascending, and within an item's column user indices are ascending,
+ * so preferences come back ordered as the {@link DataModel} contract requires.
+ * </p>
+ *
+ * <p>
+ * This model is read-only: {@link #setPreference(long, long, float)} and {@link #removePreference(long, long)}
+ * are not supported, and preference timestamps are not stored. Each call to
+ * {@link #getPreferencesFromUser(long)} or {@link #getPreferencesForItem(long)} copies the requested row out
+ * of the mapped file into a new {@link PreferenceArray}, so it is worth wrapping recommenders or similarities
+ * which make repeated calls in the usual caching implementations.
+ * </p>
+ */
+public final class MemoryMappedDataModel extends AbstractDataModel {
+
+  private static final Logger log = LoggerFactory.getLogger(MemoryMappedDataModel.class);
+
+  static final int MAGIC = 0x54444D31; // "TDM1"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 64;
+  static final int FLAG_HAS_PREF_VALUES = 0x01;
+
+  private final File dataFile;
+  private final boolean hasPrefValues;
+  private final int numUsers;
+  private final int numItems;
+  private final long numPreferences;
+
+  private final transient MappedRegion userIDs;
+  private final transient MappedRegion userOffsets;
+  private final transient MappedRegion userItemIndices;
+  private final transient MappedRegion userValues;
+  private final transient MappedRegion itemIDs;
+  private final transient MappedRegion itemOffsets;
+  private final transient MappedRegion itemUserIndices;
+  private final transient MappedRegion itemValues;
+
+  /**
+   * @param dataFile file written by {@link MemoryMappedDataModelWriter}
+   * @throws FileNotFoundException if dataFile does not exist
+   * @throws IOException if the file can't be read or is not in the expected format
+   */
+  public MemoryMappedDataModel(File dataFile) throws IOException {
+    this(dataFile, false);
+  }
+
+  /**
+   * @param loadNow if true, ask the operating system to page in the whole file up front rather than on
+   *  first access
+   */
+  public MemoryMappedDataModel(File dataFile, boolean loadNow) throws IOException {
+    this.dataFile = Preconditions.checkNotNull(dataFile.getAbsoluteFile());
+    if (!dataFile.exists() || dataFile.isDirectory()) {
+      throw new FileNotFoundException(dataFile.toString());
+    }
+
+    log.info("Creating MemoryMappedDataModel for file {}", dataFile);
+
+    DataInputStream in = new DataInputStream(new FileInputStream(dataFile));
+    float minPreference;
+    float maxPreference;
+    try {
+      int magic = in.readInt();
+      if (magic != MAGIC) {
+        throw new IOException("Not a MemoryMappedDataModel file: " + dataFile);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version + " in " + dataFile);
+      }
+      int flags = in.readInt();
+      hasPrefValues = (flags & FLAG_HAS_PREF_VALUES) != 0;
+      numUsers = in.readInt();
+      numItems = in.readInt();
+      in.readInt(); // padding
+      numPreferences = in.readLong();
+      minPreference = in.readFloat();
+      maxPreference = in.readFloat();
+    } finally {
+      Closeables.close(in, true);
+    }
+
+    long expectedLength = fileLength(hasPrefValues, numUsers, numItems, numPreferences);
+    if (dataFile.length() != expectedLength) {
+      throw new IOException("Expected " + expectedLength + " bytes but found " + dataFile.length()
+          + " in " + dataFile);
+    }
+
+    setMinPreference(minPreference);
+    setMaxPreference(maxPreference);
+
+    RandomAccessFile file = new RandomAccessFile(dataFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long position = HEADER_SIZE;
+      userIDs = new MappedRegion(channel, position, 8L * numUsers);
+      position += userIDs.length();
+      userOffsets = new MappedRegion(channel, position, 8L * (numUsers + 1));
+      position += userOffsets.length();
+      userItemIndices = new MappedRegion(channel, position, 4L * numPreferences);
+      position += align(userItemIndices.length());
+      if (hasPrefValues) {
+        userValues = new MappedRegion(channel, position, 4L * numPreferences);
+        position += align(userValues.length());
+      } else {
+        userValues = null;
+      }
+      itemIDs = new MappedRegion(channel, position, 8L * numItems);
+      position += itemIDs.length();
+      itemOffsets = new MappedRegion(channel, position, 8L * (numItems + 1));
+      position += itemOffsets.length();
+      itemUserIndices = new MappedRegion(channel, position, 4L * numPreferences);
+      position += align(itemUserIndices.length());
+      if (hasPrefValues) {
+        itemValues = new MappedRegion(channel, position, 4L * numPreferences);
+      } else {
+        itemValues = null;
+      }
+    } finally {
+      Closeables.close(file, true);
+    }
+
+    if (loadNow) {
+      for (MappedRegion region : new MappedRegion[] {
+          userIDs, userOffsets, userItemIndices, userValues, itemIDs, itemOffsets, itemUserIndices, itemValues}) {
+        if (region != null) {
+          region.load();
+        }
+      }
+    }
+
+    log.info("Mapped {} users, {} items and {} preferences", new Object[] {numUsers, numItems, numPreferences});
+  }
+
+  static long align(long length) {
+    return (length + 7L) & ~7L;
+  }
+
+  static long fileLength(boolean hasPrefValues, int numUsers, int numItems, long numPreferences) {
+    long prefSectionLength = align(4L * numPreferences);
+    long length = HEADER_SIZE;
+    length += 8L * numUsers + 8L * (numUsers + 1) + prefSectionLength;
+    length += 8L * numItems + 8L * (numItems + 1) + prefSectionLength;
+    if (hasPrefValues) {
+      length += 2 * prefSectionLength;
+    }
+    return length;
+  }
+
+  public File getDataFile() {
+    return dataFile;
+  }
+
+  /**
+   * @return total number of preferences stored in the model
+   */
+  public long getNumPreferences() {
+    return numPreferences;
+  }
+
+  private int userIndex(long userID) {
+    return (int) userIDs.binarySearchLong(0, numUsers, userID);
+  }
+
+  private int itemIndex(long itemID) {
+    return (int) itemIDs.binarySearchLong(0, numItems, itemID);
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDs() {
+    return new MappedIDIterator(userIDs, numUsers);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesFromUser(long userID) throws NoSuchUserException {
+    int userIndex = userIndex(userID);
+    if (userIndex < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    long start = userOffsets.getLong(userIndex);
+    int length = (int) (userOffsets.getLong(userIndex + 1) - start);
+    PreferenceArray prefs = hasPrefValues
+        ? new GenericUserPreferenceArray(length)
+        : new BooleanUserPreferenceArray(length);
+    if (length > 0) {
+      prefs.setUserID(0, userID);
+    }
+    for (int i = 0; i < length; i++) {
+      prefs.setItemID(i, itemIDs.getLong(userItemIndices.getInt(start + i)));
+      if (hasPrefValues) {
+        prefs.setValue(i, userValues.getFloat(start + i));
+      }
+    }
+    return prefs;
+  }
+
+  @Override
+  public FastIDSet getItemIDsFromUser(long userID) throws NoSuchUserException {
+    int userIndex = userIndex(userID);
+    if (userIndex < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    long start = userOffsets.getLong(userIndex);
+    long end = userOffsets.getLong(userIndex + 1);
+    FastIDSet result = new FastIDSet((int) (end - start));
+    for (long i = start; i < end; i++) {
+      result.add(itemIDs.getLong(userItemIndices.getInt(i)));
+    }
+    return result;
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDs() {
+    return new MappedIDIterator(itemIDs, numItems);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesForItem(long itemID) throws NoSuchItemException {
+    int itemIndex = itemIndex(itemID);
+    if (itemIndex < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    long start = itemOffsets.getLong(itemIndex);
+    int length = (int) (itemOffsets.getLong(itemIndex + 1) - start);
+    PreferenceArray prefs = hasPrefValues
+        ? new GenericItemPreferenceArray(length)
+        : new BooleanItemPreferenceArray(length);
+    if (length > 0) {
+      prefs.setItemID(0, itemID);
+    }
+    for (int i = 0; i < length; i++) {
+      prefs.setUserID(i, userIDs.getLong(itemUserIndices.getInt(start + i)));
+      if (hasPrefValues) {
+        prefs.setValue(i, itemValues.getFloat(start + i));
+      }
+    }
+    return prefs;
+  }
+
+  @Override
+  public Float getPreferenceValue(long userID, long itemID) throws NoSuchUserException {
+    int userIndex = userIndex(userID);
+    if (userIndex < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    int itemIndex = itemIndex(itemID);
+    if (itemIndex < 0) {
+      return null;
+    }
+    long position = userItemIndices.binarySearchInt(userOffsets.getLong(userIndex),
+                                                    userOffsets.getLong(userIndex + 1),
+                                                    itemIndex);
+    if (position < 0) {
+      return null;
+    }
+    return hasPrefValues ? userValues.getFloat(position) : 1.0f;
+  }
+
+  /**
+   * @return null; timestamps are not stored in the mapped format
+   */
+  @Override
+  public Long getPreferenceTime(long userID, long itemID) throws NoSuchUserException {
+    if (userIndex(userID) < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return null;
+  }
+
+  @Override
+  public int getNumItems() {
+    return numItems;
+  }
+
+  @Override
+  public int getNumUsers() {
+    return numUsers;
+  }
+
+  @Override
+  public boolean isInMemory() {
+    return true;
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID) {
+    int itemIndex = itemIndex(itemID);
+    if (itemIndex < 0) {
+      return 0;
+    }
+    return (int) (itemOffsets.getLong(itemIndex + 1) - itemOffsets.getLong(itemIndex));
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+    int itemIndex1 = itemIndex(itemID1);
+    if (itemIndex1 < 0) {
+      return 0;
+    }
+    int itemIndex2 = itemIndex(itemID2);
+    if (itemIndex2 < 0) {
+      return 0;
+    }
+    long i = itemOffsets.getLong(itemIndex1);
+    long end1 = itemOffsets.getLong(itemIndex1 + 1);
+    long j = itemOffsets.getLong(itemIndex2);
+    long end2 = itemOffsets.getLong(itemIndex2 + 1);
+    int count = 0;
+    while (i < end1 && j < end2) {
+      int userIndex1 = itemUserIndices.getInt(i);
+      int userIndex2 = itemUserIndices.getInt(j);
+      if (userIndex1 < userIndex2) {
+        i++;
+      } else if (userIndex1 > userIndex2) {
+        j++;
+      } else {
+        count++;
+        i++;
+        j++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void setPreference(long userID, long itemID, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void removePreference(long userID, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    // Does nothing
+  }
+
+  @Override
+  public boolean hasPreferenceValues() {
+    return hasPrefValues;
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryMappedDataModel[dataFile:" + dataFile + ']';
+  }
+
+  /**
+   * The mapped regions are not serialized; a deserialized model maps its file again, which must therefore
+   * still exist at the same path.
+   */
+  private Object readResolve() throws ObjectStreamException {
+    try {
+      return new MemoryMappedDataModel(dataFile);
+    } catch (IOException ioe) {
+      InvalidObjectException ioe2 = new InvalidObjectException("Can't map " + dataFile);
+      ioe2.initCause(ioe);
+      throw ioe2;
+    }
+  }
+
+  private static final class MappedIDIterator implements LongPrimitiveIterator {
+
+    private final MappedRegion ids;
+    private final int max;
+    private int position;
+
+    private MappedIDIterator(MappedRegion ids, int max) {
+      this.ids = ids;
+      this.max = max;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < max;
+    }
+
+    @Override
+    public Long next() {
+      return nextLong();
+    }
+
+    @Override
+    public long nextLong() {
+      if (position >= max) {
+        throw new NoSuchElementException();
+      }
+      return ids.getLong(position++);
+    }
+
+    @Override
+    public long peek() {
+      if (position >= max) {
+        throw new NoSuchElementException();
+      }
+      return ids.getLong(position);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void skip(int n) {
+      if (n > 0) {
+        position += n;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,430 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import com.google.common.base.Splitter;
+import com.google.common.io.Closeables;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.iterator.FileLineIterator;
+import org.apache.mahout.math.list.FloatArrayList;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.list.LongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Writes the binary format read by {@link MemoryMappedDataModel}, either by converting a delimited file in the
+ * format read by {@link FileDataModel}, or by copying any existing {@link DataModel}.
+ * </p>
+ *
+ * <p>
+ * Conversion of a delimited file holds the data in primitive arrays, roughly 40 bytes per preference at peak,
+ * rather than the object graph {@link FileDataModel} builds. As in {@link FileDataModel}, empty lines and lines
+ * starting with '#' are skipped, a later line for the same user and item supersedes an earlier one, and a line
+ * with an empty preference value removes the preference. Timestamps are ignored.
+ * </p>
+ *
+ * <p>Usage: {@code MemoryMappedDataModelWriter /path/to/ratings.csv /path/to/ratings.bin}</p>
+ */
+public final class MemoryMappedDataModelWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(MemoryMappedDataModelWriter.class);
+
+  private static final char COMMENT_CHAR = '#';
+
+  private MemoryMappedDataModelWriter() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      log.error("Usage: MemoryMappedDataModelWriter /path/to/delimited/input /path/to/binary/output");
+      return;
+    }
+    convert(new File(args[0]), new File(args[1]));
+  }
+
+  /**
+   * @see #convert(File, boolean, File)
+   */
+  public static void convert(File delimitedFile, File mappedFile) throws IOException {
+    convert(delimitedFile, false, mappedFile);
+  }
+
+  /**
+   * @param delimitedFile file in the format read by {@link FileDataModel}
+   * @param transpose transposes user IDs and item IDs, as in {@link FileDataModel}
+   * @param mappedFile file to write
+   */
+  public static void convert(File delimitedFile, boolean transpose, File mappedFile) throws IOException {
+    log.info("Converting {} to {}", delimitedFile, mappedFile);
+
+    LongArrayList userIDs = new LongArrayList();
+    LongArrayList itemIDs = new LongArrayList();
+    FloatArrayList values = new FloatArrayList();
+    Splitter splitter = null;
+    boolean hasPrefValues = false;
+
+    FileLineIterator lines = new FileLineIterator(delimitedFile, false);
+    try {
+      int count = 0;
+      while (lines.hasNext()) {
+        String line = lines.next();
+        if (line.isEmpty() || line.charAt(0) == COMMENT_CHAR) {
+          continue;
+        }
+        if (splitter == null) {
+          splitter = Splitter.on(FileDataModel.determineDelimiter(line));
+          Iterator<String> firstTokens = splitter.split(line).iterator();
+          firstTokens.next();
+          firstTokens.next();
+          hasPrefValues = firstTokens.hasNext() && !firstTokens.next().isEmpty();
+        }
+
+        Iterator<String> tokens = splitter.split(line).iterator();
+        long userID = Long.parseLong(tokens.next());
+        long itemID = Long.parseLong(tokens.next());
+        boolean hasPreference = tokens.hasNext();
+        String preferenceValueString = hasPreference ? tokens.next() : "";
+        boolean hasTimestamp = tokens.hasNext();
+
+        float value;
+        if (hasPreference && !hasTimestamp && preferenceValueString.isEmpty()) {
+          // Then line is of form "userID,itemID,", meaning remove
+          value = Float.NaN;
+        } else {
+          value = hasPrefValues ? Float.parseFloat(preferenceValueString) : 1.0f;
+        }
+
+        if (transpose) {
+          long tmp = userID;
+          userID = itemID;
+          itemID = tmp;
+        }
+        userIDs.add(userID);
+        itemIDs.add(itemID);
+        values.add(value);
+
+        if (++count % 1000000 == 0) {
+          log.info("Processed {} lines", count);
+        }
+      }
+      log.info("Read lines: {}", count);
+    } finally {
+      Closeables.close(lines, true);
+    }
+
+    int numPreferences = userIDs.size();
+    long[] users = userIDs.elements();
+    long[] items = itemIDs.elements();
+    userIDs = null;
+    itemIDs = null;
+
+    long[] distinctUserIDs = distinct(users, numPreferences);
+    long[] distinctItemIDs = distinct(items, numPreferences);
+    int[] userIndices = new int[numPreferences];
+    int[] itemIndices = new int[numPreferences];
+    for (int i = 0; i < numPreferences; i++) {
+      userIndices[i] = Arrays.binarySearch(distinctUserIDs, users[i]);
+      itemIndices[i] = Arrays.binarySearch(distinctItemIDs, items[i]);
+    }
+    users = null; // Might help GC -- these are big
+    items = null;
+
+    // Counting sort by user, which keeps lines for the same user in file order
+    int[] rowOffsets = new int[distinctUserIDs.length + 1];
+    for (int i = 0; i < numPreferences; i++) {
+      rowOffsets[userIndices[i] + 1]++;
+    }
+    for (int i = 0; i < distinctUserIDs.length; i++) {
+      rowOffsets[i + 1] += rowOffsets[i];
+    }
+    int[] cursors = Arrays.copyOf(rowOffsets, distinctUserIDs.length);
+    int[] rowItemIndices = new int[numPreferences];
+    float[] rowValues = new float[numPreferences];
+    float[] rawValues = values.elements();
+    for (int i = 0; i < numPreferences; i++) {
+      int position = cursors[userIndices[i]]++;
+      rowItemIndices[position] = itemIndices[i];
+      rowValues[position] = rawValues[i];
+    }
+    values = null;
+    rawValues = null;
+    userIndices = null;
+    itemIndices = null;
+    cursors = null;
+
+    numPreferences = sortAndCompactRows(rowOffsets, rowItemIndices, rowValues);
+
+    // Removals may have left some users or items without any preferences; drop them
+    int numUsers = 0;
+    for (int user = 0; user < distinctUserIDs.length; user++) {
+      if (rowOffsets[user + 1] > rowOffsets[user]) {
+        distinctUserIDs[numUsers] = distinctUserIDs[user];
+        rowOffsets[numUsers + 1] = rowOffsets[user + 1];
+        numUsers++;
+      }
+    }
+    int[] itemCounts = new int[distinctItemIDs.length];
+    for (int i = 0; i < numPreferences; i++) {
+      itemCounts[rowItemIndices[i]]++;
+    }
+    int numItems = 0;
+    int[] itemRemapping = new int[distinctItemIDs.length];
+    for (int item = 0; item < distinctItemIDs.length; item++) {
+      if (itemCounts[item] > 0) {
+        distinctItemIDs[numItems] = distinctItemIDs[item];
+        itemRemapping[item] = numItems++;
+      }
+    }
+    if (numItems < distinctItemIDs.length) {
+      for (int i = 0; i < numPreferences; i++) {
+        rowItemIndices[i] = itemRemapping[rowItemIndices[i]];
+      }
+    }
+
+    write(mappedFile,
+          hasPrefValues,
+          Arrays.copyOf(distinctUserIDs, numUsers),
+          Arrays.copyOf(rowOffsets, numUsers + 1),
+          Arrays.copyOf(distinctItemIDs, numItems),
+          rowItemIndices,
+          hasPrefValues ? rowValues : null);
+  }
+
+  /**
+   * Copies the preferences in the given {@link DataModel} to a file which can be read by
+   * {@link MemoryMappedDataModel}.
+   */
+  public static void write(DataModel dataModel, File mappedFile) throws TasteException, IOException {
+    log.info("Writing {} to {}", dataModel, mappedFile);
+
+    boolean hasPrefValues = dataModel.hasPreferenceValues();
+
+    long[] itemIDs = new long[dataModel.getNumItems()];
+    LongPrimitiveIterator itemIDsIterator = dataModel.getItemIDs();
+    int numItems = 0;
+    while (itemIDsIterator.hasNext()) {
+      itemIDs[numItems++] = itemIDsIterator.nextLong();
+    }
+    Arrays.sort(itemIDs, 0, numItems);
+
+    long[] userIDs = new long[dataModel.getNumUsers()];
+    int[] rowOffsets = new int[userIDs.length + 1];
+    IntArrayList rowItemIndices = new IntArrayList();
+    FloatArrayList rowValues = new FloatArrayList();
+    LongPrimitiveIterator userIDsIterator = dataModel.getUserIDs();
+    int numUsers = 0;
+    while (userIDsIterator.hasNext()) {
+      long userID = userIDsIterator.nextLong();
+      PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+      if (prefs.length() == 0) {
+        continue;
+      }
+      prefs = prefs.clone();
+      prefs.sortByItem();
+      for (int i = 0; i < prefs.length(); i++) {
+        rowItemIndices.add(Arrays.binarySearch(itemIDs, 0, numItems, prefs.getItemID(i)));
+        if (hasPrefValues) {
+          rowValues.add(prefs.getValue(i));
+        }
+      }
+      userIDs[numUsers++] = userID;
+      rowOffsets[numUsers] = rowItemIndices.size();
+    }
+
+    rowItemIndices.trimToSize();
+    rowValues.trimToSize();
+    write(mappedFile,
+          hasPrefValues,
+          Arrays.copyOf(userIDs, numUsers),
+          Arrays.copyOf(rowOffsets, numUsers + 1),
+          Arrays.copyOf(itemIDs, numItems),
+          rowItemIndices.elements(),
+          hasPrefValues ? rowValues.elements() : null);
+  }
+
+  private static long[] distinct(long[] ids, int size) {
+    long[] sorted = Arrays.copyOf(ids, size);
+    Arrays.sort(sorted);
+    int numDistinct = 0;
+    for (int i = 0; i < size; i++) {
+      if (i == 0 || sorted[i] != sorted[i - 1]) {
+        sorted[numDistinct++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(sorted, numDistinct);
+  }
+
+  /**
+   * Sorts each row by item index, keeps only the last value given for each item and drops removed (NaN)
+   * values, compacting the arrays in place.
+   *
+   * @return number of preferences left
+   */
+  private static int sortAndCompactRows(int[] rowOffsets, int[] rowItemIndices, float[] rowValues) {
+    int numRows = rowOffsets.length - 1;
+    int maxRowLength = 0;
+    for (int row = 0; row < numRows; row++) {
+      maxRowLength = Math.max(maxRowLength, rowOffsets[row + 1] - rowOffsets[row]);
+    }
+    // item index in the upper half, position within the row in the lower half, so sorting keeps file order
+    long[] keys = new long[maxRowLength];
+    float[] scratchValues = new float[maxRowLength];
+
+    int written = 0;
+    int start = 0;
+    for (int row = 0; row < numRows; row++) {
+      int end = rowOffsets[row + 1];
+      int length = end - start;
+      for (int i = 0; i < length; i++) {
+        keys[i] = ((long) rowItemIndices[start + i] << 32) | i;
+        scratchValues[i] = rowValues[start + i];
+      }
+      Arrays.sort(keys, 0, length);
+      for (int i = 0; i < length; i++) {
+        int itemIndex = (int) (keys[i] >>> 32);
+        if (i + 1 < length && (int) (keys[i + 1] >>> 32) == itemIndex) {
+          continue;
+        }
+        float value = scratchValues[(int) keys[i]];
+        if (!Float.isNaN(value)) {
+          rowItemIndices[written] = itemIndex;
+          rowValues[written] = value;
+          written++;
+        }
+      }
+      start = end;
+      rowOffsets[row + 1] = written;
+    }
+    return written;
+  }
+
+  private static void write(File mappedFile,
+                            boolean hasPrefValues,
+                            long[] userIDs,
+                            int[] rowOffsets,
+                            long[] itemIDs,
+                            int[] rowItemIndices,
+                            float[] rowValues) throws IOException {
+    int numUsers = userIDs.length;
+    int numItems = itemIDs.length;
+    int numPreferences = rowOffsets[numUsers];
+
+    float minPreference = Float.NaN;
+    float maxPreference = Float.NaN;
+    if (hasPrefValues && numPreferences > 0) {
+      minPreference = Float.POSITIVE_INFINITY;
+      maxPreference = Float.NEGATIVE_INFINITY;
+      for (int i = 0; i < numPreferences; i++) {
+        minPreference = Math.min(minPreference, rowValues[i]);
+        maxPreference = Math.max(maxPreference, rowValues[i]);
+      }
+    }
+
+    // Transpose to columns; walking rows in order leaves user indices sorted within each column
+    int[] columnOffsets = new int[numItems + 1];
+    for (int i = 0; i < numPreferences; i++) {
+      columnOffsets[rowItemIndices[i] + 1]++;
+    }
+    for (int i = 0; i < numItems; i++) {
+      columnOffsets[i + 1] += columnOffsets[i];
+    }
+    int[] cursors = Arrays.copyOf(columnOffsets, numItems);
+    int[] columnUserIndices = new int[numPreferences];
+    float[] columnValues = hasPrefValues ? new float[numPreferences] : null;
+    for (int user = 0; user < numUsers; user++) {
+      for (int i = rowOffsets[user]; i < rowOffsets[user + 1]; i++) {
+        int position = cursors[rowItemIndices[i]]++;
+        columnUserIndices[position] = user;
+        if (hasPrefValues) {
+          columnValues[position] = rowValues[i];
+        }
+      }
+    }
+
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mappedFile), 1 << 16));
+    try {
+      out.writeInt(MemoryMappedDataModel.MAGIC);
+      out.writeInt(MemoryMappedDataModel.VERSION);
+      out.writeInt(hasPrefValues ? MemoryMappedDataModel.FLAG_HAS_PREF_VALUES : 0);
+      out.writeInt(numUsers);
+      out.writeInt(numItems);
+      out.writeInt(0);
+      out.writeLong(numPreferences);
+      out.writeFloat(minPreference);
+      out.writeFloat(maxPreference);
+      for (int i = 40; i < MemoryMappedDataModel.HEADER_SIZE; i++) {
+        out.writeByte(0);
+      }
+
+      writeSections(out, userIDs, rowOffsets, rowItemIndices, hasPrefValues ? rowValues : null, numPreferences);
+      writeSections(out, itemIDs, columnOffsets, columnUserIndices, columnValues, numPreferences);
+    } finally {
+      Closeables.close(out, false);
+    }
+
+    log.info("Wrote {} users, {} items and {} preferences", new Object[] {numUsers, numItems, numPreferences});
+  }
+
+  private static void writeSections(DataOutputStream out,
+                                    long[] ids,
+                                    int[] offsets,
+                                    int[] indices,
+                                    float[] values,
+                                    int numPreferences) throws IOException {
+    for (long id : ids) {
+      out.writeLong(id);
+    }
+    for (int offset : offsets) {
+      out.writeLong(offset);
+    }
+    for (int i = 0; i < numPreferences; i++) {
+      out.writeInt(indices[i]);
+    }
+    pad(out, numPreferences);
+    if (values != null) {
+      for (int i = 0; i < numPreferences; i++) {
+        out.writeFloat(values[i]);
+      }
+      pad(out, numPreferences);
+    }
+  }
+
+  /**
+   * Pads a section of 4-byte values so that the next section starts on an 8-byte boundary.
+   */
+  private static void pad(DataOutputStream out, int numValues) throws IOException {
+    if ((numValues & 1) != 0) {
+      out.writeInt(0);
+    }
+  }
+
+}
@@ -17,25 +17,60 @@
 
 package org.apache.mahout.cf.taste.impl.neighborhood;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.SamplingLongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.SimilarUser;
 import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.impl.similarity.CityBlockSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 
 /**
  * <p>
  * Computes a neighborhood consisting of the nearest n users to a given user. "Nearest" is defined by the
  * given {@link UserSimilarity}.
  * </p>
+ *
+ * <p>
+ * By default every user is compared with the given one. With {@link #useCandidateIndex(int)}, only users who
+ * share at least some number of items with the given user are compared, found through the data model's
+ * preferences by item. These are compared in order of decreasing overlap, and for a
+ * {@link TanimotoCoefficientSimilarity} or {@link CityBlockSimilarity}, whose value is bounded by the overlap,
+ * comparison stops as soon as no remaining user can beat the current n-th nearest.
+ * {@link #setCandidateScoringExecutor(ExecutorService, int)} spreads the comparisons over several threads.
+ * </p>
  */
 public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
   
+  /** Below this many candidates per partition, handing work to other threads costs more than it saves. */
+  private static final int MIN_CANDIDATES_PER_PARTITION = 64;
+  private static final long[] NO_IDS = new long[0];
+
   private final int n;
   private final double minSimilarity;
+  private volatile int minOverlap;
+  private volatile ExecutorService candidateScoringExecutor;
+  private volatile int numCandidatePartitions;
   
   /**
    * @param n neighborhood size; capped at the number of users in the data model
@@ -79,19 +114,240 @@ public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
     this.n = n > numUsers ? numUsers : n;
     this.minSimilarity = minSimilarity;
   }
+
+  /**
+   * <p>
+   * Only considers users who share at least {@code minOverlap} items with the given user, rather than all users.
+   * Users with no items in common have no similarity under most {@link UserSimilarity} implementations, so with
+   * {@code minOverlap} 1 the neighborhood is normally unchanged, but {@link CityBlockSimilarity}, for one, also
+   * rates users with nothing in common.
+   * </p>
+   *
+   * @param minOverlap minimum number of items in common with the given user, or 0 to consider all users
+   */
+  public void useCandidateIndex(int minOverlap) {
+    Preconditions.checkArgument(minOverlap >= 0, "minOverlap must not be negative");
+    this.minOverlap = minOverlap;
+  }
+
+  /**
+   * <p>
+   * Lets {@link #getUserNeighborhood(long)} compare candidate users concurrently. Candidates are split into up to
+   * {@code numPartitions} partitions, each scored as a task on the given executor, and the nearest of each are
+   * merged. Few candidates are still scored on the calling thread. The executor is not shut down by this class.
+   * The {@link UserSimilarity} must be thread-safe.
+   * </p>
+   *
+   * @param executor executor to score candidates on, or {@code null} to score them on the calling thread
+   * @param numPartitions maximum number of partitions to split candidates into; normally the executor's number
+   *  of threads
+   */
+  public void setCandidateScoringExecutor(ExecutorService executor, int numPartitions) {
+    Preconditions.checkArgument(numPartitions >= 1, "numPartitions must be at least 1");
+    this.numCandidatePartitions = numPartitions;
+    this.candidateScoringExecutor = executor;
+  }
   
   @Override
   public long[] getUserNeighborhood(long userID) throws TasteException {
-    
+    return getUserNeighborhood(userID, new Estimator(getUserSimilarity(), userID, minSimilarity));
+  }
+
+  /**
+   * Computes the neighborhood as {@link #getUserNeighborhood(long)} does, but compares no more users once the
+   * deadline passes, so that the neighborhood holds the nearest users among those compared before it.
+   *
+   * @param deadline value of {@link System#nanoTime()} after which no more users are compared
+   */
+  public long[] getUserNeighborhood(long userID, long deadline) throws TasteException {
+    return getUserNeighborhood(userID,
+        new DeadlineEstimator(new Estimator(getUserSimilarity(), userID, minSimilarity), deadline));
+  }
+
+  private long[] getUserNeighborhood(long userID, TopItems.Estimator<Long> estimator) throws TasteException {
+
     DataModel dataModel = getDataModel();
-    UserSimilarity userSimilarityImpl = getUserSimilarity();
-    
-    TopItems.Estimator<Long> estimator = new Estimator(userSimilarityImpl, userID, minSimilarity);
-    
-    LongPrimitiveIterator userIDs = SamplingLongPrimitiveIterator.maybeWrapIterator(dataModel.getUserIDs(),
-      getSamplingRate());
-    
-    return TopItems.getTopUsers(n, userIDs, null, estimator);
+
+    int minOverlap = this.minOverlap;
+    ExecutorService executor = candidateScoringExecutor;
+    if (minOverlap == 0 && executor == null) {
+      LongPrimitiveIterator userIDs = SamplingLongPrimitiveIterator.maybeWrapIterator(dataModel.getUserIDs(),
+        getSamplingRate());
+      return TopItems.getTopUsers(n, userIDs, null, estimator);
+    }
+
+    Candidates candidates;
+    if (minOverlap > 0) {
+      candidates = candidatesByOverlap(dataModel, userID, minOverlap, getSamplingRate());
+    } else {
+      candidates = allCandidates(dataModel, getSamplingRate());
+    }
+    int numPartitions = executor == null
+        ? 1 : Math.min(numCandidatePartitions, candidates.userIDs.length / MIN_CANDIDATES_PER_PARTITION);
+    if (numPartitions <= 1) {
+      return toUserIDs(topUsers(candidates, 0, 1, estimator), n);
+    }
+    return toUserIDs(topUsersConcurrently(candidates, numPartitions, estimator, executor), n);
+  }
+
+  /**
+   * @return users sharing at least {@code minOverlap} items with the given user, by decreasing overlap
+   */
+  private Candidates candidatesByOverlap(DataModel dataModel, long userID, int minOverlap, double samplingRate)
+    throws TasteException {
+    FastIDSet itemIDs = dataModel.getItemIDsFromUser(userID);
+    OpenLongIntHashMap overlaps = new OpenLongIntHashMap();
+    LongPrimitiveIterator it = itemIDs.iterator();
+    while (it.hasNext()) {
+      PreferenceArray prefs = dataModel.getPreferencesForItem(it.nextLong());
+      int length = prefs.length();
+      for (int i = 0; i < length; i++) {
+        long otherUserID = prefs.getUserID(i);
+        if (otherUserID != userID) {
+          overlaps.adjustOrPutValue(otherUserID, 1, 1);
+        }
+      }
+    }
+
+    // overlap in the high 32 bits, so that sorting orders users by it
+    long[] overlapAndPosition = new long[overlaps.size()];
+    long[] userIDs = new long[overlaps.size()];
+    int count = 0;
+    LongPrimitiveIterator candidateIDs =
+        SamplingLongPrimitiveIterator.maybeWrapIterator(
+            new LongPrimitiveArrayIterator(overlaps.keys().toArray(new long[overlaps.size()])), samplingRate);
+    while (candidateIDs.hasNext()) {
+      long candidateID = candidateIDs.nextLong();
+      int overlap = overlaps.get(candidateID);
+      if (overlap >= minOverlap) {
+        userIDs[count] = candidateID;
+        overlapAndPosition[count] = ((long) overlap << 32) | count;
+        count++;
+      }
+    }
+    Arrays.sort(overlapAndPosition, 0, count);
+
+    Candidates candidates = new Candidates(count, itemIDs.size(), boundedSimilarity(getUserSimilarity()));
+    for (int i = 0; i < count; i++) {
+      long entry = overlapAndPosition[count - 1 - i];
+      candidates.userIDs[i] = userIDs[(int) entry];
+      candidates.overlaps[i] = (int) (entry >>> 32);
+    }
+    return candidates;
+  }
+
+  private static Candidates allCandidates(DataModel dataModel, double samplingRate) throws TasteException {
+    LongPrimitiveIterator it = SamplingLongPrimitiveIterator.maybeWrapIterator(dataModel.getUserIDs(), samplingRate);
+    long[] userIDs = new long[dataModel.getNumUsers()];
+    int count = 0;
+    while (it.hasNext()) {
+      userIDs[count++] = it.nextLong();
+    }
+    Candidates candidates = new Candidates(count, 0, Bound.NONE);
+    System.arraycopy(userIDs, 0, candidates.userIDs, 0, count);
+    return candidates;
+  }
+
+  private static Bound boundedSimilarity(UserSimilarity similarity) {
+    if (similarity instanceof TanimotoCoefficientSimilarity) {
+      return Bound.TANIMOTO;
+    }
+    if (similarity instanceof CityBlockSimilarity) {
+      return Bound.CITY_BLOCK;
+    }
+    return Bound.NONE;
+  }
+
+  /**
+   * Finds the nearest users among every {@code step}-th candidate from {@code first}. As candidates are ordered by
+   * decreasing overlap, each partition is too, so each can stop once its own n-th nearest can no longer be beaten;
+   * a user it skips has n users in the same partition at least as near.
+   */
+  private Queue<SimilarUser> topUsers(Candidates candidates, int first, int step, TopItems.Estimator<Long> estimator)
+    throws TasteException {
+    Queue<SimilarUser> topUsers = new PriorityQueue<SimilarUser>(n + 1, Collections.reverseOrder());
+    boolean full = false;
+    double lowestTopValue = Double.NEGATIVE_INFINITY;
+    for (int i = first; i < candidates.userIDs.length; i += step) {
+      if (full && candidates.upperBound(i) <= lowestTopValue) {
+        break;
+      }
+      long candidateID = candidates.userIDs[i];
+      double similarity;
+      try {
+        similarity = estimator.estimate(candidateID);
+      } catch (NoSuchUserException nsue) {
+        continue;
+      }
+      if (!Double.isNaN(similarity) && (!full || similarity > lowestTopValue)) {
+        topUsers.add(new SimilarUser(candidateID, similarity));
+        if (full) {
+          topUsers.poll();
+        } else if (topUsers.size() > n) {
+          full = true;
+          topUsers.poll();
+        }
+        lowestTopValue = topUsers.peek().getSimilarity();
+      }
+    }
+    return topUsers;
+  }
+
+  private List<SimilarUser> topUsersConcurrently(final Candidates candidates,
+                                                 final int numPartitions,
+                                                 final TopItems.Estimator<Long> estimator,
+                                                 ExecutorService executor) throws TasteException {
+    List<Future<Queue<SimilarUser>>> futures = Lists.newArrayListWithCapacity(numPartitions);
+    for (int partition = 0; partition < numPartitions; partition++) {
+      final int first = partition;
+      futures.add(executor.submit(new Callable<Queue<SimilarUser>>() {
+        @Override
+        public Queue<SimilarUser> call() throws TasteException {
+          return topUsers(candidates, first, numPartitions, estimator);
+        }
+      }));
+    }
+    List<SimilarUser> merged = Lists.newArrayListWithCapacity(n * numPartitions);
+    try {
+      for (Future<Queue<SimilarUser>> future : futures) {
+        merged.addAll(future.get());
+      }
+    } catch (InterruptedException ie) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      cancelAll(futures);
+      Throwable cause = ee.getCause();
+      if (cause instanceof TasteException) {
+        throw (TasteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new TasteException(cause);
+    }
+    return merged;
+  }
+
+  private static void cancelAll(Iterable<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
+  private static long[] toUserIDs(Iterable<SimilarUser> similarUsers, int howMany) {
+    List<SimilarUser> sorted = Lists.newArrayList(similarUsers);
+    if (sorted.isEmpty()) {
+      return NO_IDS;
+    }
+    Collections.sort(sorted);
+    int size = Math.min(howMany, sorted.size());
+    long[] result = new long[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = sorted.get(i).getUserID();
+    }
+    return result;
   }
   
   @Override
@@ -99,6 +355,55 @@ public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
     return "NearestNUserNeighborhood";
   }
   
+  /**
+   * Upper bounds on similarities which depend only on the number of items two users share and the number of items
+   * of the first, for {@link Candidates#upperBound(int)}.
+   */
+  private enum Bound {
+    NONE {
+      @Override
+      double upperBound(int overlap, int numItems) {
+        return Double.POSITIVE_INFINITY;
+      }
+    },
+    /** overlap / union, where the union is at least the first user's items */
+    TANIMOTO {
+      @Override
+      double upperBound(int overlap, int numItems) {
+        return (double) overlap / numItems;
+      }
+    },
+    /** 1 / (1 + distance), where the distance is at least the first user's items not shared */
+    CITY_BLOCK {
+      @Override
+      double upperBound(int overlap, int numItems) {
+        return 1.0 / (1.0 + numItems - overlap);
+      }
+    };
+
+    abstract double upperBound(int overlap, int numItems);
+  }
+
+  private static final class Candidates {
+    private final long[] userIDs;
+    /** items each candidate shares with the given user, or all zero if not known */
+    private final int[] overlaps;
+    /** items of the given user */
+    private final int numItems;
+    private final Bound bound;
+
+    private Candidates(int size, int numItems, Bound bound) {
+      this.userIDs = new long[size];
+      this.overlaps = new int[size];
+      this.numItems = numItems;
+      this.bound = bound;
+    }
+
+    double upperBound(int i) {
+      return bound.upperBound(overlaps[i], numItems);
+    }
+  }
+
   private static final class Estimator implements TopItems.Estimator<Long> {
     private final UserSimilarity userSimilarityImpl;
     private final long theUserID;
@@ -119,4 +424,22 @@ public final class NearestNUserNeighborhood extends AbstractUserNeighborhood {
       return sim >= minSim ? sim : Double.NaN;
     }
   }
+
+  /**
+   * Rates every user {@link Double#NaN} once the deadline passes, so that no more are compared.
+   */
+  private static final class DeadlineEstimator implements TopItems.Estimator<Long> {
+    private final TopItems.Estimator<Long> delegate;
+    private final long deadline;
+
+    private DeadlineEstimator(TopItems.Estimator<Long> delegate, long deadline) {
+      this.delegate = delegate;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public double estimate(Long userID) throws TasteException {
+      return System.nanoTime() - deadline >= 0 ? Double.NaN : delegate.estimate(userID);
+    }
+  }
 }
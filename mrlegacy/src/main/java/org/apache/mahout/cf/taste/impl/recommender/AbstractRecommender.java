@@ -24,6 +24,7 @@ import java.util.List;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.slf4j.Logger;
@@ -62,6 +63,21 @@ public abstract class AbstractRecommender implements Recommender {
   public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
     return recommend(userID, howMany, null);
   }
+
+  /**
+   * <p>
+   * Recommends items as {@link #recommend(long, int, IDRescorer)} does, but stops scoring candidate items once the
+   * deadline passes and returns the best found so far. Implementations which support this score the most promising
+   * candidates first. This default implementation ignores the deadline and scores all candidates.
+   * </p>
+   *
+   * @param deadline value of {@link System#nanoTime()} after which no more candidates should be scored
+   * @return recommendations, and whether the deadline cut them short
+   */
+  public AnytimeRecommendations recommend(long userID, int howMany, IDRescorer rescorer, long deadline)
+    throws TasteException {
+    return new AnytimeRecommendations(recommend(userID, howMany, rescorer), false, -1);
+  }
   
   /**
    * <p>
@@ -110,5 +126,13 @@ public abstract class AbstractRecommender implements Recommender {
   protected FastIDSet getAllOtherItems(long userID, PreferenceArray preferencesFromUser) throws TasteException {
     return candidateItemsStrategy.getCandidateItems(userID, preferencesFromUser, dataModel);
   }
+
+  /**
+   * @return true if candidate items are found by {@link PreferredItemsNeighborhoodCandidateItemsStrategy}, as the
+   *  items of users who prefer any of the user's items, so that a caller may generate them as it goes instead
+   */
+  boolean hasPreferredItemsNeighborhoodCandidates() {
+    return candidateItemsStrategy.getClass() == PreferredItemsNeighborhoodCandidateItemsStrategy.class;
+  }
   
 }
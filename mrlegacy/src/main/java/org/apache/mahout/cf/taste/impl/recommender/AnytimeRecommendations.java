@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender;
+
+import java.util.List;
+
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+/**
+ * <p>
+ * The result of {@link AbstractRecommender#recommend(long, int, org.apache.mahout.cf.taste.recommender.IDRescorer,
+ * long)}: the best recommendations found before the deadline, and whether the deadline cut the search short.
+ * </p>
+ */
+public final class AnytimeRecommendations {
+
+  private final List<RecommendedItem> recommendedItems;
+  private final boolean truncated;
+  private final int numCandidatesScored;
+
+  public AnytimeRecommendations(List<RecommendedItem> recommendedItems, boolean truncated, int numCandidatesScored) {
+    this.recommendedItems = recommendedItems;
+    this.truncated = truncated;
+    this.numCandidatesScored = numCandidatesScored;
+  }
+
+  /**
+   * @return recommended items, ordered from most strongly recommended to least
+   */
+  public List<RecommendedItem> getRecommendedItems() {
+    return recommendedItems;
+  }
+
+  /**
+   * @return true if some candidate items were not scored because the deadline passed
+   */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /**
+   * @return number of candidate items scored, or -1 if not known
+   */
+  public int getNumCandidatesScored() {
+    return numCandidatesScored;
+  }
+
+  @Override
+  public String toString() {
+    return "AnytimeRecommendations[truncated:" + truncated + ", scored:" + numCandidatesScored + ", items:"
+        + recommendedItems + ']';
+  }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+
+/**
+ * Keeps the top items among candidates scored one at a time, in the manner of
+ * {@link TopItems#getTopItems(int, LongPrimitiveIterator, IDRescorer, TopItems.Estimator)}, until a deadline
+ * passes. Each candidate is scored at most once. Candidates are either given up front, or are any items offered
+ * which are not excluded, so that callers can generate them as they go.
+ */
+final class AnytimeTopItems {
+
+  private final int howMany;
+  private final IDRescorer rescorer;
+  private final TopItems.Estimator<Long> estimator;
+  private final long deadline;
+  private final FastIDSet candidates;
+  private final FastIDSet excluded;
+  private final FastIDSet scored;
+  private final Queue<RecommendedItem> topItems;
+  private boolean full;
+  private double lowestTopValue = Double.NEGATIVE_INFINITY;
+  private boolean truncated;
+
+  /**
+   * @param candidates the only items which may be scored
+   * @param deadline value of {@link System#nanoTime()} after which no more candidates are scored
+   */
+  AnytimeTopItems(int howMany,
+                  FastIDSet candidates,
+                  IDRescorer rescorer,
+                  TopItems.Estimator<Long> estimator,
+                  long deadline) {
+    this(howMany, Preconditions.checkNotNull(candidates), null, rescorer, estimator, deadline);
+  }
+
+  /**
+   * @param excluded items which may not be scored; any other item offered is a candidate
+   * @param deadline value of {@link System#nanoTime()} after which no more candidates are scored
+   */
+  static AnytimeTopItems excluding(int howMany,
+                                   FastIDSet excluded,
+                                   IDRescorer rescorer,
+                                   TopItems.Estimator<Long> estimator,
+                                   long deadline) {
+    return new AnytimeTopItems(howMany, null, Preconditions.checkNotNull(excluded), rescorer, estimator, deadline);
+  }
+
+  private AnytimeTopItems(int howMany,
+                          FastIDSet candidates,
+                          FastIDSet excluded,
+                          IDRescorer rescorer,
+                          TopItems.Estimator<Long> estimator,
+                          long deadline) {
+    this.howMany = howMany;
+    this.candidates = candidates;
+    this.excluded = excluded;
+    this.rescorer = rescorer;
+    this.estimator = estimator;
+    this.deadline = deadline;
+    this.scored = new FastIDSet();
+    this.topItems = new PriorityQueue<RecommendedItem>(howMany + 1,
+        Collections.reverseOrder(ByValueRecommendedItemComparator.getInstance()));
+  }
+
+  /**
+   * @return false once every candidate given up front is scored; always true if candidates are not given
+   */
+  boolean hasCandidatesLeft() {
+    return candidates == null || scored.size() < candidates.size();
+  }
+
+  /**
+   * Callers generating candidates check this before each costly step, such as reading more items to offer. Once
+   * every candidate given up front is scored, there is nothing left to cut short, so time is never up.
+   *
+   * @return false once the deadline has passed, in which case the recommendations are marked truncated
+   */
+  boolean hasTimeLeft() {
+    if (!hasCandidatesLeft()) {
+      return true;
+    }
+    if (!truncated && System.nanoTime() - deadline >= 0) {
+      truncated = true;
+    }
+    return !truncated;
+  }
+
+  /**
+   * Scores the item if it is a candidate not yet scored. The deadline is checked on every call, whether or not
+   * the item is a candidate.
+   *
+   * @return false if the deadline has passed
+   */
+  boolean offer(long itemID) throws TasteException {
+    if (!hasTimeLeft()) {
+      return false;
+    }
+    if (candidates == null ? excluded.contains(itemID) : !candidates.contains(itemID)) {
+      return true;
+    }
+    if (!scored.add(itemID)) {
+      return true;
+    }
+    if (rescorer != null && rescorer.isFiltered(itemID)) {
+      return true;
+    }
+    double preference;
+    try {
+      preference = estimator.estimate(itemID);
+    } catch (NoSuchItemException nsie) {
+      return true;
+    }
+    double rescoredPref = rescorer == null ? preference : rescorer.rescore(itemID, preference);
+    if (!Double.isNaN(rescoredPref) && (!full || rescoredPref > lowestTopValue)) {
+      topItems.add(new GenericRecommendedItem(itemID, (float) rescoredPref));
+      if (full) {
+        topItems.poll();
+      } else if (topItems.size() > howMany) {
+        full = true;
+        topItems.poll();
+      }
+      lowestTopValue = topItems.peek().getValue();
+    }
+    return true;
+  }
+
+  /**
+   * Offers each item in turn, see {@link #offer(long)}.
+   *
+   * @return false if the deadline has passed
+   */
+  boolean offerAll(LongPrimitiveIterator itemIDs) throws TasteException {
+    while (itemIDs.hasNext()) {
+      if (!offer(itemIDs.nextLong())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  AnytimeRecommendations getRecommendations() {
+    List<RecommendedItem> result = Lists.newArrayList(topItems);
+    Collections.sort(result, ByValueRecommendedItemComparator.getInstance());
+    return new AnytimeRecommendations(result, truncated, scored.size());
+  }
+
+}
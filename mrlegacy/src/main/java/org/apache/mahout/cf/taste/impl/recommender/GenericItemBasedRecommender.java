@@ -22,6 +22,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
@@ -65,6 +66,11 @@ import com.google.common.base.Preconditions;
  * {@link org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity} too, which computes
  * similarities in real-time, but will probably find this painfully slow for large amounts of data.
  * </p>
+ *
+ * <p>
+ * For users with many preferences, or with many candidate items, scoring candidates in {@link #recommend} can be
+ * spread over several threads; see {@link #setCandidateScoringExecutor(ExecutorService, int)}.
+ * </p>
  */
 public class GenericItemBasedRecommender extends AbstractRecommender implements ItemBasedRecommender {
   
@@ -74,8 +80,12 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
   private final MostSimilarItemsCandidateItemsStrategy mostSimilarItemsCandidateItemsStrategy;
   private final RefreshHelper refreshHelper;
   private EstimatedPreferenceCapper capper;
+  private volatile ExecutorService candidateScoringExecutor;
+  private volatile int numCandidatePartitions;
 
   private static final boolean EXCLUDE_ITEM_IF_NOT_SIMILAR_TO_ALL_BY_DEFAULT = true;
+  /** Below this many candidates per partition, handing work to other threads costs more than it saves. */
+  private static final int MIN_CANDIDATES_PER_PARTITION = 64;
 
   public GenericItemBasedRecommender(DataModel dataModel,
                                      ItemSimilarity similarity,
@@ -115,6 +125,25 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
   public ItemSimilarity getSimilarity() {
     return similarity;
   }
+
+  /**
+   * <p>
+   * Lets {@link #recommend(long, int, IDRescorer)} score candidate items concurrently. Candidates are split into
+   * up to {@code numPartitions} partitions, each scored as a task on the given executor, and the top items of
+   * each are merged. Small candidate sets are still scored on the calling thread. The executor is not shut down
+   * by this class. The {@link ItemSimilarity} and any {@link IDRescorer} passed to {@code recommend} must be
+   * thread-safe.
+   * </p>
+   *
+   * @param executor executor to score candidates on, or {@code null} to score them on the calling thread
+   * @param numPartitions maximum number of partitions to split candidates into; normally the executor's number
+   *  of threads
+   */
+  public void setCandidateScoringExecutor(ExecutorService executor, int numPartitions) {
+    Preconditions.checkArgument(numPartitions >= 1, "numPartitions must be at least 1");
+    this.numCandidatePartitions = numPartitions;
+    this.candidateScoringExecutor = executor;
+  }
   
   @Override
   public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
@@ -130,12 +159,74 @@ public class GenericItemBasedRecommender extends AbstractRecommender implements
 
     TopItems.Estimator<Long> estimator = new Estimator(userID, preferencesFromUser);
 
-    List<RecommendedItem> topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer,
-      estimator);
+    List<RecommendedItem> topItems;
+    ExecutorService executor = candidateScoringExecutor;
+    int numPartitions = Math.min(numCandidatePartitions, possibleItemIDs.size() / MIN_CANDIDATES_PER_PARTITION);
+    if (executor != null && numPartitions > 1) {
+      topItems = TopItems.getTopItems(howMany, possibleItemIDs.toArray(), rescorer, estimator, executor,
+        numPartitions);
+    } else {
+      topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer, estimator);
+    }
 
     log.debug("Recommendations are: {}", topItems);
     return topItems;
   }
+
+  /**
+   * <p>
+   * Scores candidate items reached from the user's most preferred items first: the user's items are taken in order
+   * of decreasing preference, and for each, the candidates preferred by the same users are scored. The deadline is
+   * checked before each read of the data model and each candidate scored. With the default
+   * {@link PreferredItemsNeighborhoodCandidateItemsStrategy}, this walk reaches every candidate, so candidates are
+   * not found up front; with another {@link CandidateItemsStrategy}, they are, and those not reached by the walk
+   * are scored last. Candidate scoring is never split over threads here.
+   * </p>
+   */
+  @Override
+  public AnytimeRecommendations recommend(long userID, int howMany, IDRescorer rescorer, long deadline)
+    throws TasteException {
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+    log.debug("Recommending items for user ID '{}' before deadline", userID);
+
+    DataModel dataModel = getDataModel();
+    PreferenceArray preferencesFromUser = dataModel.getPreferencesFromUser(userID);
+    if (preferencesFromUser.length() == 0) {
+      return new AnytimeRecommendations(Collections.<RecommendedItem>emptyList(), false, 0);
+    }
+
+    TopItems.Estimator<Long> estimator = new Estimator(userID, preferencesFromUser);
+    FastIDSet possibleItemIDs = null;
+    AnytimeTopItems topItems;
+    if (hasPreferredItemsNeighborhoodCandidates()) {
+      topItems = AnytimeTopItems.excluding(howMany, new FastIDSet(preferencesFromUser.getIDs()), rescorer, estimator,
+          deadline);
+    } else {
+      possibleItemIDs = getAllOtherItems(userID, preferencesFromUser);
+      topItems = new AnytimeTopItems(howMany, possibleItemIDs, rescorer, estimator, deadline);
+    }
+
+    PreferenceArray seeds = preferencesFromUser.clone();
+    seeds.sortByValueReversed();
+    FastIDSet walkedUserIDs = new FastIDSet();
+    walkedUserIDs.add(userID);
+    for (int i = 0; i < seeds.length() && topItems.hasCandidatesLeft() && topItems.hasTimeLeft(); i++) {
+      PreferenceArray prefsForSeed = dataModel.getPreferencesForItem(seeds.getItemID(i));
+      for (int j = 0; j < prefsForSeed.length() && topItems.hasCandidatesLeft() && topItems.hasTimeLeft(); j++) {
+        long coRaterID = prefsForSeed.getUserID(j);
+        if (walkedUserIDs.add(coRaterID)) {
+          topItems.offerAll(dataModel.getItemIDsFromUser(coRaterID).iterator());
+        }
+      }
+    }
+    if (possibleItemIDs != null && topItems.hasTimeLeft()) {
+      topItems.offerAll(possibleItemIDs.iterator());
+    }
+
+    AnytimeRecommendations recommendations = topItems.getRecommendations();
+    log.debug("Recommendations are: {}", recommendations);
+    return recommendations;
+  }
   
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
@@ -26,6 +26,7 @@ import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.neighborhood.UserNeighborhood;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
@@ -100,6 +101,42 @@ public class GenericUserBasedRecommender extends AbstractRecommender implements
     log.debug("Recommendations are: {}", topItems);
     return topItems;
   }
+
+  /**
+   * <p>
+   * Scores candidate items in the order of the neighbors who prefer them, so that with a neighborhood ordered by
+   * similarity, such as {@link NearestNUserNeighborhood}'s, the items of the most similar users are scored first.
+   * Candidates are generated as the neighbors' items are read, and the deadline is checked before each read and
+   * each candidate scored. A {@link NearestNUserNeighborhood} also stops comparing users at the deadline; other
+   * neighborhoods are computed in full.
+   * </p>
+   */
+  @Override
+  public AnytimeRecommendations recommend(long userID, int howMany, IDRescorer rescorer, long deadline)
+    throws TasteException {
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+    log.debug("Recommending items for user ID '{}' before deadline", userID);
+
+    long[] theNeighborhood = neighborhood instanceof NearestNUserNeighborhood
+        ? ((NearestNUserNeighborhood) neighborhood).getUserNeighborhood(userID, deadline)
+        : neighborhood.getUserNeighborhood(userID);
+    if (theNeighborhood.length == 0) {
+      // The deadline may have passed before any neighbor was found
+      boolean truncated = System.nanoTime() - deadline >= 0;
+      return new AnytimeRecommendations(Collections.<RecommendedItem>emptyList(), truncated, 0);
+    }
+
+    DataModel dataModel = getDataModel();
+    AnytimeTopItems topItems = AnytimeTopItems.excluding(howMany, dataModel.getItemIDsFromUser(userID), rescorer,
+        new Estimator(userID, theNeighborhood), deadline);
+    for (int i = 0; i < theNeighborhood.length && topItems.hasTimeLeft(); i++) {
+      topItems.offerAll(dataModel.getItemIDsFromUser(theNeighborhood[i]).iterator());
+    }
+
+    AnytimeRecommendations recommendations = topItems.getRecommendations();
+    log.debug("Recommendations are: {}", recommendations);
+    return recommendations;
+  }
   
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
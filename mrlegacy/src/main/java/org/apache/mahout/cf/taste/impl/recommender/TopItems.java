@@ -17,16 +17,22 @@
 
 package org.apache.mahout.cf.taste.impl.recommender;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Lists;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.GenericUserSimilarity;
@@ -89,6 +95,111 @@ public final class TopItems {
     return result;
   }
   
+  /**
+   * Like {@link #getTopItems(int, LongPrimitiveIterator, IDRescorer, Estimator)}, for items whose estimates have
+   * already been computed.
+   *
+   * @param estimates estimate for the item at the same position in {@code possibleItemIDs}, or {@link Double#NaN}
+   *  if it could not be estimated; such items are skipped without being passed to the rescorer
+   */
+  public static List<RecommendedItem> getTopItems(int howMany,
+                                                  long[] possibleItemIDs,
+                                                  double[] estimates,
+                                                  IDRescorer rescorer) {
+    Preconditions.checkArgument(possibleItemIDs.length == estimates.length, "possibleItemIDs and estimates differ");
+    Queue<RecommendedItem> topItems = new PriorityQueue<RecommendedItem>(howMany + 1,
+      Collections.reverseOrder(ByValueRecommendedItemComparator.getInstance()));
+    boolean full = false;
+    double lowestTopValue = Double.NEGATIVE_INFINITY;
+    for (int i = 0; i < possibleItemIDs.length; i++) {
+      long itemID = possibleItemIDs[i];
+      double estimate = estimates[i];
+      if (!Double.isNaN(estimate) && (rescorer == null || !rescorer.isFiltered(itemID))) {
+        double rescoredPref = rescorer == null ? estimate : rescorer.rescore(itemID, estimate);
+        if (!Double.isNaN(rescoredPref) && (!full || rescoredPref > lowestTopValue)) {
+          topItems.add(new GenericRecommendedItem(itemID, (float) rescoredPref));
+          if (full) {
+            topItems.poll();
+          } else if (topItems.size() > howMany) {
+            full = true;
+            topItems.poll();
+          }
+          lowestTopValue = topItems.peek().getValue();
+        }
+      }
+    }
+    List<RecommendedItem> result = Lists.newArrayList(topItems);
+    Collections.sort(result, ByValueRecommendedItemComparator.getInstance());
+    return result;
+  }
+
+  /**
+   * Like {@link #getTopItems(int, LongPrimitiveIterator, IDRescorer, Estimator)}, but splits the candidates into
+   * partitions which are scored concurrently on the given {@link ExecutorService}. Each partition keeps its own
+   * top {@code howMany} items, and these are merged at the end. The {@link Estimator} and {@link IDRescorer} must
+   * be safe to call from several threads at once.
+   *
+   * @param numPartitions number of partitions to split candidates into; normally about the number of threads
+   *  available to the executor
+   */
+  public static List<RecommendedItem> getTopItems(final int howMany,
+                                                  long[] possibleItemIDs,
+                                                  final IDRescorer rescorer,
+                                                  final Estimator<Long> estimator,
+                                                  ExecutorService executor,
+                                                  int numPartitions) throws TasteException {
+    Preconditions.checkArgument(possibleItemIDs != null, "possibleItemIDs is null");
+    Preconditions.checkArgument(estimator != null, "estimator is null");
+    Preconditions.checkArgument(executor != null, "executor is null");
+    Preconditions.checkArgument(numPartitions >= 1, "numPartitions must be at least 1");
+
+    int numCandidates = possibleItemIDs.length;
+    int partitionSize = (numCandidates + numPartitions - 1) / numPartitions;
+    if (numPartitions == 1 || partitionSize == 0) {
+      return getTopItems(howMany, new LongPrimitiveArrayIterator(possibleItemIDs), rescorer, estimator);
+    }
+
+    List<Future<List<RecommendedItem>>> futures = Lists.newArrayListWithCapacity(numPartitions);
+    for (int from = 0; from < numCandidates; from += partitionSize) {
+      final long[] partition = Arrays.copyOfRange(possibleItemIDs, from, Math.min(from + partitionSize, numCandidates));
+      futures.add(executor.submit(new Callable<List<RecommendedItem>>() {
+        @Override
+        public List<RecommendedItem> call() throws TasteException {
+          return getTopItems(howMany, new LongPrimitiveArrayIterator(partition), rescorer, estimator);
+        }
+      }));
+    }
+
+    List<RecommendedItem> merged = Lists.newArrayListWithCapacity(howMany * futures.size());
+    try {
+      for (Future<List<RecommendedItem>> future : futures) {
+        merged.addAll(future.get());
+      }
+    } catch (InterruptedException ie) {
+      cancelAll(futures);
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      cancelAll(futures);
+      Throwable cause = ee.getCause();
+      if (cause instanceof TasteException) {
+        throw (TasteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new TasteException(cause);
+    }
+    Collections.sort(merged, ByValueRecommendedItemComparator.getInstance());
+    return merged.size() > howMany ? Lists.newArrayList(merged.subList(0, howMany)) : merged;
+  }
+
+  private static void cancelAll(Iterable<? extends Future<?>> futures) {
+    for (Future<?> future : futures) {
+      future.cancel(true);
+    }
+  }
+
   public static long[] getTopUsers(int howMany,
                                    LongPrimitiveIterator allUserIDs,
                                    IDRescorer rescorer,
@@ -17,7 +17,10 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.svd;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
@@ -36,11 +39,18 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.mahout.math.map.OpenIntObjectHashMap;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * factorizes the rating matrix using "Alternating-Least-Squares with Weighted-λ-Regularization" as described in
@@ -49,6 +59,9 @@ import java.util.concurrent.TimeUnit;
  *
  *  also supports the implicit feedback variant of this approach as described in "Collaborative Filtering for Implicit
  *  Feedback Datasets" available at http://research.yahoo.com/pub/2433
+ *
+ *  For large data, {@link #useHighThroughputMode(double)} switches to an implementation which reads the data model
+ *  once, reuses solver buffers per thread and can stop early once the training error stops improving.
  */
 public class ALSWRFactorizer extends AbstractFactorizer {
 
@@ -67,6 +80,19 @@ public class ALSWRFactorizer extends AbstractFactorizer {
 
   private final int numTrainingThreads;
 
+  /** implicit feedback solvers for folding in users and items, for {@link #foldInFactorization} */
+  private final ImplicitFeedbackAlternatingLeastSquaresSolver[] foldInSolvers =
+      new ImplicitFeedbackAlternatingLeastSquaresSolver[2];
+  private Factorization foldInFactorization;
+
+  private volatile boolean highThroughput;
+  /** minimum decrease in training RMSE for another iteration to run, in high-throughput mode */
+  private volatile double convergenceThreshold;
+  private volatile List<IterationStatistics> iterationStatistics = Collections.emptyList();
+
+  /** number of rows a training thread takes at a time, in high-throughput mode */
+  private static final int ROWS_PER_TASK = 64;
+
   private static final double DEFAULT_ALPHA = 40;
 
   private static final Logger log = LoggerFactory.getLogger(ALSWRFactorizer.class);
@@ -158,8 +184,49 @@ public class ALSWRFactorizer extends AbstractFactorizer {
     }
   }
 
+  /**
+   * <p>
+   * Computes factorizations with an implementation meant for many ratings and many cores. Ratings are read from the
+   * data model once per factorization instead of once per iteration, each training thread solves for many users or
+   * items with the same buffers, and for implicit feedback Y'Y is computed once per half-iteration and shared by
+   * all threads. The least squares problems are solved by Cholesky decomposition.
+   * </p>
+   *
+   * <p>
+   * After each iteration the root mean squared error over the training ratings is computed (for implicit feedback,
+   * against a preference of 1 for every rated item), and {@link #getIterationStatistics()} records it together with
+   * the time taken.
+   * </p>
+   *
+   * @param convergenceThreshold stop before the configured number of iterations once an iteration lowers the training
+   *  RMSE by less than this; 0 to always run every iteration
+   */
+  public void useHighThroughputMode(double convergenceThreshold) {
+    Preconditions.checkArgument(convergenceThreshold >= 0.0, "convergenceThreshold must be non-negative");
+    this.convergenceThreshold = convergenceThreshold;
+    highThroughput = true;
+  }
+
+  /**
+   * @return statistics for each iteration of the last factorization computed in high-throughput mode
+   */
+  public List<IterationStatistics> getIterationStatistics() {
+    return iterationStatistics;
+  }
+
   @Override
   public Factorization factorize() throws TasteException {
+    Factorization factorization = highThroughput ? factorizeHighThroughput() : factorizeDefault();
+    // Later fold-ins are against the new factorization; don't keep the previous one alive for them
+    synchronized (foldInSolvers) {
+      foldInSolvers[0] = null;
+      foldInSolvers[1] = null;
+      foldInFactorization = null;
+    }
+    return factorization;
+  }
+
+  private Factorization factorizeDefault() throws TasteException {
     log.info("starting to compute the factorization...");
     final Features features = new Features(this);
 
@@ -257,6 +324,502 @@ public class ALSWRFactorizer extends AbstractFactorizer {
     return createFactorization(features.getU(), features.getM());
   }
 
+  private Factorization factorizeHighThroughput() throws TasteException {
+    log.info("starting to compute the factorization in high-throughput mode...");
+    Features features = new Features(this);
+    double[][] U = features.getU();
+    double[][] M = features.getM();
+
+    long start = System.currentTimeMillis();
+    int numUsers = dataModel.getNumUsers();
+    int[][] userItemIndices = new int[numUsers][];
+    float[][] userValues = new float[numUsers][];
+    LongPrimitiveIterator userIDs = dataModel.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      PreferenceArray prefs = dataModel.getPreferencesFromUser(userID);
+      int userIndex = userIndex(userID);
+      userItemIndices[userIndex] = new int[prefs.length()];
+      userValues[userIndex] = new float[prefs.length()];
+      for (int n = 0; n < prefs.length(); n++) {
+        userItemIndices[userIndex][n] = itemIndex(prefs.getItemID(n));
+        userValues[userIndex][n] = prefs.getValue(n);
+      }
+    }
+    int numItems = dataModel.getNumItems();
+    int[][] itemUserIndices = new int[numItems][];
+    float[][] itemValues = new float[numItems][];
+    LongPrimitiveIterator itemIDs = dataModel.getItemIDs();
+    while (itemIDs.hasNext()) {
+      long itemID = itemIDs.nextLong();
+      PreferenceArray prefs = dataModel.getPreferencesForItem(itemID);
+      int itemIndex = itemIndex(itemID);
+      itemUserIndices[itemIndex] = new int[prefs.length()];
+      itemValues[itemIndex] = new float[prefs.length()];
+      for (int n = 0; n < prefs.length(); n++) {
+        itemUserIndices[itemIndex][n] = userIndex(prefs.getUserID(n));
+        itemValues[itemIndex][n] = prefs.getValue(n);
+      }
+    }
+    log.info("read ratings in {} ms", System.currentTimeMillis() - start);
+
+    List<IterationStatistics> statistics = Lists.newArrayList();
+    ExecutorService queue = createQueue();
+    try {
+      double previousRmse = Double.NaN;
+      for (int iteration = 0; iteration < numIterations; iteration++) {
+        long iterationStart = System.currentTimeMillis();
+        int unsolvedUsers = sweep(queue, M, U, userItemIndices, userValues);
+        long userMillis = System.currentTimeMillis() - iterationStart;
+        long itemStart = System.currentTimeMillis();
+        int unsolvedItems = sweep(queue, U, M, itemUserIndices, itemValues);
+        long itemMillis = System.currentTimeMillis() - itemStart;
+        if (unsolvedUsers > 0 || unsolvedItems > 0) {
+          log.warn("iteration {}: unable to solve least squares problems for {} users and {} items, leaving their "
+              + "features unchanged", new Object[] {iteration, unsolvedUsers, unsolvedItems});
+        }
+        double rmse = rmse(queue, U, M, userItemIndices, userValues);
+        IterationStatistics iterationStatistics = new IterationStatistics(iteration, userMillis, itemMillis, rmse);
+        statistics.add(iterationStatistics);
+        log.info("{}", iterationStatistics);
+        if (convergenceThreshold > 0.0 && previousRmse - rmse < convergenceThreshold) {
+          log.info("training RMSE improved by less than {}, stopping", convergenceThreshold);
+          break;
+        }
+        previousRmse = rmse;
+      }
+    } finally {
+      queue.shutdown();
+    }
+    iterationStatistics = Collections.unmodifiableList(statistics);
+
+    log.info("finished computation of the factorization...");
+    return createFactorization(U, M);
+  }
+
+  /**
+   * Solves every row of {@code solved} against the fixed feature matrix, in parallel.
+   *
+   * @return number of rows whose least squares problem could not be solved, and which were left unchanged
+   */
+  private int sweep(ExecutorService queue,
+                     final double[][] fixed,
+                     final double[][] solved,
+                     final int[][] indices,
+                     final float[][] values) throws TasteException {
+    final double[][] fixedGram = usesImplicitFeedback ? gram(queue, fixed) : null;
+    final AtomicInteger nextRow = new AtomicInteger();
+    List<Callable<Integer>> tasks = Lists.newArrayListWithCapacity(numTrainingThreads);
+    for (int thread = 0; thread < numTrainingThreads; thread++) {
+      tasks.add(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          Solver solver = new Solver(numFeatures);
+          int unsolved = 0;
+          int start;
+          while ((start = nextRow.getAndAdd(ROWS_PER_TASK)) < solved.length) {
+            int end = Math.min(start + ROWS_PER_TASK, solved.length);
+            for (int row = start; row < end; row++) {
+              if (indices[row] != null && indices[row].length > 0
+                  && !solver.solve(fixed, indices[row], values[row], fixedGram, solved[row])) {
+                unsolved++;
+              }
+            }
+          }
+          return unsolved;
+        }
+      });
+    }
+    int unsolved = 0;
+    for (int partial : invokeAll(queue, tasks)) {
+      unsolved += partial;
+    }
+    return unsolved;
+  }
+
+  /**
+   * @return Y'Y for the rows of the given matrix, summed from partial products computed in parallel
+   */
+  private double[][] gram(ExecutorService queue, final double[][] matrix) throws TasteException {
+    final double[][] gram = new double[numFeatures][numFeatures];
+    final AtomicInteger nextRow = new AtomicInteger();
+    List<Callable<Void>> tasks = Lists.newArrayListWithCapacity(numTrainingThreads);
+    for (int thread = 0; thread < numTrainingThreads; thread++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          double[][] partial = new double[numFeatures][numFeatures];
+          int start;
+          while ((start = nextRow.getAndAdd(ROWS_PER_TASK)) < matrix.length) {
+            int end = Math.min(start + ROWS_PER_TASK, matrix.length);
+            for (int row = start; row < end; row++) {
+              addOuterProduct(partial, matrix[row], 1.0);
+            }
+          }
+          synchronized (gram) {
+            for (int i = 0; i < numFeatures; i++) {
+              for (int j = 0; j <= i; j++) {
+                gram[i][j] += partial[i][j];
+              }
+            }
+          }
+          return null;
+        }
+      });
+    }
+    invokeAll(queue, tasks);
+    return gram;
+  }
+
+  /**
+   * @return root mean squared error of the factorization over the given ratings, or over a preference of 1 for
+   *  each rating with implicit feedback
+   */
+  private double rmse(ExecutorService queue,
+                      final double[][] U,
+                      final double[][] M,
+                      final int[][] userItemIndices,
+                      final float[][] userValues) throws TasteException {
+    final AtomicInteger nextRow = new AtomicInteger();
+    List<Callable<Double>> tasks = Lists.newArrayListWithCapacity(numTrainingThreads);
+    for (int thread = 0; thread < numTrainingThreads; thread++) {
+      tasks.add(new Callable<Double>() {
+        @Override
+        public Double call() {
+          double sumSquaredErrors = 0.0;
+          int start;
+          while ((start = nextRow.getAndAdd(ROWS_PER_TASK)) < U.length) {
+            int end = Math.min(start + ROWS_PER_TASK, U.length);
+            for (int user = start; user < end; user++) {
+              int[] itemIndices = userItemIndices[user];
+              for (int n = 0; itemIndices != null && n < itemIndices.length; n++) {
+                double[] itemFeatures = M[itemIndices[n]];
+                double estimate = 0.0;
+                for (int feature = 0; feature < numFeatures; feature++) {
+                  estimate += U[user][feature] * itemFeatures[feature];
+                }
+                double err = (usesImplicitFeedback ? 1.0 : userValues[user][n]) - estimate;
+                sumSquaredErrors += err * err;
+              }
+            }
+          }
+          return sumSquaredErrors;
+        }
+      });
+    }
+    double sumSquaredErrors = 0.0;
+    for (double partial : invokeAll(queue, tasks)) {
+      sumSquaredErrors += partial;
+    }
+    long numRatings = 0;
+    for (int[] itemIndices : userItemIndices) {
+      numRatings += itemIndices == null ? 0 : itemIndices.length;
+    }
+    return numRatings == 0 ? 0.0 : Math.sqrt(sumSquaredErrors / numRatings);
+  }
+
+  private static <T> List<T> invokeAll(ExecutorService queue, List<Callable<T>> tasks) throws TasteException {
+    List<T> results = Lists.newArrayListWithCapacity(tasks.size());
+    try {
+      for (Future<T> future : queue.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException ie) {
+      throw new TasteException(ie);
+    } catch (ExecutionException ee) {
+      throw new TasteException(ee.getCause());
+    }
+    return results;
+  }
+
+  /**
+   * Adds {@code weight * v * v'} to the lower triangle of the given matrix.
+   */
+  static void addOuterProduct(double[][] matrix, double[] v, double weight) {
+    for (int i = 0; i < v.length; i++) {
+      double weightTimesVi = weight * v[i];
+      double[] matrixRow = matrix[i];
+      for (int j = 0; j <= i; j++) {
+        matrixRow[j] += weightTimesVi * v[j];
+      }
+    }
+  }
+
+  /**
+   * Buffers to solve one row's least squares problem, used by a single training thread for many rows so that
+   * solving allocates nothing.
+   */
+  private final class Solver {
+
+    private final double[][] a;
+    private final double[] b;
+
+    private Solver(int numFeatures) {
+      a = new double[numFeatures][numFeatures];
+      b = new double[numFeatures];
+    }
+
+    /**
+     * Solves for one row and writes the result into {@code result}.
+     *
+     * @param fixedGram Y'Y of the fixed features for implicit feedback, lower triangle only, or null
+     * @return false if the problem could not be solved, in which case {@code result} is left as it was
+     */
+    boolean solve(double[][] fixed, int[] indices, float[] values, double[][] fixedGram, double[] result) {
+      for (int i = 0; i < numFeatures; i++) {
+        Arrays.fill(a[i], 0.0);
+      }
+      Arrays.fill(b, 0.0);
+      if (fixedGram == null) {
+        // explicit feedback: M_i M_i' + lambda n_i E, and M_i R_i
+        for (int n = 0; n < indices.length; n++) {
+          double[] features = fixed[indices[n]];
+          addOuterProduct(a, features, 1.0);
+          addScaled(b, features, values[n]);
+        }
+        addToDiagonal(a, lambda * indices.length);
+      } else {
+        // implicit feedback: Y'Y + Y'(C_u - I)Y + lambda E, and Y'C_u p(u)
+        for (int i = 0; i < numFeatures; i++) {
+          System.arraycopy(fixedGram[i], 0, a[i], 0, i + 1);
+        }
+        for (int n = 0; n < indices.length; n++) {
+          double[] features = fixed[indices[n]];
+          double confidence = 1.0 + alpha * values[n];
+          addOuterProduct(a, features, confidence - 1.0);
+          addScaled(b, features, confidence);
+        }
+        addToDiagonal(a, lambda);
+      }
+      if (!choleskySolve(a, b, numFeatures)) {
+        // Not positive definite, which lambda > 0 rules out; leave the row as it was
+        return false;
+      }
+      System.arraycopy(b, 0, result, 0, numFeatures);
+      return true;
+    }
+
+    private void addScaled(double[] vector, double[] v, double weight) {
+      for (int i = 0; i < numFeatures; i++) {
+        vector[i] += weight * v[i];
+      }
+    }
+
+    private void addToDiagonal(double[][] matrix, double value) {
+      for (int i = 0; i < numFeatures; i++) {
+        matrix[i][i] += value;
+      }
+    }
+  }
+
+  /**
+   * Solves {@code a x = b} for a symmetric positive definite matrix given by its lower triangle. Both arguments
+   * are overwritten: {@code a} with its Cholesky factor and {@code b} with the solution.
+   *
+   * @return false if {@code a} is not positive definite
+   */
+  static boolean choleskySolve(double[][] a, double[] b, int n) {
+    for (int j = 0; j < n; j++) {
+      double[] aj = a[j];
+      double d = aj[j];
+      for (int p = 0; p < j; p++) {
+        d -= aj[p] * aj[p];
+      }
+      if (!(d > 0.0)) {
+        return false;
+      }
+      d = Math.sqrt(d);
+      aj[j] = d;
+      for (int i = j + 1; i < n; i++) {
+        double[] ai = a[i];
+        double sum = ai[j];
+        for (int p = 0; p < j; p++) {
+          sum -= ai[p] * aj[p];
+        }
+        ai[j] = sum / d;
+      }
+    }
+    // L y = b
+    for (int i = 0; i < n; i++) {
+      double[] ai = a[i];
+      double sum = b[i];
+      for (int p = 0; p < i; p++) {
+        sum -= ai[p] * b[p];
+      }
+      b[i] = sum / ai[i];
+    }
+    // L' x = y
+    for (int i = n - 1; i >= 0; i--) {
+      double sum = b[i];
+      for (int p = i + 1; p < n; p++) {
+        sum -= a[p][i] * b[p];
+      }
+      b[i] = sum / a[i][i];
+    }
+    return true;
+  }
+
+  /**
+   * Time taken by, and training error after, one iteration of a factorization in high-throughput mode.
+   */
+  public static final class IterationStatistics {
+
+    private final int iteration;
+    private final long userMillis;
+    private final long itemMillis;
+    private final double rmse;
+
+    IterationStatistics(int iteration, long userMillis, long itemMillis, double rmse) {
+      this.iteration = iteration;
+      this.userMillis = userMillis;
+      this.itemMillis = itemMillis;
+      this.rmse = rmse;
+    }
+
+    public int getIteration() {
+      return iteration;
+    }
+
+    /**
+     * @return time taken to solve for user features, in milliseconds
+     */
+    public long getUserMillis() {
+      return userMillis;
+    }
+
+    /**
+     * @return time taken to solve for item features, in milliseconds
+     */
+    public long getItemMillis() {
+      return itemMillis;
+    }
+
+    /**
+     * @return root mean squared error over the training ratings after this iteration
+     */
+    public double getRmse() {
+      return rmse;
+    }
+
+    @Override
+    public String toString() {
+      return "iteration " + iteration + ": users " + userMillis + " ms, items " + itemMillis + " ms, RMSE " + rmse;
+    }
+  }
+
+  /**
+   * <p>
+   * Computes features for a single user from the user's preferences, keeping the item features of an existing
+   * factorization fixed. This is one half of an iteration of {@link #factorize()}, for one user, and is meant for
+   * users who arrived, or whose preferences changed, after the factorization was computed.
+   * </p>
+   *
+   * <p>
+   * Preferences for items which are not part of the factorization are ignored.
+   * </p>
+   *
+   * @return the user's features, or null if none of the user's items are part of the factorization
+   */
+  public double[] foldInUser(Factorization factorization, PreferenceArray userPrefs) {
+    return foldIn(factorization, userPrefs, true);
+  }
+
+  /**
+   * Like {@link #foldInUser(Factorization, PreferenceArray)}, for an item, keeping user features fixed.
+   *
+   * @return the item's features, or null if none of the item's users are part of the factorization
+   */
+  public double[] foldInItem(Factorization factorization, PreferenceArray itemPrefs) {
+    return foldIn(factorization, itemPrefs, false);
+  }
+
+  private double[] foldIn(Factorization factorization, PreferenceArray prefs, boolean forUser) {
+    int numFactorizationFeatures = factorization.numFeatures();
+    List<Vector> featureVectors = Lists.newArrayListWithCapacity(prefs.length());
+    List<Integer> indices = Lists.newArrayListWithCapacity(prefs.length());
+    List<Float> values = Lists.newArrayListWithCapacity(prefs.length());
+    for (Preference pref : prefs) {
+      try {
+        if (forUser) {
+          long itemID = pref.getItemID();
+          indices.add(factorization.itemIndex(itemID));
+          featureVectors.add(new DenseVector(factorization.getItemFeatures(itemID), true));
+        } else {
+          long userID = pref.getUserID();
+          indices.add(factorization.userIndex(userID));
+          featureVectors.add(new DenseVector(factorization.getUserFeatures(userID), true));
+        }
+        values.add(pref.getValue());
+      } catch (NoSuchItemException nsie) {
+        // not part of the factorization, so it can't contribute
+      } catch (NoSuchUserException nsue) {
+        // same
+      }
+    }
+    if (featureVectors.isEmpty()) {
+      return null;
+    }
+
+    Vector features;
+    if (usesImplicitFeedback) {
+      SequentialAccessSparseVector ratings = new SequentialAccessSparseVector(Integer.MAX_VALUE, values.size());
+      for (int n = 0; n < values.size(); n++) {
+        ratings.set(indices.get(n), values.get(n));
+      }
+      features = implicitFeedbackSolver(factorization, forUser).solve(ratings);
+    } else {
+      double[] ratings = new double[values.size()];
+      for (int n = 0; n < values.size(); n++) {
+        ratings[n] = values.get(n);
+      }
+      features = AlternatingLeastSquaresSolver.solve(featureVectors, new DenseVector(ratings, true), lambda,
+          numFactorizationFeatures);
+    }
+
+    double[] result = new double[numFactorizationFeatures];
+    for (int feature = 0; feature < numFactorizationFeatures; feature++) {
+      result[feature] = features.get(feature);
+    }
+    return result;
+  }
+
+  /**
+   * The implicit feedback solver needs every fixed feature vector, and precomputes their product, so it is
+   * built once per factorization and side.
+   */
+  private ImplicitFeedbackAlternatingLeastSquaresSolver implicitFeedbackSolver(Factorization factorization,
+      boolean forUser) {
+    synchronized (foldInSolvers) {
+      if (foldInFactorization != factorization) {
+        foldInSolvers[0] = null;
+        foldInSolvers[1] = null;
+        foldInFactorization = factorization;
+      }
+      int side = forUser ? 0 : 1;
+      if (foldInSolvers[side] == null) {
+        int size = forUser ? factorization.numItems() : factorization.numUsers();
+        OpenIntObjectHashMap<Vector> fixedFeatures = new OpenIntObjectHashMap<Vector>(size);
+        // Read one row at a time; unless the factorization is compact, the vectors share its rows
+        try {
+          if (forUser) {
+            for (Map.Entry<Long,Integer> entry : factorization.getItemIDMappings()) {
+              fixedFeatures.put(entry.getValue(), new DenseVector(factorization.getItemFeatures(entry.getKey()), true));
+            }
+          } else {
+            for (Map.Entry<Long,Integer> entry : factorization.getUserIDMappings()) {
+              fixedFeatures.put(entry.getValue(), new DenseVector(factorization.getUserFeatures(entry.getKey()), true));
+            }
+          }
+        } catch (TasteException te) {
+          throw new IllegalStateException(te);
+        }
+        foldInSolvers[side] = new ImplicitFeedbackAlternatingLeastSquaresSolver(factorization.numFeatures(),
+            lambda, alpha, fixedFeatures, numTrainingThreads);
+      }
+      return foldInSolvers[side];
+    }
+  }
+
   protected ExecutorService createQueue() {
     return Executors.newFixedThreadPool(numTrainingThreads);
   }
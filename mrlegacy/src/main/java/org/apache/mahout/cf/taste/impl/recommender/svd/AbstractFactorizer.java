@@ -22,10 +22,10 @@ import java.util.concurrent.Callable;
 
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 
 /**
  * base class for {@link Factorizer}s, provides ID to index mapping
@@ -33,8 +33,8 @@ import org.apache.mahout.cf.taste.model.DataModel;
 public abstract class AbstractFactorizer implements Factorizer {
 
   private final DataModel dataModel;
-  private FastByIDMap<Integer> userIDMapping;
-  private FastByIDMap<Integer> itemIDMapping;
+  private OpenLongIntHashMap userIDMapping;
+  private OpenLongIntHashMap itemIDMapping;
   private final RefreshHelper refreshHelper;
 
   protected AbstractFactorizer(DataModel dataModel) throws TasteException {
@@ -59,26 +59,26 @@ public abstract class AbstractFactorizer implements Factorizer {
     return new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
   }
 
-  protected Integer userIndex(long userID) {
-    Integer userIndex = userIDMapping.get(userID);
-    if (userIndex == null) {
-      userIndex = userIDMapping.size();
-      userIDMapping.put(userID, userIndex);
+  protected int userIndex(long userID) {
+    if (userIDMapping.containsKey(userID)) {
+      return userIDMapping.get(userID);
     }
+    int userIndex = userIDMapping.size();
+    userIDMapping.put(userID, userIndex);
     return userIndex;
   }
 
-  protected Integer itemIndex(long itemID) {
-    Integer itemIndex = itemIDMapping.get(itemID);
-    if (itemIndex == null) {
-      itemIndex = itemIDMapping.size();
-      itemIDMapping.put(itemID, itemIndex);
+  protected int itemIndex(long itemID) {
+    if (itemIDMapping.containsKey(itemID)) {
+      return itemIDMapping.get(itemID);
     }
+    int itemIndex = itemIDMapping.size();
+    itemIDMapping.put(itemID, itemIndex);
     return itemIndex;
   }
 
-  private static FastByIDMap<Integer> createIDMapping(int size, LongPrimitiveIterator idIterator) {
-    FastByIDMap<Integer> mapping = new FastByIDMap<Integer>(size);
+  private static OpenLongIntHashMap createIDMapping(int size, LongPrimitiveIterator idIterator) {
+    OpenLongIntHashMap mapping = new OpenLongIntHashMap(size);
     int index = 0;
     while (idIterator.hasNext()) {
       mapping.put(idIterator.nextLong(), index++);
@@ -18,120 +18,574 @@
 package org.apache.mahout.cf.taste.impl.recommender.svd;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.math.function.LongIntProcedure;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 
 /**
  * a factorization of the rating matrix
+ *
+ * Features are normally held as one {@code double[]} per user and item. A {@link #compact()} copy instead holds
+ * each side's features in a single {@code float[]}, one row after another, which takes half the memory and keeps
+ * rows next to each other. {@link #estimate(long, long)} and {@link #estimates(long, long[])} compute
+ * preferences directly from either form; the latter scores several items per pass over the user's features.
  */
 public class Factorization {
 
+  /** Number of items scored together by {@link #estimates(long, long[])}. */
+  private static final int BLOCK_SIZE = 4;
+  /** rough heap taken by one ID to row mapping: key, value and state, at the maps' usual load */
+  private static final long BYTES_PER_MAPPED_ID = 24L;
+  /** rough heap taken by the header of one {@code double[]} row */
+  private static final long BYTES_PER_ROW = 16L;
+
   /** used to find the rows in the user features matrix by userID */
-  private final FastByIDMap<Integer> userIDMapping;
+  private final OpenLongIntHashMap userIDMapping;
   /** used to find the rows in the item features matrix by itemID */
-  private final FastByIDMap<Integer> itemIDMapping;
+  private final OpenLongIntHashMap itemIDMapping;
 
-  /** user features matrix */
+  /** user features matrix, or null if compact */
   private final double[][] userFeatures;
-  /** item features matrix */
+  /** item features matrix, or null if compact */
   private final double[][] itemFeatures;
 
+  private final int numFeatures;
+  /** user features, numFeatures values per row, or null if not compact */
+  private final float[] compactUserFeatures;
+  /** item features, numFeatures values per row, or null if not compact */
+  private final float[] compactItemFeatures;
+
   public Factorization(FastByIDMap<Integer> userIDMapping, FastByIDMap<Integer> itemIDMapping, double[][] userFeatures,
       double[][] itemFeatures) {
+    this(toIntMap(userIDMapping), toIntMap(itemIDMapping), userFeatures, itemFeatures);
+  }
+
+  public Factorization(OpenLongIntHashMap userIDMapping, OpenLongIntHashMap itemIDMapping, double[][] userFeatures,
+      double[][] itemFeatures) {
     this.userIDMapping = Preconditions.checkNotNull(userIDMapping);
     this.itemIDMapping = Preconditions.checkNotNull(itemIDMapping);
     this.userFeatures = userFeatures;
     this.itemFeatures = itemFeatures;
+    this.numFeatures = userFeatures.length > 0 ? userFeatures[0].length : 0;
+    this.compactUserFeatures = null;
+    this.compactItemFeatures = null;
+  }
+
+  private Factorization(OpenLongIntHashMap userIDMapping, OpenLongIntHashMap itemIDMapping, int numFeatures,
+      float[] compactUserFeatures, float[] compactItemFeatures) {
+    this.userIDMapping = userIDMapping;
+    this.itemIDMapping = itemIDMapping;
+    this.userFeatures = null;
+    this.itemFeatures = null;
+    this.numFeatures = numFeatures;
+    this.compactUserFeatures = compactUserFeatures;
+    this.compactItemFeatures = compactItemFeatures;
+  }
+
+  /**
+   * For subclasses which keep mappings and features elsewhere. They must override every method which reads them;
+   * those they don't throw {@link UnsupportedOperationException}.
+   */
+  Factorization(int numFeatures) {
+    this.userIDMapping = null;
+    this.itemIDMapping = null;
+    this.userFeatures = null;
+    this.itemFeatures = null;
+    this.numFeatures = numFeatures;
+    this.compactUserFeatures = null;
+    this.compactItemFeatures = null;
+  }
+
+  /**
+   * @return a copy of this factorization holding features as {@code float}s in one array per side, or this
+   *  factorization if it already does
+   */
+  public Factorization compact() {
+    if (isCompact()) {
+      return this;
+    }
+    return new Factorization(users(), items(), numFeatures, toCompact(userFeatures, numFeatures),
+        toCompact(itemFeatures, numFeatures));
+  }
+
+  public boolean isCompact() {
+    return compactUserFeatures != null;
   }
 
+  /**
+   * @return user features matrix. If this factorization is compact, this is built on each call, so prefer
+   *  {@link #getUserFeatures(long)} to read a few rows.
+   */
   public double[][] allUserFeatures() {
-    return userFeatures;
+    return userFeatures == null ? fromCompact(compactUserFeatures(), numFeatures) : userFeatures;
   }
 
   public double[] getUserFeatures(long userID) throws NoSuchUserException {
-    Integer index = userIDMapping.get(userID);
-    if (index == null) {
+    int index = indexOf(users(), userID);
+    if (index < 0) {
       throw new NoSuchUserException(userID);
     }
-    return userFeatures[index];
+    return userFeatures == null ? row(compactUserFeatures, index, numFeatures) : userFeatures[index];
   }
 
+  /**
+   * @return item features matrix. If this factorization is compact, this is built on each call, so prefer
+   *  {@link #getItemFeatures(long)} or {@link #copyItemFeatures(long, double[], int)} to read rows.
+   */
   public double[][] allItemFeatures() {
-    return itemFeatures;
+    return itemFeatures == null ? fromCompact(compactItemFeatures(), numFeatures) : itemFeatures;
   }
 
   public double[] getItemFeatures(long itemID) throws NoSuchItemException {
-    Integer index = itemIDMapping.get(itemID);
-    if (index == null) {
+    int index = indexOf(items(), itemID);
+    if (index < 0) {
       throw new NoSuchItemException(itemID);
     }
-    return itemFeatures[index];
+    return itemFeatures == null ? row(compactItemFeatures, index, numFeatures) : itemFeatures[index];
+  }
+
+  /**
+   * Copies the item's features into {@code to}, starting at {@code offset}, without building a row for them if
+   * this factorization is compact.
+   */
+  public void copyItemFeatures(long itemID, double[] to, int offset) throws NoSuchItemException {
+    copyItemRow(itemIndex(itemID), to, offset);
+  }
+
+  /**
+   * @return where this factorization stores the item's features, for {@link #copyItemRow(int, double[], int)}
+   *  and {@link #itemDot(int, double[])}, or a negative number if the item is not in it
+   */
+  int itemRow(long itemID) {
+    return indexOf(items(), itemID);
+  }
+
+  /**
+   * Copies the features stored in the given row into {@code to}, starting at {@code offset}.
+   */
+  void copyItemRow(int row, double[] to, int offset) {
+    if (itemFeatures == null) {
+      float[] items = compactItemFeatures();
+      int compactOffset = row * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        to[offset + f] = items[compactOffset + f];
+      }
+    } else {
+      System.arraycopy(itemFeatures[row], 0, to, offset, numFeatures);
+    }
+  }
+
+  /**
+   * @return dot product of the user features with the item features stored in the given row
+   */
+  double itemDot(int row, double[] userFeatures) {
+    double sum = 0.0;
+    if (itemFeatures == null) {
+      float[] items = compactItemFeatures();
+      int compactOffset = row * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        sum += userFeatures[f] * items[compactOffset + f];
+      }
+    } else {
+      double[] item = itemFeatures[row];
+      for (int f = 0; f < numFeatures; f++) {
+        sum += userFeatures[f] * item[f];
+      }
+    }
+    return sum;
+  }
+
+  /**
+   * @return dot product of the user's and item's features
+   */
+  public double estimate(long userID, long itemID) throws NoSuchUserException, NoSuchItemException {
+    int userIndex = userIndex(userID);
+    int itemIndex = itemIndex(itemID);
+    double estimate = 0.0;
+    if (compactUserFeatures == null) {
+      double[] user = userFeatures[userIndex];
+      double[] item = itemFeatures[itemIndex];
+      for (int f = 0; f < numFeatures; f++) {
+        estimate += user[f] * item[f];
+      }
+    } else {
+      int userOffset = userIndex * numFeatures;
+      int itemOffset = itemIndex * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        estimate += compactUserFeatures[userOffset + f] * compactItemFeatures[itemOffset + f];
+      }
+    }
+    return estimate;
+  }
+
+  /**
+   * Estimates the user's preference for many items at once. Items are scored in small blocks, so that each of
+   * the user's features is read once per block rather than once per item.
+   *
+   * @return dot product of the user's features with each item's features, or {@link Double#NaN} for items not in
+   *  this factorization
+   */
+  public double[] estimates(long userID, long[] itemIDs) throws NoSuchUserException {
+    return estimates(getUserFeatures(userID), itemIDs);
+  }
+
+  /**
+   * Like {@link #estimates(long, long[])}, for user features which need not be part of this factorization.
+   */
+  public double[] estimates(double[] userFeatures, long[] itemIDs) {
+    Preconditions.checkArgument(userFeatures.length == numFeatures, "userFeatures must have numFeatures values");
+    int numItemIDs = itemIDs.length;
+    double[] estimates = new double[numItemIDs];
+    // positions in itemIDs of known items, and their rows
+    int[] positions = new int[numItemIDs];
+    int[] rows = new int[numItemIDs];
+    int numKnown = 0;
+    for (int i = 0; i < numItemIDs; i++) {
+      int index = indexOf(items(), itemIDs[i]);
+      if (index < 0) {
+        estimates[i] = Double.NaN;
+      } else {
+        positions[numKnown] = i;
+        rows[numKnown] = index;
+        numKnown++;
+      }
+    }
+    if (compactItemFeatures == null) {
+      estimateBlocks(userFeatures, itemFeatures, positions, rows, numKnown, estimates);
+    } else {
+      estimateBlocks(userFeatures, positions, rows, numKnown, estimates);
+    }
+    return estimates;
+  }
+
+  private void estimateBlocks(double[] user, double[][] items, int[] positions, int[] rows, int numKnown,
+      double[] estimates) {
+    int i = 0;
+    for (; i + BLOCK_SIZE <= numKnown; i += BLOCK_SIZE) {
+      double[] item0 = items[rows[i]];
+      double[] item1 = items[rows[i + 1]];
+      double[] item2 = items[rows[i + 2]];
+      double[] item3 = items[rows[i + 3]];
+      double sum0 = 0.0;
+      double sum1 = 0.0;
+      double sum2 = 0.0;
+      double sum3 = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        double userValue = user[f];
+        sum0 += userValue * item0[f];
+        sum1 += userValue * item1[f];
+        sum2 += userValue * item2[f];
+        sum3 += userValue * item3[f];
+      }
+      estimates[positions[i]] = sum0;
+      estimates[positions[i + 1]] = sum1;
+      estimates[positions[i + 2]] = sum2;
+      estimates[positions[i + 3]] = sum3;
+    }
+    for (; i < numKnown; i++) {
+      double[] item = items[rows[i]];
+      double sum = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        sum += user[f] * item[f];
+      }
+      estimates[positions[i]] = sum;
+    }
+  }
+
+  private void estimateBlocks(double[] user, int[] positions, int[] rows, int numKnown, double[] estimates) {
+    float[] items = compactItemFeatures;
+    int i = 0;
+    for (; i + BLOCK_SIZE <= numKnown; i += BLOCK_SIZE) {
+      int offset0 = rows[i] * numFeatures;
+      int offset1 = rows[i + 1] * numFeatures;
+      int offset2 = rows[i + 2] * numFeatures;
+      int offset3 = rows[i + 3] * numFeatures;
+      double sum0 = 0.0;
+      double sum1 = 0.0;
+      double sum2 = 0.0;
+      double sum3 = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        double userValue = user[f];
+        sum0 += userValue * items[offset0 + f];
+        sum1 += userValue * items[offset1 + f];
+        sum2 += userValue * items[offset2 + f];
+        sum3 += userValue * items[offset3 + f];
+      }
+      estimates[positions[i]] = sum0;
+      estimates[positions[i + 1]] = sum1;
+      estimates[positions[i + 2]] = sum2;
+      estimates[positions[i + 3]] = sum3;
+    }
+    for (; i < numKnown; i++) {
+      int offset = rows[i] * numFeatures;
+      double sum = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        sum += user[f] * items[offset + f];
+      }
+      estimates[positions[i]] = sum;
+    }
   }
 
   public int userIndex(long userID) throws NoSuchUserException {
-    Integer index = userIDMapping.get(userID);
-    if (index == null) {
+    int index = indexOf(users(), userID);
+    if (index < 0) {
       throw new NoSuchUserException(userID);
     }
     return index;
   }
 
   public Iterable<Map.Entry<Long,Integer>> getUserIDMappings() {
-    return userIDMapping.entrySet();
+    return entries(users());
   }
   
   public LongPrimitiveIterator getUserIDMappingKeys() {
-    return userIDMapping.keySetIterator();
+    return keys(users());
   }
 
   public int itemIndex(long itemID) throws NoSuchItemException {
-    Integer index = itemIDMapping.get(itemID);
-    if (index == null) {
+    int index = indexOf(items(), itemID);
+    if (index < 0) {
       throw new NoSuchItemException(itemID);
     }
     return index;
   }
 
   public Iterable<Map.Entry<Long,Integer>> getItemIDMappings() {
-    return itemIDMapping.entrySet();
+    return entries(items());
   }
   
   public LongPrimitiveIterator getItemIDMappingKeys() {
-    return itemIDMapping.keySetIterator();
+    return keys(items());
   }
 
   public int numFeatures() {
-    return userFeatures.length > 0 ? userFeatures[0].length : 0;
+    return numFeatures;
   }
 
   public int numUsers() {
-    return userIDMapping.size();
+    return users().size();
   }
 
   public int numItems() {
-    return itemIDMapping.size();
+    return items().size();
+  }
+
+  /**
+   * @return a rough estimate of the heap this factorization takes: its ID mappings, and its features at
+   *  4 bytes each if compact, or 8 bytes each plus a row header otherwise
+   */
+  public long estimateBytes() {
+    long numRows = (long) numUsers() + numItems();
+    long featureBytes = isCompact() ? 4L * numFeatures : 8L * numFeatures + BYTES_PER_ROW;
+    return numRows * (BYTES_PER_MAPPED_ID + featureBytes);
+  }
+
+  private OpenLongIntHashMap users() {
+    if (userIDMapping == null) {
+      throw notStoredHere();
+    }
+    return userIDMapping;
+  }
+
+  private OpenLongIntHashMap items() {
+    if (itemIDMapping == null) {
+      throw notStoredHere();
+    }
+    return itemIDMapping;
+  }
+
+  private float[] compactUserFeatures() {
+    if (compactUserFeatures == null) {
+      throw notStoredHere();
+    }
+    return compactUserFeatures;
+  }
+
+  private float[] compactItemFeatures() {
+    if (compactItemFeatures == null) {
+      throw notStoredHere();
+    }
+    return compactItemFeatures;
+  }
+
+  /**
+   * Thrown when a subclass created with {@link #Factorization(int)} calls a method it should have overridden,
+   * instead of failing on the missing mappings or features somewhere further down.
+   */
+  private UnsupportedOperationException notStoredHere() {
+    return new UnsupportedOperationException(
+        getClass().getName() + " does not keep its mappings and features in Factorization and must override this");
+  }
+
+  private static float[] toCompact(double[][] features, int numFeatures) {
+    float[] compact = new float[features.length * numFeatures];
+    for (int i = 0; i < features.length; i++) {
+      double[] row = features[i];
+      int offset = i * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        compact[offset + f] = (float) row[f];
+      }
+    }
+    return compact;
+  }
+
+  private static double[] row(float[] compact, int index, int numFeatures) {
+    double[] row = new double[numFeatures];
+    int offset = index * numFeatures;
+    for (int f = 0; f < numFeatures; f++) {
+      row[f] = compact[offset + f];
+    }
+    return row;
+  }
+
+  private static double[][] fromCompact(float[] compact, int numFeatures) {
+    int numRows = numFeatures == 0 ? 0 : compact.length / numFeatures;
+    double[][] features = new double[numRows][];
+    for (int i = 0; i < numRows; i++) {
+      features[i] = row(compact, i, numFeatures);
+    }
+    return features;
+  }
+
+  private static int indexOf(OpenLongIntHashMap mapping, long id) {
+    return mapping.containsKey(id) ? mapping.get(id) : -1;
+  }
+
+  private static List<Map.Entry<Long,Integer>> entries(OpenLongIntHashMap mapping) {
+    final List<Map.Entry<Long,Integer>> entries = Lists.newArrayListWithCapacity(mapping.size());
+    mapping.forEachPair(new LongIntProcedure() {
+      @Override
+      public boolean apply(long id, int index) {
+        entries.add(Maps.immutableEntry(id, index));
+        return true;
+      }
+    });
+    return entries;
+  }
+
+  private static LongPrimitiveIterator keys(OpenLongIntHashMap mapping) {
+    return new LongPrimitiveArrayIterator(mapping.keys().toArray(new long[mapping.size()]));
+  }
+
+  private static OpenLongIntHashMap toIntMap(FastByIDMap<Integer> mapping) {
+    Preconditions.checkNotNull(mapping);
+    OpenLongIntHashMap intMapping = new OpenLongIntHashMap(mapping.size());
+    for (Map.Entry<Long,Integer> entry : mapping.entrySet()) {
+      intMapping.put(entry.getKey(), entry.getValue());
+    }
+    return intMapping;
+  }
+
+  /**
+   * @return hash code of one ID to index mapping; a mapping's hash code is the sum of those of its entries
+   */
+  static int mappingHashCode(long id, int index) {
+    return ((int) (id >> 32) ^ (int) id) ^ index;
+  }
+
+  private static int mappingHashCode(OpenLongIntHashMap mapping) {
+    final int[] hashCode = new int[1];
+    mapping.forEachPair(new LongIntProcedure() {
+      @Override
+      public boolean apply(long id, int index) {
+        hashCode[0] += mappingHashCode(id, index);
+        return true;
+      }
+    });
+    return hashCode[0];
   }
 
   @Override
   public boolean equals(Object o) {
     if (o instanceof Factorization) {
       Factorization other = (Factorization) o;
-      return userIDMapping.equals(other.userIDMapping) && itemIDMapping.equals(other.itemIDMapping)
-          && Arrays.deepEquals(userFeatures, other.userFeatures) && Arrays.deepEquals(itemFeatures, other.itemFeatures);
+      if (userIDMapping == null || other.userIDMapping == null) {
+        return sameMappingsAndFeatures(other);
+      }
+      if (!userIDMapping.equals(other.userIDMapping) || !itemIDMapping.equals(other.itemIDMapping)) {
+        return false;
+      }
+      if (numFeatures != other.numFeatures) {
+        return false;
+      }
+      if (compactUserFeatures != null && other.compactUserFeatures != null) {
+        return Arrays.equals(compactUserFeatures, other.compactUserFeatures)
+            && Arrays.equals(compactItemFeatures, other.compactItemFeatures);
+      }
+      if (compactUserFeatures == null && other.compactUserFeatures == null) {
+        return Arrays.deepEquals(userFeatures, other.userFeatures)
+            && Arrays.deepEquals(itemFeatures, other.itemFeatures);
+      }
+      Factorization compact = compactUserFeatures == null ? other : this;
+      Factorization notCompact = compactUserFeatures == null ? this : other;
+      return sameFeatures(notCompact.userFeatures, compact.compactUserFeatures, numFeatures)
+          && sameFeatures(notCompact.itemFeatures, compact.compactItemFeatures, numFeatures);
     }
     return false;
   }
 
+  /**
+   * @return true if the rows hold the same values as the compact features, compared as {@code Arrays.equals()}
+   *  compares {@code double}s
+   */
+  private static boolean sameFeatures(double[][] features, float[] compactFeatures, int numFeatures) {
+    if ((long) features.length * numFeatures != compactFeatures.length) {
+      return false;
+    }
+    for (int i = 0; i < features.length; i++) {
+      double[] row = features[i];
+      int offset = i * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        if (Double.doubleToLongBits(row[f]) != Double.doubleToLongBits(compactFeatures[offset + f])) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean sameMappingsAndFeatures(Factorization other) {
+    if (numFeatures() != other.numFeatures() || numUsers() != other.numUsers() || numItems() != other.numItems()) {
+      return false;
+    }
+    // Compare one row at a time, so that neither side builds a copy of all its features
+    try {
+      for (Map.Entry<Long,Integer> entry : getUserIDMappings()) {
+        long userID = entry.getKey();
+        if (other.userIndex(userID) != entry.getValue()
+            || !Arrays.equals(getUserFeatures(userID), other.getUserFeatures(userID))) {
+          return false;
+        }
+      }
+      for (Map.Entry<Long,Integer> entry : getItemIDMappings()) {
+        long itemID = entry.getKey();
+        if (other.itemIndex(itemID) != entry.getValue()
+            || !Arrays.equals(getItemFeatures(itemID), other.getItemFeatures(itemID))) {
+          return false;
+        }
+      }
+    } catch (NoSuchUserException nsue) {
+      return false;
+    } catch (NoSuchItemException nsie) {
+      return false;
+    }
+    return true;
+  }
+
   @Override
   public int hashCode() {
-    int hashCode = 31 * userIDMapping.hashCode() + itemIDMapping.hashCode();
-    hashCode = 31 * hashCode + Arrays.deepHashCode(userFeatures);
-    hashCode = 31 * hashCode + Arrays.deepHashCode(itemFeatures);
-    return hashCode;
+    // Features are left out, since a compact and a non-compact factorization may be equal
+    int hashCode = 31 * mappingHashCode(users()) + mappingHashCode(items());
+    return 31 * hashCode + numFeatures;
   }
 }
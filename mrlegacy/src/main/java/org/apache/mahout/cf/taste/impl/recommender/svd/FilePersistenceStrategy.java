@@ -33,7 +33,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.io.Closeables;
 import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.NoSuchUserException;
-import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -118,7 +118,7 @@ public class FilePersistenceStrategy implements PersistenceStrategy {
     int numUsers = in.readInt();
     int numItems = in.readInt();
 
-    FastByIDMap<Integer> userIDMapping = new FastByIDMap<Integer>(numUsers);
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap(numUsers);
     double[][] userFeatures = new double[numUsers][numFeatures];
 
     for (int n = 0; n < numUsers; n++) {
@@ -130,7 +130,7 @@ public class FilePersistenceStrategy implements PersistenceStrategy {
       }
     }
 
-    FastByIDMap<Integer> itemIDMapping = new FastByIDMap<Integer>(numItems);
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap(numItems);
     double[][] itemFeatures = new double[numItems][numFeatures];
 
     for (int n = 0; n < numItems; n++) {
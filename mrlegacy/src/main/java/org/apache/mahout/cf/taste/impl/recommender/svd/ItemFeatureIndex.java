@@ -0,0 +1,348 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.common.RandomUtils;
+
+/**
+ * <p>
+ * An index over the item feature vectors of a {@link Factorization}, which finds the items with the largest
+ * inner product with a user feature vector without computing it for every item.
+ * </p>
+ *
+ * <p>
+ * Items are grouped into clusters by k-means. Each cluster records its centroid {@code c} and radius {@code r},
+ * the largest distance of any of its items from the centroid, so that no item in it can score more than
+ * {@code u.c + |u| r} for user features {@code u}. Within a cluster, items are listed contiguously in order of
+ * decreasing norm, so that no item after the first one with {@code |u| |x|} below the current N-th best score
+ * needs to be scored. A query visits clusters in order of that bound and stops once no remaining cluster can
+ * hold a better item. The result is then exact.
+ * </p>
+ *
+ * <p>
+ * The index does not copy item features. It holds each item's ID, norm and row in the factorization, and
+ * reads features from the factorization's own storage, so it adds 16 bytes per item.
+ * </p>
+ *
+ * <p>
+ * Queries may also cap the number of clusters visited, which trades recall for latency in the manner of an
+ * inverted file index: the best clusters are visited first, so few good items are missed.
+ * </p>
+ *
+ * <p>
+ * Instances are immutable and may be queried from several threads at once.
+ * </p>
+ */
+public final class ItemFeatureIndex {
+
+  /** Number of k-means iterations used to place the centroids. */
+  private static final int KMEANS_ITERATIONS = 10;
+  /** Centroids are placed using at most this many sampled items per cluster, then all items are assigned. */
+  private static final int SAMPLE_ITEMS_PER_CLUSTER = 64;
+
+  private final int numFeatures;
+  /** factorization whose item features are indexed; features are read from its own storage, not copied */
+  private final Factorization factorization;
+  /** item IDs, in index order */
+  private final long[] itemIDs;
+  /** rows of the factorization holding each item's features, in index order */
+  private final int[] rows;
+  /** upper bound on the norm of each item's features, in index order */
+  private final float[] norms;
+  /** index of first item of each cluster, plus the number of items at the end */
+  private final int[] clusterStarts;
+  /** cluster centroids, one row of numFeatures values after another */
+  private final double[] centroids;
+  private final double[] radii;
+
+  /**
+   * @param numClusters number of clusters to group items into. About the square root of the number of items is a
+   *  reasonable choice.
+   */
+  public ItemFeatureIndex(Factorization factorization, int numClusters) {
+    Preconditions.checkArgument(numClusters >= 1, "numClusters must be at least 1");
+    this.factorization = factorization;
+    numFeatures = factorization.numFeatures();
+    int numItems = factorization.numItems();
+    int numCentroids = Math.max(1, Math.min(numClusters, numItems));
+    Preconditions.checkArgument((long) numCentroids * numFeatures <= Integer.MAX_VALUE, "too many clusters");
+
+    // Items in the order of the factorization's item IDs, with the rows holding their features
+    long[] rowItemIDs = new long[numItems];
+    int[] itemRows = new int[numItems];
+    LongPrimitiveIterator it = factorization.getItemIDMappingKeys();
+    for (int i = 0; i < numItems; i++) {
+      rowItemIDs[i] = it.nextLong();
+      itemRows[i] = factorization.itemRow(rowItemIDs[i]);
+    }
+
+    double[] centroidValues = placeCentroids(itemRows, numCentroids);
+    double[] item = new double[numFeatures];
+    int[] assignments = new int[numItems];
+    int[] clusterSizes = new int[numCentroids];
+    float[] rowNorms = new float[numItems];
+    radii = new double[numCentroids];
+    for (int i = 0; i < numItems; i++) {
+      factorization.copyItemRow(itemRows[i], item, 0);
+      int c = nearestCentroid(item, centroidValues, numCentroids);
+      assignments[i] = c;
+      clusterSizes[c]++;
+      rowNorms[i] = normUpperBound(item);
+      radii[c] = Math.max(radii[c], Math.sqrt(squaredDistance(item, centroidValues, c * numFeatures)));
+    }
+
+    clusterStarts = new int[numCentroids + 1];
+    for (int c = 0; c < numCentroids; c++) {
+      clusterStarts[c + 1] = clusterStarts[c] + clusterSizes[c];
+    }
+
+    // Sort each item by (cluster, decreasing norm). Norms are rounded up to floats, whose bits order
+    // the same way as their values when non-negative, so they can be packed with the item into one long.
+    long[] sortKeys = new long[numItems];
+    int[] clusterFill = clusterStarts.clone();
+    for (int i = 0; i < numItems; i++) {
+      sortKeys[clusterFill[assignments[i]]++] = ((long) Float.floatToIntBits(rowNorms[i]) << 32) | i;
+    }
+
+    itemIDs = new long[numItems];
+    rows = new int[numItems];
+    norms = new float[numItems];
+    for (int c = 0; c < numCentroids; c++) {
+      int start = clusterStarts[c];
+      int end = clusterStarts[c + 1];
+      Arrays.sort(sortKeys, start, end);
+      for (int k = 0; k < end - start; k++) {
+        int position = end - 1 - k;
+        int source = (int) sortKeys[start + k];
+        itemIDs[position] = rowItemIDs[source];
+        rows[position] = itemRows[source];
+        norms[position] = rowNorms[source];
+      }
+    }
+    centroids = centroidValues;
+  }
+
+  /**
+   * @return number of items in the index
+   */
+  public int numItems() {
+    return itemIDs.length;
+  }
+
+  /**
+   * @return number of clusters the items are grouped into
+   */
+  public int numClusters() {
+    return radii.length;
+  }
+
+  /**
+   * @return a rough estimate of the heap this index takes in addition to the factorization it indexes
+   */
+  public long estimateBytes() {
+    return 16L * itemIDs.length + 4L * clusterStarts.length + 8L * (centroids.length + radii.length);
+  }
+
+  /**
+   * @param userFeatures user feature vector
+   * @param howMany number of items to return
+   * @param candidateItemIDs if not null, only these items are considered
+   * @param excludedItemIDs if not null, these items are not considered
+   * @param maxClustersToProbe maximum number of clusters to visit; {@link Integer#MAX_VALUE} for an exact result
+   * @return items with the highest inner product with the user features, best first
+   */
+  public List<RecommendedItem> topItems(double[] userFeatures,
+                                        int howMany,
+                                        FastIDSet candidateItemIDs,
+                                        FastIDSet excludedItemIDs,
+                                        int maxClustersToProbe) {
+    Preconditions.checkArgument(userFeatures.length == numFeatures, "wrong number of features");
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+    Preconditions.checkArgument(maxClustersToProbe >= 1, "maxClustersToProbe must be at least 1");
+
+    int numClusters = radii.length;
+    double userNorm = Math.sqrt(dot(userFeatures, userFeatures, 0));
+    // Order clusters by decreasing upper bound, packed with their index as in the constructor
+    float[] bounds = new float[numClusters];
+    long[] order = new long[numClusters];
+    for (int c = 0; c < numClusters; c++) {
+      bounds[c] = roundUp(dot(userFeatures, centroids, c * numFeatures) + userNorm * radii[c]);
+      order[c] = ((long) sortableBits(bounds[c]) << 32) | c;
+    }
+    Arrays.sort(order);
+
+    Queue<RecommendedItem> topItems = new PriorityQueue<RecommendedItem>(howMany + 1,
+        Collections.reverseOrder(ByValueRecommendedItemComparator.getInstance()));
+    boolean full = false;
+    double lowestTopValue = Double.NEGATIVE_INFINITY;
+    int probed = 0;
+    for (int k = numClusters - 1; k >= 0 && probed < maxClustersToProbe; k--) {
+      int c = (int) order[k];
+      if (full && bounds[c] <= lowestTopValue) {
+        break;
+      }
+      if (clusterStarts[c] == clusterStarts[c + 1]) {
+        continue;
+      }
+      probed++;
+      for (int i = clusterStarts[c]; i < clusterStarts[c + 1]; i++) {
+        if (full && userNorm * norms[i] <= lowestTopValue) {
+          break;
+        }
+        long itemID = itemIDs[i];
+        if ((candidateItemIDs != null && !candidateItemIDs.contains(itemID))
+            || (excludedItemIDs != null && excludedItemIDs.contains(itemID))) {
+          continue;
+        }
+        double estimate = factorization.itemDot(rows[i], userFeatures);
+        if (!full || estimate > lowestTopValue) {
+          topItems.add(new GenericRecommendedItem(itemID, (float) estimate));
+          if (full) {
+            topItems.poll();
+          } else if (topItems.size() > howMany) {
+            full = true;
+            topItems.poll();
+          }
+          lowestTopValue = topItems.peek().getValue();
+        }
+      }
+    }
+
+    List<RecommendedItem> result = Lists.newArrayList(topItems);
+    Collections.sort(result, ByValueRecommendedItemComparator.getInstance());
+    return result;
+  }
+
+  private double[] placeCentroids(int[] itemRows, int numCentroids) {
+    int numItems = itemRows.length;
+    Random random = RandomUtils.getRandom();
+    double[] centroidValues = new double[numCentroids * numFeatures];
+    if (numItems == 0) {
+      return centroidValues;
+    }
+
+    // Partial Fisher-Yates shuffle of items: the first numCentroids seed the centroids, and the first
+    // sampleSize are used to refine them
+    int sampleSize = (int) Math.min(numItems, (long) numCentroids * SAMPLE_ITEMS_PER_CLUSTER);
+    int[] sample = new int[numItems];
+    for (int i = 0; i < numItems; i++) {
+      sample[i] = i;
+    }
+    for (int i = 0; i < sampleSize; i++) {
+      int j = i + random.nextInt(numItems - i);
+      int swap = sample[i];
+      sample[i] = sample[j];
+      sample[j] = swap;
+    }
+    for (int c = 0; c < numCentroids; c++) {
+      factorization.copyItemRow(itemRows[sample[c]], centroidValues, c * numFeatures);
+    }
+
+    double[] item = new double[numFeatures];
+    double[] sums = new double[numCentroids * numFeatures];
+    int[] counts = new int[numCentroids];
+    for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+      Arrays.fill(sums, 0.0);
+      Arrays.fill(counts, 0);
+      for (int s = 0; s < sampleSize; s++) {
+        factorization.copyItemRow(itemRows[sample[s]], item, 0);
+        int c = nearestCentroid(item, centroidValues, numCentroids);
+        counts[c]++;
+        int offset = c * numFeatures;
+        for (int f = 0; f < numFeatures; f++) {
+          sums[offset + f] += item[f];
+        }
+      }
+      for (int c = 0; c < numCentroids; c++) {
+        // An empty cluster keeps its old centroid
+        if (counts[c] > 0) {
+          int offset = c * numFeatures;
+          for (int f = 0; f < numFeatures; f++) {
+            centroidValues[offset + f] = sums[offset + f] / counts[c];
+          }
+        }
+      }
+    }
+    return centroidValues;
+  }
+
+  private int nearestCentroid(double[] item, double[] centroidValues, int numCentroids) {
+    int nearest = 0;
+    double nearestDistance = Double.POSITIVE_INFINITY;
+    for (int c = 0; c < numCentroids; c++) {
+      double distance = squaredDistance(item, centroidValues, c * numFeatures);
+      if (distance < nearestDistance) {
+        nearestDistance = distance;
+        nearest = c;
+      }
+    }
+    return nearest;
+  }
+
+  private double squaredDistance(double[] item, double[] values, int offset) {
+    double sum = 0.0;
+    for (int f = 0; f < numFeatures; f++) {
+      double delta = item[f] - values[offset + f];
+      sum += delta * delta;
+    }
+    return sum;
+  }
+
+  private double dot(double[] row, double[] values, int offset) {
+    double sum = 0.0;
+    for (int f = 0; f < numFeatures; f++) {
+      sum += row[f] * values[offset + f];
+    }
+    return sum;
+  }
+
+  private float normUpperBound(double[] item) {
+    return roundUp(Math.sqrt(dot(item, item, 0)));
+  }
+
+  /**
+   * @return the smallest float not less than the value, so that it can stand in for the value as an upper bound
+   */
+  private static float roundUp(double value) {
+    float rounded = (float) value;
+    return rounded < value ? Math.nextUp(rounded) : rounded;
+  }
+
+  /**
+   * @return bits of the value, mapped so that they order as signed ints the same way the values order
+   */
+  private static int sortableBits(float value) {
+    int bits = Float.floatToIntBits(value);
+    return bits < 0 ? bits ^ 0x7FFFFFFF : bits;
+  }
+
+}
@@ -0,0 +1,352 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.google.common.collect.Maps;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.MappedRegion;
+
+/**
+ * A {@link Factorization} read directly from a file mapped by {@link MappedFilePersistenceStrategy}. For each
+ * side, IDs are sorted so that an ID's position is found by binary search; the same position holds the ID's
+ * row index and its features. Nothing is copied onto the heap except what a caller asks for.
+ */
+final class MappedFactorization extends Factorization {
+
+  private final Side users;
+  private final Side items;
+  private final boolean floatFeatures;
+  /** computed once, as computing it reads every ID */
+  private final int hashCode;
+
+  MappedFactorization(int numFeatures,
+                      boolean floatFeatures,
+                      int numUsers,
+                      MappedRegion userIDs,
+                      MappedRegion userIndices,
+                      MappedRegion userFeatures,
+                      int numItems,
+                      MappedRegion itemIDs,
+                      MappedRegion itemIndices,
+                      MappedRegion itemFeatures) {
+    super(numFeatures);
+    this.floatFeatures = floatFeatures;
+    this.users = new Side(numUsers, userIDs, userIndices, userFeatures);
+    this.items = new Side(numItems, itemIDs, itemIndices, itemFeatures);
+    // Same as Factorization.hashCode(), so that equal heap and mapped factorizations hash alike
+    this.hashCode = 31 * (31 * users.mappingHashCode() + items.mappingHashCode()) + numFeatures;
+  }
+
+  /**
+   * @return this factorization, whose features are already stored contiguously and off the heap
+   */
+  @Override
+  public Factorization compact() {
+    return this;
+  }
+
+  /**
+   * @return true if features are stored as {@code float}s
+   */
+  @Override
+  public boolean isCompact() {
+    return floatFeatures;
+  }
+
+  /**
+   * @return 0, as mappings and features stay in the mapped file rather than on the heap
+   */
+  @Override
+  public long estimateBytes() {
+    return 0L;
+  }
+
+  @Override
+  public double[][] allUserFeatures() {
+    return users.allFeatures();
+  }
+
+  @Override
+  public double[] getUserFeatures(long userID) throws NoSuchUserException {
+    int position = users.position(userID);
+    if (position < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return users.features(position);
+  }
+
+  @Override
+  public double[][] allItemFeatures() {
+    return items.allFeatures();
+  }
+
+  @Override
+  public double[] getItemFeatures(long itemID) throws NoSuchItemException {
+    int position = items.position(itemID);
+    if (position < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return items.features(position);
+  }
+
+  @Override
+  public void copyItemFeatures(long itemID, double[] to, int offset) throws NoSuchItemException {
+    int position = items.position(itemID);
+    if (position < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    items.copyFeatures(position, to, offset);
+  }
+
+  @Override
+  int itemRow(long itemID) {
+    return items.position(itemID);
+  }
+
+  @Override
+  void copyItemRow(int row, double[] to, int offset) {
+    items.copyFeatures(row, to, offset);
+  }
+
+  @Override
+  double itemDot(int row, double[] userFeatures) {
+    return items.dot(row, userFeatures);
+  }
+
+  @Override
+  public double estimate(long userID, long itemID) throws NoSuchUserException, NoSuchItemException {
+    double[] userFeatures = getUserFeatures(userID);
+    int position = items.position(itemID);
+    if (position < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return items.dot(position, userFeatures);
+  }
+
+  @Override
+  public double[] estimates(double[] userFeatures, long[] itemIDs) {
+    double[] estimates = new double[itemIDs.length];
+    for (int i = 0; i < itemIDs.length; i++) {
+      int position = items.position(itemIDs[i]);
+      estimates[i] = position < 0 ? Double.NaN : items.dot(position, userFeatures);
+    }
+    return estimates;
+  }
+
+  @Override
+  public int userIndex(long userID) throws NoSuchUserException {
+    int position = users.position(userID);
+    if (position < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return users.indices.getInt(position);
+  }
+
+  @Override
+  public Iterable<Map.Entry<Long,Integer>> getUserIDMappings() {
+    return users;
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDMappingKeys() {
+    return new IDIterator(users);
+  }
+
+  @Override
+  public int itemIndex(long itemID) throws NoSuchItemException {
+    int position = items.position(itemID);
+    if (position < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return items.indices.getInt(position);
+  }
+
+  @Override
+  public Iterable<Map.Entry<Long,Integer>> getItemIDMappings() {
+    return items;
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDMappingKeys() {
+    return new IDIterator(items);
+  }
+
+  @Override
+  public int numUsers() {
+    return users.size;
+  }
+
+  @Override
+  public int numItems() {
+    return items.size;
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  /**
+   * IDs, row indices and features of the users or items.
+   */
+  private final class Side implements Iterable<Map.Entry<Long,Integer>> {
+
+    private final int size;
+    private final MappedRegion ids;
+    private final MappedRegion indices;
+    private final MappedRegion features;
+
+    private Side(int size, MappedRegion ids, MappedRegion indices, MappedRegion features) {
+      this.size = size;
+      this.ids = ids;
+      this.indices = indices;
+      this.features = features;
+    }
+
+    int position(long id) {
+      return (int) ids.binarySearchLong(0, size, id);
+    }
+
+    double feature(long index) {
+      return floatFeatures ? features.getFloat(index) : features.getDouble(index);
+    }
+
+    double[] features(int position) {
+      double[] row = new double[numFeatures()];
+      copyFeatures(position, row, 0);
+      return row;
+    }
+
+    void copyFeatures(int position, double[] to, int toOffset) {
+      int numFeatures = numFeatures();
+      long offset = (long) position * numFeatures;
+      for (int f = 0; f < numFeatures; f++) {
+        to[toOffset + f] = feature(offset + f);
+      }
+    }
+
+    double dot(int position, double[] other) {
+      int numFeatures = numFeatures();
+      long offset = (long) position * numFeatures;
+      double sum = 0.0;
+      for (int f = 0; f < numFeatures; f++) {
+        sum += other[f] * feature(offset + f);
+      }
+      return sum;
+    }
+
+    double[][] allFeatures() {
+      double[][] all = new double[size][];
+      for (int position = 0; position < size; position++) {
+        all[indices.getInt(position)] = features(position);
+      }
+      return all;
+    }
+
+    /**
+     * @return hash code of the ID to index mapping, computed as {@link Factorization} does
+     */
+    int mappingHashCode() {
+      int hash = 0;
+      for (int position = 0; position < size; position++) {
+        hash += Factorization.mappingHashCode(ids.getLong(position), indices.getInt(position));
+      }
+      return hash;
+    }
+
+    @Override
+    public Iterator<Map.Entry<Long,Integer>> iterator() {
+      return new Iterator<Map.Entry<Long,Integer>>() {
+        private int position;
+        @Override
+        public boolean hasNext() {
+          return position < size;
+        }
+        @Override
+        public Map.Entry<Long,Integer> next() {
+          if (position >= size) {
+            throw new NoSuchElementException();
+          }
+          Map.Entry<Long,Integer> entry = Maps.immutableEntry(ids.getLong(position), indices.getInt(position));
+          position++;
+          return entry;
+        }
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  private static final class IDIterator implements LongPrimitiveIterator {
+
+    private final Side side;
+    private int position;
+
+    private IDIterator(Side side) {
+      this.side = side;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < side.size;
+    }
+
+    @Override
+    public Long next() {
+      return nextLong();
+    }
+
+    @Override
+    public long nextLong() {
+      if (position >= side.size) {
+        throw new NoSuchElementException();
+      }
+      return side.ids.getLong(position++);
+    }
+
+    @Override
+    public long peek() {
+      if (position >= side.size) {
+        throw new NoSuchElementException();
+      }
+      return side.ids.getLong(position);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void skip(int n) {
+      if (n > 0) {
+        position += n;
+      }
+    }
+
+  }
+
+}
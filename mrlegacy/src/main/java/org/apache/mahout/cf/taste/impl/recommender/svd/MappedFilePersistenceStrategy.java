@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.common.MappedRegion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Provides a file-based persistent store whose file is memory-mapped rather than read onto the heap, so that
+ * {@link #load()} takes about the same time whatever the size of the factorization. The {@link Factorization}
+ * it returns reads IDs and features from the mapped file on demand, and several JVMs on one machine loading the
+ * same file share the operating system's page cache.
+ * </p>
+ *
+ * <p>
+ * The layout, all values big-endian and each section starting on an 8-byte boundary, is:
+ * </p>
+ *
+ * <ul>
+ *   <li>header: magic number, version, flags, number of features, number of users, number of items, padded to
+ *   {@value #HEADER_SIZE} bytes</li>
+ *   <li>sorted user IDs ({@code long}), then each user's row index ({@code int}), then each user's features,
+ *   one row after another in the same order as the IDs</li>
+ *   <li>the same three sections for items</li>
+ * </ul>
+ *
+ * <p>
+ * Features are written as {@code float}s if the factorization is {@link Factorization#isCompact() compact},
+ * and as {@code double}s otherwise, so a loaded factorization is equal to the one persisted.
+ * </p>
+ *
+ * <p>
+ * {@link #maybePersist(Factorization)} writes to a temporary file next to the target and then renames it into
+ * place, so a factorization mapped from an earlier version of the file stays valid while a new one is written.
+ * </p>
+ */
+public class MappedFilePersistenceStrategy implements PersistenceStrategy {
+
+  private static final Logger log = LoggerFactory.getLogger(MappedFilePersistenceStrategy.class);
+
+  static final int MAGIC = 0x54465A31; // "TFZ1"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+  static final int FLAG_FLOAT_FEATURES = 0x01;
+
+  private final File file;
+  private final boolean loadNow;
+
+  /**
+   * @param file the file to use for storage. If the file does not exist it will be created when required.
+   */
+  public MappedFilePersistenceStrategy(File file) {
+    this(file, false);
+  }
+
+  /**
+   * @param loadNow if true, ask the operating system to page in the whole file when loading, rather than on
+   *  first access
+   */
+  public MappedFilePersistenceStrategy(File file, boolean loadNow) {
+    this.file = Preconditions.checkNotNull(file);
+    this.loadNow = loadNow;
+  }
+
+  @Override
+  public Factorization load() throws IOException {
+    if (!file.exists()) {
+      log.info("{} does not yet exist, no factorization found", file.getAbsolutePath());
+      return null;
+    }
+    log.info("Mapping factorization from {}...", file.getAbsolutePath());
+
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    boolean floatFeatures;
+    int numFeatures;
+    int numUsers;
+    int numItems;
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a mapped factorization file: " + file);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported version " + version + " in " + file);
+      }
+      floatFeatures = (in.readInt() & FLAG_FLOAT_FEATURES) != 0;
+      numFeatures = in.readInt();
+      numUsers = in.readInt();
+      numItems = in.readInt();
+    } finally {
+      Closeables.close(in, true);
+    }
+
+    int featureSize = floatFeatures ? 4 : 8;
+    long expectedLength = HEADER_SIZE + sideLength(numUsers, numFeatures, featureSize)
+        + sideLength(numItems, numFeatures, featureSize);
+    if (file.length() != expectedLength) {
+      throw new IOException("Expected " + expectedLength + " bytes but found " + file.length() + " in " + file);
+    }
+
+    MappedRegion[] regions = new MappedRegion[6];
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      long position = HEADER_SIZE;
+      position = mapSide(channel, position, numUsers, numFeatures, featureSize, regions, 0);
+      mapSide(channel, position, numItems, numFeatures, featureSize, regions, 3);
+    } finally {
+      Closeables.close(randomAccessFile, true);
+    }
+    if (loadNow) {
+      for (MappedRegion region : regions) {
+        region.load();
+      }
+    }
+
+    log.info("Mapped factorization of {} users and {} items with {} features",
+        new Object[] {numUsers, numItems, numFeatures});
+    return new MappedFactorization(numFeatures, floatFeatures,
+        numUsers, regions[0], regions[1], regions[2],
+        numItems, regions[3], regions[4], regions[5]);
+  }
+
+  @Override
+  public void maybePersist(Factorization factorization) throws IOException {
+    File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    log.info("Writing factorization to {}...", tempFile.getAbsolutePath());
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+    try {
+      write(factorization, out);
+    } finally {
+      Closeables.close(out, false);
+    }
+    // Renaming leaves the old file's contents in place for anything which still maps it
+    if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+      throw new IOException("Unable to rename " + tempFile + " to " + file);
+    }
+  }
+
+  static void write(Factorization factorization, DataOutputStream out) throws IOException {
+    boolean floatFeatures = factorization.isCompact();
+    int numFeatures = factorization.numFeatures();
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(floatFeatures ? FLAG_FLOAT_FEATURES : 0);
+    out.writeInt(numFeatures);
+    out.writeInt(factorization.numUsers());
+    out.writeInt(factorization.numItems());
+    for (int i = 24; i < HEADER_SIZE; i++) {
+      out.writeByte(0);
+    }
+
+    long[] userIDs = sortedIDs(factorization.getUserIDMappingKeys(), factorization.numUsers());
+    try {
+      for (long userID : userIDs) {
+        out.writeLong(userID);
+      }
+      for (long userID : userIDs) {
+        out.writeInt(factorization.userIndex(userID));
+      }
+      pad(out, 4L * userIDs.length);
+      for (long userID : userIDs) {
+        writeFeatures(out, factorization.getUserFeatures(userID), floatFeatures);
+      }
+      pad(out, (floatFeatures ? 4L : 8L) * userIDs.length * numFeatures);
+    } catch (NoSuchUserException e) {
+      throw new IOException("Unable to persist factorization", e);
+    }
+
+    long[] itemIDs = sortedIDs(factorization.getItemIDMappingKeys(), factorization.numItems());
+    try {
+      for (long itemID : itemIDs) {
+        out.writeLong(itemID);
+      }
+      for (long itemID : itemIDs) {
+        out.writeInt(factorization.itemIndex(itemID));
+      }
+      pad(out, 4L * itemIDs.length);
+      for (long itemID : itemIDs) {
+        writeFeatures(out, factorization.getItemFeatures(itemID), floatFeatures);
+      }
+      pad(out, (floatFeatures ? 4L : 8L) * itemIDs.length * numFeatures);
+    } catch (NoSuchItemException e) {
+      throw new IOException("Unable to persist factorization", e);
+    }
+  }
+
+  private static long[] sortedIDs(LongPrimitiveIterator it, int size) {
+    long[] ids = new long[size];
+    int count = 0;
+    while (it.hasNext()) {
+      ids[count++] = it.nextLong();
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  private static void writeFeatures(DataOutputStream out, double[] features, boolean floatFeatures)
+    throws IOException {
+    for (double feature : features) {
+      if (floatFeatures) {
+        out.writeFloat((float) feature);
+      } else {
+        out.writeDouble(feature);
+      }
+    }
+  }
+
+  /**
+   * Pads a section of the given length so that the next section starts on an 8-byte boundary.
+   */
+  private static void pad(DataOutputStream out, long length) throws IOException {
+    if ((length & 7L) != 0) {
+      out.writeInt(0);
+    }
+  }
+
+  private static long align(long length) {
+    return (length + 7L) & ~7L;
+  }
+
+  private static long sideLength(int size, int numFeatures, int featureSize) {
+    return 8L * size + align(4L * size) + align((long) featureSize * size * numFeatures);
+  }
+
+  private static long mapSide(FileChannel channel, long position, int size, int numFeatures, int featureSize,
+      MappedRegion[] regions, int offset) throws IOException {
+    regions[offset] = new MappedRegion(channel, position, 8L * size);
+    position += regions[offset].length();
+    regions[offset + 1] = new MappedRegion(channel, position, 4L * size);
+    position += align(regions[offset + 1].length());
+    regions[offset + 2] = new MappedRegion(channel, position, (long) featureSize * size * numFeatures);
+    return position + align(regions[offset + 2].length());
+  }
+
+}
@@ -18,13 +18,20 @@
 package org.apache.mahout.cf.taste.impl.recommender.svd;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Preconditions;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
 import org.apache.mahout.cf.taste.impl.recommender.AbstractRecommender;
@@ -35,19 +42,41 @@ import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A {@link org.apache.mahout.cf.taste.recommender.Recommender} that uses matrix factorization (a projection of users
  * and items onto a feature space)
+ *
+ * By default every candidate item is scored for each recommendation. With many items, an {@link ItemFeatureIndex}
+ * can be used instead to find the best items; see {@link #useItemFeatureIndex(int, int)}.
+ *
+ * With an {@link ALSWRFactorizer}, users and items which are not yet part of the factorization can be folded in
+ * on demand rather than waiting for it to be recomputed; see {@link #enableFoldIn(int)}.
  */
 public final class SVDRecommender extends AbstractRecommender {
 
-  private Factorization factorization;
+  private volatile Factorization factorization;
   private final Factorizer factorizer;
   private final PersistenceStrategy persistenceStrategy;
   private final RefreshHelper refreshHelper;
+  private final boolean allUnknownItemsAreCandidates;
+  private volatile ItemFeatureIndex itemFeatureIndex;
+  private volatile boolean compactFactorization;
+  private int indexNumClusters;
+  private int indexMaxClustersToProbe;
+  /** features solved since the factorization was computed; see {@link #enableFoldIn(int)} */
+  private final FastByIDMap<double[]> foldedInUsers = new FastByIDMap<double[]>();
+  private final FastByIDMap<double[]> foldedInItems = new FastByIDMap<double[]>();
+  private volatile boolean foldIn;
+  private volatile int foldInMergeThreshold;
+  /** true while a merge started by {@link #maybeMergeFoldedIn()} is running */
+  private final AtomicBoolean merging = new AtomicBoolean();
+
+  /** rough heap taken by one folded-in user or item besides its features: map entry and array header */
+  private static final long BYTES_PER_FOLDED_IN = 40L;
 
   private static final Logger log = LoggerFactory.getLogger(SVDRecommender.class);
 
@@ -95,6 +124,7 @@ public final class SVDRecommender extends AbstractRecommender {
     super(dataModel, candidateItemsStrategy);
     this.factorizer = Preconditions.checkNotNull(factorizer);
     this.persistenceStrategy = Preconditions.checkNotNull(persistenceStrategy);
+    this.allUnknownItemsAreCandidates = candidateItemsStrategy instanceof AllUnknownItemsCandidateItemsStrategy;
     try {
       factorization = persistenceStrategy.load();
     } catch (IOException e) {
@@ -121,13 +151,317 @@ public final class SVDRecommender extends AbstractRecommender {
     return new NoPersistenceStrategy();
   }
 
-  private void train() throws TasteException {
-    factorization = factorizer.factorize();
+  private synchronized void train() throws TasteException {
+    Factorization newFactorization = factorizer.factorize();
     try {
-      persistenceStrategy.maybePersist(factorization);
+      persistenceStrategy.maybePersist(newFactorization);
     } catch (IOException e) {
       throw new TasteException("Error persisting factorization", e);
     }
+    factorization = compactFactorization ? newFactorization.compact() : newFactorization;
+    synchronized (foldedInUsers) {
+      foldedInUsers.clear();
+    }
+    synchronized (foldedInItems) {
+      foldedInItems.clear();
+    }
+    if (itemFeatureIndex != null) {
+      buildItemFeatureIndex();
+    }
+  }
+
+  /**
+   * <p>
+   * Folds in users and items which are not part of the current factorization, instead of failing with
+   * {@link NoSuchUserException} or {@link NoSuchItemException}. Their features are solved from their preferences
+   * in the {@link DataModel} against the fixed features of the other side, which takes one small least squares
+   * solve, and kept until the factorization is recomputed or they are merged into it.
+   * </p>
+   *
+   * <p>
+   * Folded-in items can be estimated but are not recommended until they are merged, since the
+   * {@link ItemFeatureIndex} and the candidate scan only see the factorization's items.
+   * </p>
+   *
+   * @param mergeThreshold once this many users and items have been folded in, they are merged into a new
+   *  factorization, which is persisted, on a background thread so that the request which crossed the threshold
+   *  does not wait for it; 0 to only merge on {@link #mergeFoldedIn()}
+   * @throws IllegalStateException if this recommender's {@link Factorizer} is not an {@link ALSWRFactorizer}
+   */
+  public void enableFoldIn(int mergeThreshold) {
+    Preconditions.checkState(factorizer instanceof ALSWRFactorizer, "Fold-in requires an ALSWRFactorizer");
+    Preconditions.checkArgument(mergeThreshold >= 0, "mergeThreshold must be non-negative");
+    foldInMergeThreshold = mergeThreshold;
+    foldIn = true;
+  }
+
+  /**
+   * Solves the user's features from the user's current preferences, whether or not the user is part of the
+   * factorization, and uses them for this user from now on.
+   *
+   * @return the user's features, or null if none of the user's items are part of the factorization
+   */
+  public double[] foldInUser(long userID) throws TasteException {
+    Preconditions.checkState(factorizer instanceof ALSWRFactorizer, "Fold-in requires an ALSWRFactorizer");
+    PreferenceArray prefs = getDataModel().getPreferencesFromUser(userID);
+    double[] userFeatures;
+    boolean current;
+    do {
+      Factorization solvedAgainst = factorization;
+      userFeatures = ((ALSWRFactorizer) factorizer).foldInUser(solvedAgainst, prefs);
+      if (userFeatures == null) {
+        return null;
+      }
+      // Solve again if the factorization was recomputed meanwhile, rather than mixing the two
+      synchronized (foldedInUsers) {
+        current = factorization == solvedAgainst;
+        if (current) {
+          foldedInUsers.put(userID, userFeatures);
+        }
+      }
+    } while (!current);
+    maybeMergeFoldedIn();
+    return userFeatures;
+  }
+
+  /**
+   * Like {@link #foldInUser(long)}, for an item.
+   *
+   * @return the item's features, or null if none of the item's users are part of the factorization
+   */
+  public double[] foldInItem(long itemID) throws TasteException {
+    Preconditions.checkState(factorizer instanceof ALSWRFactorizer, "Fold-in requires an ALSWRFactorizer");
+    PreferenceArray prefs = getDataModel().getPreferencesForItem(itemID);
+    double[] itemFeatures;
+    boolean current;
+    do {
+      Factorization solvedAgainst = factorization;
+      itemFeatures = ((ALSWRFactorizer) factorizer).foldInItem(solvedAgainst, prefs);
+      if (itemFeatures == null) {
+        return null;
+      }
+      // Solve again if the factorization was recomputed meanwhile, rather than mixing the two
+      synchronized (foldedInItems) {
+        current = factorization == solvedAgainst;
+        if (current) {
+          foldedInItems.put(itemID, itemFeatures);
+        }
+      }
+    } while (!current);
+    maybeMergeFoldedIn();
+    return itemFeatures;
+  }
+
+  private void maybeMergeFoldedIn() {
+    int threshold = foldInMergeThreshold;
+    if (threshold > 0 && numFoldedIn() >= threshold && merging.compareAndSet(false, true)) {
+      Thread mergeThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            mergeFoldedIn();
+          } catch (TasteException te) {
+            log.warn("Unable to merge folded-in users and items", te);
+          } finally {
+            merging.set(false);
+          }
+        }
+      }, "SVDRecommender-merge");
+      mergeThread.setDaemon(true);
+      mergeThread.start();
+    }
+  }
+
+  /**
+   * @return a rough estimate of the heap this recommender takes besides its {@link DataModel}: its
+   *  factorization, the features of users and items folded in since, and its {@link ItemFeatureIndex} if used
+   */
+  public long estimateBytes() {
+    Factorization current = factorization;
+    ItemFeatureIndex index = itemFeatureIndex;
+    long bytes = current.estimateBytes() + numFoldedIn() * (BYTES_PER_FOLDED_IN + 8L * current.numFeatures());
+    return index == null ? bytes : bytes + index.estimateBytes();
+  }
+
+  private int numFoldedIn() {
+    int numFoldedIn;
+    synchronized (foldedInUsers) {
+      numFoldedIn = foldedInUsers.size();
+    }
+    synchronized (foldedInItems) {
+      numFoldedIn += foldedInItems.size();
+    }
+    return numFoldedIn;
+  }
+
+  /**
+   * Builds a new factorization from the current one plus the users and items folded in since it was computed,
+   * persists it and uses it from now on. Folded-in users and items which are already part of the factorization
+   * replace its features for them. The merge is built without holding this recommender's lock, and dropped if
+   * the factorization was recomputed in the meantime.
+   */
+  public void mergeFoldedIn() throws TasteException {
+    FastByIDMap<double[]> users;
+    synchronized (foldedInUsers) {
+      users = foldedInUsers.clone();
+    }
+    FastByIDMap<double[]> items;
+    synchronized (foldedInItems) {
+      items = foldedInItems.clone();
+    }
+    if (users.isEmpty() && items.isEmpty()) {
+      return;
+    }
+    log.info("Merging {} folded-in users and {} folded-in items into the factorization", users.size(), items.size());
+
+    Factorization current = factorization;
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap(current.numUsers() + users.size());
+    double[][] userFeatures = merge(current, true, users, userIDMapping);
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap(current.numItems() + items.size());
+    double[][] itemFeatures = merge(current, false, items, itemIDMapping);
+    Factorization merged = new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+
+    // Same lock as train(), so that a factorization recomputed meanwhile is never replaced by this stale one
+    synchronized (this) {
+      if (factorization != current) {
+        log.info("Factorization changed while merging, dropping the merge");
+        return;
+      }
+      try {
+        persistenceStrategy.maybePersist(merged);
+      } catch (IOException e) {
+        throw new TasteException("Error persisting factorization", e);
+      }
+      factorization = compactFactorization ? merged.compact() : merged;
+
+      // Forget merged features, unless they were solved again in the meantime
+      synchronized (foldedInUsers) {
+        removeMerged(foldedInUsers, users);
+      }
+      synchronized (foldedInItems) {
+        removeMerged(foldedInItems, items);
+      }
+      if (itemFeatureIndex != null) {
+        buildItemFeatureIndex();
+      }
+    }
+  }
+
+  /**
+   * Builds the merged features of the users, or items, one row at a time, so that a compact or mapped
+   * factorization is never expanded into a full matrix. Rows of a factorization which is neither are never
+   * modified, so the merged factorization shares them.
+   */
+  private static double[][] merge(Factorization current,
+                                  boolean users,
+                                  FastByIDMap<double[]> foldedIn,
+                                  OpenLongIntHashMap mergedMapping) throws TasteException {
+    int numRows = users ? current.numUsers() : current.numItems();
+    double[][] rows = new double[numRows + foldedIn.size()][];
+    for (Map.Entry<Long,Integer> entry : users ? current.getUserIDMappings() : current.getItemIDMappings()) {
+      long id = entry.getKey();
+      int index = entry.getValue();
+      mergedMapping.put(id, index);
+      double[] folded = foldedIn.get(id);
+      if (folded != null) {
+        rows[index] = folded;
+      } else {
+        rows[index] = users ? current.getUserFeatures(id) : current.getItemFeatures(id);
+      }
+    }
+    for (Map.Entry<Long,double[]> entry : foldedIn.entrySet()) {
+      if (!mergedMapping.containsKey(entry.getKey())) {
+        mergedMapping.put(entry.getKey(), numRows);
+        rows[numRows++] = entry.getValue();
+      }
+    }
+    return numRows == rows.length ? rows : Arrays.copyOf(rows, numRows);
+  }
+
+  private static void removeMerged(FastByIDMap<double[]> foldedIn, FastByIDMap<double[]> merged) {
+    for (Map.Entry<Long,double[]> entry : merged.entrySet()) {
+      long id = entry.getKey();
+      if (foldedIn.get(id) == entry.getValue()) {
+        foldedIn.remove(id);
+      }
+    }
+  }
+
+  private double[] userFeatures(long userID) throws TasteException {
+    if (foldIn) {
+      double[] folded;
+      synchronized (foldedInUsers) {
+        folded = foldedInUsers.get(userID);
+      }
+      if (folded != null) {
+        return folded;
+      }
+    }
+    try {
+      return factorization.getUserFeatures(userID);
+    } catch (NoSuchUserException nsue) {
+      double[] folded = foldIn ? foldInUser(userID) : null;
+      if (folded == null) {
+        throw nsue;
+      }
+      return folded;
+    }
+  }
+
+  private double[] itemFeatures(long itemID) throws TasteException {
+    if (foldIn) {
+      double[] folded;
+      synchronized (foldedInItems) {
+        folded = foldedInItems.get(itemID);
+      }
+      if (folded != null) {
+        return folded;
+      }
+    }
+    try {
+      return factorization.getItemFeatures(itemID);
+    } catch (NoSuchItemException nsie) {
+      double[] folded = foldIn ? foldInItem(itemID) : null;
+      if (folded == null) {
+        throw nsie;
+      }
+      return folded;
+    }
+  }
+
+  /**
+   * Holds the factorization in {@link Factorization#compact() compact} form, now and whenever it is recomputed.
+   * This halves the memory taken by features, at the cost of storing them as {@code float}s.
+   */
+  public synchronized void useCompactFactorization() {
+    compactFactorization = true;
+    factorization = factorization.compact();
+  }
+
+  /**
+   * <p>
+   * Answers {@link #recommend(long, int, IDRescorer)} from an {@link ItemFeatureIndex} over the item features,
+   * instead of scoring every candidate item. The index is built now, and rebuilt whenever the factorization is
+   * recomputed. Requests with an {@link IDRescorer} still score every candidate, since rescoring can reorder
+   * items arbitrarily.
+   * </p>
+   *
+   * @param numClusters number of clusters to group items into; about the square root of the number of items is a
+   *  reasonable choice
+   * @param maxClustersToProbe maximum number of clusters to visit per request. Fewer is faster but may miss some
+   *  of the best items; {@link Integer#MAX_VALUE} always gives the same items as scoring every candidate.
+   */
+  public synchronized void useItemFeatureIndex(int numClusters, int maxClustersToProbe) {
+    Preconditions.checkArgument(numClusters >= 1, "numClusters must be at least 1");
+    Preconditions.checkArgument(maxClustersToProbe >= 1, "maxClustersToProbe must be at least 1");
+    indexNumClusters = numClusters;
+    indexMaxClustersToProbe = maxClustersToProbe;
+    buildItemFeatureIndex();
+  }
+
+  private synchronized void buildItemFeatureIndex() {
+    log.info("Building item feature index with {} clusters", indexNumClusters);
+    itemFeatureIndex = new ItemFeatureIndex(factorization, indexNumClusters);
   }
   
   @Override
@@ -136,10 +470,28 @@ public final class SVDRecommender extends AbstractRecommender {
     log.debug("Recommending items for user ID '{}'", userID);
 
     PreferenceArray preferencesFromUser = getDataModel().getPreferencesFromUser(userID);
-    FastIDSet possibleItemIDs = getAllOtherItems(userID, preferencesFromUser);
 
-    List<RecommendedItem> topItems = TopItems.getTopItems(howMany, possibleItemIDs.iterator(), rescorer,
-        new Estimator(userID));
+    List<RecommendedItem> topItems;
+    ItemFeatureIndex index = itemFeatureIndex;
+    if (index != null && rescorer == null) {
+      double[] userFeatures = userFeatures(userID);
+      if (allUnknownItemsAreCandidates) {
+        // Avoid building a set of every other item just to exclude the user's own
+        FastIDSet preferredItemIDs = new FastIDSet(preferencesFromUser.getIDs());
+        topItems = index.topItems(userFeatures, howMany, null, preferredItemIDs, indexMaxClustersToProbe);
+      } else {
+        FastIDSet possibleItemIDs = getAllOtherItems(userID, preferencesFromUser);
+        topItems = index.topItems(userFeatures, howMany, possibleItemIDs, null, indexMaxClustersToProbe);
+      }
+    } else {
+      long[] possibleItemIDs = getAllOtherItems(userID, preferencesFromUser).toArray();
+      if (possibleItemIDs.length == 0) {
+        topItems = Collections.emptyList();
+      } else {
+        double[] estimates = factorization.estimates(userFeatures(userID), possibleItemIDs);
+        topItems = TopItems.getTopItems(howMany, possibleItemIDs, estimates, rescorer);
+      }
+    }
     log.debug("Recommendations are: {}", topItems);
 
     return topItems;
@@ -150,29 +502,18 @@ public final class SVDRecommender extends AbstractRecommender {
    */
   @Override
   public float estimatePreference(long userID, long itemID) throws TasteException {
-    double[] userFeatures = factorization.getUserFeatures(userID);
-    double[] itemFeatures = factorization.getItemFeatures(itemID);
-    double estimate = 0;
+    if (!foldIn) {
+      return (float) factorization.estimate(userID, itemID);
+    }
+    double[] userFeatures = userFeatures(userID);
+    double[] itemFeatures = itemFeatures(itemID);
+    double estimate = 0.0;
     for (int feature = 0; feature < userFeatures.length; feature++) {
       estimate += userFeatures[feature] * itemFeatures[feature];
     }
     return (float) estimate;
   }
 
-  private final class Estimator implements TopItems.Estimator<Long> {
-
-    private final long theUserID;
-
-    private Estimator(long theUserID) {
-      this.theUserID = theUserID;
-    }
-
-    @Override
-    public double estimate(Long itemID) throws TasteException {
-      return estimatePreference(theUserID, itemID);
-    }
-  }
-
   /**
    * Refresh the data model and factorization.
    */
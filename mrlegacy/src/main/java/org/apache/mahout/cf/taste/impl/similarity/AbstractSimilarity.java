@@ -20,14 +20,19 @@ package org.apache.mahout.cf.taste.impl.similarity;
 import java.util.Collection;
 import java.util.concurrent.Callable;
 
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
 import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.common.Weighting;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.JDBCDataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 
 import com.google.common.base.Preconditions;
 
@@ -224,8 +229,10 @@ abstract class AbstractSimilarity extends AbstractItemSimilarity implements User
   @Override
   public final double itemSimilarity(long itemID1, long itemID2) throws TasteException {
     DataModel dataModel = getDataModel();
-    PreferenceArray xPrefs = dataModel.getPreferencesForItem(itemID1);
-    PreferenceArray yPrefs = dataModel.getPreferencesForItem(itemID2);
+    return itemSimilarity(dataModel.getPreferencesForItem(itemID1), dataModel.getPreferencesForItem(itemID2));
+  }
+
+  private double itemSimilarity(PreferenceArray xPrefs, PreferenceArray yPrefs) {
     int xLength = xPrefs.length();
     int yLength = yPrefs.length();
     
@@ -300,12 +307,118 @@ abstract class AbstractSimilarity extends AbstractItemSimilarity implements User
     return result;
   }
 
+  /**
+   * <p>
+   * Computes the similarity of one item to many in a single pass, rather than one pair at a time. Each user with
+   * a preference for {@code itemID1} is looked up once, and that user's preferences add to the sums of every item
+   * in {@code itemID2s} the user also has a preference for. This is a product of the sparse user-item matrix with
+   * the item's column, using the data model's preferences by user as an inverted index, and costs time
+   * proportional to the number of preferences of those users instead of to the number of pairs times the number
+   * of preferences per item.
+   * </p>
+   *
+   * <p>
+   * Reading every co-rater's preferences is only cheap when the data model holds them in memory; see
+   * {@link AbstractDataModel#isInMemory()}. For other models, and for a single item, each pair is computed as in
+   * {@link #itemSimilarity(long, long)}, reading {@code itemID1}'s preferences once.
+   * </p>
+   *
+   * <p>
+   * Sums are taken over the same users in the same order as {@link #itemSimilarity(long, long)}, so the results
+   * are identical. Either way, items with no users in common with {@code itemID1}, including items unknown to the
+   * data model, get {@link Double#NaN}.
+   * </p>
+   */
   @Override
   public double[] itemSimilarities(long itemID1, long[] itemID2s) throws TasteException {
     int length = itemID2s.length;
+    DataModel dataModel = getDataModel();
+    PreferenceArray xPrefs = dataModel.getPreferencesForItem(itemID1);
+    if (length > 1 && dataModel instanceof JDBCDataModel) {
+      // Read the other items' preferences in a few queries rather than one each
+      FastByIDMap<PreferenceArray> yPrefs = ((JDBCDataModel) dataModel).getPreferencesForItems(itemID2s);
+      double[] result = new double[length];
+      for (int i = 0; i < length; i++) {
+        PreferenceArray prefs = yPrefs.get(itemID2s[i]);
+        result[i] = prefs == null ? Double.NaN : itemSimilarity(xPrefs, prefs);
+      }
+      return result;
+    }
+    if (length == 1 || !AbstractDataModel.isInMemory(dataModel)) {
+      double[] result = new double[length];
+      for (int i = 0; i < length; i++) {
+        try {
+          result[i] = itemSimilarity(xPrefs, dataModel.getPreferencesForItem(itemID2s[i]));
+        } catch (NoSuchItemException nsie) {
+          result[i] = Double.NaN;
+        }
+      }
+      return result;
+    }
+
+    // Position of each distinct item in itemID2s; repeats are filled in at the end
+    OpenLongIntHashMap positions = new OpenLongIntHashMap(length);
+    for (int i = 0; i < length; i++) {
+      if (!positions.containsKey(itemID2s[i])) {
+        positions.put(itemID2s[i], i);
+      }
+    }
+
+    int[] counts = new int[length];
+    double[] sumX = new double[length];
+    double[] sumX2 = new double[length];
+    double[] sumY = new double[length];
+    double[] sumY2 = new double[length];
+    double[] sumXY = new double[length];
+    double[] sumXYdiff2 = new double[length];
+
+    int xLength = xPrefs.length();
+    for (int xPrefIndex = 0; xPrefIndex < xLength; xPrefIndex++) {
+      double x = xPrefs.getValue(xPrefIndex);
+      PreferenceArray userPrefs = dataModel.getPreferencesFromUser(xPrefs.getUserID(xPrefIndex));
+      int userLength = userPrefs.length();
+      for (int userPrefIndex = 0; userPrefIndex < userLength; userPrefIndex++) {
+        long itemID2 = userPrefs.getItemID(userPrefIndex);
+        if (positions.containsKey(itemID2)) {
+          int i = positions.get(itemID2);
+          double y = userPrefs.getValue(userPrefIndex);
+          sumXY[i] += x * y;
+          sumX[i] += x;
+          sumX2[i] += x * x;
+          sumY[i] += y;
+          sumY2[i] += y * y;
+          double diff = x - y;
+          sumXYdiff2[i] += diff * diff;
+          counts[i]++;
+        }
+      }
+    }
+
     double[] result = new double[length];
     for (int i = 0; i < length; i++) {
-      result[i] = itemSimilarity(itemID1, itemID2s[i]);
+      int first = positions.get(itemID2s[i]);
+      if (first != i) {
+        result[i] = result[first];
+        continue;
+      }
+      int count = counts[i];
+      double itemResult;
+      if (centerData) {
+        // See comments in itemSimilarity() on these computations
+        double n = (double) count;
+        double meanX = sumX[i] / n;
+        double meanY = sumY[i] / n;
+        double centeredSumXY = sumXY[i] - meanY * sumX[i];
+        double centeredSumX2 = sumX2[i] - meanX * sumX[i];
+        double centeredSumY2 = sumY2[i] - meanY * sumY[i];
+        itemResult = computeResult(count, centeredSumXY, centeredSumX2, centeredSumY2, sumXYdiff2[i]);
+      } else {
+        itemResult = computeResult(count, sumXY[i], sumX2[i], sumY2[i], sumXYdiff2[i]);
+      }
+      if (!Double.isNaN(itemResult)) {
+        itemResult = normalizeWeightResult(itemResult, count, cachedNumUsers);
+      }
+      result[i] = itemResult;
     }
     return result;
   }
@@ -29,6 +29,7 @@ import org.apache.mahout.cf.taste.impl.recommender.TopItems;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongDoubleHashMap;
 
 import com.google.common.base.Preconditions;
 
@@ -50,7 +51,7 @@ public final class GenericItemSimilarity implements ItemSimilarity {
 
   private static final long[] NO_IDS = new long[0];
   
-  private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<FastByIDMap<Double>>();
+  private final FastByIDMap<OpenLongDoubleHashMap> similarityMaps = new FastByIDMap<OpenLongDoubleHashMap>();
   private final FastByIDMap<FastIDSet> similarItemIDsIndex = new FastByIDMap<FastIDSet>();
 
   /**
@@ -164,9 +165,9 @@ public final class GenericItemSimilarity implements ItemSimilarity {
           itemID1 = similarityItemID2;
           itemID2 = similarityItemID1;
         }
-        FastByIDMap<Double> map = similarityMaps.get(itemID1);
+        OpenLongDoubleHashMap map = similarityMaps.get(itemID1);
         if (map == null) {
-          map = new FastByIDMap<Double>();
+          map = new OpenLongDoubleHashMap();
           similarityMaps.put(itemID1, map);
         }
         map.put(itemID2, iic.getValue());
@@ -214,12 +215,11 @@ public final class GenericItemSimilarity implements ItemSimilarity {
       firstID = itemID2;
       secondID = itemID1;
     }
-    FastByIDMap<Double> nextMap = similarityMaps.get(firstID);
+    OpenLongDoubleHashMap nextMap = similarityMaps.get(firstID);
     if (nextMap == null) {
       return Double.NaN;
     }
-    Double similarity = nextMap.get(secondID);
-    return similarity == null ? Double.NaN : similarity;
+    return nextMap.containsKey(secondID) ? nextMap.get(secondID) : Double.NaN;
   }
 
   @Override
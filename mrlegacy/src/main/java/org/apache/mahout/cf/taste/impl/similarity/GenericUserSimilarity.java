@@ -30,12 +30,13 @@ import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongDoubleHashMap;
 
 import com.google.common.base.Preconditions;
 
 public final class GenericUserSimilarity implements UserSimilarity {
   
-  private final FastByIDMap<FastByIDMap<Double>> similarityMaps = new FastByIDMap<FastByIDMap<Double>>();
+  private final FastByIDMap<OpenLongDoubleHashMap> similarityMaps = new FastByIDMap<OpenLongDoubleHashMap>();
   
   public GenericUserSimilarity(Iterable<UserUserSimilarity> similarities) {
     initSimilarityMaps(similarities.iterator());
@@ -96,9 +97,9 @@ public final class GenericUserSimilarity implements UserSimilarity {
           user1 = similarityUser2;
           user2 = similarityUser1;
         }
-        FastByIDMap<Double> map = similarityMaps.get(user1);
+        OpenLongDoubleHashMap map = similarityMaps.get(user1);
         if (map == null) {
-          map = new FastByIDMap<Double>();
+          map = new OpenLongDoubleHashMap();
           similarityMaps.put(user1, map);
         }
         map.put(user2, uuc.getValue());
@@ -121,12 +122,11 @@ public final class GenericUserSimilarity implements UserSimilarity {
       first = userID2;
       second = userID1;
     }
-    FastByIDMap<Double> nextMap = similarityMaps.get(first);
+    OpenLongDoubleHashMap nextMap = similarityMaps.get(first);
     if (nextMap == null) {
       return Double.NaN;
     }
-    Double similarity = nextMap.get(second);
-    return similarity == null ? Double.NaN : similarity;
+    return nextMap.containsKey(second) ? nextMap.get(second) : Double.NaN;
   }
   
   @Override
@@ -23,6 +23,7 @@ import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
@@ -86,15 +87,21 @@ public final class LogLikelihoodSimilarity extends AbstractItemSimilarity implem
     long numUsers = dataModel.getNumUsers();
     int length = itemID2s.length;
     double[] result = new double[length];
+    int[] preferring1and2 = AbstractDataModel.countUsersWithPreferenceFor(dataModel, itemID1, itemID2s);
     for (int i = 0; i < length; i++) {
-      result[i] = doItemSimilarity(itemID1, itemID2s[i], preferring1, numUsers);
+      result[i] = similarityFromCounts(itemID2s[i], preferring1, preferring1and2[i], numUsers);
     }
     return result;
   }
 
   private double doItemSimilarity(long itemID1, long itemID2, long preferring1, long numUsers) throws TasteException {
+    long preferring1and2 = getDataModel().getNumUsersWithPreferenceFor(itemID1, itemID2);
+    return similarityFromCounts(itemID2, preferring1, preferring1and2, numUsers);
+  }
+
+  private double similarityFromCounts(long itemID2, long preferring1, long preferring1and2, long numUsers)
+    throws TasteException {
     DataModel dataModel = getDataModel();
-    long preferring1and2 = dataModel.getNumUsersWithPreferenceFor(itemID1, itemID2);
     if (preferring1and2 == 0) {
       return Double.NaN;
     }
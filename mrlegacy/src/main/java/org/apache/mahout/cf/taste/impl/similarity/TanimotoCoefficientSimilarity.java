@@ -23,6 +23,7 @@ import org.apache.mahout.cf.taste.common.Refreshable;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.RefreshHelper;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.similarity.PreferenceInferrer;
 import org.apache.mahout.cf.taste.similarity.UserSimilarity;
@@ -96,15 +97,21 @@ public final class TanimotoCoefficientSimilarity extends AbstractItemSimilarity
     int preferring1 = getDataModel().getNumUsersWithPreferenceFor(itemID1);
     int length = itemID2s.length;
     double[] result = new double[length];
+    DataModel dataModel = getDataModel();
+    int[] preferring1and2 = AbstractDataModel.countUsersWithPreferenceFor(dataModel, itemID1, itemID2s);
     for (int i = 0; i < length; i++) {
-      result[i] = doItemSimilarity(itemID1, itemID2s[i], preferring1);
+      result[i] = similarityFromCounts(itemID2s[i], preferring1, preferring1and2[i]);
     }
     return result;
   }
 
   private double doItemSimilarity(long itemID1, long itemID2, int preferring1) throws TasteException {
+    int preferring1and2 = getDataModel().getNumUsersWithPreferenceFor(itemID1, itemID2);
+    return similarityFromCounts(itemID2, preferring1, preferring1and2);
+  }
+
+  private double similarityFromCounts(long itemID2, int preferring1, int preferring1and2) throws TasteException {
     DataModel dataModel = getDataModel();
-    int preferring1and2 = dataModel.getNumUsersWithPreferenceFor(itemID1, itemID2);
     if (preferring1and2 == 0) {
       return Double.NaN;
     }
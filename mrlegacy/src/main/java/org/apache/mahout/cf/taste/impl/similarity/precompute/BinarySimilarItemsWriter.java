@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity.precompute;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItem;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItems;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItemsWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Persists precomputed item similarities in a compact binary file, sorted by item ID, which a
+ * {@link MappedItemSimilarity} maps into memory and reads without parsing.
+ * </p>
+ *
+ * <p>
+ * Items may be added in any order. Their similar items are appended to temporary files as they arrive, and only
+ * the IDs of the items and where their similar items start are kept on the heap, 20 bytes per item. On
+ * {@link #close()}, the file is assembled in item order and renamed into place, so a {@link MappedItemSimilarity}
+ * reading an earlier version of it is not disturbed.
+ * </p>
+ *
+ * <p>
+ * The layout, all values big-endian and each section starting on an 8-byte boundary, is:
+ * </p>
+ *
+ * <ul>
+ *   <li>header: magic number, version, number of items ({@code int}), total number of similar items
+ *   ({@code long}), padded to {@value #HEADER_SIZE} bytes</li>
+ *   <li>sorted item IDs ({@code long})</li>
+ *   <li>for each item, then one past the last, the index of its first similar item ({@code long})</li>
+ *   <li>IDs of the similar items ({@code long}), each item's most similar first</li>
+ *   <li>the similarities, in the same order ({@code float})</li>
+ * </ul>
+ */
+public class BinarySimilarItemsWriter implements SimilarItemsWriter {
+
+  private static final Logger log = LoggerFactory.getLogger(BinarySimilarItemsWriter.class);
+
+  static final int MAGIC = 0x54534931; // "TSI1"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 32;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final File file;
+  private File similarItemIDsFile;
+  private File similaritiesFile;
+  private DataOutputStream similarItemIDsOut;
+  private DataOutputStream similaritiesOut;
+  private long[] itemIDs;
+  private long[] starts;
+  private int[] sizes;
+  private int numItems;
+  private long numSimilarItems;
+
+  public BinarySimilarItemsWriter(File file) {
+    this.file = Preconditions.checkNotNull(file);
+  }
+
+  @Override
+  public void open() throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    similarItemIDsFile = new File(dir, file.getName() + ".ids.tmp");
+    similaritiesFile = new File(dir, file.getName() + ".similarities.tmp");
+    similarItemIDsOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(similarItemIDsFile)));
+    similaritiesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(similaritiesFile)));
+    itemIDs = new long[INITIAL_CAPACITY];
+    starts = new long[INITIAL_CAPACITY];
+    sizes = new int[INITIAL_CAPACITY];
+    numItems = 0;
+    numSimilarItems = 0L;
+  }
+
+  @Override
+  public void add(SimilarItems similarItems) throws IOException {
+    if (numItems == itemIDs.length) {
+      int newCapacity = numItems + (numItems >> 1);
+      itemIDs = Arrays.copyOf(itemIDs, newCapacity);
+      starts = Arrays.copyOf(starts, newCapacity);
+      sizes = Arrays.copyOf(sizes, newCapacity);
+    }
+    int size = similarItems.numSimilarItems();
+    long[] similarItemIDs = new long[size];
+    float[] similarities = new float[size];
+    int n = 0;
+    for (SimilarItem similarItem : similarItems.getSimilarItems()) {
+      similarItemIDs[n] = similarItem.getItemID();
+      similarities[n] = (float) similarItem.getSimilarity();
+      n++;
+    }
+    sortBySimilarityDescending(similarItemIDs, similarities);
+    for (int i = 0; i < size; i++) {
+      similarItemIDsOut.writeLong(similarItemIDs[i]);
+      similaritiesOut.writeFloat(similarities[i]);
+    }
+    itemIDs[numItems] = similarItems.getItemID();
+    starts[numItems] = numSimilarItems;
+    sizes[numItems] = size;
+    numItems++;
+    numSimilarItems += size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (similarItemIDsOut == null) {
+      return;
+    }
+    try {
+      Closeables.close(similarItemIDsOut, false);
+      Closeables.close(similaritiesOut, false);
+      similarItemIDsOut = null;
+      similaritiesOut = null;
+      writeSorted();
+    } finally {
+      delete(similarItemIDsFile);
+      delete(similaritiesFile);
+      itemIDs = null;
+      starts = null;
+      sizes = null;
+    }
+  }
+
+  private void writeSorted() throws IOException {
+    int[] order = new int[numItems];
+    for (int i = 0; i < numItems; i++) {
+      order[i] = i;
+    }
+    sortByItemID(order, 0, numItems - 1);
+    for (int i = 1; i < numItems; i++) {
+      if (itemIDs[order[i]] == itemIDs[order[i - 1]]) {
+        throw new IOException("Item " + itemIDs[order[i]] + " was added more than once");
+      }
+    }
+
+    File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+    log.info("Writing similar items of {} items to {}...", numItems, file);
+    // Read back with plain reads rather than mapped, so that nothing keeps the temporary files open once closed
+    RandomAccessFile similarItemIDsIn = new RandomAccessFile(similarItemIDsFile, "r");
+    RandomAccessFile similaritiesIn = null;
+    DataOutputStream out = null;
+    try {
+      similaritiesIn = new RandomAccessFile(similaritiesFile, "r");
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numItems);
+      out.writeInt(0);
+      out.writeLong(numSimilarItems);
+      out.writeLong(0L);
+      for (int i : order) {
+        out.writeLong(itemIDs[i]);
+      }
+      long start = 0L;
+      for (int i : order) {
+        out.writeLong(start);
+        start += sizes[i];
+      }
+      out.writeLong(start);
+      // The temporary files hold the values in the same encoding, so each item's are copied as they are
+      byte[] buffer = new byte[1 << 12];
+      for (int i : order) {
+        buffer = copy(similarItemIDsIn, 8L * starts[i], 8 * sizes[i], buffer, out);
+      }
+      for (int i : order) {
+        buffer = copy(similaritiesIn, 4L * starts[i], 4 * sizes[i], buffer, out);
+      }
+      if ((numSimilarItems & 1L) != 0L) {
+        out.writeFloat(0.0f);
+      }
+    } finally {
+      Closeables.close(similarItemIDsIn, true);
+      Closeables.close(similaritiesIn, true);
+      Closeables.close(out, false);
+    }
+    if (!tempFile.renameTo(file) && !(file.delete() && tempFile.renameTo(file))) {
+      throw new IOException("Unable to rename " + tempFile + " to " + file);
+    }
+  }
+
+  /**
+   * Copies {@code length} bytes at {@code position} in the file to {@code out}.
+   *
+   * @return the buffer used, which is {@code buffer} unless it was too small
+   */
+  private static byte[] copy(RandomAccessFile in, long position, int length, byte[] buffer, DataOutputStream out)
+    throws IOException {
+    byte[] bytes = length <= buffer.length ? buffer : new byte[length];
+    in.seek(position);
+    in.readFully(bytes, 0, length);
+    out.write(bytes, 0, length);
+    return bytes;
+  }
+
+  private static void delete(File file) {
+    if (file.exists() && !file.delete()) {
+      log.warn("Unable to delete {}; will try again on exit", file);
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * Sorts by similarity, descending, in place. Lists of similar items are short and usually sorted already.
+   */
+  private static void sortBySimilarityDescending(long[] ids, float[] similarities) {
+    for (int i = 1; i < ids.length; i++) {
+      long id = ids[i];
+      float similarity = similarities[i];
+      int j = i - 1;
+      while (j >= 0 && similarities[j] < similarity) {
+        ids[j + 1] = ids[j];
+        similarities[j + 1] = similarities[j];
+        j--;
+      }
+      ids[j + 1] = id;
+      similarities[j + 1] = similarity;
+    }
+  }
+
+  /**
+   * Quicksort of positions in {@link #itemIDs}, by item ID.
+   */
+  private void sortByItemID(int[] order, int low, int high) {
+    while (low < high) {
+      long pivot = itemIDs[order[(low + high) >>> 1]];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (itemIDs[order[i]] < pivot) {
+          i++;
+        }
+        while (itemIDs[order[j]] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          int swap = order[i];
+          order[i] = order[j];
+          order[j] = swap;
+          i++;
+          j--;
+        }
+      }
+      // Recurse into the smaller part, loop over the larger, to bound the depth of the stack
+      if (j - low < high - i) {
+        sortByItemID(order, low, j);
+        low = i;
+      } else {
+        sortByItemID(order, i, high);
+        high = j;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BinarySimilarItemsWriter[file:" + file + ']';
+  }
+
+}
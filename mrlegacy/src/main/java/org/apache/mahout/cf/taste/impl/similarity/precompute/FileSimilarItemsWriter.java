@@ -20,6 +20,7 @@ package org.apache.mahout.cf.taste.impl.similarity.precompute;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 
@@ -33,18 +34,28 @@ import org.apache.mahout.cf.taste.similarity.precompute.SimilarItemsWriter;
  * Persist the precomputed item similarities to a file that can later be used
  * by a {@link org.apache.mahout.cf.taste.impl.similarity.file.FileItemSimilarity}
  */
-public class FileSimilarItemsWriter implements SimilarItemsWriter {
+public class FileSimilarItemsWriter implements SimilarItemsWriter, Flushable {
 
   private final File file;
+  private final boolean append;
   private BufferedWriter writer;
 
   public FileSimilarItemsWriter(File file) {
+    this(file, false);
+  }
+
+  /**
+   * @param append if true, add to the end of an existing file rather than overwrite it, such as when resuming a
+   *  computation
+   */
+  public FileSimilarItemsWriter(File file, boolean append) {
     this.file = file;
+    this.append = append;
   }
 
   @Override
   public void open() throws IOException {
-    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8));
+    writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append), Charsets.UTF_8));
   }
 
   @Override
@@ -60,6 +71,11 @@ public class FileSimilarItemsWriter implements SimilarItemsWriter {
     }
   }
 
+  @Override
+  public void flush() throws IOException {
+    writer.flush();
+  }
+
   @Override
   public void close() throws IOException {
     Closeables.close(writer, false);
@@ -0,0 +1,231 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity.precompute;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.MappedRegion;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * An {@link ItemSimilarity} which memory-maps a file written by {@link BinarySimilarItemsWriter}, so that
+ * similarities precomputed for many millions of items can be served from the operating system's page cache
+ * rather than the heap. Looking up an item is a binary search over the mapped item IDs; nothing is parsed.
+ * </p>
+ *
+ * <p>
+ * Each item stores only its own most similar items. {@link #itemSimilarity(long, long)} looks for the second item
+ * among the first's similar items and then, as similarities are symmetric, for the first among the second's.
+ * {@link #allSimilarItemIDs(long)} however returns only the item's own similar items.
+ * </p>
+ *
+ * <p>
+ * Like {@link org.apache.mahout.cf.taste.impl.similarity.file.FileItemSimilarity}, this class maps the file again
+ * when {@link #refresh(Collection)} is called and the file has changed.
+ * </p>
+ */
+public class MappedItemSimilarity implements ItemSimilarity {
+
+  private static final Logger log = LoggerFactory.getLogger(MappedItemSimilarity.class);
+
+  private static final long[] NO_IDS = new long[0];
+
+  private final File file;
+  private volatile Mapping mapping;
+
+  public MappedItemSimilarity(File file) throws IOException {
+    Preconditions.checkArgument(file != null, "file is null");
+    Preconditions.checkArgument(file.exists() && !file.isDirectory(), "file is missing or a directory: %s", file);
+    this.file = file.getAbsoluteFile();
+    this.mapping = new Mapping(this.file);
+  }
+
+  /**
+   * @return number of items which have similar items
+   */
+  public int numItems() {
+    return mapping.numItems;
+  }
+
+  @Override
+  public double itemSimilarity(long itemID1, long itemID2) {
+    if (itemID1 == itemID2) {
+      return 1.0;
+    }
+    Mapping current = mapping;
+    double similarity = current.similarity(itemID1, itemID2);
+    return Double.isNaN(similarity) ? current.similarity(itemID2, itemID1) : similarity;
+  }
+
+  @Override
+  public double[] itemSimilarities(long itemID1, long[] itemID2s) {
+    int length = itemID2s.length;
+    double[] result = new double[length];
+    for (int i = 0; i < length; i++) {
+      result[i] = itemSimilarity(itemID1, itemID2s[i]);
+    }
+    return result;
+  }
+
+  @Override
+  public long[] allSimilarItemIDs(long itemID) {
+    Mapping current = mapping;
+    long position = current.position(itemID);
+    if (position < 0) {
+      return NO_IDS;
+    }
+    long start = current.starts.getLong(position);
+    long[] similarItemIDs = new long[(int) (current.starts.getLong(position + 1) - start)];
+    for (int i = 0; i < similarItemIDs.length; i++) {
+      similarItemIDs[i] = current.similarItemIDs.getLong(start + i);
+    }
+    return similarItemIDs;
+  }
+
+  /**
+   * @return up to {@code howMany} of the item's precomputed similar items, most similar first, or an empty list
+   *  if the item is unknown
+   */
+  public List<RecommendedItem> mostSimilarItems(long itemID, int howMany) {
+    Mapping current = mapping;
+    long position = current.position(itemID);
+    if (position < 0) {
+      return Collections.emptyList();
+    }
+    long start = current.starts.getLong(position);
+    int size = (int) Math.min(howMany, current.starts.getLong(position + 1) - start);
+    List<RecommendedItem> similarItems = Lists.newArrayListWithCapacity(size);
+    for (long index = start; index < start + size; index++) {
+      similarItems.add(new GenericRecommendedItem(current.similarItemIDs.getLong(index),
+                                                  current.similarities.getFloat(index)));
+    }
+    return similarItems;
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {
+    if (file.lastModified() != mapping.lastModified) {
+      log.debug("File has changed; mapping again...");
+      try {
+        mapping = new Mapping(file);
+      } catch (IOException ioe) {
+        log.warn("Unable to map {}, keeping the previous mapping", file, ioe);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MappedItemSimilarity[file:" + file + ']';
+  }
+
+  /**
+   * One mapping of the file, replaced as a whole on refresh.
+   */
+  private static final class Mapping {
+
+    private final long lastModified;
+    private final int numItems;
+    private final MappedRegion itemIDs;
+    private final MappedRegion starts;
+    private final MappedRegion similarItemIDs;
+    private final MappedRegion similarities;
+
+    private Mapping(File file) throws IOException {
+      lastModified = file.lastModified();
+      long numSimilarItems;
+      DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        if (in.readInt() != BinarySimilarItemsWriter.MAGIC) {
+          throw new IOException("Not a similar items file: " + file);
+        }
+        int version = in.readInt();
+        if (version != BinarySimilarItemsWriter.VERSION) {
+          throw new IOException("Unsupported version " + version + " in " + file);
+        }
+        numItems = in.readInt();
+        in.readInt();
+        numSimilarItems = in.readLong();
+      } finally {
+        Closeables.close(in, true);
+      }
+
+      long expectedLength = BinarySimilarItemsWriter.HEADER_SIZE + 8L * numItems + 8L * (numItems + 1)
+          + 8L * numSimilarItems + ((4L * numSimilarItems + 7L) & ~7L);
+      if (file.length() != expectedLength) {
+        throw new IOException("Expected " + expectedLength + " bytes but found " + file.length() + " in " + file);
+      }
+
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        long position = BinarySimilarItemsWriter.HEADER_SIZE;
+        itemIDs = new MappedRegion(channel, position, 8L * numItems);
+        position += itemIDs.length();
+        starts = new MappedRegion(channel, position, 8L * (numItems + 1));
+        position += starts.length();
+        similarItemIDs = new MappedRegion(channel, position, 8L * numSimilarItems);
+        position += similarItemIDs.length();
+        similarities = new MappedRegion(channel, position, 4L * numSimilarItems);
+      } finally {
+        Closeables.close(randomAccessFile, true);
+      }
+      log.info("Mapped {} similar items of {} items from {}", new Object[] {numSimilarItems, numItems, file});
+    }
+
+    long position(long itemID) {
+      return itemIDs.binarySearchLong(0, numItems, itemID);
+    }
+
+    /**
+     * @return similarity of the second item to the first, if among the first's similar items, or NaN
+     */
+    double similarity(long itemID, long similarItemID) {
+      long position = position(itemID);
+      if (position < 0) {
+        return Double.NaN;
+      }
+      long end = starts.getLong(position + 1);
+      for (long index = starts.getLong(position); index < end; index++) {
+        if (similarItemIDs.getLong(index) == similarItemID) {
+          return similarities.getFloat(index);
+        }
+      }
+      return Double.NaN;
+    }
+  }
+
+}
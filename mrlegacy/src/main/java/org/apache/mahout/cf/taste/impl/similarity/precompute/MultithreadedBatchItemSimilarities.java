@@ -17,18 +17,32 @@
 
 package org.apache.mahout.cf.taste.impl.similarity.precompute;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
@@ -40,19 +54,48 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * <p>
  * Precompute item similarities in parallel on a single machine. The recommender given to this class must use a
  * DataModel that holds the interactions in memory (such as
  * {@link org.apache.mahout.cf.taste.impl.model.GenericDataModel} or
  * {@link org.apache.mahout.cf.taste.impl.model.file.FileDataModel}) as fast random access to the data is required
+ * </p>
+ *
+ * <p>
+ * Items are sorted by their number of preferences, most popular first, and cut into batches of roughly equal
+ * cost, so that a popular item is computed early and on its own rather than holding up the end of the run. Worker
+ * threads take the next batch as soon as they finish one. Results pass to the calling thread, which writes them,
+ * through a bounded queue; workers wait while it is full, so a slow writer limits how much is held in memory.
+ * </p>
+ *
+ * <p>
+ * If {@link #useCheckpointFile(File)} was called, the IDs of the items written are appended to the checkpoint
+ * file after each batch, and a later run skips them. The writer should then append to its output rather than
+ * overwrite it, as {@link FileSimilarItemsWriter#FileSimilarItemsWriter(File, boolean)} can, and should implement
+ * {@link Flushable}, so that it is flushed before its items are recorded as done. Items written just before a
+ * failure may be written again when resuming.
+ * </p>
  */
 public class MultithreadedBatchItemSimilarities extends BatchItemSimilarities {
 
-  private int batchSize;
-
   private static final int DEFAULT_BATCH_SIZE = 100;
+  private static final int DEFAULT_MAX_QUEUED_BATCHES_PER_THREAD = 4;
+  /** batches per thread to aim for when cutting batches by cost */
+  private static final int BATCHES_PER_THREAD = 16;
+  private static final long PROGRESS_INTERVAL_MILLIS = 10000L;
 
   private static final Logger log = LoggerFactory.getLogger(MultithreadedBatchItemSimilarities.class);
 
+  private final int batchSize;
+  private final int maxQueuedBatches;
+  private File checkpointFile;
+
+  private final AtomicInteger numItemsProcessed = new AtomicInteger();
+  private final AtomicInteger numSimilaritiesProcessed = new AtomicInteger();
+  private final AtomicLong writeMillis = new AtomicLong();
+  private volatile int numItemsToProcess;
+  private volatile long startTime;
+
   /**
    * @param recommender recommender to use
    * @param similarItemsPerItem number of similar items to compute per item
@@ -67,158 +110,287 @@ public class MultithreadedBatchItemSimilarities extends BatchItemSimilarities {
    * @param batchSize size of item batches sent to worker threads
    */
   public MultithreadedBatchItemSimilarities(ItemBasedRecommender recommender, int similarItemsPerItem, int batchSize) {
+    this(recommender, similarItemsPerItem, batchSize, 0);
+  }
+
+  /**
+   * @param recommender recommender to use
+   * @param similarItemsPerItem number of similar items to compute per item
+   * @param batchSize maximum size of item batches sent to worker threads
+   * @param maxQueuedBatches maximum number of computed batches waiting to be written, or 0 to allow
+   *  {@value #DEFAULT_MAX_QUEUED_BATCHES_PER_THREAD} per worker thread
+   */
+  public MultithreadedBatchItemSimilarities(ItemBasedRecommender recommender, int similarItemsPerItem, int batchSize,
+      int maxQueuedBatches) {
     super(recommender, similarItemsPerItem);
+    Preconditions.checkArgument(batchSize > 0, "batchSize must be at least 1: %s", batchSize);
+    Preconditions.checkArgument(maxQueuedBatches >= 0, "maxQueuedBatches must not be negative: %s",
+        maxQueuedBatches);
     this.batchSize = batchSize;
+    this.maxQueuedBatches = maxQueuedBatches;
+  }
+
+  /**
+   * @param checkpointFile file recording which items have been written, to resume an interrupted run from.
+   *  It is created if it does not exist.
+   */
+  public void useCheckpointFile(File checkpointFile) {
+    this.checkpointFile = Preconditions.checkNotNull(checkpointFile);
+  }
+
+  /**
+   * @return number of items written so far by the current or last run
+   */
+  public int getNumItemsProcessed() {
+    return numItemsProcessed.get();
+  }
+
+  /**
+   * @return number of items the current or last run computes, not counting those skipped from a checkpoint
+   */
+  public int getNumItemsToProcess() {
+    return numItemsToProcess;
+  }
+
+  /**
+   * @return number of similarities written so far by the current or last run
+   */
+  public int getNumSimilaritiesProcessed() {
+    return numSimilaritiesProcessed.get();
+  }
+
+  /**
+   * @return items written per second by the current or last run
+   */
+  public double getItemsPerSecond() {
+    long elapsed = System.currentTimeMillis() - startTime;
+    return elapsed > 0 ? 1000.0 * numItemsProcessed.get() / elapsed : 0.0;
   }
 
   @Override
   public int computeItemSimilarities(int degreeOfParallelism, int maxDurationInHours, SimilarItemsWriter writer)
     throws IOException {
+    Preconditions.checkArgument(degreeOfParallelism > 0, "degreeOfParallelism must be at least 1: %s",
+        degreeOfParallelism);
 
-    ExecutorService executorService = Executors.newFixedThreadPool(degreeOfParallelism + 1);
+    FastIDSet checkpointed = checkpointFile == null ? new FastIDSet() : readCheckpoint(checkpointFile);
+    long[][] batches;
+    try {
+      batches = batchItemIDsByCost(getRecommender().getDataModel(), checkpointed, batchSize, degreeOfParallelism);
+    } catch (TasteException te) {
+      throw new IOException(te);
+    }
 
-    Output output = null;
+    numItemsProcessed.set(0);
+    numSimilaritiesProcessed.set(0);
+    writeMillis.set(0L);
+    int numItems = 0;
+    for (long[] batch : batches) {
+      numItems += batch.length;
+    }
+    numItemsToProcess = numItems;
+    startTime = System.currentTimeMillis();
+    log.info("Queued {} items in {} batches, skipping {} checkpointed items",
+        new Object[] {numItems, batches.length, checkpointed.size()});
+
+    int capacity =
+        maxQueuedBatches > 0 ? maxQueuedBatches : DEFAULT_MAX_QUEUED_BATCHES_PER_THREAD * degreeOfParallelism;
+    BlockingQueue<List<SimilarItems>> results = new ArrayBlockingQueue<List<SimilarItems>>(capacity);
+    AtomicInteger nextBatch = new AtomicInteger();
+    AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    ExecutorService executorService = Executors.newFixedThreadPool(degreeOfParallelism);
+    DataOutputStream checkpoint = null;
     try {
       writer.open();
-
-      DataModel dataModel = getRecommender().getDataModel();
-
-      BlockingQueue<long[]> itemsIDsInBatches = queueItemIDsInBatches(dataModel, batchSize);
-      BlockingQueue<List<SimilarItems>> results = new LinkedBlockingQueue<List<SimilarItems>>();
-
-      AtomicInteger numActiveWorkers = new AtomicInteger(degreeOfParallelism);
+      if (checkpointFile != null) {
+        checkpoint = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(checkpointFile, true)));
+      }
       for (int n = 0; n < degreeOfParallelism; n++) {
-        executorService.execute(new SimilarItemsWorker(n, itemsIDsInBatches, results, numActiveWorkers));
+        executorService.execute(new SimilarItemsWorker(n, batches, nextBatch, results, failure));
       }
+      writeResults(batches.length, maxDurationInHours, results, failure, writer, checkpoint);
+    } finally {
+      // Stops workers which are still computing or waiting for room in the queue, after a failure
+      failure.compareAndSet(null, new IllegalStateException("Computation stopped"));
+      executorService.shutdownNow();
+      Closeables.close(checkpoint, true);
+      Closeables.close(writer, false);
+    }
+
+    log.info("Wrote {} similarities for {} items, {} items/s, {}ms spent writing",
+        new Object[] {numSimilaritiesProcessed.get(), numItemsProcessed.get(), (int) getItemsPerSecond(),
+            writeMillis.get()});
+    return numSimilaritiesProcessed.get();
+  }
 
-      output = new Output(results, writer, numActiveWorkers);
-      executorService.execute(output);
+  private void writeResults(int numBatches,
+                            int maxDurationInHours,
+                            BlockingQueue<List<SimilarItems>> results,
+                            AtomicReference<Throwable> failure,
+                            SimilarItemsWriter writer,
+                            DataOutputStream checkpoint) throws IOException {
+    long deadline = startTime + TimeUnit.HOURS.toMillis(maxDurationInHours);
+    long nextProgress = startTime + PROGRESS_INTERVAL_MILLIS;
+    int numBatchesWritten = 0;
+    while (numBatchesWritten < numBatches) {
+      Throwable t = failure.get();
+      if (t != null) {
+        throw new IOException(t);
+      }
+      long now = System.currentTimeMillis();
+      if (now > deadline) {
+        throw new RuntimeException("Unable to complete the computation in " + maxDurationInHours + " hours!");
+      }
+      if (now >= nextProgress) {
+        log.info("Wrote {} of {} items, {} items/s, {} batches waiting to be written",
+            new Object[] {numItemsProcessed.get(), numItemsToProcess, (int) getItemsPerSecond(), results.size()});
+        nextProgress = now + PROGRESS_INTERVAL_MILLIS;
+      }
 
-    } catch (Exception e) {
-      throw new IOException(e);
-    } finally {
-      executorService.shutdown();
+      List<SimilarItems> similarItemsOfBatch;
       try {
-        boolean succeeded = executorService.awaitTermination(maxDurationInHours, TimeUnit.HOURS);
-        if (!succeeded) {
-          throw new RuntimeException("Unable to complete the computation in " + maxDurationInHours + " hours!");
+        similarItemsOfBatch = results.poll(100, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ie) {
+        throw new RuntimeException(ie);
+      }
+      if (similarItemsOfBatch == null) {
+        continue;
+      }
+
+      long writeStart = System.currentTimeMillis();
+      int numSimilarities = 0;
+      for (SimilarItems similarItems : similarItemsOfBatch) {
+        writer.add(similarItems);
+        numSimilarities += similarItems.numSimilarItems();
+      }
+      if (checkpoint != null) {
+        if (writer instanceof Flushable) {
+          ((Flushable) writer).flush();
         }
-      } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        for (SimilarItems similarItems : similarItemsOfBatch) {
+          checkpoint.writeLong(similarItems.getItemID());
+        }
+        checkpoint.flush();
       }
-      Closeables.close(writer, false);
+      writeMillis.addAndGet(System.currentTimeMillis() - writeStart);
+      numItemsProcessed.addAndGet(similarItemsOfBatch.size());
+      numSimilaritiesProcessed.addAndGet(numSimilarities);
+      numBatchesWritten++;
     }
-
-    return output.getNumSimilaritiesProcessed();
   }
 
-  private static BlockingQueue<long[]> queueItemIDsInBatches(DataModel dataModel, int batchSize) throws TasteException {
+  /**
+   * Sorts item IDs by descending number of preferences, and cuts them into batches holding at most
+   * {@code batchSize} items and, unless one item alone exceeds it, about a {@value #BATCHES_PER_THREAD}th of a
+   * thread's share of all preferences.
+   */
+  static long[][] batchItemIDsByCost(DataModel dataModel, FastIDSet skip, int batchSize, int degreeOfParallelism)
+    throws TasteException {
 
-    LongPrimitiveIterator itemIDs = dataModel.getItemIDs();
     int numItems = dataModel.getNumItems();
+    long[] itemIDs = new long[numItems];
+    // number of preferences in the high 32 bits, position in itemIDs in the low 32 bits
+    long[] costAndPosition = new long[numItems];
+    long totalCost = 0L;
+    int count = 0;
+    LongPrimitiveIterator it = dataModel.getItemIDs();
+    while (it.hasNext()) {
+      long itemID = it.nextLong();
+      if (skip.contains(itemID)) {
+        continue;
+      }
+      int cost = dataModel.getNumUsersWithPreferenceFor(itemID);
+      itemIDs[count] = itemID;
+      costAndPosition[count] = ((long) cost << 32) | count;
+      totalCost += cost;
+      count++;
+    }
+    Arrays.sort(costAndPosition, 0, count);
 
-    BlockingQueue<long[]> itemIDBatches = new LinkedBlockingQueue<long[]>((numItems / batchSize) + 1);
-
+    long maxBatchCost = Math.max(1L, totalCost / ((long) degreeOfParallelism * BATCHES_PER_THREAD));
+    List<long[]> batches = Lists.newArrayList();
     long[] batch = new long[batchSize];
     int pos = 0;
-    while (itemIDs.hasNext()) {
-      if (pos == batchSize) {
-        itemIDBatches.add(batch.clone());
+    long batchCost = 0L;
+    for (int i = count - 1; i >= 0; i--) {
+      batch[pos++] = itemIDs[(int) costAndPosition[i]];
+      batchCost += costAndPosition[i] >>> 32;
+      if (pos == batchSize || batchCost >= maxBatchCost) {
+        batches.add(Arrays.copyOf(batch, pos));
         pos = 0;
+        batchCost = 0L;
       }
-      batch[pos] = itemIDs.nextLong();
-      pos++;
     }
-    int nonQueuedItemIDs = batchSize - pos;
-    if (nonQueuedItemIDs > 0) {
-      long[] lastBatch = new long[nonQueuedItemIDs];
-      System.arraycopy(batch, 0, lastBatch, 0, nonQueuedItemIDs);
-      itemIDBatches.add(lastBatch);
+    if (pos > 0) {
+      batches.add(Arrays.copyOf(batch, pos));
     }
-
-    log.info("Queued {} items in {} batches", numItems, itemIDBatches.size());
-
-    return itemIDBatches;
+    return batches.toArray(new long[batches.size()][]);
   }
 
-
-  private static class Output implements Runnable {
-
-    private final BlockingQueue<List<SimilarItems>> results;
-    private final SimilarItemsWriter writer;
-    private final AtomicInteger numActiveWorkers;
-    private int numSimilaritiesProcessed = 0;
-
-    Output(BlockingQueue<List<SimilarItems>> results, SimilarItemsWriter writer, AtomicInteger numActiveWorkers) {
-      this.results = results;
-      this.writer = writer;
-      this.numActiveWorkers = numActiveWorkers;
+  private static FastIDSet readCheckpoint(File checkpointFile) throws IOException {
+    FastIDSet checkpointed = new FastIDSet();
+    if (!checkpointFile.exists()) {
+      return checkpointed;
     }
-
-    private int getNumSimilaritiesProcessed() {
-      return numSimilaritiesProcessed;
-    }
-
-    @Override
-    public void run() {
-      while (numActiveWorkers.get() != 0) {
-        try {
-          List<SimilarItems> similarItemsOfABatch = results.poll(10, TimeUnit.MILLISECONDS);
-          if (similarItemsOfABatch != null) {
-            for (SimilarItems similarItems : similarItemsOfABatch) {
-              writer.add(similarItems);
-              numSimilaritiesProcessed += similarItems.numSimilarItems();
-            }
-          }
-        } catch (Exception e) {
-          throw new RuntimeException(e);
-        }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)));
+    try {
+      while (true) {
+        checkpointed.add(in.readLong());
       }
+    } catch (EOFException eofe) {
+      // done; a partly written last ID is ignored
+    } finally {
+      Closeables.close(in, true);
     }
+    log.info("Read {} checkpointed items from {}", checkpointed.size(), checkpointFile);
+    return checkpointed;
   }
 
   private class SimilarItemsWorker implements Runnable {
 
     private final int number;
-    private final BlockingQueue<long[]> itemIDBatches;
+    private final long[][] batches;
+    private final AtomicInteger nextBatch;
     private final BlockingQueue<List<SimilarItems>> results;
-    private final AtomicInteger numActiveWorkers;
+    private final AtomicReference<Throwable> failure;
 
-    SimilarItemsWorker(int number, BlockingQueue<long[]> itemIDBatches, BlockingQueue<List<SimilarItems>> results,
-        AtomicInteger numActiveWorkers) {
+    SimilarItemsWorker(int number, long[][] batches, AtomicInteger nextBatch,
+        BlockingQueue<List<SimilarItems>> results, AtomicReference<Throwable> failure) {
       this.number = number;
-      this.itemIDBatches = itemIDBatches;
+      this.batches = batches;
+      this.nextBatch = nextBatch;
       this.results = results;
-      this.numActiveWorkers = numActiveWorkers;
+      this.failure = failure;
     }
 
     @Override
     public void run() {
-
       int numBatchesProcessed = 0;
-      while (!itemIDBatches.isEmpty()) {
-        try {
-          long[] itemIDBatch = itemIDBatches.take();
-
+      try {
+        int batch;
+        while (failure.get() == null && (batch = nextBatch.getAndIncrement()) < batches.length) {
+          long[] itemIDBatch = batches[batch];
           List<SimilarItems> similarItemsOfBatch = Lists.newArrayListWithCapacity(itemIDBatch.length);
           for (long itemID : itemIDBatch) {
             List<RecommendedItem> similarItems = getRecommender().mostSimilarItems(itemID, getSimilarItemsPerItem());
-
             similarItemsOfBatch.add(new SimilarItems(itemID, similarItems));
           }
-
-          results.offer(similarItemsOfBatch);
-
-          if (++numBatchesProcessed % 5 == 0) {
-            log.info("worker {} processed {} batches", number, numBatchesProcessed);
+          // Waits while the writer is behind, unless the computation has stopped
+          while (!results.offer(similarItemsOfBatch, 100, TimeUnit.MILLISECONDS)) {
+            if (failure.get() != null) {
+              return;
+            }
           }
-
-        } catch (Exception e) {
-          throw new RuntimeException(e);
+          numBatchesProcessed++;
         }
+        log.info("worker {} processed {} batches. done.", number, numBatchesProcessed);
+      } catch (InterruptedException ie) {
+        log.info("worker {} interrupted after {} batches", number, numBatchesProcessed);
+      } catch (Exception e) {
+        log.warn("worker {} failed", number, e);
+        failure.compareAndSet(null, e);
       }
-      log.info("worker {} processed {} batches. done.", number, numBatchesProcessed);
-      numActiveWorkers.decrementAndGet();
     }
   }
 }
@@ -39,5 +39,21 @@ public interface JDBCDataModel extends DataModel {
   FastByIDMap<PreferenceArray> exportWithPrefs() throws TasteException;
   
   FastByIDMap<FastIDSet> exportWithIDsOnly() throws TasteException;
+
+  /**
+   * Like {@link #getPreferencesFromUser(long)} for many users, but reads them in a few queries rather than one
+   * each.
+   *
+   * @return preferences of each of the given users who has any
+   */
+  FastByIDMap<PreferenceArray> getPreferencesFromUsers(long... userIDs) throws TasteException;
+
+  /**
+   * Like {@link #getPreferencesForItem(long)} for many items, but reads them in a few queries rather than one
+   * each.
+   *
+   * @return preferences for each of the given items which has any
+   */
+  FastByIDMap<PreferenceArray> getPreferencesForItems(long... itemIDs) throws TasteException;
   
 }
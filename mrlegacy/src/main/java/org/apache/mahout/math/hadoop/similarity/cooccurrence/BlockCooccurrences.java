@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.math.hadoop.similarity.cooccurrence;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.function.IntDoubleProcedure;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasure;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntDoubleHashMap;
+import org.apache.mahout.math.map.OpenIntIntHashMap;
+import org.apache.mahout.math.map.OpenIntObjectHashMap;
+import org.apache.mahout.math.map.OpenLongObjectHashMap;
+
+/**
+ * <p>
+ * In-mapper aggregation of co-occurrences for {@link RowSimilarityJob.BlockCooccurrencesMapper}. Rows are tiled
+ * into blocks of consecutive indices. For every pair of blocks, the aggregations of each pair of co-occurring rows
+ * are summed in primitive maps over all the columns a mapper sees, so a pair of rows which co-occurs in many columns
+ * of one split costs a single partial dot product in the shuffle rather than one per column.
+ * </p>
+ *
+ * <p>
+ * If a threshold is given, pairs whose similarity cannot reach it, as bounded by
+ * {@link VectorSimilarityMeasure#consider(int, int, double, double, double)} from the rows' numbers of non-zero
+ * entries and maximum values, are pruned before they are buffered.
+ * </p>
+ *
+ * <p>
+ * The {@link #size()} of the buffer is measured in partial dot products. Each one buffered takes an int key, a
+ * double value and a state byte in each of two to five slots of an {@link OpenIntDoubleHashMap}, and each map,
+ * one per row of a block pair and one per block pair, costs about as much as {@link #MAP_COST} of them before it
+ * holds any, for its object, its arrays of {@link #INITIAL_MAP_CAPACITY} slots and its entry in the map above it.
+ * </p>
+ */
+final class BlockCooccurrences {
+
+  private static final Comparator<BlockPair> BY_SIZE_DESCENDING = new Comparator<BlockPair>() {
+    @Override
+    public int compare(BlockPair one, BlockPair two) {
+      return one.size > two.size ? -1 : one.size < two.size ? 1 : 0;
+    }
+  };
+
+  /** buffered partial dot products a map is counted as, besides its entries */
+  static final int MAP_COST = 8;
+  /** initial slots of the maps of a block pair, rather than the hundreds of the maps' default */
+  private static final int INITIAL_MAP_CAPACITY = 4;
+
+  private final VectorSimilarityMeasure similarity;
+  private final int blockSize;
+  private final double threshold;
+  private final OpenIntIntHashMap numNonZeroEntries;
+  private final Vector maxValues;
+
+  private final OpenLongObjectHashMap<BlockPair> blockPairs = new OpenLongObjectHashMap<BlockPair>();
+  /** number of partial dot products currently buffered, counting each map as {@link #MAP_COST} */
+  private long size;
+  private long cooccurrences;
+  private long prunedCooccurrences;
+
+  BlockCooccurrences(VectorSimilarityMeasure similarity, int blockSize) {
+    this(similarity, blockSize, RowSimilarityJob.NO_THRESHOLD, null, null);
+  }
+
+  /**
+   * @param numNonZeroEntries number of non-zero entries per row, only needed with a threshold
+   * @param maxValues maximum value per row, only needed with a threshold
+   */
+  BlockCooccurrences(VectorSimilarityMeasure similarity, int blockSize, double threshold,
+      OpenIntIntHashMap numNonZeroEntries, Vector maxValues) {
+    Preconditions.checkArgument(blockSize > 0, "blockSize must be greater than 0");
+    Preconditions.checkArgument(threshold == RowSimilarityJob.NO_THRESHOLD
+        || (numNonZeroEntries != null && maxValues != null), "pruning by threshold needs row statistics");
+    this.similarity = Preconditions.checkNotNull(similarity);
+    this.blockSize = blockSize;
+    this.threshold = threshold;
+    this.numNonZeroEntries = numNonZeroEntries;
+    this.maxValues = maxValues;
+  }
+
+  /**
+   * Aggregates the co-occurrences of the rows in one column.
+   *
+   * @param occurrences the non-zero entries of the column, sorted by row index
+   */
+  void add(Vector.Element[] occurrences) {
+    int start = 0;
+    while (start < occurrences.length) {
+      int end = endOfBlock(occurrences, start);
+      int blockA = occurrences[start].index() / blockSize;
+      int otherStart = start;
+      while (otherStart < occurrences.length) {
+        int otherEnd = endOfBlock(occurrences, otherStart);
+        int blockB = occurrences[otherStart].index() / blockSize;
+        BlockPair blockPair = null;
+        for (int n = start; n < end; n++) {
+          Vector.Element occurrenceA = occurrences[n];
+          OpenIntDoubleHashMap dots = null;
+          for (int m = Math.max(n, otherStart); m < otherEnd; m++) {
+            Vector.Element occurrenceB = occurrences[m];
+            if (threshold == RowSimilarityJob.NO_THRESHOLD || consider(occurrenceA.index(), occurrenceB.index())) {
+              if (dots == null) {
+                if (blockPair == null) {
+                  blockPair = blockPair(blockA, blockB);
+                }
+                long sizeBefore = blockPair.size;
+                dots = blockPair.dots(occurrenceA.index());
+                size += blockPair.size - sizeBefore;
+              }
+              double aggregate = similarity.aggregate(occurrenceA.get(), occurrenceB.get());
+              int before = dots.size();
+              dots.adjustOrPutValue(occurrenceB.index(), aggregate, aggregate);
+              blockPair.size += dots.size() - before;
+              size += dots.size() - before;
+              cooccurrences++;
+            } else {
+              prunedCooccurrences++;
+            }
+          }
+        }
+        otherStart = otherEnd;
+      }
+      start = end;
+    }
+  }
+
+  private int endOfBlock(Vector.Element[] occurrences, int start) {
+    int block = occurrences[start].index() / blockSize;
+    int end = start + 1;
+    while (end < occurrences.length && occurrences[end].index() / blockSize == block) {
+      end++;
+    }
+    return end;
+  }
+
+  private boolean consider(int rowA, int rowB) {
+    return similarity.consider(numNonZeroEntries.get(rowA), numNonZeroEntries.get(rowB), maxValues.get(rowA),
+        maxValues.get(rowB), threshold);
+  }
+
+  private BlockPair blockPair(int blockA, int blockB) {
+    long key = ((long) blockA << 32) | blockB;
+    BlockPair blockPair = blockPairs.get(key);
+    if (blockPair == null) {
+      blockPair = new BlockPair(key);
+      blockPairs.put(key, blockPair);
+      size += blockPair.size;
+    }
+    return blockPair;
+  }
+
+  /**
+   * Removes the block pairs holding the most partial dot products until at most {@code maxSize} remain buffered,
+   * so that block pairs which are still small keep accumulating.
+   *
+   * @return the removed partial dot products, one vector per row, holding the sums for the rows with the same or
+   *  a higher index
+   */
+  OpenIntObjectHashMap<Vector> drain(long maxSize) {
+    List<BlockPair> largestFirst = Lists.newArrayListWithCapacity(blockPairs.size());
+    blockPairs.values(largestFirst);
+    Collections.sort(largestFirst, BY_SIZE_DESCENDING);
+
+    OpenIntObjectHashMap<Vector> partialDots = new OpenIntObjectHashMap<Vector>();
+    for (BlockPair blockPair : largestFirst) {
+      if (size <= maxSize) {
+        break;
+      }
+      blockPair.drainTo(partialDots);
+      blockPairs.removeKey(blockPair.key);
+      size -= blockPair.size;
+    }
+    return partialDots;
+  }
+
+  long size() {
+    return size;
+  }
+
+  long getCooccurrences() {
+    return cooccurrences;
+  }
+
+  long getPrunedCooccurrences() {
+    return prunedCooccurrences;
+  }
+
+  /**
+   * Summed aggregations of the rows of one block with the rows of another, keyed by row and then by other row.
+   */
+  private static final class BlockPair {
+
+    private final long key;
+    private final OpenIntObjectHashMap<OpenIntDoubleHashMap> dotsByRow =
+        new OpenIntObjectHashMap<OpenIntDoubleHashMap>(INITIAL_MAP_CAPACITY);
+    /** partial dot products buffered, counting the maps as {@link #MAP_COST} each */
+    private long size = MAP_COST;
+
+    private BlockPair(long key) {
+      this.key = key;
+    }
+
+    OpenIntDoubleHashMap dots(int row) {
+      OpenIntDoubleHashMap dots = dotsByRow.get(row);
+      if (dots == null) {
+        dots = new OpenIntDoubleHashMap(INITIAL_MAP_CAPACITY);
+        dotsByRow.put(row, dots);
+        size += MAP_COST;
+      }
+      return dots;
+    }
+
+    void drainTo(OpenIntObjectHashMap<Vector> partialDots) {
+      IntArrayList rows = dotsByRow.keys();
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.getQuick(i);
+        OpenIntDoubleHashMap dots = dotsByRow.get(row);
+        Vector vector = partialDots.get(row);
+        if (vector == null) {
+          vector = new RandomAccessSparseVector(Integer.MAX_VALUE, dots.size());
+          partialDots.put(row, vector);
+        }
+        final Vector rowDots = vector;
+        dots.forEachPair(new IntDoubleProcedure() {
+          @Override
+          public boolean apply(int otherRow, double dot) {
+            rowDots.setQuick(otherRow, dot);
+            return true;
+          }
+        });
+      }
+    }
+  }
+
+}
@@ -0,0 +1,337 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.math.hadoop.similarity.cooccurrence;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasure;
+import org.apache.mahout.math.list.DoubleArrayList;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntIntHashMap;
+import org.apache.mahout.math.set.OpenIntHashSet;
+
+/**
+ * <p>
+ * Computes in memory what the MapReduce phases of {@link RowSimilarityJob} compute from the sampled rows: rows are
+ * normalized as in {@link RowSimilarityJob.VectorNormMapper}, co-occurrences are summed and pruned as in
+ * {@link RowSimilarityJob.CooccurrencesMapper}, similarities are filtered as in
+ * {@link RowSimilarityJob.SimilarityReducer}, and each row keeps its top similarities as in
+ * {@link RowSimilarityJob.MergeToTopKSimilaritiesReducer}.
+ * </p>
+ *
+ * <p>
+ * Each row is appended to primitive lists as it is added, so that no vector is held, and the lists are sorted by
+ * row into compressed sparse row and column arrays once all rows are in. Each row's dot products with all other
+ * rows are accumulated into a dense array by walking the columns of its non-zero entries, and rows are shared out
+ * among threads which each have their own accumulator.
+ * </p>
+ */
+final class InMemoryRowSimilarity {
+
+  private final VectorSimilarityMeasure similarity;
+  private final int numberOfColumns;
+  private final double threshold;
+  private final boolean excludeSelfSimilarity;
+  private final int maxSimilaritiesPerRow;
+
+  /** indices of all rows added, to reject duplicates */
+  private final OpenIntHashSet addedRows = new OpenIntHashSet();
+  /** columns seen, by their positions in {@link #columnStarts} */
+  private final OpenIntIntHashMap columnPositions = new OpenIntIntHashMap();
+  private final IntArrayList columnSizes = new IntArrayList();
+
+  /** the non-empty rows, in the order added, until {@link #index()} sorts them into the arrays below */
+  private IntArrayList addedRowIndices = new IntArrayList();
+  private DoubleArrayList addedNorms = new DoubleArrayList();
+  private DoubleArrayList addedMaxValues = new DoubleArrayList();
+  /** positions of the entries of each added row in {@link #addedColumns} and {@link #addedValues} */
+  private IntArrayList addedRowStarts = new IntArrayList();
+  private IntArrayList addedColumns = new IntArrayList();
+  private DoubleArrayList addedValues = new DoubleArrayList();
+
+  private int[] rowIndices;
+  private double[] norms;
+  private int[] numNonZeroEntries;
+  private double[] maxValues;
+  /** positions of the entries of each row in {@link #rowColumns} and {@link #rowValues} */
+  private int[] rowStarts;
+  private int[] rowColumns;
+  private double[] rowValues;
+  /** positions of the entries of each column in {@link #columnRows} and {@link #columnValues} */
+  private int[] columnStarts;
+  private int[] columnRows;
+  private double[] columnValues;
+
+  InMemoryRowSimilarity(VectorSimilarityMeasure similarity, int numberOfColumns, double threshold,
+      boolean excludeSelfSimilarity, int maxSimilaritiesPerRow) {
+    Preconditions.checkArgument(numberOfColumns > 0, "numberOfColumns must be greater than 0");
+    Preconditions.checkArgument(maxSimilaritiesPerRow > 0, "maxSimilaritiesPerRow must be greater than 0");
+    this.similarity = Preconditions.checkNotNull(similarity);
+    this.numberOfColumns = numberOfColumns;
+    this.threshold = threshold;
+    this.excludeSelfSimilarity = excludeSelfSimilarity;
+    this.maxSimilaritiesPerRow = maxSimilaritiesPerRow;
+  }
+
+  /**
+   * @param sampledRow the row, already sampled down
+   */
+  void addRow(int rowIndex, Vector sampledRow) {
+    Preconditions.checkState(rowIndices == null, "Rows can't be added after computing similarities");
+    Preconditions.checkArgument(addedRows.add(rowIndex), "Duplicate row %s", rowIndex);
+    Vector normalizedRow = similarity.normalize(sampledRow);
+    int start = addedColumns.size();
+    double maxValue = Double.MIN_VALUE;
+    for (Vector.Element element : normalizedRow.nonZeroes()) {
+      int column;
+      if (columnPositions.containsKey(element.index())) {
+        column = columnPositions.get(element.index());
+      } else {
+        column = columnSizes.size();
+        columnPositions.put(element.index(), column);
+        columnSizes.add(0);
+      }
+      columnSizes.setQuick(column, columnSizes.getQuick(column) + 1);
+      addedColumns.add(column);
+      addedValues.add(element.get());
+      if (maxValue < element.get()) {
+        maxValue = element.get();
+      }
+    }
+    if (addedColumns.size() > start) {
+      addedRowIndices.add(rowIndex);
+      addedNorms.add(similarity.norm(normalizedRow));
+      addedMaxValues.add(maxValue);
+      addedRowStarts.add(start);
+    }
+  }
+
+  /**
+   * @return indices of the rows with at least one non-zero entry, ascending, in the order of the vectors
+   *  returned by {@link #computeSimilarities(int)}
+   */
+  int[] rowIndices() {
+    index();
+    return rowIndices;
+  }
+
+  /**
+   * @return each row's top similarities, in the order of {@link #rowIndices()}
+   */
+  Vector[] computeSimilarities(int numThreads) throws InterruptedException {
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be greater than 0");
+    index();
+    final Vector[] similarities = new Vector[rowIndices.length];
+    final AtomicInteger nextRow = new AtomicInteger();
+    List<Callable<Void>> workers = Lists.newArrayListWithCapacity(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      workers.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          RowAccumulator accumulator = new RowAccumulator(rowIndices.length);
+          int row;
+          while ((row = nextRow.getAndIncrement()) < similarities.length) {
+            similarities[row] = accumulator.similarities(row);
+          }
+          return null;
+        }
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (Future<Void> future : executor.invokeAll(workers)) {
+        future.get();
+      }
+    } catch (ExecutionException ee) {
+      throw new IllegalStateException(ee.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return similarities;
+  }
+
+  /**
+   * Sorts the rows added so far into the row and column arrays, once.
+   */
+  private void index() {
+    if (rowIndices != null) {
+      return;
+    }
+    int numRows = addedRowIndices.size();
+    int numEntries = addedColumns.size();
+    addedRowStarts.add(numEntries);
+    // sort the rows by index, keeping the position each was added at in the lower half
+    long[] byRowIndex = new long[numRows];
+    for (int i = 0; i < numRows; i++) {
+      byRowIndex[i] = ((long) addedRowIndices.getQuick(i) << 32) | i;
+    }
+    Arrays.sort(byRowIndex);
+
+    rowIndices = new int[numRows];
+    norms = new double[numRows];
+    numNonZeroEntries = new int[numRows];
+    maxValues = new double[numRows];
+    rowStarts = new int[numRows + 1];
+    for (int row = 0; row < numRows; row++) {
+      int added = (int) byRowIndex[row];
+      rowIndices[row] = addedRowIndices.getQuick(added);
+      norms[row] = addedNorms.getQuick(added);
+      maxValues[row] = addedMaxValues.getQuick(added);
+      numNonZeroEntries[row] = addedRowStarts.getQuick(added + 1) - addedRowStarts.getQuick(added);
+      rowStarts[row + 1] = rowStarts[row] + numNonZeroEntries[row];
+    }
+
+    int numColumns = columnSizes.size();
+    columnStarts = new int[numColumns + 1];
+    for (int column = 0; column < numColumns; column++) {
+      columnStarts[column + 1] = columnStarts[column] + columnSizes.getQuick(column);
+    }
+    rowColumns = new int[numEntries];
+    rowValues = new double[numEntries];
+    columnRows = new int[numEntries];
+    columnValues = new double[numEntries];
+    int[] columnFill = Arrays.copyOf(columnStarts, numColumns);
+    for (int row = 0; row < numRows; row++) {
+      int added = (int) byRowIndex[row];
+      int entry = rowStarts[row];
+      for (int addedEntry = addedRowStarts.getQuick(added); addedEntry < addedRowStarts.getQuick(added + 1);
+          addedEntry++) {
+        int column = addedColumns.getQuick(addedEntry);
+        double value = addedValues.getQuick(addedEntry);
+        rowColumns[entry] = column;
+        rowValues[entry] = value;
+        entry++;
+        columnRows[columnFill[column]] = row;
+        columnValues[columnFill[column]] = value;
+        columnFill[column]++;
+      }
+    }
+    addedRowIndices = null;
+    addedNorms = null;
+    addedMaxValues = null;
+    addedRowStarts = null;
+    addedColumns = null;
+    addedValues = null;
+  }
+
+  /**
+   * Dot products of one row with all others, reused from row to row by one thread.
+   */
+  private final class RowAccumulator {
+
+    private final double[] dots;
+    private final boolean[] touched;
+    private final int[] touchedRows;
+    private final int[] candidateRows;
+    private final double[] candidateValues;
+
+    private RowAccumulator(int numRows) {
+      dots = new double[numRows];
+      touched = new boolean[numRows];
+      touchedRows = new int[numRows];
+      candidateRows = new int[numRows];
+      candidateValues = new double[numRows];
+    }
+
+    Vector similarities(int row) {
+      int numTouched = 0;
+      for (int entry = rowStarts[row]; entry < rowStarts[row + 1]; entry++) {
+        int column = rowColumns[entry];
+        double value = rowValues[entry];
+        for (int other = columnStarts[column]; other < columnStarts[column + 1]; other++) {
+          int otherRow = columnRows[other];
+          // like the MapReduce phases, treat the row with the lower index as the first of the pair
+          boolean first = row <= otherRow;
+          int rowA = first ? row : otherRow;
+          int rowB = first ? otherRow : row;
+          if (threshold != RowSimilarityJob.NO_THRESHOLD && !similarity.consider(numNonZeroEntries[rowA],
+              numNonZeroEntries[rowB], maxValues[rowA], maxValues[rowB], threshold)) {
+            continue;
+          }
+          double otherValue = columnValues[other];
+          dots[otherRow] += first
+              ? similarity.aggregate(value, otherValue)
+              : similarity.aggregate(otherValue, value);
+          if (!touched[otherRow]) {
+            touched[otherRow] = true;
+            touchedRows[numTouched++] = otherRow;
+          }
+        }
+      }
+
+      int numCandidates = 0;
+      for (int i = 0; i < numTouched; i++) {
+        int otherRow = touchedRows[i];
+        double dot = dots[otherRow];
+        dots[otherRow] = 0.0;
+        touched[otherRow] = false;
+        if (dot == 0.0 || (excludeSelfSimilarity && otherRow == row)) {
+          continue;
+        }
+        double similarityValue = row <= otherRow
+            ? similarity.similarity(dot, norms[row], norms[otherRow], numberOfColumns)
+            : similarity.similarity(dot, norms[otherRow], norms[row], numberOfColumns);
+        if (similarityValue >= threshold && similarityValue != 0.0) {
+          candidateRows[numCandidates] = otherRow;
+          candidateValues[numCandidates] = similarityValue;
+          numCandidates++;
+        }
+      }
+      return topSimilarities(numCandidates);
+    }
+
+    /**
+     * Keeps the candidates as {@link Vectors#topKElements(int, Vector)} does.
+     */
+    private Vector topSimilarities(int numCandidates) {
+      Vector topSimilarities =
+          new RandomAccessSparseVector(Integer.MAX_VALUE, Math.min(numCandidates, maxSimilaritiesPerRow));
+      if (numCandidates <= maxSimilaritiesPerRow) {
+        for (int i = 0; i < numCandidates; i++) {
+          topSimilarities.setQuick(rowIndices[candidateRows[i]], candidateValues[i]);
+        }
+        return topSimilarities;
+      }
+      TopElementsQueue topKQueue = new TopElementsQueue(maxSimilaritiesPerRow);
+      for (int i = 0; i < numCandidates; i++) {
+        MutableElement top = topKQueue.top();
+        if (candidateValues[i] > top.get()) {
+          top.setIndex(rowIndices[candidateRows[i]]);
+          top.set(candidateValues[i]);
+          topKQueue.updateTop();
+        }
+      }
+      for (Vector.Element topKSimilarity : topKQueue.getTopElements()) {
+        topSimilarities.setQuick(topKSimilarity.index(), topKSimilarity.get());
+      }
+      return topSimilarities;
+    }
+  }
+
+}
@@ -18,11 +18,13 @@
 package org.apache.mahout.math.hadoop.similarity.cooccurrence;
 
 import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
 import com.google.common.primitives.Ints;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
@@ -30,8 +32,13 @@ import org.apache.hadoop.util.ToolRunner;
 import org.apache.mahout.common.AbstractJob;
 import org.apache.mahout.common.ClassUtils;
 import org.apache.mahout.common.HadoopUtil;
+import org.apache.mahout.common.Pair;
 import org.apache.mahout.common.RandomUtils;
 import org.apache.mahout.common.commandline.DefaultOptionCreator;
+import org.apache.mahout.common.iterator.sequencefile.PathFilters;
+import org.apache.mahout.common.iterator.sequencefile.PathType;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirIterable;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirValueIterable;
 import org.apache.mahout.common.mapreduce.VectorSumCombiner;
 import org.apache.mahout.common.mapreduce.VectorSumReducer;
 import org.apache.mahout.math.RandomAccessSparseVector;
@@ -40,7 +47,9 @@ import org.apache.mahout.math.Vector.Element;
 import org.apache.mahout.math.VectorWritable;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasures;
 import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasure;
+import org.apache.mahout.math.list.IntArrayList;
 import org.apache.mahout.math.map.OpenIntIntHashMap;
+import org.apache.mahout.math.map.OpenIntObjectHashMap;
 
 import java.io.IOException;
 import java.util.Arrays;
@@ -73,9 +82,12 @@ public class RowSimilarityJob extends AbstractJob {
   private static final String MAX_OBSERVATIONS_PER_ROW = RowSimilarityJob.class + ".maxObservationsPerRow";
   private static final String MAX_OBSERVATIONS_PER_COLUMN = RowSimilarityJob.class + ".maxObservationsPerColumn";
   private static final String RANDOM_SEED = RowSimilarityJob.class + ".randomSeed";
+  private static final String BLOCK_SIZE = RowSimilarityJob.class + ".blockSize";
+  private static final String MAX_BUFFERED_COOCCURRENCES = RowSimilarityJob.class + ".maxBufferedCooccurrences";
 
   private static final int DEFAULT_MAX_OBSERVATIONS_PER_ROW = 500;
   private static final int DEFAULT_MAX_OBSERVATIONS_PER_COLUMN = 500;
+  private static final int DEFAULT_MAX_BUFFERED_COOCCURRENCES = 1 << 20;
 
   private static final int NORM_VECTOR_MARKER = Integer.MIN_VALUE;
   private static final int MAXVALUE_VECTOR_MARKER = Integer.MIN_VALUE + 1;
@@ -104,6 +116,15 @@ public class RowSimilarityJob extends AbstractJob {
     addOption("maxObservationsPerColumn", null, "sample columns down to this number of entries",
         String.valueOf(DEFAULT_MAX_OBSERVATIONS_PER_COLUMN));
     addOption("randomSeed", null, "use this seed for sampling", false);
+    addOption("blockSize", null, "tile rows into blocks of this many and sum their co-occurrences in the mapper "
+        + "(default: 0, emit the co-occurrences of each column separately)", String.valueOf(0));
+    addOption("maxBufferedCooccurrences", null, "number of summed co-occurrences a mapper buffers when tiling rows "
+        + "into blocks, counting the map of each row and pair of blocks as " + BlockCooccurrences.MAP_COST
+        + " (default: " + DEFAULT_MAX_BUFFERED_COOCCURRENCES + ')',
+        String.valueOf(DEFAULT_MAX_BUFFERED_COOCCURRENCES));
+    addFlag("inMemory", null, "compute the similarities in this JVM rather than with MapReduce jobs");
+    addOption("numThreads", null, "number of threads to compute the similarities with in memory (default: number of "
+        + "processors)", String.valueOf(Runtime.getRuntime().availableProcessors()));
     addOption(DefaultOptionCreator.overwriteOption().create());
 
     Map<String,List<String>> parsedArgs = parseArguments(args);
@@ -146,6 +167,17 @@ public class RowSimilarityJob extends AbstractJob {
 
     int maxObservationsPerRow = Integer.parseInt(getOption("maxObservationsPerRow"));
     int maxObservationsPerColumn = Integer.parseInt(getOption("maxObservationsPerColumn"));
+    int blockSize = Integer.parseInt(getOption("blockSize"));
+    int maxBufferedCooccurrences = Integer.parseInt(getOption("maxBufferedCooccurrences"));
+
+    if (hasOption("inMemory")) {
+      InMemoryRowSimilarity rowSimilarity = new InMemoryRowSimilarity(
+          ClassUtils.instantiateAs(similarityClassname, VectorSimilarityMeasure.class), numberOfColumns, threshold,
+          excludeSelfSimilarity, maxSimilaritiesPerRow);
+      computeInMemory(rowSimilarity, maxObservationsPerRow, maxObservationsPerColumn, randomSeed,
+          Integer.parseInt(getOption("numThreads")));
+      return 0;
+    }
 
     Path weightsPath = getTempPath("weights");
     Path normsPath = getTempPath("norms.bin");
@@ -187,7 +219,9 @@ public class RowSimilarityJob extends AbstractJob {
     }
 
     if (shouldRunNextPhase(parsedArgs, currentPhase)) {
-      Job pairwiseSimilarity = prepareJob(weightsPath, pairwiseSimilarityPath, CooccurrencesMapper.class,
+      Class<? extends Mapper> cooccurrencesMapper =
+          blockSize > 0 ? BlockCooccurrencesMapper.class : CooccurrencesMapper.class;
+      Job pairwiseSimilarity = prepareJob(weightsPath, pairwiseSimilarityPath, cooccurrencesMapper,
           IntWritable.class, VectorWritable.class, SimilarityReducer.class, IntWritable.class, VectorWritable.class);
       pairwiseSimilarity.setCombinerClass(VectorSumReducer.class);
       Configuration pairwiseConf = pairwiseSimilarity.getConfiguration();
@@ -198,6 +232,8 @@ public class RowSimilarityJob extends AbstractJob {
       pairwiseConf.set(SIMILARITY_CLASSNAME, similarityClassname);
       pairwiseConf.setInt(NUMBER_OF_COLUMNS, numberOfColumns);
       pairwiseConf.setBoolean(EXCLUDE_SELF_SIMILARITY, excludeSelfSimilarity);
+      pairwiseConf.setInt(BLOCK_SIZE, blockSize);
+      pairwiseConf.setInt(MAX_BUFFERED_COOCCURRENCES, maxBufferedCooccurrences);
       boolean succeeded = pairwiseSimilarity.waitForCompletion(true);
       if (!succeeded) {
         return -1;
@@ -219,6 +255,63 @@ public class RowSimilarityJob extends AbstractJob {
     return 0;
   }
 
+  /**
+   * Samples and reads the rows as the MapReduce phases do, and writes the rows' top similarities as
+   * {@link MergeToTopKSimilaritiesReducer} would.
+   */
+  private void computeInMemory(InMemoryRowSimilarity rowSimilarity, int maxObservationsPerRow,
+      int maxObservationsPerColumn, long randomSeed, int numThreads) throws IOException, InterruptedException {
+    Configuration conf = getConf();
+
+    OpenIntIntHashMap observationsPerColumn = new OpenIntIntHashMap();
+    for (VectorWritable rowWritable : new SequenceFileDirValueIterable<VectorWritable>(getInputPath(),
+        PathType.LIST, PathFilters.logsCRCFilter(), conf)) {
+      for (Vector.Element elem : rowWritable.get().nonZeroes()) {
+        observationsPerColumn.adjustOrPutValue(elem.index(), 1, 1);
+      }
+    }
+
+    Random random = randomSeed == NO_FIXED_RANDOM_SEED ? RandomUtils.getRandom() : RandomUtils.getRandom(randomSeed);
+    for (Pair<IntWritable,VectorWritable> row : new SequenceFileDirIterable<IntWritable,VectorWritable>(
+        getInputPath(), PathType.LIST, PathFilters.logsCRCFilter(), conf)) {
+      rowSimilarity.addRow(row.getFirst().get(), sampleDown(row.getSecond().get(), observationsPerColumn,
+          maxObservationsPerRow, maxObservationsPerColumn, random));
+    }
+
+    int[] rowIndices = rowSimilarity.rowIndices();
+    Vector[] similarities = rowSimilarity.computeSimilarities(numThreads);
+
+    Path outputFile = new Path(getOutputPath(), "part-r-00000");
+    SequenceFile.Writer writer = new SequenceFile.Writer(outputFile.getFileSystem(conf), conf, outputFile,
+        IntWritable.class, VectorWritable.class);
+    try {
+      for (int i = 0; i < rowIndices.length; i++) {
+        writer.append(new IntWritable(rowIndices[i]), new VectorWritable(similarities[i]));
+      }
+    } finally {
+      Closeables.close(writer, false);
+    }
+  }
+
+  static Vector sampleDown(Vector rowVector, OpenIntIntHashMap observationsPerColumn, int maxObservationsPerRow,
+      int maxObservationsPerColumn, Random random) {
+
+    int observationsPerRow = rowVector.getNumNondefaultElements();
+    double rowSampleRate = (double) Math.min(maxObservationsPerRow, observationsPerRow) / (double) observationsPerRow;
+
+    Vector downsampledRow = rowVector.like();
+    for (Vector.Element elem : rowVector.nonZeroes()) {
+
+      int columnCount = observationsPerColumn.get(elem.index());
+      double columnSampleRate = (double) Math.min(maxObservationsPerColumn, columnCount) / (double) columnCount;
+
+      if (random.nextDouble() <= Math.min(rowSampleRate, columnSampleRate)) {
+        downsampledRow.setQuick(elem.index(), elem.get());
+      }
+    }
+    return downsampledRow;
+  }
+
   public static class CountObservationsMapper extends Mapper<IntWritable,VectorWritable,NullWritable,VectorWritable> {
 
     private Vector columnCounts = new RandomAccessSparseVector(Integer.MAX_VALUE);
@@ -287,26 +380,11 @@ public class RowSimilarityJob extends AbstractJob {
 
     private Vector sampleDown(Vector rowVector, Context ctx) {
 
-      int observationsPerRow = rowVector.getNumNondefaultElements();
-      double rowSampleRate = (double) Math.min(maxObservationsPerRow, observationsPerRow) / (double) observationsPerRow;
+      Vector downsampledRow = RowSimilarityJob.sampleDown(rowVector, observationsPerColumn, maxObservationsPerRow,
+          maxObservationsPerColumn, random);
 
-      Vector downsampledRow = rowVector.like();
-      long usedObservations = 0;
-      long neglectedObservations = 0;
-
-      for (Vector.Element elem : rowVector.nonZeroes()) {
-
-        int columnCount = observationsPerColumn.get(elem.index());
-        double columnSampleRate = (double) Math.min(maxObservationsPerColumn, columnCount) / (double) columnCount;
-
-        if (random.nextDouble() <= Math.min(rowSampleRate, columnSampleRate)) {
-          downsampledRow.setQuick(elem.index(), elem.get());
-          usedObservations++;
-        } else {
-          neglectedObservations++;
-        }
-
-      }
+      long usedObservations = downsampledRow.getNumNonZeroElements();
+      long neglectedObservations = rowVector.getNumNonZeroElements() - usedObservations;
 
       ctx.getCounter(Counters.USED_OBSERVATIONS).increment(usedObservations);
       ctx.getCounter(Counters.NEGLECTED_OBSERVATIONS).increment(neglectedObservations);
@@ -400,7 +478,7 @@ public class RowSimilarityJob extends AbstractJob {
     private Vector maxValues;
     private double threshold;
 
-    private static final Comparator<Vector.Element> BY_INDEX = new Comparator<Vector.Element>() {
+    static final Comparator<Vector.Element> BY_INDEX = new Comparator<Vector.Element>() {
       @Override
       public int compare(Vector.Element one, Vector.Element two) {
         return Ints.compare(one.index(), two.index());
@@ -455,6 +533,63 @@ public class RowSimilarityJob extends AbstractJob {
   }
 
 
+  /**
+   * Emits the same partial dot products as {@link CooccurrencesMapper}, but tiles rows into blocks and sums the
+   * co-occurrences of each pair of blocks over all the columns of its split, see {@link BlockCooccurrences}. When
+   * more than the configured number of sums are buffered, counting the maps holding them as
+   * {@link BlockCooccurrences#MAP_COST} sums each, the largest block pairs are emitted to free half of it.
+   */
+  public static class BlockCooccurrencesMapper extends Mapper<IntWritable,VectorWritable,IntWritable,VectorWritable> {
+
+    private BlockCooccurrences blockCooccurrences;
+    private int maxBufferedCooccurrences;
+
+    @Override
+    protected void setup(Context ctx) throws IOException, InterruptedException {
+      Configuration conf = ctx.getConfiguration();
+      VectorSimilarityMeasure similarity =
+          ClassUtils.instantiateAs(conf.get(SIMILARITY_CLASSNAME), VectorSimilarityMeasure.class);
+      double threshold = Double.parseDouble(conf.get(THRESHOLD));
+      int blockSize = conf.getInt(BLOCK_SIZE, 0);
+      if (threshold == NO_THRESHOLD) {
+        blockCooccurrences = new BlockCooccurrences(similarity, blockSize);
+      } else {
+        OpenIntIntHashMap numNonZeroEntries = Vectors.readAsIntMap(new Path(conf.get(NUM_NON_ZERO_ENTRIES_PATH)), conf);
+        Vector maxValues = Vectors.read(new Path(conf.get(MAXVALUES_PATH)), conf);
+        blockCooccurrences = new BlockCooccurrences(similarity, blockSize, threshold, numNonZeroEntries, maxValues);
+      }
+      maxBufferedCooccurrences = conf.getInt(MAX_BUFFERED_COOCCURRENCES, DEFAULT_MAX_BUFFERED_COOCCURRENCES);
+    }
+
+    @Override
+    protected void map(IntWritable column, VectorWritable occurrenceVector, Context ctx)
+      throws IOException, InterruptedException {
+      Vector.Element[] occurrences = Vectors.toArray(occurrenceVector);
+      Arrays.sort(occurrences, CooccurrencesMapper.BY_INDEX);
+      blockCooccurrences.add(occurrences);
+      if (blockCooccurrences.size() > maxBufferedCooccurrences) {
+        write(blockCooccurrences.drain(maxBufferedCooccurrences / 2), ctx);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context ctx) throws IOException, InterruptedException {
+      write(blockCooccurrences.drain(0), ctx);
+      ctx.getCounter(Counters.COOCCURRENCES).increment(blockCooccurrences.getCooccurrences());
+      ctx.getCounter(Counters.PRUNED_COOCCURRENCES).increment(blockCooccurrences.getPrunedCooccurrences());
+    }
+
+    private void write(OpenIntObjectHashMap<Vector> partialDots, Context ctx)
+      throws IOException, InterruptedException {
+      IntArrayList rows = partialDots.keys();
+      for (int i = 0; i < rows.size(); i++) {
+        int row = rows.getQuick(i);
+        ctx.write(new IntWritable(row), new VectorWritable(partialDots.get(row)));
+      }
+    }
+  }
+
+
   public static class SimilarityReducer extends Reducer<IntWritable,VectorWritable,IntWritable,VectorWritable> {
 
     private VectorSimilarityMeasure similarity;
@@ -894,6 +894,120 @@ public class RecommenderJobTest extends TasteTestCase {
      assertEquals(3.5, recommendedItem.getValue(), 0.05);
    }
 
+  /**
+   * the map-side join must compute the same recommendations as the reduce-side one
+   */
+  @Test
+  public void testCompleteJobMapSideJoin() throws Exception {
+
+    File inputFile = getTestTempFile("prefs.txt");
+    writeLines(inputFile,
+        "1,1,5",
+        "1,2,5",
+        "1,3,2",
+        "2,1,2",
+        "2,3,3",
+        "2,4,5",
+        "3,2,5",
+        "3,4,3",
+        "4,1,3",
+        "4,4,5");
+
+    File reduceSideOutputDir = getTestTempDir("reduceSideOutput");
+    reduceSideOutputDir.delete();
+    runRecommenderJob(inputFile, reduceSideOutputDir, getTestTempDir("reduceSideTmp"), "0");
+    File mapSideOutputDir = getTestTempDir("mapSideOutput");
+    mapSideOutputDir.delete();
+    runRecommenderJob(inputFile, mapSideOutputDir, getTestTempDir("mapSideTmp"), "1");
+
+    Map<Long,List<RecommendedItem>> expected = readRecommendations(new File(reduceSideOutputDir, "part-r-00000"));
+    Map<Long,List<RecommendedItem>> recommendations =
+        readRecommendations(new File(mapSideOutputDir, "part-m-00000"));
+    assertEquals(4, recommendations.size());
+    assertEquals(expected.keySet(), recommendations.keySet());
+    for (Entry<Long,List<RecommendedItem>> entry : expected.entrySet()) {
+      List<RecommendedItem> expectedItems = entry.getValue();
+      List<RecommendedItem> items = recommendations.get(entry.getKey());
+      assertEquals(expectedItems.size(), items.size());
+      for (int i = 0; i < expectedItems.size(); i++) {
+        assertEquals(expectedItems.get(i).getItemID(), items.get(i).getItemID());
+        assertEquals(expectedItems.get(i).getValue(), items.get(i).getValue(), EPSILON);
+      }
+    }
+  }
+
+  private void runRecommenderJob(File inputFile, File outputDir, File tmpDir, String maxBroadcastSimilarityMB)
+    throws Exception {
+    RecommenderJob recommenderJob = new RecommenderJob();
+
+    Configuration conf = getConfiguration();
+    conf.set("mapred.input.dir", inputFile.getAbsolutePath());
+    conf.set("mapred.output.dir", outputDir.getAbsolutePath());
+    conf.setBoolean("mapred.output.compress", false);
+
+    recommenderJob.setConf(conf);
+
+    recommenderJob.run(new String[] { "--tempDir", tmpDir.getAbsolutePath(), "--similarityClassname",
+        TanimotoCoefficientSimilarity.class.getName(), "--numRecommendations", "4",
+        "--maxBroadcastSimilarityMB", maxBroadcastSimilarityMB });
+  }
+
+  /**
+   * check whether the explicit user/item filter works with the map-side join
+   */
+  @Test
+  public void testCompleteJobWithFilteringMapSideJoin() throws Exception {
+
+    File inputFile = getTestTempFile("prefs.txt");
+    File userFile = getTestTempFile("users.txt");
+    File filterFile = getTestTempFile("filter.txt");
+    File outputDir = getTestTempDir("output");
+    outputDir.delete();
+    File tmpDir = getTestTempDir("tmp");
+
+    writeLines(inputFile,
+        "1,1,5",
+        "1,2,5",
+        "1,3,2",
+        "2,1,2",
+        "2,3,3",
+        "2,4,5",
+        "3,2,5",
+        "3,4,3",
+        "4,1,3",
+        "4,4,5");
+
+    /* only compute recommendations for the donkey */
+    writeLines(userFile, "4");
+    /* do not recommend the hotdog for the donkey */
+    writeLines(filterFile, "4,2");
+
+    RecommenderJob recommenderJob = new RecommenderJob();
+
+    Configuration conf = getConfiguration();
+    conf.set("mapred.input.dir", inputFile.getAbsolutePath());
+    conf.set("mapred.output.dir", outputDir.getAbsolutePath());
+    conf.setBoolean("mapred.output.compress", false);
+
+    recommenderJob.setConf(conf);
+
+    recommenderJob.run(new String[] { "--tempDir", tmpDir.getAbsolutePath(), "--similarityClassname",
+        TanimotoCoefficientSimilarity.class.getName(), "--numRecommendations", "1",
+        "--usersFile", userFile.getAbsolutePath(), "--filterFile", filterFile.getAbsolutePath(),
+        "--maxBroadcastSimilarityMB", "1" });
+
+    Map<Long,List<RecommendedItem>> recommendations = readRecommendations(new File(outputDir, "part-m-00000"));
+
+    assertEquals(1, recommendations.size());
+    assertTrue(recommendations.containsKey(4L));
+    assertEquals(1, recommendations.get(4L).size());
+
+    /* berries should have been recommended to the donkey */
+    RecommendedItem recommendedItem = recommendations.get(4L).get(0);
+    assertEquals(3L, recommendedItem.getItemID());
+    assertEquals(3.5, recommendedItem.getValue(), 0.05);
+  }
+
   static Map<Pair<Long,Long>, Double> readSimilarities(File file) throws IOException {
     Map<Pair<Long,Long>, Double> similarities = Maps.newHashMap();
     for (String line : new FileLineIterable(file)) {
@@ -21,6 +21,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import com.google.common.base.Charsets;
@@ -266,4 +267,60 @@ public final class ItemSimilarityJobTest extends TasteTestCase {
     assertEquals(2, linesWritten);
   }
 
+  /**
+   * the same computation as {@link #testMaxSimilaritiesPerItem()}, in memory
+   */
+  @Test
+  public void testMaxSimilaritiesPerItemInMemory() throws Exception {
+
+    File inputFile = getTestTempFile("prefsForMaxSimilarities.txt");
+    File outputDir = getTestTempDir("output");
+    outputDir.delete();
+    File tmpDir = getTestTempDir("tmp");
+
+    writeLines(inputFile,
+        "1,1,1",
+        "1,3,1",
+        "2,2,1",
+        "2,3,1",
+        "3,1,1",
+        "3,2,1",
+        "4,1,1",
+        "4,2,1",
+        "4,3,1",
+        "5,2,1",
+        "6,1,1",
+        "6,2,1");
+
+    ItemSimilarityJob similarityJob =  new ItemSimilarityJob();
+
+    Configuration conf = getConfiguration();
+    conf.set("mapred.input.dir", inputFile.getAbsolutePath());
+    conf.set("mapred.output.dir", outputDir.getAbsolutePath());
+    conf.setBoolean("mapred.output.compress", false);
+
+    similarityJob.setConf(conf);
+    similarityJob.run(new String[] { "--tempDir", tmpDir.getAbsolutePath(), "--similarityClassname",
+        TanimotoCoefficientSimilarity.class.getName(), "--maxSimilaritiesPerItem", "1", "--inMemory",
+        "--numThreads", "2" });
+    File outPart = outputDir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith("part-");
+      }
+    })[0];
+    List<String> lines = Files.readLines(outPart, Charsets.UTF_8);
+    assertEquals(2, lines.size());
+
+    String[] tokens = TAB.split(lines.get(0));
+    assertEquals(1L, Long.parseLong(tokens[0]));
+    assertEquals(2L, Long.parseLong(tokens[1]));
+    assertEquals(0.5, Double.parseDouble(tokens[2]), 0.0001);
+
+    tokens = TAB.split(lines.get(1));
+    assertEquals(1L, Long.parseLong(tokens[0]));
+    assertEquals(3L, Long.parseLong(tokens[1]));
+    assertEquals(0.4, Double.parseDouble(tokens[2]), 0.0001);
+  }
+
 }
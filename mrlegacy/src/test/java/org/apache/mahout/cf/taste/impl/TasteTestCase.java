@@ -28,8 +28,10 @@ import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.common.RandomUtils;
 
 import java.util.List;
+import java.util.Random;
 
 public abstract class TasteTestCase extends MahoutTestCase {
 
@@ -86,6 +88,54 @@ public abstract class TasteTestCase extends MahoutTestCase {
                                });
   }
 
+  /**
+   * @return a data model of numUsers users and numItems items, see {@link #getRandomPrefs(int, int, double)}
+   */
+  protected static DataModel getRandomDataModel(int numUsers, int numItems, double density) {
+    return getDataModel(getUserIDs(numUsers), getRandomPrefs(numUsers, numItems, density));
+  }
+
+  /**
+   * @return user IDs 0 to numUsers - 1
+   */
+  protected static long[] getUserIDs(int numUsers) {
+    long[] userIDs = new long[numUsers];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+    }
+    return userIDs;
+  }
+
+  /**
+   * @return preferences of numUsers users for numItems items, for use with {@link #getDataModel(long[], Double[][])};
+   *  each user rates each item with probability density, with a whole number from 1 to 5
+   */
+  protected static Double[][] getRandomPrefs(int numUsers, int numItems, double density) {
+    Random random = RandomUtils.getRandom();
+    Double[][] prefs = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextDouble() < density) {
+          prefs[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    return prefs;
+  }
+
+  /**
+   * @return numRows rows of numFeatures standard normally distributed features
+   */
+  protected static double[][] getRandomFeatures(Random random, int numRows, int numFeatures) {
+    double[][] features = new double[numRows][numFeatures];
+    for (int i = 0; i < numRows; i++) {
+      for (int f = 0; f < numFeatures; f++) {
+        features[i][f] = random.nextGaussian();
+      }
+    }
+    return features;
+  }
+
   protected static boolean arrayContains(long[] array, long value) {
     for (long l : array) {
       if (l == value) {
@@ -22,7 +22,13 @@ import org.apache.mahout.cf.taste.impl.TasteTestCase;
 import org.apache.mahout.common.RandomUtils;
 import org.junit.Test;
 
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.common.collect.Lists;
 
 public final class CacheTest extends TasteTestCase {
 
@@ -52,6 +58,140 @@ public final class CacheTest extends TasteTestCase {
     }
   }
   
+  @Test
+  public void testCounters() throws TasteException {
+    Cache<Object,Object> cache = new Cache<Object,Object>(new IdentityRetriever(), 100);
+    for (int i = 0; i < 200; i++) {
+      cache.get(i);
+    }
+    for (int i = 199; i >= 150; i--) {
+      cache.get(i);
+    }
+    assertEquals(200, cache.getMissCount());
+    assertEquals(50, cache.getHitCount());
+    assertTrue(cache.size() <= 100);
+    assertEquals(200 - cache.size(), cache.getEvictionCount());
+  }
+
+  @Test
+  public void testPutAndGetIfPresent() throws TasteException {
+    Cache<Object,Object> cache = new Cache<Object,Object>(new IdentityRetriever(), 100);
+    cache.put(1, "one");
+    cache.put(2, null);
+    assertEquals("one", cache.get(1));
+    assertNull(cache.get(2));
+    assertNull(cache.getIfPresent(3));
+    assertEquals(3, cache.get(3));
+    assertEquals(3, cache.getIfPresent(3));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+    for (int i = 0; i < 200; i++) {
+      cache.put(i, i);
+    }
+    assertTrue(cache.size() <= 100);
+  }
+
+  @Test
+  public void testNullValues() throws TasteException {
+    final AtomicInteger calls = new AtomicInteger();
+    Cache<Object,Object> cache = new Cache<Object,Object>(new Retriever<Object,Object>() {
+      @Override
+      public Object get(Object key) {
+        calls.incrementAndGet();
+        return null;
+      }
+    });
+    assertNull(cache.get(1));
+    assertNull(cache.get(1));
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void testConcurrentMissesRetrieveOnce() throws Exception {
+    final AtomicInteger calls = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final Cache<Object,Object> cache = new Cache<Object,Object>(new Retriever<Object,Object>() {
+      @Override
+      public Object get(Object key) throws TasteException {
+        calls.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException ie) {
+          throw new TasteException(ie);
+        }
+        return key;
+      }
+    }, 1000);
+    final AtomicInteger correct = new AtomicInteger();
+    List<Thread> threads = Lists.newArrayList();
+    for (int i = 0; i < 8; i++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            if (Integer.valueOf(42).equals(cache.get(42))) {
+              correct.incrementAndGet();
+            }
+          } catch (TasteException te) {
+            // counted as incorrect
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    Thread.sleep(200L);
+    release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(1, calls.get());
+    assertEquals(8, correct.get());
+  }
+
+  @Test
+  public void testReentrantRetrieval() throws TasteException {
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicReference<Cache<Object,Object>> cacheRef = new AtomicReference<Cache<Object,Object>>();
+    Cache<Object,Object> cache = new Cache<Object,Object>(new Retriever<Object,Object>() {
+      @Override
+      public Object get(Object key) throws TasteException {
+        // The first retrieval asks the cache for the same key again
+        if (calls.incrementAndGet() == 1) {
+          return cacheRef.get().get(key);
+        }
+        return key;
+      }
+    });
+    cacheRef.set(cache);
+    assertEquals(1, cache.get(1));
+    assertEquals(2, calls.get());
+    assertEquals(1, cache.get(1));
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void testFailedRetrievalNotCached() throws TasteException {
+    final AtomicInteger calls = new AtomicInteger();
+    Cache<Object,Object> cache = new Cache<Object,Object>(new Retriever<Object,Object>() {
+      @Override
+      public Object get(Object key) throws TasteException {
+        if (calls.incrementAndGet() == 1) {
+          throw new TasteException("first call fails");
+        }
+        return key;
+      }
+    });
+    try {
+      cache.get(1);
+      fail();
+    } catch (TasteException te) {
+      // expected
+    }
+    assertEquals(1, cache.get(1));
+    assertEquals(2, calls.get());
+  }
+
   private static class IdentityRetriever implements Retriever<Object,Object> {
     @Override
     public Object get(Object key) throws TasteException {
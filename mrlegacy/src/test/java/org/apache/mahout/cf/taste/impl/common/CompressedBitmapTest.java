@@ -0,0 +1,106 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.cf.taste.impl.common;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Test;
+
+/** <p>Tests {@link CompressedBitmap}.</p> */
+public final class CompressedBitmapTest extends TasteTestCase {
+
+  private static final int NUM_VALUES = 300000;
+
+  @Test
+  public void testContains() {
+    CompressedBitmap bitmap = new CompressedBitmap(new int[] {0, 5, 65535, 65536, 200000});
+    assertEquals(5, bitmap.cardinality());
+    assertTrue(bitmap.contains(0));
+    assertTrue(bitmap.contains(65535));
+    assertTrue(bitmap.contains(65536));
+    assertTrue(bitmap.contains(200000));
+    assertFalse(bitmap.contains(1));
+    assertFalse(bitmap.contains(-1));
+    assertFalse(bitmap.contains(131072));
+  }
+
+  @Test
+  public void testEmpty() {
+    CompressedBitmap empty = new CompressedBitmap(new int[0]);
+    assertEquals(0, empty.cardinality());
+    assertFalse(empty.contains(0));
+    CompressedBitmap other = new CompressedBitmap(new int[] {1, 2, 3});
+    assertEquals(0, empty.intersectionSize(other));
+    assertEquals(0, other.intersectionSize(empty));
+    assertEquals(0, other.intersectionSize(empty.toDenseBitmap(10)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsorted() {
+    new CompressedBitmap(new int[] {3, 1});
+  }
+
+  @Test
+  public void testIntersectionSize() {
+    Random random = RandomUtils.getRandom();
+    // densities either side of the array/bitmap threshold, so every combination of blocks is exercised
+    double[] densities = {0.0001, 0.01, 0.2, 0.9};
+    for (double density1 : densities) {
+      boolean[] members1 = randomMembers(random, density1);
+      CompressedBitmap bitmap1 = toBitmap(members1);
+      long[] dense1 = bitmap1.toDenseBitmap(NUM_VALUES);
+      for (double density2 : densities) {
+        boolean[] members2 = randomMembers(random, density2);
+        CompressedBitmap bitmap2 = toBitmap(members2);
+        int expected = 0;
+        for (int i = 0; i < NUM_VALUES; i++) {
+          if (members1[i] && members2[i]) {
+            expected++;
+          }
+        }
+        assertEquals(expected, bitmap1.intersectionSize(bitmap2));
+        assertEquals(expected, bitmap2.intersectionSize(bitmap1));
+        assertEquals(expected, bitmap2.intersectionSize(dense1));
+      }
+    }
+  }
+
+  private static boolean[] randomMembers(Random random, double density) {
+    boolean[] members = new boolean[NUM_VALUES];
+    for (int i = 0; i < NUM_VALUES; i++) {
+      members[i] = random.nextDouble() < density;
+    }
+    return members;
+  }
+
+  private static CompressedBitmap toBitmap(boolean[] members) {
+    int[] values = new int[members.length];
+    int size = 0;
+    for (int i = 0; i < members.length; i++) {
+      if (members[i]) {
+        values[size++] = i;
+      }
+    }
+    CompressedBitmap bitmap = new CompressedBitmap(Arrays.copyOf(values, size));
+    assertEquals(size, bitmap.cardinality());
+    return bitmap;
+  }
+
+}
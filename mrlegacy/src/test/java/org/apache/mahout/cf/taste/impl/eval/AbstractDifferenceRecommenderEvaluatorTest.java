@@ -0,0 +1,201 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
+import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.cf.taste.impl.recommender.ItemAverageRecommender;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Test;
+
+public final class AbstractDifferenceRecommenderEvaluatorTest extends TasteTestCase {
+
+  private static final int NUM_USERS = 100;
+  private static final int NUM_ITEMS = 50;
+  private static final int PREFS_PER_USER = 20;
+
+  @Test
+  public void testCrossValidate() throws Exception {
+    Random random = RandomUtils.getRandom();
+    long[] userIDs = new long[NUM_USERS];
+    Double[][] prefs = new Double[NUM_USERS][NUM_ITEMS];
+    for (int i = 0; i < NUM_USERS; i++) {
+      userIDs[i] = i;
+      int numPrefs = 0;
+      while (numPrefs < PREFS_PER_USER) {
+        int item = random.nextInt(NUM_ITEMS);
+        if (prefs[i][item] == null) {
+          // Every user rates an item alike, so its average estimates any held-out rating exactly
+          prefs[i][item] = (double) (1 + item % 5);
+          numPrefs++;
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefs);
+
+    final List<DataModel> trainingModels = Lists.newArrayList();
+    RecommenderBuilder builder = new RecommenderBuilder() {
+      @Override
+      public Recommender buildRecommender(DataModel trainingModel) throws TasteException {
+        trainingModels.add(trainingModel);
+        return new ItemAverageRecommender(trainingModel);
+      }
+    };
+    CountingEvaluator evaluator = new CountingEvaluator();
+    double result = evaluator.crossValidate(builder, null, dataModel, 5, 1.0);
+
+    assertEquals(0.0, result, EPSILON);
+    assertEquals(5, trainingModels.size());
+    // Each preference is held out of exactly one fold's training model, and estimated once from the others
+    int numTrainingPrefs = 0;
+    for (DataModel trainingModel : trainingModels) {
+      assertEquals(NUM_USERS, trainingModel.getNumUsers());
+      for (int i = 0; i < NUM_USERS; i++) {
+        numTrainingPrefs += trainingModel.getPreferencesFromUser(i).length();
+      }
+    }
+    assertEquals(4 * NUM_USERS * PREFS_PER_USER, numTrainingPrefs);
+    assertEquals(NUM_USERS * PREFS_PER_USER, evaluator.getNumEstimates());
+  }
+
+  @Test
+  public void testCrossValidateUsersWithOnePreference() throws Exception {
+    // Each user's only preference is held out of one fold, which has nothing left to train on for that user
+    int numUsers = 20;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefs = new Double[numUsers][];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      prefs[i] = new Double[] {1.0};
+    }
+    DataModel dataModel = getDataModel(userIDs, prefs);
+
+    final AtomicInteger numEstimatesAttempted = new AtomicInteger();
+    RecommenderBuilder builder = new RecommenderBuilder() {
+      @Override
+      public Recommender buildRecommender(DataModel trainingModel) throws TasteException {
+        return new CountingRecommender(new ItemAverageRecommender(trainingModel), numEstimatesAttempted);
+      }
+    };
+    CountingEvaluator evaluator = new CountingEvaluator();
+    evaluator.crossValidate(builder, null, dataModel, 2, 1.0);
+
+    // Every preference is held out, but none can be estimated for a user unknown to the training model
+    assertEquals(numUsers, numEstimatesAttempted.get());
+    assertEquals(0, evaluator.getNumEstimates());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooFewFolds() throws Exception {
+    RecommenderBuilder builder = new RecommenderBuilder() {
+      @Override
+      public Recommender buildRecommender(DataModel trainingModel) throws TasteException {
+        return new ItemAverageRecommender(trainingModel);
+      }
+    };
+    new CountingEvaluator().crossValidate(builder, null, getDataModel(), 1, 1.0);
+  }
+
+  /** Counts the estimates asked of a recommender. */
+  private static final class CountingRecommender implements Recommender {
+
+    private final Recommender delegate;
+    private final AtomicInteger numEstimates;
+
+    private CountingRecommender(Recommender delegate, AtomicInteger numEstimates) {
+      this.delegate = delegate;
+      this.numEstimates = numEstimates;
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany) throws TasteException {
+      return delegate.recommend(userID, howMany);
+    }
+
+    @Override
+    public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+      return delegate.recommend(userID, howMany, rescorer);
+    }
+
+    @Override
+    public float estimatePreference(long userID, long itemID) throws TasteException {
+      numEstimates.incrementAndGet();
+      return delegate.estimatePreference(userID, itemID);
+    }
+
+    @Override
+    public void setPreference(long userID, long itemID, float value) throws TasteException {
+      delegate.setPreference(userID, itemID, value);
+    }
+
+    @Override
+    public void removePreference(long userID, long itemID) throws TasteException {
+      delegate.removePreference(userID, itemID);
+    }
+
+    @Override
+    public DataModel getDataModel() {
+      return delegate.getDataModel();
+    }
+
+    @Override
+    public void refresh(Collection<Refreshable> alreadyRefreshed) {
+      delegate.refresh(alreadyRefreshed);
+    }
+  }
+
+  private static final class CountingEvaluator extends AbstractDifferenceRecommenderEvaluator {
+
+    private RunningAverage average;
+
+    int getNumEstimates() {
+      return average.getCount();
+    }
+
+    @Override
+    protected void reset() {
+      average = new FullRunningAverage();
+    }
+
+    @Override
+    protected void processOneEstimate(float estimatedPreference, Preference realPref) {
+      average.addDatum(Math.abs(realPref.getValue() - estimatedPreference));
+    }
+
+    @Override
+    protected double computeFinalEvaluation() {
+      return average.getAverage();
+    }
+  }
+
+}
@@ -17,6 +17,9 @@
 
 package org.apache.mahout.cf.taste.impl.eval;
 
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.mahout.cf.taste.eval.DataModelBuilder;
 import org.apache.mahout.cf.taste.eval.IRStatistics;
 import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
@@ -29,6 +32,7 @@ import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.common.RandomUtils;
 import org.junit.Test;
 
 public final class GenericRecommenderIRStatsEvaluatorImplTest extends TasteTestCase {
@@ -60,6 +64,44 @@ public final class GenericRecommenderIRStatsEvaluatorImplTest extends TasteTestC
     assertEquals(0.666666666, stats.getNormalizedDiscountedCumulativeGain(), EPSILON);
   }
 
+  @Test
+  public void testCrossValidate() throws Exception {
+    Random random = RandomUtils.getRandom();
+    long[] userIDs = new long[200];
+    boolean[][] prefs = new boolean[200][40];
+    for (int i = 0; i < userIDs.length; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < 40; j++) {
+        // Users mostly prefer items of their own group, so recommendations find relevant items well above chance
+        prefs[i][j] = random.nextDouble() < (j % 4 == i % 4 ? 0.6 : 0.05);
+      }
+    }
+    DataModel model = getBooleanDataModel(userIDs, prefs);
+    final AtomicInteger numRecommendersBuilt = new AtomicInteger();
+    RecommenderBuilder builder = new RecommenderBuilder() {
+      @Override
+      public Recommender buildRecommender(DataModel dataModel) {
+        numRecommendersBuilt.incrementAndGet();
+        return new GenericBooleanPrefItemBasedRecommender(dataModel, new LogLikelihoodSimilarity(dataModel));
+      }
+    };
+    DataModelBuilder dataModelBuilder = new DataModelBuilder() {
+      @Override
+      public DataModel buildDataModel(FastByIDMap<PreferenceArray> trainingData) {
+        return new GenericBooleanPrefDataModel(GenericBooleanPrefDataModel.toDataMap(trainingData));
+      }
+    };
+    GenericRecommenderIRStatsEvaluator evaluator = new GenericRecommenderIRStatsEvaluator();
+    IRStatistics stats = evaluator.crossValidate(builder, dataModelBuilder, model, null, 2,
+        GenericRecommenderIRStatsEvaluator.CHOOSE_THRESHOLD, 1.0, 5);
+
+    assertEquals(5, numRecommendersBuilt.get());
+    assertTrue(stats.getPrecision() > 0.1 && stats.getPrecision() <= 1.0);
+    assertTrue(stats.getRecall() > 0.1 && stats.getRecall() <= 1.0);
+    assertTrue(stats.getNormalizedDiscountedCumulativeGain() > 0.1);
+    assertEquals(1.0, stats.getReach(), EPSILON);
+  }
+
   @Test
   public void testIRStats() {
     IRStatistics stats = new IRStatisticsImpl(0.3, 0.1, 0.2, 0.05, 0.15);
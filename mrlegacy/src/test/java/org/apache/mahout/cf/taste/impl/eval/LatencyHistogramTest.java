@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.junit.Test;
+
+public final class LatencyHistogramTest extends TasteTestCase {
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0L, histogram.getValueAtPercentile(99.0));
+    for (long micros = 1; micros <= 10000; micros++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    assertEquals(10000L, histogram.getCount());
+    assertEquals(5000.5, histogram.getMean(), EPSILON);
+    assertEquals(10000L, histogram.getMax());
+    assertWithinBucket(5000L, histogram.getValueAtPercentile(50.0));
+    assertWithinBucket(9500L, histogram.getValueAtPercentile(95.0));
+    assertWithinBucket(9900L, histogram.getValueAtPercentile(99.0));
+    assertWithinBucket(9990L, histogram.getValueAtPercentile(99.9));
+    assertEquals(10000L, histogram.getValueAtPercentile(100.0));
+    assertEquals(1L, histogram.getValueAtPercentile(0.0));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(7));
+    histogram.record(TimeUnit.MICROSECONDS.toNanos(63));
+    assertEquals(3L, histogram.getValueAtPercentile(10.0));
+    assertEquals(7L, histogram.getValueAtPercentile(50.0));
+    assertEquals(63L, histogram.getValueAtPercentile(100.0));
+  }
+
+  @Test
+  public void testBuckets() {
+    for (long value = 0; value < 1000000L; value += 7) {
+      int index = LatencyHistogram.indexOf(value);
+      long highest = LatencyHistogram.highestValueOf(index);
+      assertTrue(highest >= value);
+      assertEquals(index, LatencyHistogram.indexOf(highest));
+      assertEquals(index + 1, LatencyHistogram.indexOf(highest + 1));
+    }
+  }
+
+  private static void assertWithinBucket(long expected, long actual) {
+    assertTrue(actual + " not within 1/32 of " + expected, actual >= expected && actual <= expected * 33 / 32);
+  }
+
+}
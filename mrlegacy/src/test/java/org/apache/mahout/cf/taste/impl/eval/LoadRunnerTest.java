@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.eval;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+public final class LoadRunnerTest extends TasteTestCase {
+
+  @Test
+  public void testMaxRequests() throws Exception {
+    LoadRunner loadRunner = new LoadRunner(buildRecommender());
+    loadRunner.setNumThreads(3);
+    loadRunner.setWarmUp(0, TimeUnit.SECONDS);
+    loadRunner.setDuration(1, TimeUnit.MINUTES);
+    loadRunner.setMaxRequests(500);
+    LoadReport report = loadRunner.run();
+
+    assertEquals(3, report.getNumThreads());
+    assertEquals(500L, report.getNumRequests());
+    assertEquals(500L, report.getServiceTimes().getCount());
+    assertEquals(0L, report.getNumErrors());
+    assertTrue(report.getRequestsPerSecond() > 0.0);
+    assertTrue(report.getResponseTimeMillis(50.0) <= report.getResponseTimeMillis(99.9));
+
+    String json = report.toJson();
+    assertTrue(json.startsWith("{\"recommender\":\"GenericItemBasedRecommender"));
+    assertTrue(json.contains("\"requests\":500,"));
+    assertTrue(json.contains("\"responseTimeMillis\":{\"mean\":"));
+    assertTrue(json.contains("\"p999\":"));
+    assertTrue(json.endsWith("}"));
+  }
+
+  @Test
+  public void testJsonEscaping() throws Exception {
+    LatencyHistogram latencies = new LatencyHistogram();
+    latencies.record(TimeUnit.MICROSECONDS.toNanos(1500L));
+    LoadReport report = new LoadReport("say \"hi\"\\\n", 1, 0.0, 1000L, 1L, 0L, 0L, latencies, latencies,
+        0L, 0L, -1L);
+    Map<?,?> json = new ObjectMapper().readValue(report.toJson(), Map.class);
+    assertEquals("say \"hi\"\\\n", json.get("recommender"));
+    assertEquals(1, json.get("requests"));
+    assertEquals(1.5, (Double) ((Map<?,?>) json.get("responseTimeMillis")).get("p50"), 0.01);
+    assertEquals(-1.0, json.get("allocationRateMBPerSecond"));
+  }
+
+  @Test
+  public void testRequestRate() throws Exception {
+    LoadRunner loadRunner = new LoadRunner(buildRecommender());
+    loadRunner.setNumThreads(2);
+    loadRunner.setRequestsPerSecond(100.0);
+    loadRunner.setWarmUp(100, TimeUnit.MILLISECONDS);
+    loadRunner.setDuration(500, TimeUnit.MILLISECONDS);
+    LoadReport report = loadRunner.run();
+
+    // 100 per second for half a second schedules 50 requests
+    assertTrue(report.getNumRequests() <= 50L);
+    assertTrue(report.getNumRequests() >= 10L);
+    assertEquals(100.0, report.getTargetRequestsPerSecond(), EPSILON);
+  }
+
+  private static Recommender buildRecommender() throws TasteException {
+    DataModel dataModel = getDataModel();
+    return new GenericItemBasedRecommender(dataModel, new PearsonCorrelationSimilarity(dataModel));
+  }
+
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.mahout.cf.taste.impl.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Test;
+
+/**
+ * Tests {@link GenericBooleanPrefDataModel}.
+ */
+public final class GenericBooleanPrefDataModelTest extends TasteTestCase {
+
+  @Test
+  public void testNumUsersWithPreferenceFor() throws Exception {
+    GenericBooleanPrefDataModel dataModel = randomDataModel();
+    assertCounts(dataModel);
+  }
+
+  @Test
+  public void testSerializationAfterCounting() throws Exception {
+    GenericBooleanPrefDataModel dataModel = randomDataModel();
+    assertCounts(dataModel);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(dataModel);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    GenericBooleanPrefDataModel deserialized = (GenericBooleanPrefDataModel) in.readObject();
+    in.close();
+
+    assertEquals(dataModel.getNumUsers(), deserialized.getNumUsers());
+    assertEquals(dataModel.getNumItems(), deserialized.getNumItems());
+    assertCounts(deserialized);
+  }
+
+  private static GenericBooleanPrefDataModel randomDataModel() {
+    Random random = RandomUtils.getRandom();
+    FastByIDMap<FastIDSet> userData = new FastByIDMap<FastIDSet>();
+    for (long userID = 0; userID < 500; userID++) {
+      FastIDSet itemIDs = new FastIDSet();
+      for (long itemID = 0; itemID < 20; itemID++) {
+        // item i is preferred by about one user in i + 1
+        if (random.nextInt((int) itemID + 1) == 0) {
+          itemIDs.add(itemID);
+        }
+      }
+      // user IDs far apart, so that indices rather than IDs must be used
+      userData.put(userID * 1000003L - 7L, itemIDs);
+    }
+    return new GenericBooleanPrefDataModel(userData);
+  }
+
+  private static void assertCounts(GenericBooleanPrefDataModel dataModel) {
+    FastByIDMap<FastIDSet> itemData = dataModel.getRawItemData();
+
+    long[] itemID2s = new long[22];
+    for (int i = 0; i < 21; i++) {
+      itemID2s[i] = i;
+    }
+    itemID2s[21] = 3L;
+    for (long itemID1 = 0; itemID1 < 21; itemID1++) {
+      int[] counts = dataModel.getNumUsersWithPreferenceFor(itemID1, itemID2s);
+      for (int i = 0; i < itemID2s.length; i++) {
+        FastIDSet userIDs1 = itemData.get(itemID1);
+        FastIDSet userIDs2 = itemData.get(itemID2s[i]);
+        int expected = userIDs1 == null || userIDs2 == null ? 0 : userIDs1.intersectionSize(userIDs2);
+        assertEquals(expected, dataModel.getNumUsersWithPreferenceFor(itemID1, itemID2s[i]));
+        assertEquals(expected, counts[i]);
+        assertEquals(expected, dataModel.getNumUsersWithPreferenceFor(itemID1, new long[] {itemID2s[i]})[0]);
+      }
+    }
+  }
+
+}
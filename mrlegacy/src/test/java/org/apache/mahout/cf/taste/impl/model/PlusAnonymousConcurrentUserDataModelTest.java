@@ -308,6 +308,8 @@ public final class PlusAnonymousConcurrentUserDataModelTest extends MahoutTestCa
 		assertEquals(2, instance.getNumUsersWithPreferenceFor(sampleItemID));
 		assertEquals(1, instance.getNumUsersWithPreferenceFor(sampleItemID, sampleItemID2));
 		assertEquals(1, instance.getNumUsersWithPreferenceFor(sampleItemID, sampleItemID3));
+		assertArrayEquals(new int[] {1, 1},
+		    instance.getNumUsersWithPreferenceFor(sampleItemID, new long[] {sampleItemID2, sampleItemID3}));
 	}
 
 }
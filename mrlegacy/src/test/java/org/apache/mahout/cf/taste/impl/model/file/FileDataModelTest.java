@@ -18,12 +18,18 @@
 package org.apache.mahout.cf.taste.impl.model.file;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 
 import org.apache.commons.lang3.mutable.MutableBoolean;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.impl.neighborhood.NearestNUserNeighborhood;
 import org.apache.mahout.cf.taste.impl.recommender.GenericUserBasedRecommender;
 import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
@@ -161,6 +167,19 @@ public final class FileDataModelTest extends TasteTestCase {
     assertEquals(0, model.getNumUsersWithPreferenceFor(111));
     assertEquals(0, model.getNumUsersWithPreferenceFor(111, 456));
     assertEquals(2, model.getNumUsersWithPreferenceFor(123, 234));
+    assertArrayEquals(new int[] {0, 2, 2},
+        ((FileDataModel) model).getNumUsersWithPreferenceFor(123, new long[] {111, 234, 123}));
+  }
+
+  @Test
+  public void testBooleanNumUsersPreferring() throws Exception {
+    File file = getTestTempFile("boolean.txt");
+    writeLines(file, "1,10", "1,20", "2,20", "3,10", "3,20", "3,30");
+    FileDataModel dataModel = new FileDataModel(file);
+    assertFalse(dataModel.hasPreferenceValues());
+    assertArrayEquals(new int[] {2, 1, 0, 2},
+        dataModel.getNumUsersWithPreferenceFor(10L, new long[] {10L, 30L, 40L, 20L}));
+    assertEquals(3, dataModel.getNumUsersWithPreferenceFor(20L, 20L));
   }
 
   @Test
@@ -202,6 +221,112 @@ public final class FileDataModelTest extends TasteTestCase {
     assertEquals(5.0f, dataModel.getPreferenceValue(123L, 456L), EPSILON);
   }
 
+  @Test
+  public void testIncrementalUpdates() throws Exception {
+    FileDataModel dataModel = new FileDataModel(testFile, false, 0L, null, true);
+    assertEquals(4, dataModel.getNumUsers());
+
+    /* we have to wait at least a second to see the update file's lastModified timestamp */
+    Thread.sleep(2000L);
+    writeLines(getTestTempFile("test.1.txt"), "123,456,", "234,123,0.9", "567,111,2.0", "456,456,");
+    dataModel.refresh(null);
+
+    DataModel reloaded = new FileDataModel(testFile);
+    assertEquals(reloaded.getNumUsers(), dataModel.getNumUsers());
+    assertEquals(reloaded.getNumItems(), dataModel.getNumItems());
+    LongPrimitiveIterator userIDs = reloaded.getUserIDs();
+    LongPrimitiveIterator incrementalUserIDs = dataModel.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      assertEquals(userID, incrementalUserIDs.nextLong());
+      assertEquals(reloaded.getItemIDsFromUser(userID), dataModel.getItemIDsFromUser(userID));
+    }
+    LongPrimitiveIterator itemIDs = reloaded.getItemIDs();
+    LongPrimitiveIterator incrementalItemIDs = dataModel.getItemIDs();
+    while (itemIDs.hasNext()) {
+      long itemID = itemIDs.nextLong();
+      assertEquals(itemID, incrementalItemIDs.nextLong());
+      PreferenceArray prefs = reloaded.getPreferencesForItem(itemID);
+      PreferenceArray incrementalPrefs = dataModel.getPreferencesForItem(itemID);
+      assertEquals(prefs.length(), incrementalPrefs.length());
+      for (int i = 0; i < prefs.length(); i++) {
+        assertEquals(prefs.getUserID(i), incrementalPrefs.getUserID(i));
+        assertEquals(prefs.getValue(i), incrementalPrefs.getValue(i), EPSILON);
+      }
+    }
+    assertEquals(0.9f, dataModel.getPreferenceValue(234L, 123L), EPSILON);
+    assertNull(dataModel.getPreferenceValue(123L, 456L));
+    assertEquals(2.0f, dataModel.getMaxPreference(), EPSILON);
+    assertEquals(reloaded.getNumUsersWithPreferenceFor(654L, 789L),
+                 dataModel.getNumUsersWithPreferenceFor(654L, 789L));
+  }
+
+  @Test
+  public void testIncrementalBooleanUpdates() throws Exception {
+    File file = getTestTempFile("boolean.txt");
+    writeLines(file, "1,10", "1,20", "2,20");
+    FileDataModel dataModel = new FileDataModel(file, false, 0L, null, true);
+    assertFalse(dataModel.hasPreferenceValues());
+
+    Thread.sleep(2000L);
+    writeLines(getTestTempFile("boolean.1.txt"), "1,30", "2,20,", "3,10");
+    dataModel.refresh(null);
+
+    assertEquals(2, dataModel.getNumUsers());
+    assertEquals(3, dataModel.getNumItems());
+    assertEquals(3, dataModel.getItemIDsFromUser(1L).size());
+    assertEquals(1, dataModel.getNumUsersWithPreferenceFor(20L));
+    assertEquals(2, dataModel.getNumUsersWithPreferenceFor(10L));
+    assertEquals(1, dataModel.getNumUsersWithPreferenceFor(10L, 30L));
+  }
+
+  @Test
+  public void testCompaction() throws Exception {
+    FastByIDMap<PreferenceArray> userData = new FastByIDMap<PreferenceArray>();
+    for (long userID = 0L; userID < 20L; userID++) {
+      userData.put(userID, new GenericUserPreferenceArray(
+          Arrays.asList(new GenericPreference(userID, 100L + userID, 1.0f))));
+    }
+    DataModel base = new GenericDataModel(userData);
+
+    FastIDSet changedUsers = new FastIDSet();
+    changedUsers.add(0L);
+    FastByIDMap<PreferenceArray> newUserPrefs = new FastByIDMap<PreferenceArray>();
+    newUserPrefs.put(0L, new GenericUserPreferenceArray(
+        Arrays.asList(new GenericPreference(0L, 100L, 1.0f), new GenericPreference(0L, 999L, 4.0f))));
+    FastByIDMap<FastByIDMap<Long>> newTimestamps = new FastByIDMap<FastByIDMap<Long>>();
+    FastByIDMap<Long> userTimestamps = new FastByIDMap<Long>();
+    userTimestamps.put(999L, 42L);
+    newTimestamps.put(0L, userTimestamps);
+
+    DeltaDataModel delta = (DeltaDataModel) DeltaDataModel.apply(base, changedUsers, newUserPrefs, newTimestamps);
+    // One user and two items overridden out of twenty users and twenty-one items
+    assertFalse(delta.shouldCompact());
+
+    changedUsers.clear();
+    newUserPrefs.clear();
+    for (long userID = 1L; userID <= 5L; userID++) {
+      changedUsers.add(userID);
+      newUserPrefs.put(userID, new GenericUserPreferenceArray(
+          Arrays.asList(new GenericPreference(userID, 999L, 2.0f))));
+    }
+    delta = (DeltaDataModel) DeltaDataModel.apply(delta, changedUsers, newUserPrefs, newTimestamps);
+    assertTrue(delta.shouldCompact());
+
+    DataModel compacted = delta.compact();
+    assertFalse(compacted instanceof DeltaDataModel);
+    assertEquals(delta.getNumUsers(), compacted.getNumUsers());
+    assertEquals(delta.getNumItems(), compacted.getNumItems());
+    LongPrimitiveIterator userIDs = delta.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      assertEquals(delta.getItemIDsFromUser(userID), compacted.getItemIDsFromUser(userID));
+    }
+    assertEquals(6, compacted.getNumUsersWithPreferenceFor(999L));
+    assertEquals(4.0f, compacted.getPreferenceValue(0L, 999L), EPSILON);
+    assertEquals(42L, compacted.getPreferenceTime(0L, 999L).longValue());
+  }
+
   @Test
   public void testToString() {
     assertFalse(model.toString().isEmpty());
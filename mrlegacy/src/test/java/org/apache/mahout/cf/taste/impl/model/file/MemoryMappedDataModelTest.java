@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.model.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.junit.Before;
+import org.junit.Test;
+
+/** <p>Tests {@link MemoryMappedDataModel} and {@link MemoryMappedDataModelWriter}.</p> */
+public final class MemoryMappedDataModelTest extends TasteTestCase {
+
+  private static final String[] DATA = {
+      "# comment",
+      "123,456,0.1",
+      "123,789,0.6",
+      "123,654,0.7",
+      "234,123,0.5",
+      "234,234,1.0",
+      "234,999,0.9",
+      "345,789,0.6",
+      "345,654,0.7",
+      "345,123,1.0",
+      "345,234,0.5",
+      "345,999,0.5",
+      "456,456,0.1",
+      "456,789,0.5",
+      "456,654,0.0",
+      "456,999,0.2",};
+
+  private DataModel fileModel;
+  private DataModel model;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    File testFile = getTestTempFile("test.txt");
+    writeLines(testFile, DATA);
+    fileModel = new FileDataModel(testFile);
+    File mappedFile = getTestTempFile("test.bin");
+    MemoryMappedDataModelWriter.convert(testFile, mappedFile);
+    model = new MemoryMappedDataModel(mappedFile);
+  }
+
+  @Test
+  public void testSameAsFileDataModel() throws Exception {
+    assertSameData(fileModel, model);
+  }
+
+  @Test
+  public void testWriteDataModel() throws Exception {
+    File mappedFile = getTestTempFile("copy.bin");
+    MemoryMappedDataModelWriter.write(getDataModel(), mappedFile);
+    assertSameData(getDataModel(), new MemoryMappedDataModel(mappedFile, true));
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(model);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    DataModel newModel = (DataModel) in.readObject();
+    assertSameData(model, newModel);
+  }
+
+  @Test
+  public void testBooleanData() throws Exception {
+    File mappedFile = getTestTempFile("boolean.bin");
+    MemoryMappedDataModelWriter.write(getBooleanDataModel(), mappedFile);
+    DataModel booleanModel = new MemoryMappedDataModel(mappedFile);
+    assertFalse(booleanModel.hasPreferenceValues());
+    assertSameData(getBooleanDataModel(), booleanModel);
+    assertEquals(1.0f, booleanModel.getPreferenceValue(3, 3), EPSILON);
+    assertNull(booleanModel.getPreferenceValue(3, 1));
+  }
+
+  @Test
+  public void testUpdatesAndRemovals() throws Exception {
+    File testFile = getTestTempFile("updates.txt");
+    writeLines(testFile,
+               "1,10,1.0",
+               "1,20,2.0",
+               "2,20,3.0",
+               "1,10,4.0",
+               "2,20,",
+               "3,30,5.0",
+               "3,30,");
+    File mappedFile = getTestTempFile("updates.bin");
+    MemoryMappedDataModelWriter.convert(testFile, mappedFile);
+    DataModel updatedModel = new MemoryMappedDataModel(mappedFile);
+    assertEquals(1, updatedModel.getNumUsers());
+    assertEquals(2, updatedModel.getNumItems());
+    assertEquals(4.0f, updatedModel.getPreferenceValue(1, 10), EPSILON);
+    assertEquals(2.0f, updatedModel.getPreferenceValue(1, 20), EPSILON);
+    assertEquals(2.0f, updatedModel.getMinPreference(), EPSILON);
+    assertEquals(4.0f, updatedModel.getMaxPreference(), EPSILON);
+  }
+
+  @Test
+  public void testNumUsersPreferring() throws Exception {
+    assertEquals(2, model.getNumUsersWithPreferenceFor(456));
+    assertEquals(0, model.getNumUsersWithPreferenceFor(111));
+    assertEquals(0, model.getNumUsersWithPreferenceFor(111, 456));
+    assertEquals(2, model.getNumUsersWithPreferenceFor(123, 234));
+    assertEquals(3, model.getNumUsersWithPreferenceFor(654, 789));
+  }
+
+  @Test(expected = NoSuchUserException.class)
+  public void testNoSuchUser() throws Exception {
+    model.getPreferencesFromUser(111);
+  }
+
+  @Test(expected = NoSuchItemException.class)
+  public void testNoSuchItem() throws Exception {
+    model.getPreferencesForItem(111);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testReadOnly() throws Exception {
+    model.setPreference(123, 456, 1.0f);
+  }
+
+  @Test
+  public void testToString() {
+    assertFalse(model.toString().isEmpty());
+  }
+
+  private static void assertSameData(DataModel expected, DataModel actual) throws Exception {
+    assertEquals(expected.getNumUsers(), actual.getNumUsers());
+    assertEquals(expected.getNumItems(), actual.getNumItems());
+    assertEquals(expected.hasPreferenceValues(), actual.hasPreferenceValues());
+
+    LongPrimitiveIterator expectedUserIDs = expected.getUserIDs();
+    LongPrimitiveIterator actualUserIDs = actual.getUserIDs();
+    while (expectedUserIDs.hasNext()) {
+      long userID = expectedUserIDs.nextLong();
+      assertEquals(userID, actualUserIDs.nextLong());
+      assertSamePreferences(expected.getPreferencesFromUser(userID), actual.getPreferencesFromUser(userID));
+      assertEquals(expected.getItemIDsFromUser(userID), actual.getItemIDsFromUser(userID));
+    }
+    assertFalse(actualUserIDs.hasNext());
+
+    LongPrimitiveIterator expectedItemIDs = expected.getItemIDs();
+    LongPrimitiveIterator actualItemIDs = actual.getItemIDs();
+    while (expectedItemIDs.hasNext()) {
+      long itemID = expectedItemIDs.nextLong();
+      assertEquals(itemID, actualItemIDs.nextLong());
+      assertSamePreferences(expected.getPreferencesForItem(itemID), actual.getPreferencesForItem(itemID));
+      assertEquals(expected.getNumUsersWithPreferenceFor(itemID), actual.getNumUsersWithPreferenceFor(itemID));
+    }
+    assertFalse(actualItemIDs.hasNext());
+  }
+
+  private static void assertSamePreferences(PreferenceArray expected, PreferenceArray actual) {
+    assertEquals(expected.length(), actual.length());
+    for (int i = 0; i < expected.length(); i++) {
+      assertEquals(expected.getUserID(i), actual.getUserID(i));
+      assertEquals(expected.getItemID(i), actual.getItemID(i));
+      assertEquals(expected.getValue(i), actual.getValue(i), EPSILON);
+    }
+  }
+
+}
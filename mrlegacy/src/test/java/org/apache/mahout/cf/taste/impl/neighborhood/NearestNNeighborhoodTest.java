@@ -17,8 +17,19 @@
 
 package org.apache.mahout.cf.taste.impl.neighborhood;
 
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.similarity.CityBlockSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.UserSimilarity;
+import org.apache.mahout.common.RandomUtils;
 import org.junit.Test;
 
 /** <p>Tests {@link NearestNUserNeighborhood}.</p> */
@@ -50,4 +61,94 @@ public final class NearestNNeighborhoodTest extends TasteTestCase {
     assertTrue(arrayContains(neighborhood3, 3));
   }
 
+  @Test
+  public void testCandidateIndexAndExecutor() throws Exception {
+    DataModel dataModel = getRandomDataModel();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      UserSimilarity[] similarities = {
+          new PearsonCorrelationSimilarity(dataModel),
+          new TanimotoCoefficientSimilarity(dataModel),
+          new CityBlockSimilarity(dataModel),
+      };
+      for (UserSimilarity similarity : similarities) {
+        NearestNUserNeighborhood all = new NearestNUserNeighborhood(10, similarity, dataModel);
+        NearestNUserNeighborhood indexed = new NearestNUserNeighborhood(10, similarity, dataModel);
+        indexed.useCandidateIndex(1);
+        NearestNUserNeighborhood concurrent = new NearestNUserNeighborhood(10, similarity, dataModel);
+        concurrent.setCandidateScoringExecutor(executor, 3);
+        NearestNUserNeighborhood both = new NearestNUserNeighborhood(10, similarity, dataModel);
+        both.useCandidateIndex(1);
+        both.setCandidateScoringExecutor(executor, 3);
+        for (long userID = 0; userID < 20; userID++) {
+          double[] expected = similaritiesTo(similarity, userID, all.getUserNeighborhood(userID));
+          assertArrayEquals(expected, similaritiesTo(similarity, userID, concurrent.getUserNeighborhood(userID)),
+              EPSILON);
+          if (!(similarity instanceof CityBlockSimilarity)) {
+            // users with nothing in common have no Pearson or Tanimoto similarity
+            assertArrayEquals(expected, similaritiesTo(similarity, userID, indexed.getUserNeighborhood(userID)),
+                EPSILON);
+            assertArrayEquals(expected, similaritiesTo(similarity, userID, both.getUserNeighborhood(userID)),
+                EPSILON);
+          }
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testMinOverlap() throws Exception {
+    DataModel dataModel = getRandomDataModel();
+    NearestNUserNeighborhood neighborhood =
+        new NearestNUserNeighborhood(50, new TanimotoCoefficientSimilarity(dataModel), dataModel);
+    neighborhood.useCandidateIndex(5);
+    for (long userID = 0; userID < 20; userID++) {
+      for (long neighbor : neighborhood.getUserNeighborhood(userID)) {
+        assertTrue(dataModel.getItemIDsFromUser(userID).intersectionSize(dataModel.getItemIDsFromUser(neighbor)) >= 5);
+      }
+    }
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    DataModel dataModel = getRandomDataModel();
+    NearestNUserNeighborhood neighborhood =
+        new NearestNUserNeighborhood(10, new PearsonCorrelationSimilarity(dataModel), dataModel);
+    long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    for (long userID = 0; userID < 20; userID++) {
+      assertArrayEquals(neighborhood.getUserNeighborhood(userID), neighborhood.getUserNeighborhood(userID, later));
+      assertEquals(0, neighborhood.getUserNeighborhood(userID, System.nanoTime()).length);
+    }
+  }
+
+  private static DataModel getRandomDataModel() {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 400;
+    int numItems = 100;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefs = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextDouble() < 0.08) {
+          prefs[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    return getDataModel(userIDs, prefs);
+  }
+
+  /** @return similarities of the neighbors, which may be in a different order where equal */
+  private static double[] similaritiesTo(UserSimilarity similarity, long userID, long[] neighbors)
+    throws Exception {
+    double[] similarities = new double[neighbors.length];
+    for (int i = 0; i < neighbors.length; i++) {
+      similarities[i] = similarity.userSimilarity(userID, neighbors[i]);
+    }
+    Arrays.sort(similarities);
+    return similarities;
+  }
+
 }
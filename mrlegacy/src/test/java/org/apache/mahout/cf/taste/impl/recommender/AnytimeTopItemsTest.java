@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AnytimeTopItems}.
+ */
+public final class AnytimeTopItemsTest extends TasteTestCase {
+
+  private static final TopItems.Estimator<Long> ESTIMATOR = new TopItems.Estimator<Long>() {
+    @Override
+    public double estimate(Long thing) {
+      return thing;
+    }
+  };
+
+  @Test
+  public void testFinishedBeforeDeadline() throws Exception {
+    long[] itemIDs = {1L, 2L, 3L, 4L};
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+    AnytimeTopItems topItems = new AnytimeTopItems(2, new FastIDSet(itemIDs), null, ESTIMATOR, deadline);
+    assertTrue(topItems.offerAll(new LongPrimitiveArrayIterator(itemIDs)));
+
+    // every candidate was scored before the deadline, so offering them again after it must not truncate
+    while (System.nanoTime() - deadline < 0) {
+      Thread.sleep(10L);
+    }
+    assertTrue(topItems.offerAll(new LongPrimitiveArrayIterator(itemIDs)));
+    assertTrue(topItems.offerAll(new LongPrimitiveArrayIterator(new long[0])));
+    assertTrue(topItems.offer(5L));
+
+    AnytimeRecommendations recommendations = topItems.getRecommendations();
+    assertFalse(recommendations.isTruncated());
+    assertEquals(4, recommendations.getNumCandidatesScored());
+    List<RecommendedItem> items = recommendations.getRecommendedItems();
+    assertEquals(2, items.size());
+    assertEquals(4L, items.get(0).getItemID());
+    assertEquals(3L, items.get(1).getItemID());
+  }
+
+  @Test
+  public void testTruncatedAtDeadline() throws Exception {
+    long[] itemIDs = {1L, 2L, 3L, 4L};
+    AnytimeTopItems topItems = new AnytimeTopItems(2, new FastIDSet(itemIDs), null, ESTIMATOR, System.nanoTime());
+    assertFalse(topItems.offerAll(new LongPrimitiveArrayIterator(itemIDs)));
+
+    AnytimeRecommendations recommendations = topItems.getRecommendations();
+    assertTrue(recommendations.isTruncated());
+    assertEquals(0, recommendations.getNumCandidatesScored());
+    assertTrue(recommendations.getRecommendedItems().isEmpty());
+  }
+
+}
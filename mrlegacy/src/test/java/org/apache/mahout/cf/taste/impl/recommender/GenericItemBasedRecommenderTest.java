@@ -18,10 +18,16 @@
 package org.apache.mahout.cf.taste.impl.recommender;
 
 import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
 import org.apache.mahout.cf.taste.impl.model.GenericPreference;
 import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.PlusAnonymousUserDataModel;
+import org.apache.mahout.cf.taste.impl.similarity.EuclideanDistanceSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
@@ -31,12 +37,18 @@ import org.apache.mahout.cf.taste.recommender.MostSimilarItemsCandidateItemsStra
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.recommender.Recommender;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.common.RandomUtils;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** <p>Tests {@link GenericItemBasedRecommender}.</p> */
 public final class GenericItemBasedRecommenderTest extends TasteTestCase {
@@ -215,6 +227,137 @@ public final class GenericItemBasedRecommenderTest extends TasteTestCase {
     assertEquals(0.2f, third.getValue(), EPSILON);
   }
 
+  @Test
+  public void testParallelCandidateScoring() throws Exception {
+    Random random = RandomUtils.getRandom();
+    int numUsers = 30;
+    int numItems = 1000;
+    long[] userIDs = new long[numUsers];
+    Double[][] prefs = new Double[numUsers][numItems];
+    for (int i = 0; i < numUsers; i++) {
+      userIDs[i] = i;
+      for (int j = 0; j < numItems; j++) {
+        if (random.nextDouble() < 0.2) {
+          prefs[i][j] = 1.0 + random.nextInt(5);
+        }
+      }
+    }
+    DataModel dataModel = getDataModel(userIDs, prefs);
+    ItemSimilarity similarity = new EuclideanDistanceSimilarity(dataModel);
+    GenericItemBasedRecommender serial = new GenericItemBasedRecommender(dataModel, similarity);
+    GenericItemBasedRecommender parallel = new GenericItemBasedRecommender(dataModel, similarity);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      parallel.setCandidateScoringExecutor(executor, 4);
+      for (long userID = 0; userID < numUsers; userID += 7) {
+        List<RecommendedItem> expected = serial.recommend(userID, 20);
+        List<RecommendedItem> actual = parallel.recommend(userID, 20);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), EPSILON);
+        }
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testRecommendBeforeDeadline() throws Exception {
+    GenericItemBasedRecommender recommender = (GenericItemBasedRecommender) buildRecommender2();
+    List<RecommendedItem> expected = recommender.recommend(1, 2);
+    AnytimeRecommendations recommendations =
+        recommender.recommend(1, 2, null, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    assertFalse(recommendations.isTruncated());
+    assertEquals(expected, recommendations.getRecommendedItems());
+    assertTrue(recommendations.getNumCandidatesScored() > 0);
+
+    AnytimeRecommendations expired = recommender.recommend(1, 2, null, System.nanoTime());
+    assertTrue(expired.isTruncated());
+    assertTrue(expired.getRecommendedItems().isEmpty());
+    assertEquals(0, expired.getNumCandidatesScored());
+  }
+
+  /**
+   * The deadline has to bound the walk over a user with many items, when reading the data model and estimating are
+   * both slow, rather than only the scoring of candidates found up front.
+   */
+  @Test
+  public void testRecommendBeforeDeadlineWithLargeHistory() throws Exception {
+    // user 0 prefers items 0 to 299; each other user prefers ten of those, and ten items of its own
+    int numItems = 300;
+    int numOtherUsers = 30;
+    FastByIDMap<PreferenceArray> userData = new FastByIDMap<PreferenceArray>();
+    PreferenceArray history = new GenericUserPreferenceArray(numItems);
+    history.setUserID(0, 0L);
+    for (int i = 0; i < numItems; i++) {
+      history.setItemID(i, i);
+      history.setValue(i, (float) i / numItems);
+    }
+    userData.put(0L, history);
+    for (int user = 1; user <= numOtherUsers; user++) {
+      PreferenceArray prefs = new GenericUserPreferenceArray(20);
+      prefs.setUserID(0, user);
+      for (int i = 0; i < 10; i++) {
+        prefs.setItemID(i, (user - 1) * 10 + i);
+        prefs.setValue(i, 1.0f);
+        prefs.setItemID(10 + i, 1000L + user * 10 + i);
+        prefs.setValue(10 + i, 1.0f);
+      }
+      userData.put(user, prefs);
+    }
+
+    final AtomicInteger itemReads = new AtomicInteger();
+    DataModel dataModel = new PlusAnonymousUserDataModel(new GenericDataModel(userData)) {
+      @Override
+      public PreferenceArray getPreferencesForItem(long itemID) throws TasteException {
+        itemReads.incrementAndGet();
+        pause(1L);
+        return super.getPreferencesForItem(itemID);
+      }
+    };
+    ItemSimilarity slowSimilarity = new ItemSimilarity() {
+      @Override
+      public double itemSimilarity(long itemID1, long itemID2) throws TasteException {
+        pause(5L);
+        return 1.0;
+      }
+      @Override
+      public double[] itemSimilarities(long itemID1, long[] itemID2s) throws TasteException {
+        pause(5L);
+        double[] similarities = new double[itemID2s.length];
+        Arrays.fill(similarities, 1.0);
+        return similarities;
+      }
+      @Override
+      public long[] allSimilarItemIDs(long itemID) {
+        throw new UnsupportedOperationException();
+      }
+      @Override
+      public void refresh(Collection<Refreshable> alreadyRefreshed) {
+      }
+    };
+    GenericItemBasedRecommender recommender = new GenericItemBasedRecommender(dataModel, slowSimilarity);
+
+    AnytimeRecommendations recommendations =
+        recommender.recommend(0L, 5, null, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue(recommendations.isTruncated());
+    assertTrue(recommendations.getNumCandidatesScored() > 0);
+    assertTrue(recommendations.getNumCandidatesScored() < numOtherUsers * 10);
+    assertFalse(recommendations.getRecommendedItems().isEmpty());
+    // candidates were not all found before scoring started
+    assertTrue(itemReads.get() < numItems);
+  }
+
+  private static void pause(long millis) throws TasteException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TasteException(ie);
+    }
+  }
+
   private static ItemBasedRecommender buildRecommender() {
     DataModel dataModel = getDataModel();
     Collection<GenericItemSimilarity.ItemItemSimilarity> similarities = Lists.newArrayList();
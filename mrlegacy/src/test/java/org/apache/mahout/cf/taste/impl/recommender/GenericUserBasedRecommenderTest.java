@@ -30,6 +30,7 @@ import org.apache.mahout.cf.taste.similarity.UserSimilarity;
 import org.junit.Test;
 
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** <p>Tests {@link GenericUserBasedRecommender}.</p> */
 public final class GenericUserBasedRecommenderTest extends TasteTestCase {
@@ -142,6 +143,22 @@ public final class GenericUserBasedRecommenderTest extends TasteTestCase {
     assertEquals(0, mostSimilar.length);
   }
 
+  @Test
+  public void testRecommendBeforeDeadline() throws Exception {
+    GenericUserBasedRecommender recommender = (GenericUserBasedRecommender) buildRecommender();
+    List<RecommendedItem> expected = recommender.recommend(1, 2);
+    AnytimeRecommendations recommendations =
+        recommender.recommend(1, 2, null, System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+    assertFalse(recommendations.isTruncated());
+    assertEquals(expected, recommendations.getRecommendedItems());
+    assertTrue(recommendations.getNumCandidatesScored() > 0);
+
+    AnytimeRecommendations expired = recommender.recommend(1, 2, null, System.nanoTime());
+    assertTrue(expired.isTruncated());
+    assertTrue(expired.getRecommendedItems().isEmpty());
+    assertEquals(0, expired.getNumCandidatesScored());
+  }
+
   private static UserBasedRecommender buildRecommender() throws TasteException {
     DataModel dataModel = getDataModel();
     UserSimilarity similarity = new PearsonCorrelationSimilarity(dataModel);
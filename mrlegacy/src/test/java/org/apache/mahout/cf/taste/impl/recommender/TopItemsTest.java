@@ -23,6 +23,7 @@ import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.similarity.GenericItemSimilarity;
 import org.apache.mahout.cf.taste.impl.similarity.GenericUserSimilarity;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.common.RandomUtils;
 import org.junit.Test;
@@ -56,6 +57,27 @@ public final class TopItemsTest extends TasteTestCase {
     }
   }
 
+  @Test
+  public void testTopItemsWithEstimatesSkipsNaN() throws Exception {
+    long[] ids = {1L, 2L, 3L};
+    double[] estimates = {1.0, Double.NaN, 3.0};
+    IDRescorer rescorer = new IDRescorer() {
+      @Override
+      public double rescore(long id, double originalScore) {
+        assertFalse(Double.isNaN(originalScore));
+        return originalScore;
+      }
+      @Override
+      public boolean isFiltered(long id) {
+        return false;
+      }
+    };
+    List<RecommendedItem> topItems = TopItems.getTopItems(3, ids, estimates, rescorer);
+    assertEquals(2, topItems.size());
+    assertEquals(3L, topItems.get(0).getItemID());
+    assertEquals(1L, topItems.get(1).getItemID());
+  }
+
   @Test
   public void testTopItemsRandom() throws Exception {
     long[] ids = new long[100];
@@ -17,6 +17,9 @@
 
 package org.apache.mahout.cf.taste.impl.recommender.svd;
 
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
@@ -28,11 +31,13 @@ import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Matrix;
 import org.apache.mahout.math.MatrixSlice;
 import org.apache.mahout.math.SparseRowMatrix;
 import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.als.AlternatingLeastSquaresSolver;
 import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.Logger;
@@ -40,8 +45,15 @@ import org.slf4j.LoggerFactory;
 
 import com.carrotsearch.randomizedtesting.annotations.ThreadLeakLingering;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ALSWRFactorizerTest extends TasteTestCase {
 
@@ -134,6 +146,250 @@ public class ALSWRFactorizerTest extends TasteTestCase {
     }
   }
 
+  @Test
+  public void foldInUser() throws Exception {
+    Factorization factorization = factorizer.factorize();
+    PreferenceArray prefs = dataModel.getPreferencesFromUser(2L);
+    List<Vector> itemFeatures = Lists.newArrayList();
+    for (Preference pref : prefs) {
+      itemFeatures.add(new DenseVector(factorization.getItemFeatures(pref.getItemID())));
+    }
+    Vector expected = AlternatingLeastSquaresSolver.solve(itemFeatures, ALSWRFactorizer.ratingVector(prefs), 0.065, 3);
+
+    double[] folded = factorizer.foldInUser(factorization, prefs);
+    assertEquals(3, folded.length);
+    for (int feature = 0; feature < 3; feature++) {
+      assertEquals(expected.get(feature), folded[feature], EPSILON);
+    }
+
+    PreferenceArray unknownItems = new GenericUserPreferenceArray(Arrays.asList(new GenericPreference(5L, 9L, 1.0f)));
+    assertNull(factorizer.foldInUser(factorization, unknownItems));
+  }
+
+  @Test
+  public void foldInItemImplicit() throws Exception {
+    ALSWRFactorizer implicitFactorizer = new ALSWRFactorizer(dataModel, 3, 0.065, 5, true, 20);
+    Factorization factorization = implicitFactorizer.factorize();
+    double[] folded = implicitFactorizer.foldInItem(factorization, dataModel.getPreferencesForItem(4L));
+    assertEquals(3, folded.length);
+    double[] itemFeatures = factorization.getItemFeatures(4L);
+    // the factorization's last half-iteration solved the same problem
+    for (int feature = 0; feature < 3; feature++) {
+      assertEquals(itemFeatures[feature], folded[feature], EPSILON);
+    }
+  }
+
+  @Test
+  public void foldInNewUserAndItem() throws Exception {
+    FastByIDMap<PreferenceArray> userData = new FastByIDMap<PreferenceArray>();
+    LongPrimitiveIterator userIDs = dataModel.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      userData.put(userID, dataModel.getPreferencesFromUser(userID));
+    }
+    // a new user, and a new item rated by an existing user
+    userData.put(5L, new GenericUserPreferenceArray(Arrays.asList(new GenericPreference(5L, 1L, 5.0f),
+                                                                  new GenericPreference(5L, 2L, 4.0f))));
+    userData.put(1L, new GenericUserPreferenceArray(Arrays.asList(new GenericPreference(1L, 1L, 5.0f),
+                                                                  new GenericPreference(1L, 2L, 5.0f),
+                                                                  new GenericPreference(1L, 3L, 2.0f),
+                                                                  new GenericPreference(1L, 5L, 4.0f))));
+    DataModel newDataModel = new GenericDataModel(userData);
+
+    File storage = getTestTempFile("storage.bin");
+    PersistenceStrategy persistenceStrategy = new FilePersistenceStrategy(storage);
+    // the factorizer only knows the original data
+    SVDRecommender svdRecommender = new SVDRecommender(newDataModel, factorizer, persistenceStrategy);
+    try {
+      svdRecommender.estimatePreference(5L, 1L);
+      fail();
+    } catch (NoSuchUserException nsue) {
+      // expected
+    }
+
+    svdRecommender.enableFoldIn(0);
+    float estimate = svdRecommender.estimatePreference(5L, 1L);
+    assertEquals(5.0, estimate, 1.0);
+    assertFalse(Float.isNaN(svdRecommender.estimatePreference(2L, 5L)));
+    List<RecommendedItem> recommended = svdRecommender.recommend(5L, 2);
+    assertEquals(2, recommended.size());
+
+    svdRecommender.mergeFoldedIn();
+    Factorization merged = persistenceStrategy.load();
+    assertEquals(5, merged.numUsers());
+    assertEquals(5, merged.numItems());
+    assertEquals(estimate, (float) merged.estimate(5L, 1L), EPSILON);
+    assertEquals(estimate, svdRecommender.estimatePreference(5L, 1L), EPSILON);
+  }
+
+  @Test
+  public void foldInMergeThreshold() throws Exception {
+    final CountDownLatch releaseMerge = new CountDownLatch(1);
+    final CountDownLatch merged = new CountDownLatch(1);
+    PersistenceStrategy persistenceStrategy = new PersistenceStrategy() {
+      private volatile Factorization stored;
+      @Override
+      public Factorization load() {
+        return stored;
+      }
+      @Override
+      public void maybePersist(Factorization factorization) throws IOException {
+        // the first factorization is the one the recommender trains; hold back the merged one
+        if (stored != null) {
+          try {
+            releaseMerge.await();
+          } catch (InterruptedException ie) {
+            throw new IOException(ie);
+          }
+          stored = factorization;
+          merged.countDown();
+        } else {
+          stored = factorization;
+        }
+      }
+    };
+    SVDRecommender svdRecommender = new SVDRecommender(dataModel, factorizer, persistenceStrategy);
+    svdRecommender.enableFoldIn(1);
+    double[] folded = svdRecommender.foldInUser(3L);
+    assertNotNull(folded);
+    // the merge runs in the background, so folding in returned without waiting for it
+    assertEquals(1, merged.getCount());
+    releaseMerge.countDown();
+    assertTrue(merged.await(10, TimeUnit.SECONDS));
+    assertArrayEquals(folded, persistenceStrategy.load().getUserFeatures(3L), EPSILON);
+  }
+
+  @Test
+  public void refreshDuringMerge() throws Exception {
+    final CountDownLatch mergePersisting = new CountDownLatch(1);
+    final CountDownLatch releaseMerge = new CountDownLatch(1);
+    final List<Factorization> persisted = Collections.synchronizedList(Lists.<Factorization>newArrayList());
+    PersistenceStrategy persistenceStrategy = new PersistenceStrategy() {
+      @Override
+      public Factorization load() {
+        return null;
+      }
+      @Override
+      public void maybePersist(Factorization factorization) throws IOException {
+        persisted.add(factorization);
+        // the second factorization is the merged one; hold it back
+        if (persisted.size() == 2) {
+          mergePersisting.countDown();
+          try {
+            releaseMerge.await();
+          } catch (InterruptedException ie) {
+            throw new IOException(ie);
+          }
+        }
+      }
+    };
+    ALSWRFactorizer retrainingFactorizer = new ALSWRFactorizer(dataModel, 3, 0.065, 10) {
+      private int factorizations;
+      @Override
+      public Factorization factorize() throws TasteException {
+        Factorization factorization = super.factorize();
+        if (++factorizations > 1) {
+          // stands in for retraining on new data, which gives different features
+          for (double[] userFeatures : factorization.allUserFeatures()) {
+            for (int feature = 0; feature < userFeatures.length; feature++) {
+              userFeatures[feature] *= 2.0;
+            }
+          }
+        }
+        return factorization;
+      }
+    };
+    final SVDRecommender svdRecommender = new SVDRecommender(dataModel, retrainingFactorizer, persistenceStrategy);
+    svdRecommender.enableFoldIn(0);
+    assertNotNull(svdRecommender.foldInUser(3L));
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread merger = new Thread() {
+      @Override
+      public void run() {
+        try {
+          svdRecommender.mergeFoldedIn();
+        } catch (Throwable t) {
+          failure.set(t);
+        }
+      }
+    };
+    merger.start();
+    assertTrue(mergePersisting.await(10, TimeUnit.SECONDS));
+    Thread refresher = new Thread() {
+      @Override
+      public void run() {
+        svdRecommender.refresh(null);
+      }
+    };
+    refresher.start();
+    // let the refresh run, or wait for the merge, before the merge can finish
+    while (refresher.isAlive() && refresher.getState() != Thread.State.BLOCKED) {
+      Thread.sleep(10L);
+    }
+    releaseMerge.countDown();
+    merger.join();
+    refresher.join();
+    assertNull(failure.get());
+
+    assertEquals(3, persisted.size());
+    Factorization retrained = persisted.get(2);
+    assertEquals(2.0 * persisted.get(0).estimate(3L, 1L), retrained.estimate(3L, 1L), EPSILON);
+    // the retrained factorization is in use, not the merge which finished after the refresh began
+    assertEquals((float) retrained.estimate(3L, 1L), svdRecommender.estimatePreference(3L, 1L), EPSILON);
+  }
+
+  @Test
+  public void highThroughputMatchesDefault() throws Exception {
+    Factorization expected = factorizer.factorize();
+    ALSWRFactorizer highThroughputFactorizer = new ALSWRFactorizer(dataModel, 3, 0.065, 10);
+    highThroughputFactorizer.useHighThroughputMode(0.0);
+    Factorization actual = highThroughputFactorizer.factorize();
+    assertSameFeatures(expected, actual);
+
+    List<ALSWRFactorizer.IterationStatistics> statistics = highThroughputFactorizer.getIterationStatistics();
+    assertEquals(10, statistics.size());
+    assertTrue(statistics.get(9).getRmse() < 0.2);
+    assertTrue(statistics.get(9).getRmse() <= statistics.get(0).getRmse());
+  }
+
+  @Test
+  public void highThroughputMatchesDefaultImplicit() throws Exception {
+    Factorization expected = new ALSWRFactorizer(dataModel, 3, 0.065, 5, true, 20, 2).factorize();
+    ALSWRFactorizer highThroughputFactorizer = new ALSWRFactorizer(dataModel, 3, 0.065, 5, true, 20, 2);
+    highThroughputFactorizer.useHighThroughputMode(0.0);
+    assertSameFeatures(expected, highThroughputFactorizer.factorize());
+  }
+
+  @Test
+  public void highThroughputEarlyStopping() throws Exception {
+    ALSWRFactorizer highThroughputFactorizer = new ALSWRFactorizer(dataModel, 3, 0.065, 10);
+    highThroughputFactorizer.useHighThroughputMode(1.0);
+    highThroughputFactorizer.factorize();
+    assertTrue(highThroughputFactorizer.getIterationStatistics().size() < 10);
+  }
+
+  @Test
+  public void choleskySolve() {
+    double[][] a = { { 4.0, 0.0 }, { 2.0, 3.0 } };
+    double[] b = { 2.0, 1.0 };
+    assertTrue(ALSWRFactorizer.choleskySolve(a, b, 2));
+    // [4 2; 2 3] x = [2 1]
+    assertEquals(0.5, b[0], EPSILON);
+    assertEquals(0.0, b[1], EPSILON);
+
+    assertFalse(ALSWRFactorizer.choleskySolve(new double[][] { { 0.0 } }, new double[] { 1.0 }, 1));
+  }
+
+  private static void assertSameFeatures(Factorization expected, Factorization actual) throws Exception {
+    for (long userID = 1; userID <= 4; userID++) {
+      assertArrayEquals(expected.getUserFeatures(userID), actual.getUserFeatures(userID), EPSILON);
+    }
+    for (long itemID = 1; itemID <= 4; itemID++) {
+      assertArrayEquals(expected.getItemFeatures(itemID), actual.getItemFeatures(itemID), EPSILON);
+    }
+  }
+
   @ThreadLeakLingering(linger = 10)
   @Test
   public void toyExample() throws Exception {
@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+/** <p>Tests {@link Factorization}, in particular its compact form.</p> */
+public final class FactorizationTest extends TasteTestCase {
+
+  private static final int NUM_USERS = 5;
+  // not a multiple of the block size, to exercise the remainder loop
+  private static final int NUM_ITEMS = 11;
+  private static final int NUM_FEATURES = 3;
+
+  private Factorization factorization;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    Random random = RandomUtils.getRandom();
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap();
+    double[][] userFeatures = new double[NUM_USERS][NUM_FEATURES];
+    for (int i = 0; i < NUM_USERS; i++) {
+      userIDMapping.put(100 + i, i);
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        userFeatures[i][f] = random.nextGaussian();
+      }
+    }
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap();
+    double[][] itemFeatures = new double[NUM_ITEMS][NUM_FEATURES];
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      itemIDMapping.put(200 + i, NUM_ITEMS - 1 - i);
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        itemFeatures[i][f] = random.nextGaussian();
+      }
+    }
+    factorization = new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+  }
+
+  @Test
+  public void testEstimate() throws Exception {
+    for (int i = 0; i < NUM_USERS; i++) {
+      long userID = 100 + i;
+      double[] userFeatures = factorization.getUserFeatures(userID);
+      for (int j = 0; j < NUM_ITEMS; j++) {
+        long itemID = 200 + j;
+        double[] itemFeatures = factorization.getItemFeatures(itemID);
+        double expected = 0.0;
+        for (int f = 0; f < NUM_FEATURES; f++) {
+          expected += userFeatures[f] * itemFeatures[f];
+        }
+        assertEquals(expected, factorization.estimate(userID, itemID), EPSILON);
+      }
+    }
+  }
+
+  @Test
+  public void testEstimates() throws Exception {
+    long[] itemIDs = new long[NUM_ITEMS + 1];
+    for (int j = 0; j < NUM_ITEMS; j++) {
+      itemIDs[j] = 200 + j;
+    }
+    itemIDs[NUM_ITEMS] = 999L;
+    Factorization compact = factorization.compact();
+    for (int i = 0; i < NUM_USERS; i++) {
+      long userID = 100 + i;
+      double[] estimates = factorization.estimates(userID, itemIDs);
+      double[] compactEstimates = compact.estimates(userID, itemIDs);
+      assertEquals(itemIDs.length, estimates.length);
+      for (int j = 0; j < NUM_ITEMS; j++) {
+        assertEquals(factorization.estimate(userID, itemIDs[j]), estimates[j], EPSILON);
+        assertEquals(estimates[j], compactEstimates[j], EPSILON);
+      }
+      assertTrue(Double.isNaN(estimates[NUM_ITEMS]));
+      assertTrue(Double.isNaN(compactEstimates[NUM_ITEMS]));
+    }
+  }
+
+  @Test
+  public void testCompact() throws Exception {
+    assertFalse(factorization.isCompact());
+    Factorization compact = factorization.compact();
+    assertTrue(compact.isCompact());
+    assertSame(compact, compact.compact());
+    assertEquals(NUM_FEATURES, compact.numFeatures());
+    assertEquals(NUM_USERS, compact.numUsers());
+    assertEquals(NUM_ITEMS, compact.numItems());
+    assertEquals(factorization.compact(), compact);
+    assertEquals(factorization.hashCode(), compact.hashCode());
+
+    double[][] itemFeatures = factorization.allItemFeatures();
+    double[][] compactItemFeatures = compact.allItemFeatures();
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        assertEquals(itemFeatures[i][f], compactItemFeatures[i][f], EPSILON);
+      }
+    }
+    double[] userFeatures = compact.getUserFeatures(102L);
+    userFeatures[0] += 1.0;
+    assertEquals(factorization.getUserFeatures(102L)[0], compact.getUserFeatures(102L)[0], EPSILON);
+
+    double[] copied = new double[NUM_FEATURES + 1];
+    compact.copyItemFeatures(203L, copied, 1);
+    double[] expected = factorization.getItemFeatures(203L);
+    for (int f = 0; f < NUM_FEATURES; f++) {
+      assertEquals(expected[f], copied[f + 1], EPSILON);
+    }
+  }
+
+  @Test
+  public void testEstimateBytes() {
+    long bytes = factorization.estimateBytes();
+    assertTrue(bytes > 8L * NUM_FEATURES * (NUM_USERS + NUM_ITEMS));
+    // Compact features take half as much, but the mappings stay the same
+    long compactBytes = factorization.compact().estimateBytes();
+    assertTrue(compactBytes > 4L * NUM_FEATURES * (NUM_USERS + NUM_ITEMS));
+    assertTrue(compactBytes < bytes);
+  }
+
+  @Test
+  public void testEqualsCompact() throws Exception {
+    Factorization compact = factorization.compact();
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap();
+    for (Map.Entry<Long,Integer> entry : compact.getUserIDMappings()) {
+      userIDMapping.put(entry.getKey(), entry.getValue());
+    }
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap();
+    for (Map.Entry<Long,Integer> entry : compact.getItemIDMappings()) {
+      itemIDMapping.put(entry.getKey(), entry.getValue());
+    }
+    // the same values as the compact factorization, held as doubles
+    Factorization widened =
+        new Factorization(userIDMapping, itemIDMapping, compact.allUserFeatures(), compact.allItemFeatures());
+    assertEquals(compact, widened);
+    assertEquals(widened, compact);
+    assertFalse(factorization.equals(compact));
+    assertFalse(compact.equals(factorization));
+  }
+
+  @Test(expected = NoSuchUserException.class)
+  public void testEstimatesNoSuchUser() throws Exception {
+    factorization.compact().estimates(999L, new long[] { 200L });
+  }
+
+  @Test(expected = NoSuchItemException.class)
+  public void testEstimateNoSuchItem() throws Exception {
+    factorization.compact().estimate(100L, 999L);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testSubclassMustOverride() throws Exception {
+    // keeps its mappings and features elsewhere, but forgets to override estimate()
+    new Factorization(3) {}.estimate(100L, 200L);
+  }
+
+}
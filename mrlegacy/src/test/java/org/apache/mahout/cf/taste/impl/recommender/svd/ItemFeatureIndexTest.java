@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.recommender.TopItems;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+/** <p>Tests {@link ItemFeatureIndex}.</p> */
+public final class ItemFeatureIndexTest extends TasteTestCase {
+
+  private static final int NUM_USERS = 20;
+  private static final int NUM_ITEMS = 2000;
+  private static final int NUM_FEATURES = 8;
+
+  private Factorization factorization;
+  private long[] itemIDs;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    Random random = RandomUtils.getRandom();
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap(NUM_USERS);
+    for (int i = 0; i < NUM_USERS; i++) {
+      userIDMapping.put(i, i);
+    }
+    double[][] userFeatures = getRandomFeatures(random, NUM_USERS, NUM_FEATURES);
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap(NUM_ITEMS);
+    double[][] itemFeatures = getRandomFeatures(random, NUM_ITEMS, NUM_FEATURES);
+    itemIDs = new long[NUM_ITEMS];
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      itemIDs[i] = i;
+      // store features in reverse, so that item IDs and rows differ
+      int row = NUM_ITEMS - 1 - i;
+      itemIDMapping.put(itemIDs[i], row);
+      double scale = 0.1 + random.nextDouble();
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        itemFeatures[row][f] *= scale;
+      }
+    }
+    factorization = new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+  }
+
+  @Test
+  public void testExactTopItems() throws Exception {
+    ItemFeatureIndex index = new ItemFeatureIndex(factorization, 45);
+    assertEquals(NUM_ITEMS, index.numItems());
+    assertEquals(45, index.numClusters());
+    for (long userID = 0; userID < NUM_USERS; userID++) {
+      double[] userFeatures = factorization.getUserFeatures(userID);
+      List<RecommendedItem> expected = bruteForce(userFeatures, 10, null);
+      List<RecommendedItem> actual = index.topItems(userFeatures, 10, null, null, Integer.MAX_VALUE);
+      assertSameItems(expected, actual);
+    }
+  }
+
+  @Test
+  public void testExcludedAndCandidateItems() throws Exception {
+    ItemFeatureIndex index = new ItemFeatureIndex(factorization, 20);
+    double[] userFeatures = factorization.getUserFeatures(3L);
+    List<RecommendedItem> best = index.topItems(userFeatures, 5, null, null, Integer.MAX_VALUE);
+
+    FastIDSet excluded = new FastIDSet();
+    excluded.add(best.get(0).getItemID());
+    List<RecommendedItem> withoutBest = index.topItems(userFeatures, 5, null, excluded, Integer.MAX_VALUE);
+    assertEquals(best.get(1).getItemID(), withoutBest.get(0).getItemID());
+
+    FastIDSet candidates = new FastIDSet();
+    for (int i = 0; i < NUM_ITEMS; i += 2) {
+      candidates.add(itemIDs[i]);
+    }
+    assertSameItems(bruteForce(userFeatures, 5, candidates),
+                    index.topItems(userFeatures, 5, candidates, null, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testLimitedProbes() throws Exception {
+    ItemFeatureIndex index = new ItemFeatureIndex(factorization, 45);
+    double[] userFeatures = factorization.getUserFeatures(7L);
+    List<RecommendedItem> approximate = index.topItems(userFeatures, 10, null, null, 1);
+    assertFalse(approximate.isEmpty());
+    assertTrue(approximate.size() <= 10);
+    for (int i = 1; i < approximate.size(); i++) {
+      assertTrue(approximate.get(i - 1).getValue() >= approximate.get(i).getValue());
+    }
+  }
+
+  @Test
+  public void testMoreClustersThanItems() throws Exception {
+    ItemFeatureIndex index = new ItemFeatureIndex(factorization, NUM_ITEMS * 2);
+    assertEquals(NUM_ITEMS, index.numClusters());
+    double[] userFeatures = factorization.getUserFeatures(0L);
+    assertSameItems(bruteForce(userFeatures, 3, null),
+                    index.topItems(userFeatures, 3, null, null, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testMappedFactorization() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(getTestTempFile("index.bin"));
+    persistenceStrategy.maybePersist(factorization);
+    Factorization mapped = persistenceStrategy.load();
+    ItemFeatureIndex index = new ItemFeatureIndex(mapped, 45);
+    for (long userID = 0; userID < NUM_USERS; userID++) {
+      double[] userFeatures = factorization.getUserFeatures(userID);
+      assertSameItems(bruteForce(userFeatures, 10, null),
+                      index.topItems(userFeatures, 10, null, null, Integer.MAX_VALUE));
+    }
+  }
+
+  @Test
+  public void testRecommender() throws Exception {
+    long[] userIDs = new long[NUM_USERS];
+    Double[][] prefs = new Double[NUM_USERS][NUM_ITEMS];
+    for (int i = 0; i < NUM_USERS; i++) {
+      userIDs[i] = i;
+    }
+    for (int j = 0; j < NUM_ITEMS; j++) {
+      prefs[j % NUM_USERS][j] = 1.0;
+    }
+    DataModel dataModel = getDataModel(userIDs, prefs);
+    Factorizer factorizer = new Factorizer() {
+      @Override
+      public Factorization factorize() {
+        return factorization;
+      }
+      @Override
+      public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+    };
+    SVDRecommender scanning = new SVDRecommender(dataModel, factorizer);
+    SVDRecommender indexed = new SVDRecommender(dataModel, factorizer);
+    indexed.useItemFeatureIndex(30, Integer.MAX_VALUE);
+    SVDRecommender compact = new SVDRecommender(dataModel, factorizer);
+    compact.useCompactFactorization();
+    compact.useItemFeatureIndex(30, Integer.MAX_VALUE);
+    for (long userID = 0; userID < NUM_USERS; userID++) {
+      List<RecommendedItem> expected = scanning.recommend(userID, 10);
+      assertSameItems(expected, indexed.recommend(userID, 10));
+      assertSameItems(expected, compact.recommend(userID, 10));
+      assertEquals(scanning.estimatePreference(userID, 3L), compact.estimatePreference(userID, 3L), EPSILON);
+    }
+  }
+
+  private List<RecommendedItem> bruteForce(final double[] userFeatures, int howMany, final FastIDSet candidates)
+    throws TasteException {
+    return TopItems.getTopItems(howMany, new LongPrimitiveArrayIterator(itemIDs), null,
+        new TopItems.Estimator<Long>() {
+          @Override
+          public double estimate(Long itemID) throws TasteException {
+            if (candidates != null && !candidates.contains(itemID)) {
+              return Double.NaN;
+            }
+            double[] itemFeatures = factorization.getItemFeatures(itemID);
+            double estimate = 0.0;
+            for (int f = 0; f < NUM_FEATURES; f++) {
+              estimate += userFeatures[f] * itemFeatures[f];
+            }
+            return estimate;
+          }
+        });
+  }
+
+  private static void assertSameItems(List<RecommendedItem> expected, List<RecommendedItem> actual) {
+    assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(expected.get(i).getItemID(), actual.get(i).getItemID());
+      assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), EPSILON);
+    }
+  }
+
+}
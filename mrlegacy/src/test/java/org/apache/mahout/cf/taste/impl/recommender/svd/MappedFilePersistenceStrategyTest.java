@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.recommender.svd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+import org.junit.Before;
+import org.junit.Test;
+
+/** <p>Tests {@link MappedFilePersistenceStrategy}.</p> */
+public final class MappedFilePersistenceStrategyTest extends TasteTestCase {
+
+  private static final int NUM_USERS = 7;
+  private static final int NUM_ITEMS = 9;
+  private static final int NUM_FEATURES = 3;
+
+  private Factorization original;
+  private File storage;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    Random random = RandomUtils.getRandom();
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap();
+    double[][] userFeatures = new double[NUM_USERS][NUM_FEATURES];
+    for (int i = 0; i < NUM_USERS; i++) {
+      // IDs not in row order, and some negative, so sorting matters
+      userIDMapping.put(1000L - 300L * i, i);
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        userFeatures[i][f] = random.nextGaussian();
+      }
+    }
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap();
+    double[][] itemFeatures = new double[NUM_ITEMS][NUM_FEATURES];
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      itemIDMapping.put(random.nextLong(), i);
+      for (int f = 0; f < NUM_FEATURES; f++) {
+        itemFeatures[i][f] = random.nextGaussian();
+      }
+    }
+    original = new Factorization(userIDMapping, itemIDMapping, userFeatures, itemFeatures);
+    storage = getTestTempFile("storage.bin");
+  }
+
+  @Test
+  public void testPersistAndLoad() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage);
+    assertNull(persistenceStrategy.load());
+
+    persistenceStrategy.maybePersist(original);
+    Factorization loaded = persistenceStrategy.load();
+
+    assertFalse(loaded.isCompact());
+    assertEquals(original, loaded);
+    assertEquals(loaded, original);
+    assertEquals(original.hashCode(), loaded.hashCode());
+    assertSameEstimates(original, loaded);
+  }
+
+  @Test
+  public void testPersistAndLoadCompact() throws Exception {
+    Factorization compact = original.compact();
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage, true);
+    persistenceStrategy.maybePersist(compact);
+    Factorization loaded = persistenceStrategy.load();
+
+    assertTrue(loaded.isCompact());
+    assertSame(loaded, loaded.compact());
+    assertEquals(compact, loaded);
+    assertSameEstimates(compact, loaded);
+  }
+
+  @Test
+  public void testMappings() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage);
+    persistenceStrategy.maybePersist(original);
+    Factorization loaded = persistenceStrategy.load();
+
+    assertEquals(NUM_USERS, loaded.numUsers());
+    assertEquals(NUM_ITEMS, loaded.numItems());
+    assertEquals(NUM_FEATURES, loaded.numFeatures());
+    int count = 0;
+    for (Map.Entry<Long,Integer> entry : loaded.getUserIDMappings()) {
+      assertEquals(original.userIndex(entry.getKey()), entry.getValue().intValue());
+      count++;
+    }
+    assertEquals(NUM_USERS, count);
+    LongPrimitiveIterator itemIDs = loaded.getItemIDMappingKeys();
+    long previous = Long.MIN_VALUE;
+    count = 0;
+    while (itemIDs.hasNext()) {
+      long itemID = itemIDs.nextLong();
+      assertTrue(itemID >= previous);
+      assertEquals(original.itemIndex(itemID), loaded.itemIndex(itemID));
+      previous = itemID;
+      count++;
+    }
+    assertEquals(NUM_ITEMS, count);
+  }
+
+  @Test
+  public void testReplaceWhileMapped() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage);
+    persistenceStrategy.maybePersist(original);
+    Factorization loaded = persistenceStrategy.load();
+
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap();
+    userIDMapping.put(1L, 0);
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap();
+    itemIDMapping.put(2L, 0);
+    Factorization replacement =
+        new Factorization(userIDMapping, itemIDMapping, new double[][] {{1.0}}, new double[][] {{2.0}});
+    persistenceStrategy.maybePersist(replacement);
+
+    assertEquals(original, loaded);
+    assertEquals(replacement, persistenceStrategy.load());
+  }
+
+  @Test(expected = NoSuchUserException.class)
+  public void testNoSuchUser() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage);
+    persistenceStrategy.maybePersist(original);
+    persistenceStrategy.load().getUserFeatures(1L);
+  }
+
+  @Test(expected = NoSuchItemException.class)
+  public void testNoSuchItem() throws Exception {
+    PersistenceStrategy persistenceStrategy = new MappedFilePersistenceStrategy(storage);
+    persistenceStrategy.maybePersist(original);
+    persistenceStrategy.load().itemIndex(1L);
+  }
+
+  @Test(expected = IOException.class)
+  public void testWrongFormat() throws Exception {
+    new FilePersistenceStrategy(storage).maybePersist(original);
+    new MappedFilePersistenceStrategy(storage).load();
+  }
+
+  private static void assertSameEstimates(Factorization expected, Factorization actual) throws Exception {
+    long[] itemIDs = new long[NUM_ITEMS + 1];
+    LongPrimitiveIterator it = expected.getItemIDMappingKeys();
+    for (int i = 0; i < NUM_ITEMS; i++) {
+      itemIDs[i] = it.nextLong();
+    }
+    itemIDs[NUM_ITEMS] = 1L;
+    LongPrimitiveIterator userIDs = expected.getUserIDMappingKeys();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      double[] expectedEstimates = expected.estimates(userID, itemIDs);
+      double[] actualEstimates = actual.estimates(userID, itemIDs);
+      for (int i = 0; i < NUM_ITEMS; i++) {
+        assertEquals(expectedEstimates[i], actualEstimates[i], EPSILON);
+        assertEquals(expected.estimate(userID, itemIDs[i]), actual.estimate(userID, itemIDs[i]), EPSILON);
+      }
+      assertTrue(Double.isNaN(actualEstimates[NUM_ITEMS]));
+    }
+  }
+
+}
@@ -23,6 +23,7 @@ import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
 import org.apache.mahout.cf.taste.recommender.CandidateItemsStrategy;
 import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
 import org.easymock.EasyMock;
 import org.junit.Test;
 
@@ -34,19 +35,16 @@ public class SVDRecommenderTest extends TasteTestCase {
   public void estimatePreference() throws Exception {
     DataModel dataModel = EasyMock.createMock(DataModel.class);
     Factorizer factorizer = EasyMock.createMock(Factorizer.class);
-    Factorization factorization = EasyMock.createMock(Factorization.class);
 
-    EasyMock.expect(factorizer.factorize()).andReturn(factorization);
-    EasyMock.expect(factorization.getUserFeatures(1L)).andReturn(new double[] { 0.4, 2 });
-    EasyMock.expect(factorization.getItemFeatures(5L)).andReturn(new double[] { 1, 0.3 });
-    EasyMock.replay(dataModel, factorizer, factorization);
+    EasyMock.expect(factorizer.factorize()).andReturn(factorization());
+    EasyMock.replay(dataModel, factorizer);
 
     SVDRecommender svdRecommender = new SVDRecommender(dataModel, factorizer);
 
     float estimate = svdRecommender.estimatePreference(1L, 5L);
     assertEquals(1, estimate, EPSILON);
 
-    EasyMock.verify(dataModel, factorizer, factorization);
+    EasyMock.verify(dataModel, factorizer);
   }
 
   @Test
@@ -55,22 +53,17 @@ public class SVDRecommenderTest extends TasteTestCase {
     PreferenceArray preferencesFromUser = EasyMock.createMock(PreferenceArray.class);
     CandidateItemsStrategy candidateItemsStrategy = EasyMock.createMock(CandidateItemsStrategy.class);
     Factorizer factorizer = EasyMock.createMock(Factorizer.class);
-    Factorization factorization = EasyMock.createMock(Factorization.class);
 
     FastIDSet candidateItems = new FastIDSet();
     candidateItems.add(5L);
     candidateItems.add(3L);
 
-    EasyMock.expect(factorizer.factorize()).andReturn(factorization);
+    EasyMock.expect(factorizer.factorize()).andReturn(factorization());
     EasyMock.expect(dataModel.getPreferencesFromUser(1L)).andReturn(preferencesFromUser);
     EasyMock.expect(candidateItemsStrategy.getCandidateItems(1L, preferencesFromUser, dataModel))
         .andReturn(candidateItems);
-    EasyMock.expect(factorization.getUserFeatures(1L)).andReturn(new double[] { 0.4, 2 });
-    EasyMock.expect(factorization.getItemFeatures(5L)).andReturn(new double[] { 1, 0.3 });
-    EasyMock.expect(factorization.getUserFeatures(1L)).andReturn(new double[] { 0.4, 2 });
-    EasyMock.expect(factorization.getItemFeatures(3L)).andReturn(new double[] { 2, 0.6 });
 
-    EasyMock.replay(dataModel, candidateItemsStrategy, factorizer, factorization);
+    EasyMock.replay(dataModel, candidateItemsStrategy, factorizer);
 
     SVDRecommender svdRecommender = new SVDRecommender(dataModel, factorizer, candidateItemsStrategy);
 
@@ -81,6 +74,19 @@ public class SVDRecommenderTest extends TasteTestCase {
     assertEquals(5L, recommendedItems.get(1).getItemID());
     assertEquals(1.0f, recommendedItems.get(1).getValue(), EPSILON);
 
-    EasyMock.verify(dataModel, candidateItemsStrategy, factorizer, factorization);
+    EasyMock.verify(dataModel, candidateItemsStrategy, factorizer);
+  }
+
+  /**
+   * @return features for user 1 and items 3 and 5
+   */
+  private static Factorization factorization() {
+    OpenLongIntHashMap userIDMapping = new OpenLongIntHashMap();
+    userIDMapping.put(1L, 0);
+    OpenLongIntHashMap itemIDMapping = new OpenLongIntHashMap();
+    itemIDMapping.put(5L, 0);
+    itemIDMapping.put(3L, 1);
+    return new Factorization(userIDMapping, itemIDMapping, new double[][] { { 0.4, 2 } },
+        new double[][] { { 1, 0.3 }, { 2, 0.6 } });
   }
 }
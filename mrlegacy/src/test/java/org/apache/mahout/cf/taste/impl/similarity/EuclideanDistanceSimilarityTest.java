@@ -233,4 +233,11 @@ public final class EuclideanDistanceSimilarityTest extends SimilarityTestCase {
     new EuclideanDistanceSimilarity(getDataModel()).refresh(null);
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testItemSimilarities() throws Exception {
+    DataModel dataModel = getSparseDataModel();
+    assertItemSimilaritiesMatch(new EuclideanDistanceSimilarity(dataModel), dataModel);
+    assertItemSimilaritiesMatch(new EuclideanDistanceSimilarity(dataModel, Weighting.WEIGHTED), dataModel);
+  }
+
+}
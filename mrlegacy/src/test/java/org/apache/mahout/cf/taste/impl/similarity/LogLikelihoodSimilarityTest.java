@@ -71,6 +71,19 @@ public final class LogLikelihoodSimilarityTest extends SimilarityTestCase {
     assertCorrelationEquals(0.0, similarity.itemSimilarity(3, 2));
   }
 
+  @Test
+  public void testItemSimilaritiesBoolean() throws Exception {
+    DataModel dataModel = getBooleanDataModel();
+    LogLikelihoodSimilarity similarity = new LogLikelihoodSimilarity(dataModel);
+    long[] itemIDs = {0, 1, 2, 3, 4};
+    for (long itemID1 : itemIDs) {
+      double[] similarities = similarity.itemSimilarities(itemID1, itemIDs);
+      for (int i = 0; i < itemIDs.length; i++) {
+        assertEquals(similarity.itemSimilarity(itemID1, itemIDs[i]), similarities[i], EPSILON);
+      }
+    }
+  }
+
   @Test
   public void testRefresh() {
     // Make sure this doesn't throw an exception
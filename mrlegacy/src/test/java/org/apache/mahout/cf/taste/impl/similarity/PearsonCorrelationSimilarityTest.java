@@ -234,6 +234,14 @@ public final class PearsonCorrelationSimilarityTest extends SimilarityTestCase {
     assertCorrelationEquals(0.9901922307076306, correlation);
   }
 
+  @Test
+  public void testItemSimilarities() throws Exception {
+    DataModel dataModel = getSparseDataModel();
+    assertItemSimilaritiesMatch(new PearsonCorrelationSimilarity(dataModel), dataModel);
+    assertItemSimilaritiesMatch(new PearsonCorrelationSimilarity(dataModel, Weighting.WEIGHTED), dataModel);
+    assertItemSimilaritiesMatch(new UncenteredCosineSimilarity(dataModel), dataModel);
+  }
+
   @Test
   public void testRefresh() throws Exception {
     // Make sure this doesn't throw an exception
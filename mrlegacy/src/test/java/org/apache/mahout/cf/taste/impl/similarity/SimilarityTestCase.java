@@ -17,7 +17,13 @@
 
 package org.apache.mahout.cf.taste.impl.similarity;
 
+import java.util.Random;
+
 import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.common.RandomUtils;
 
 abstract class SimilarityTestCase extends TasteTestCase {
 
@@ -32,4 +38,53 @@ abstract class SimilarityTestCase extends TasteTestCase {
     }
   }
 
+  /**
+   * @return a data model of 20 users and 15 items, with about a third of preferences missing
+   */
+  static DataModel getSparseDataModel() {
+    Random random = RandomUtils.getRandom();
+    long[] userIDs = new long[20];
+    Double[][] prefs = new Double[userIDs.length][15];
+    for (int i = 0; i < userIDs.length; i++) {
+      userIDs[i] = i + 1;
+      for (int j = 0; j < prefs[i].length; j++) {
+        if (random.nextInt(3) > 0) {
+          prefs[i][j] = (double) (1 + random.nextInt(5));
+        }
+      }
+    }
+    return getDataModel(userIDs, prefs);
+  }
+
+  /**
+   * Checks that {@link ItemSimilarity#itemSimilarities(long, long[])} gives the same results as
+   * {@link ItemSimilarity#itemSimilarity(long, long)} for every pair of items, including repeated and unknown items,
+   * and that an unknown item gets {@link Double#NaN} on its own too.
+   */
+  static void assertItemSimilaritiesMatch(ItemSimilarity similarity, DataModel dataModel) throws Exception {
+    long[] itemIDs = new long[dataModel.getNumItems() + 2];
+    LongPrimitiveIterator it = dataModel.getItemIDs();
+    for (int i = 0; i < dataModel.getNumItems(); i++) {
+      itemIDs[i] = it.nextLong();
+    }
+    itemIDs[itemIDs.length - 2] = itemIDs[0];
+    itemIDs[itemIDs.length - 1] = 999L;
+    for (long itemID1 : itemIDs) {
+      if (itemID1 == 999L) {
+        continue;
+      }
+      double[] similarities = similarity.itemSimilarities(itemID1, itemIDs);
+      for (int i = 0; i < itemIDs.length - 1; i++) {
+        double expected = similarity.itemSimilarity(itemID1, itemIDs[i]);
+        if (Double.isNaN(expected)) {
+          assertTrue(Double.isNaN(similarities[i]));
+        } else {
+          assertEquals(expected, similarities[i], 0.0);
+        }
+      }
+      assertTrue(Double.isNaN(similarities[itemIDs.length - 1]));
+      assertTrue(Double.isNaN(similarity.itemSimilarities(itemID1, new long[] {999L})[0]));
+    }
+  }
+
 }
@@ -118,4 +118,17 @@ public final class TanimotoCoefficientSimilarityTest extends SimilarityTestCase
 	  assertEquals(1, similarities[1], EPSILON);
   }
   
-}
\ No newline at end of file
+  @Test
+  public void testItemSimilaritiesBoolean() throws Exception {
+    DataModel dataModel = getBooleanDataModel();
+    TanimotoCoefficientSimilarity similarity = new TanimotoCoefficientSimilarity(dataModel);
+    long[] itemIDs = {0, 1, 2, 3, 4};
+    for (long itemID1 : itemIDs) {
+      double[] similarities = similarity.itemSimilarities(itemID1, itemIDs);
+      for (int i = 0; i < itemIDs.length; i++) {
+        assertEquals(similarity.itemSimilarity(itemID1, itemIDs[i]), similarities[i], EPSILON);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity.precompute;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
+import org.apache.mahout.cf.taste.impl.similarity.PearsonCorrelationSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItems;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItemsWriter;
+import org.junit.Test;
+
+/** <p>Tests {@link BinarySimilarItemsWriter} and {@link MappedItemSimilarity}.</p> */
+public final class MappedItemSimilarityTest extends TasteTestCase {
+
+  @Test
+  public void testWriteAndMap() throws Exception {
+    File file = getTestTempFile("similarities.bin");
+    SimilarItemsWriter writer = new BinarySimilarItemsWriter(file);
+    writer.open();
+    // out of order, and with similar items not sorted by similarity
+    writer.add(new SimilarItems(5L, Arrays.<RecommendedItem>asList(
+        new GenericRecommendedItem(1L, 0.25f), new GenericRecommendedItem(3L, 0.75f))));
+    writer.add(new SimilarItems(1L, Arrays.<RecommendedItem>asList(
+        new GenericRecommendedItem(3L, 0.5f), new GenericRecommendedItem(7L, -0.5f),
+        new GenericRecommendedItem(2L, 0.1f))));
+    writer.add(new SimilarItems(2L, Arrays.<RecommendedItem>asList()));
+    writer.close();
+    assertFalse(new File(file.getParentFile(), file.getName() + ".ids.tmp").exists());
+    assertFalse(new File(file.getParentFile(), file.getName() + ".similarities.tmp").exists());
+
+    MappedItemSimilarity similarity = new MappedItemSimilarity(file);
+    assertEquals(3, similarity.numItems());
+    assertEquals(1.0, similarity.itemSimilarity(4L, 4L), EPSILON);
+    assertEquals(0.5, similarity.itemSimilarity(1L, 3L), EPSILON);
+    assertEquals(-0.5, similarity.itemSimilarity(1L, 7L), EPSILON);
+    // found through item 5's similar items
+    assertEquals(0.25, similarity.itemSimilarity(1L, 5L), EPSILON);
+    assertEquals(0.75, similarity.itemSimilarity(3L, 5L), EPSILON);
+    assertTrue(Double.isNaN(similarity.itemSimilarity(2L, 3L)));
+    assertTrue(Double.isNaN(similarity.itemSimilarity(4L, 6L)));
+
+    double[] similarities = similarity.itemSimilarities(1L, new long[] {2L, 4L, 5L});
+    assertEquals(0.1, similarities[0], EPSILON);
+    assertTrue(Double.isNaN(similarities[1]));
+    assertEquals(0.25, similarities[2], EPSILON);
+
+    assertArrayEquals(new long[] {3L, 2L, 7L}, similarity.allSimilarItemIDs(1L));
+    assertEquals(0, similarity.allSimilarItemIDs(2L).length);
+    assertEquals(0, similarity.allSimilarItemIDs(4L).length);
+
+    List<RecommendedItem> mostSimilar = similarity.mostSimilarItems(5L, 1);
+    assertEquals(1, mostSimilar.size());
+    assertEquals(3L, mostSimilar.get(0).getItemID());
+    assertEquals(0.75f, mostSimilar.get(0).getValue(), EPSILON);
+    assertEquals(3, similarity.mostSimilarItems(1L, 10).size());
+    assertTrue(similarity.mostSimilarItems(4L, 10).isEmpty());
+  }
+
+  @Test
+  public void testRefresh() throws Exception {
+    File file = getTestTempFile("similarities.bin");
+    write(file, new SimilarItems(1L, Arrays.<RecommendedItem>asList(new GenericRecommendedItem(2L, 0.5f))));
+    MappedItemSimilarity similarity = new MappedItemSimilarity(file);
+    assertEquals(0.5, similarity.itemSimilarity(1L, 2L), EPSILON);
+
+    write(file, new SimilarItems(1L, Arrays.<RecommendedItem>asList(new GenericRecommendedItem(2L, 0.25f))));
+    file.setLastModified(file.lastModified() + 2000L);
+    similarity.refresh(null);
+    assertEquals(0.25, similarity.itemSimilarity(1L, 2L), EPSILON);
+  }
+
+  @Test
+  public void testSameAsBatchComputation() throws Exception {
+    DataModel dataModel = getDataModel();
+    ItemBasedRecommender recommender =
+        new GenericItemBasedRecommender(dataModel, new PearsonCorrelationSimilarity(dataModel));
+    File file = getTestTempFile("similarities.bin");
+    new MultithreadedBatchItemSimilarities(recommender, 3, 2).computeItemSimilarities(2, 1,
+        new BinarySimilarItemsWriter(file));
+
+    MappedItemSimilarity similarity = new MappedItemSimilarity(file);
+    assertEquals(dataModel.getNumItems(), similarity.numItems());
+    for (long itemID = 0; itemID < dataModel.getNumItems(); itemID++) {
+      List<RecommendedItem> expected = recommender.mostSimilarItems(itemID, 3);
+      List<RecommendedItem> actual = similarity.mostSimilarItems(itemID, 3);
+      assertEquals(expected.size(), actual.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals(expected.get(i).getItemID(), actual.get(i).getItemID());
+        assertEquals(expected.get(i).getValue(), actual.get(i).getValue(), EPSILON);
+      }
+    }
+  }
+
+  private static void write(File file, SimilarItems similarItems) throws Exception {
+    SimilarItemsWriter writer = new BinarySimilarItemsWriter(file);
+    writer.open();
+    writer.add(similarItems);
+    writer.close();
+  }
+
+}
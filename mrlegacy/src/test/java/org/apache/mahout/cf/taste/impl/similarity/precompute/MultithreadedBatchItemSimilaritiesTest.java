@@ -0,0 +1,178 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.cf.taste.impl.similarity.precompute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.collect.Lists;
+import org.apache.mahout.cf.taste.impl.TasteTestCase;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.similarity.LogLikelihoodSimilarity;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.recommender.ItemBasedRecommender;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItems;
+import org.apache.mahout.cf.taste.similarity.precompute.SimilarItemsWriter;
+import org.apache.mahout.common.RandomUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class MultithreadedBatchItemSimilaritiesTest extends TasteTestCase {
+
+  private static final int NUM_USERS = 40;
+  private static final int NUM_ITEMS = 300;
+
+  private DataModel dataModel;
+  private ItemBasedRecommender recommender;
+
+  @Override
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+    Random random = RandomUtils.getRandom();
+    long[] userIDs = new long[NUM_USERS];
+    Double[][] prefs = new Double[NUM_USERS][NUM_ITEMS];
+    for (int i = 0; i < NUM_USERS; i++) {
+      userIDs[i] = i;
+      // item 0 is preferred by everyone
+      prefs[i][0] = 1.0;
+      for (int j = 1; j < NUM_ITEMS; j++) {
+        if (random.nextDouble() < 0.1) {
+          prefs[i][j] = 1.0;
+        }
+      }
+    }
+    dataModel = getDataModel(userIDs, prefs);
+    recommender = new GenericItemBasedRecommender(dataModel, new LogLikelihoodSimilarity(dataModel));
+  }
+
+  @Test
+  public void testSameAsRecommender() throws Exception {
+    MultithreadedBatchItemSimilarities batch = new MultithreadedBatchItemSimilarities(recommender, 5, 10, 1);
+    CollectingWriter writer = new CollectingWriter(-1);
+    int numSimilarities = batch.computeItemSimilarities(4, 1, writer);
+
+    assertTrue(writer.closed);
+    assertEquals(dataModel.getNumItems(), writer.written.size());
+    assertEquals(dataModel.getNumItems(), batch.getNumItemsProcessed());
+    assertEquals(dataModel.getNumItems(), batch.getNumItemsToProcess());
+    int expectedNumSimilarities = 0;
+    FastIDSet seen = new FastIDSet();
+    for (SimilarItems similarItems : writer.written) {
+      assertTrue(seen.add(similarItems.getItemID()));
+      List<RecommendedItem> expected = recommender.mostSimilarItems(similarItems.getItemID(), 5);
+      assertEquals(expected.size(), similarItems.numSimilarItems());
+      expectedNumSimilarities += expected.size();
+    }
+    assertEquals(expectedNumSimilarities, numSimilarities);
+    assertEquals(expectedNumSimilarities, batch.getNumSimilaritiesProcessed());
+  }
+
+  @Test
+  public void testResumeFromCheckpoint() throws Exception {
+    File checkpointFile = getTestTempFile("similarities.checkpoint");
+    checkpointFile.delete();
+
+    MultithreadedBatchItemSimilarities batch = new MultithreadedBatchItemSimilarities(recommender, 5, 10);
+    batch.useCheckpointFile(checkpointFile);
+    CollectingWriter failing = new CollectingWriter(100);
+    try {
+      batch.computeItemSimilarities(2, 1, failing);
+      fail("Expected the writer's failure");
+    } catch (IOException ioe) {
+      // expected
+    }
+    assertTrue(failing.closed);
+    int numCheckpointed = batch.getNumItemsProcessed();
+    assertTrue(numCheckpointed > 0 && numCheckpointed <= 100);
+
+    CollectingWriter resumed = new CollectingWriter(-1);
+    batch.computeItemSimilarities(2, 1, resumed);
+    assertEquals(dataModel.getNumItems() - numCheckpointed, batch.getNumItemsToProcess());
+    assertEquals(dataModel.getNumItems() - numCheckpointed, resumed.written.size());
+
+    FastIDSet all = new FastIDSet();
+    for (SimilarItems similarItems : failing.written) {
+      all.add(similarItems.getItemID());
+    }
+    for (SimilarItems similarItems : resumed.written) {
+      all.add(similarItems.getItemID());
+    }
+    assertEquals(dataModel.getNumItems(), all.size());
+
+    // everything is now checkpointed
+    batch.computeItemSimilarities(2, 1, new CollectingWriter(-1));
+    assertEquals(0, batch.getNumItemsToProcess());
+  }
+
+  @Test
+  public void testBatchItemIDsByCost() throws Exception {
+    LongPrimitiveIterator itemIDs = dataModel.getItemIDs();
+    itemIDs.skip(1);
+    long skipped = itemIDs.nextLong();
+    FastIDSet skip = new FastIDSet();
+    skip.add(skipped);
+    long[][] batches = MultithreadedBatchItemSimilarities.batchItemIDsByCost(dataModel, skip, 20, 2);
+    // the most popular item comes first, on its own
+    assertEquals(1, batches[0].length);
+    assertEquals(0L, batches[0][0]);
+    FastIDSet seen = new FastIDSet();
+    for (long[] batch : batches) {
+      assertTrue(batch.length <= 20);
+      for (long itemID : batch) {
+        assertTrue(seen.add(itemID));
+      }
+    }
+    assertEquals(dataModel.getNumItems() - 1, seen.size());
+    assertFalse(seen.contains(skipped));
+  }
+
+  /** Keeps what is written, failing once it has been given more than {@code failAfter} items, if not negative. */
+  private static final class CollectingWriter implements SimilarItemsWriter {
+
+    private final int failAfter;
+    private final List<SimilarItems> written = Lists.newArrayList();
+    private boolean closed;
+
+    private CollectingWriter(int failAfter) {
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public void open() {}
+
+    @Override
+    public void add(SimilarItems similarItems) throws IOException {
+      if (failAfter >= 0 && written.size() >= failAfter) {
+        throw new IOException("Failing after " + failAfter + " items");
+      }
+      written.add(similarItems);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+}
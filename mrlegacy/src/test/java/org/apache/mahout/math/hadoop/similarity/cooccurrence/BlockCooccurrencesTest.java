@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.math.hadoop.similarity.cooccurrence;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.mahout.common.MahoutTestCase;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.DenseMatrix;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.CosineSimilarity;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.TanimotoCoefficientSimilarity;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasure;
+import org.apache.mahout.math.list.IntArrayList;
+import org.apache.mahout.math.map.OpenIntIntHashMap;
+import org.apache.mahout.math.map.OpenIntObjectHashMap;
+import org.junit.Test;
+
+public final class BlockCooccurrencesTest extends MahoutTestCase {
+
+  private static final int NUM_ROWS = 50;
+  private static final int NUM_COLUMNS = 40;
+
+  @Test
+  public void testSameDotsForAnyBlockSize() {
+    Matrix rows = randomMatrix();
+    Matrix expected = dots(rows, new CosineSimilarity(), null);
+    for (int blockSize : new int[] { 1, 7, 16, NUM_ROWS, 1000 }) {
+      BlockCooccurrences blockCooccurrences = new BlockCooccurrences(new CosineSimilarity(), blockSize);
+      Matrix actual = new DenseMatrix(NUM_ROWS, NUM_ROWS);
+      for (int column = 0; column < NUM_COLUMNS; column++) {
+        blockCooccurrences.add(occurrences(rows, column));
+      }
+      addDrained(blockCooccurrences.drain(0), actual);
+      assertEquals(0, blockCooccurrences.size());
+      assertMatrixEquals(expected, actual);
+    }
+  }
+
+  @Test
+  public void testDrainLargestBlockPairs() {
+    Matrix rows = randomMatrix();
+    Matrix expected = dots(rows, new CosineSimilarity(), null);
+    BlockCooccurrences blockCooccurrences = new BlockCooccurrences(new CosineSimilarity(), 8);
+    Matrix actual = new DenseMatrix(NUM_ROWS, NUM_ROWS);
+    for (int column = 0; column < NUM_COLUMNS; column++) {
+      blockCooccurrences.add(occurrences(rows, column));
+      if (blockCooccurrences.size() > 200) {
+        addDrained(blockCooccurrences.drain(100), actual);
+        assertTrue(blockCooccurrences.size() <= 100);
+      }
+    }
+    addDrained(blockCooccurrences.drain(0), actual);
+    assertMatrixEquals(expected, actual);
+  }
+
+  @Test
+  public void testSizeCountsMaps() {
+    Vector column = new RandomAccessSparseVector(Integer.MAX_VALUE);
+    column.setQuick(0, 1.0);
+    column.setQuick(1, 1.0);
+    column.setQuick(12, 1.0);
+    Vector.Element[] occurrences = Vectors.toArray(new VectorWritable(column));
+    Arrays.sort(occurrences, RowSimilarityJob.CooccurrencesMapper.BY_INDEX);
+    BlockCooccurrences blockCooccurrences = new BlockCooccurrences(new CosineSimilarity(), 10);
+    blockCooccurrences.add(occurrences);
+    // Block pair (0, 0) holds 0-0, 0-1 and 1-1 in the maps of rows 0 and 1, (0, 1) holds 0-12 and 1-12 in the
+    // maps of rows 0 and 1, and (1, 1) holds 12-12 in the map of row 12
+    assertEquals(6 + 8 * BlockCooccurrences.MAP_COST, blockCooccurrences.size());
+    blockCooccurrences.add(occurrences);
+    assertEquals(6 + 8 * BlockCooccurrences.MAP_COST, blockCooccurrences.size());
+    // The largest block pair goes first
+    blockCooccurrences.drain(6 + 8 * BlockCooccurrences.MAP_COST - 1);
+    assertEquals(3 + 5 * BlockCooccurrences.MAP_COST, blockCooccurrences.size());
+    blockCooccurrences.drain(0);
+    assertEquals(0, blockCooccurrences.size());
+  }
+
+  @Test
+  public void testPruning() {
+    Matrix rows = randomMatrix();
+    OpenIntIntHashMap numNonZeroEntries = new OpenIntIntHashMap();
+    Vector maxValues = new RandomAccessSparseVector(Integer.MAX_VALUE);
+    for (int row = 0; row < NUM_ROWS; row++) {
+      numNonZeroEntries.put(row, rows.viewRow(row).getNumNonZeroElements());
+      maxValues.setQuick(row, 1.0);
+    }
+    VectorSimilarityMeasure similarity = new TanimotoCoefficientSimilarity();
+    BlockCooccurrences blockCooccurrences = new BlockCooccurrences(similarity, 10, 0.8, numNonZeroEntries, maxValues);
+    for (int column = 0; column < NUM_COLUMNS; column++) {
+      blockCooccurrences.add(occurrences(rows, column));
+    }
+    Matrix actual = new DenseMatrix(NUM_ROWS, NUM_ROWS);
+    addDrained(blockCooccurrences.drain(0), actual);
+
+    BlockCooccurrences unpruned = new BlockCooccurrences(similarity, 10);
+    for (int column = 0; column < NUM_COLUMNS; column++) {
+      unpruned.add(occurrences(rows, column));
+    }
+    assertTrue(blockCooccurrences.getPrunedCooccurrences() > 0);
+    assertEquals(unpruned.getCooccurrences(),
+        blockCooccurrences.getCooccurrences() + blockCooccurrences.getPrunedCooccurrences());
+    assertMatrixEquals(dots(rows, similarity, numNonZeroEntries), actual);
+  }
+
+  private static Matrix randomMatrix() {
+    Random random = RandomUtils.getRandom();
+    Matrix rows = new DenseMatrix(NUM_ROWS, NUM_COLUMNS);
+    for (int row = 0; row < NUM_ROWS; row++) {
+      for (int column = 0; column < NUM_COLUMNS; column++) {
+        if (random.nextDouble() < 0.3) {
+          rows.setQuick(row, column, 1.0 + random.nextInt(5));
+        }
+      }
+    }
+    return rows;
+  }
+
+  private static Vector.Element[] occurrences(Matrix rows, int column) {
+    Vector occurrences = new RandomAccessSparseVector(Integer.MAX_VALUE);
+    for (int row = 0; row < NUM_ROWS; row++) {
+      occurrences.setQuick(row, rows.getQuick(row, column));
+    }
+    Vector.Element[] sorted = Vectors.toArray(new VectorWritable(occurrences));
+    Arrays.sort(sorted, RowSimilarityJob.CooccurrencesMapper.BY_INDEX);
+    return sorted;
+  }
+
+  /**
+   * @return the summed aggregations of each row with itself and every row of a higher index, leaving out pairs
+   *  which {@link TanimotoCoefficientSimilarity#consider(int, int, double, double, double)} prunes if
+   *  numNonZeroEntries is given
+   */
+  private static Matrix dots(Matrix rows, VectorSimilarityMeasure similarity, OpenIntIntHashMap numNonZeroEntries) {
+    Matrix dots = new DenseMatrix(NUM_ROWS, NUM_ROWS);
+    for (int rowA = 0; rowA < NUM_ROWS; rowA++) {
+      for (int rowB = rowA; rowB < NUM_ROWS; rowB++) {
+        if (numNonZeroEntries != null && !similarity.consider(numNonZeroEntries.get(rowA),
+            numNonZeroEntries.get(rowB), 1.0, 1.0, 0.8)) {
+          continue;
+        }
+        double dot = 0.0;
+        for (int column = 0; column < NUM_COLUMNS; column++) {
+          double valueA = rows.getQuick(rowA, column);
+          double valueB = rows.getQuick(rowB, column);
+          if (valueA != 0.0 && valueB != 0.0) {
+            dot += similarity.aggregate(valueA, valueB);
+          }
+        }
+        dots.setQuick(rowA, rowB, dot);
+      }
+    }
+    return dots;
+  }
+
+  private static void addDrained(OpenIntObjectHashMap<Vector> partialDots, Matrix dots) {
+    IntArrayList rows = partialDots.keys();
+    for (int i = 0; i < rows.size(); i++) {
+      int row = rows.getQuick(i);
+      for (Vector.Element element : partialDots.get(row).nonZeroes()) {
+        assertTrue(element.index() >= row);
+        dots.setQuick(row, element.index(), dots.getQuick(row, element.index()) + element.get());
+      }
+    }
+  }
+
+  private static void assertMatrixEquals(Matrix expected, Matrix actual) {
+    for (int rowA = 0; rowA < NUM_ROWS; rowA++) {
+      for (int rowB = 0; rowB < NUM_ROWS; rowB++) {
+        assertEquals(expected.getQuick(rowA, rowB), actual.getQuick(rowA, rowB), EPSILON);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.mahout.math.hadoop.similarity.cooccurrence;
+
+import java.util.Random;
+
+import org.apache.mahout.common.ClassUtils;
+import org.apache.mahout.common.MahoutTestCase;
+import org.apache.mahout.common.RandomUtils;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.CosineSimilarity;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.TanimotoCoefficientSimilarity;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasure;
+import org.apache.mahout.math.hadoop.similarity.cooccurrence.measures.VectorSimilarityMeasures;
+import org.junit.Test;
+
+public final class InMemoryRowSimilarityTest extends MahoutTestCase {
+
+  private static final int NUM_ROWS = 60;
+  private static final int NUM_COLUMNS = 30;
+
+  @Test
+  public void testAllMeasures() throws Exception {
+    Vector[] rows = randomRows();
+    for (VectorSimilarityMeasures measure : VectorSimilarityMeasures.values()) {
+      VectorSimilarityMeasure similarity =
+          ClassUtils.instantiateAs(measure.getClassname(), VectorSimilarityMeasure.class);
+      InMemoryRowSimilarity rowSimilarity =
+          new InMemoryRowSimilarity(similarity, NUM_COLUMNS, RowSimilarityJob.NO_THRESHOLD, false, NUM_ROWS);
+      addRows(rowSimilarity, rows);
+      assertSimilarities(similarities(rows, similarity, RowSimilarityJob.NO_THRESHOLD, false), rowSimilarity, 2);
+    }
+  }
+
+  @Test
+  public void testThresholdAndSelfSimilarity() throws Exception {
+    Vector[] rows = randomRows();
+    VectorSimilarityMeasure similarity = new TanimotoCoefficientSimilarity();
+    InMemoryRowSimilarity rowSimilarity = new InMemoryRowSimilarity(similarity, NUM_COLUMNS, 0.3, true, NUM_ROWS);
+    addRows(rowSimilarity, rows);
+    assertSimilarities(similarities(rows, similarity, 0.3, true), rowSimilarity, 3);
+  }
+
+  @Test
+  public void testTopSimilarities() throws Exception {
+    Vector[] rows = randomRows();
+    VectorSimilarityMeasure similarity = new CosineSimilarity();
+    InMemoryRowSimilarity rowSimilarity =
+        new InMemoryRowSimilarity(similarity, NUM_COLUMNS, RowSimilarityJob.NO_THRESHOLD, true, 5);
+    addRows(rowSimilarity, rows);
+    Vector[] expected = similarities(rows, similarity, RowSimilarityJob.NO_THRESHOLD, true);
+    for (int row = 0; row < NUM_ROWS; row++) {
+      if (expected[row] != null) {
+        expected[row] = Vectors.topKElements(5, expected[row]);
+      }
+    }
+    assertSimilarities(expected, rowSimilarity, 4);
+  }
+
+  private static Vector[] randomRows() {
+    Random random = RandomUtils.getRandom();
+    Vector[] rows = new Vector[NUM_ROWS];
+    for (int row = 0; row < NUM_ROWS; row++) {
+      rows[row] = new RandomAccessSparseVector(NUM_COLUMNS);
+      // leave some rows empty
+      if (row % 10 != 3) {
+        for (int column = 0; column < NUM_COLUMNS; column++) {
+          if (random.nextDouble() < 0.2) {
+            rows[row].setQuick(column, 1.0 + random.nextDouble() * 4.0);
+          }
+        }
+      }
+    }
+    return rows;
+  }
+
+  private static void addRows(InMemoryRowSimilarity rowSimilarity, Vector[] rows) {
+    // add in descending order, the similarities must come out ascending
+    for (int row = NUM_ROWS - 1; row >= 0; row--) {
+      rowSimilarity.addRow(row, rows[row].clone());
+    }
+  }
+
+  /**
+   * @return the similarities of each row with all others, computed pair by pair, or null for empty rows
+   */
+  private static Vector[] similarities(Vector[] rows, VectorSimilarityMeasure similarity, double threshold,
+      boolean excludeSelfSimilarity) {
+    Vector[] normalized = new Vector[NUM_ROWS];
+    for (int row = 0; row < NUM_ROWS; row++) {
+      normalized[row] = similarity.normalize(rows[row].clone());
+    }
+    Vector[] similarities = new Vector[NUM_ROWS];
+    for (int rowA = 0; rowA < NUM_ROWS; rowA++) {
+      if (normalized[rowA].getNumNonZeroElements() > 0) {
+        similarities[rowA] = new RandomAccessSparseVector(Integer.MAX_VALUE);
+      }
+    }
+    for (int rowA = 0; rowA < NUM_ROWS; rowA++) {
+      for (int rowB = rowA; rowB < NUM_ROWS; rowB++) {
+        if (threshold != RowSimilarityJob.NO_THRESHOLD && !similarity.consider(
+            normalized[rowA].getNumNonZeroElements(), normalized[rowB].getNumNonZeroElements(),
+            normalized[rowA].maxValue(), normalized[rowB].maxValue(), threshold)) {
+          continue;
+        }
+        double dot = 0.0;
+        for (Vector.Element a : normalized[rowA].nonZeroes()) {
+          double b = normalized[rowB].getQuick(a.index());
+          if (b != 0.0) {
+            dot += similarity.aggregate(a.get(), b);
+          }
+        }
+        if (dot == 0.0 || (excludeSelfSimilarity && rowA == rowB)) {
+          continue;
+        }
+        double similarityValue = similarity.similarity(dot, similarity.norm(normalized[rowA]),
+            similarity.norm(normalized[rowB]), NUM_COLUMNS);
+        if (similarityValue >= threshold) {
+          similarities[rowA].setQuick(rowB, similarityValue);
+          similarities[rowB].setQuick(rowA, similarityValue);
+        }
+      }
+    }
+    return similarities;
+  }
+
+  private static void assertSimilarities(Vector[] expected, InMemoryRowSimilarity rowSimilarity, int numThreads)
+    throws InterruptedException {
+    int[] rowIndices = rowSimilarity.rowIndices();
+    Vector[] actual = rowSimilarity.computeSimilarities(numThreads);
+    assertEquals(rowIndices.length, actual.length);
+    int position = 0;
+    for (int row = 0; row < NUM_ROWS; row++) {
+      if (expected[row] == null) {
+        continue;
+      }
+      assertEquals(row, rowIndices[position]);
+      Vector actualRow = actual[position];
+      assertEquals(expected[row].getNumNonZeroElements(), actualRow.getNumNonZeroElements());
+      for (Vector.Element element : expected[row].nonZeroes()) {
+        assertEquals(element.get(), actualRow.getQuick(element.index()), EPSILON);
+      }
+      position++;
+    }
+    assertEquals(rowIndices.length, position);
+  }
+
+}